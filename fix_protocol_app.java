@@ -26,26 +26,132 @@ import quickfix.field.*;
 import quickfix.fix44.*;
 import quickfix.fix44.Message;
 
+import com.sun.net.httpserver.HttpServer;
+import org.quickfixj.CharsetSupport;
+
 import java.io.*;
+import java.lang.invoke.VarHandle;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.management.ObjectName;
 
 // ============================================================================
 // MAIN APPLICATION
 // ============================================================================
 public class FIXProtocolApp {
+    // Console sink for output that has been turned off
+    static final PrintStream DISCARD = new PrintStream(OutputStream.nullOutputStream());
+    
     public static void main(String[] args) {
         System.out.println("╔════════════════════════════════════════════╗");
         System.out.println("║  FIX Protocol Trading System (QuickFIX/J) ║");
         System.out.println("╚════════════════════════════════════════════╝\n");
         
+        // Headless: java FIXProtocolApp --scenario <file>
+        if (args.length == 2 && "--scenario".equals(args[0])) {
+            try {
+                ScenarioRunner.run(new File(args[1]));
+            } catch (Exception e) {
+                System.err.println("Scenario failed: " + e.getMessage());
+                e.printStackTrace();
+                System.exit(1);
+            }
+            return;
+        }
+        
+        // Offline: java FIXProtocolApp --compile-secmaster <csv> <bin>
+        if (args.length == 3 && "--compile-secmaster".equals(args[0])) {
+            try {
+                int count = SecurityMaster.compile(new File(args[1]), new File(args[2]));
+                System.out.println("✓ Compiled " + count + " instruments into " + args[2]);
+            } catch (IOException e) {
+                System.err.println("Security master compile failed: " + e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
+        
+        // Offline: java FIXProtocolApp --analyze-logs <log dir or file>...
+        if (args.length >= 2 && "--analyze-logs".equals(args[0])) {
+            try {
+                List<File> logs = new ArrayList<>();
+                for (int i = 1; i < args.length; i++) {
+                    File path = new File(args[i]);
+                    File[] inDir = path.listFiles((dir, name) -> FixLogChunks.isMessageLog(name));
+                    if (inDir != null) {
+                        logs.addAll(Arrays.asList(inDir));
+                    } else {
+                        logs.add(path);
+                    }
+                }
+                FixLogAnalyzer.analyze(logs).print(System.out);
+            } catch (IOException e) {
+                System.err.println("Log analysis failed: " + e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
+        
+        // Offline: java FIXProtocolApp --eod-report <fills-yyyyMMdd.col> <log dir>
+        if (args.length == 3 && "--eod-report".equals(args[0])) {
+            try {
+                File[] logs = new File(args[2]).listFiles((dir, name) -> FixLogChunks.isMessageLog(name));
+                EodReport.build(new File(args[1]), logs != null ? Arrays.asList(logs) : Collections.emptyList())
+                    .print(System.out);
+            } catch (IOException e) {
+                System.err.println("End-of-day report failed: " + e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
+        
         Scanner scanner = new Scanner(System.in);
         System.out.println("1. Start FIX Server (Acceptor)");
         System.out.println("2. Start FIX Client (Initiator)");
         System.out.println("3. Run Both (Recommended for testing)");
+        System.out.println("4. Run Both In-VM (no TCP, lowest latency)");
         System.out.print("\nSelect mode: ");
         
         int choice = scanner.nextInt();
@@ -62,6 +168,9 @@ public class FIXProtocolApp {
                 case 3:
                     startBoth(scanner);
                     break;
+                case 4:
+                    startInVm(scanner);
+                    break;
                 default:
                     System.out.println("Invalid choice");
             }
@@ -78,9 +187,9 @@ public class FIXProtocolApp {
         createServerConfig();
         
         SessionSettings settings = new SessionSettings("server.cfg");
-        FIXServerApplication serverApp = new FIXServerApplication();
-        MessageStoreFactory storeFactory = new FileStoreFactory(settings);
-        LogFactory logFactory = new FileLogFactory(settings);
+        FIXServerApplication serverApp = createServerApplication(settings);
+        MessageStoreFactory storeFactory = new IndexedFileStoreFactory(settings);
+        LogFactory logFactory = StageTracer.wrap(new RollingFileLogFactory(settings));
         MessageFactory messageFactory = new DefaultMessageFactory();
         
         SocketAcceptor acceptor = new SocketAcceptor(
@@ -93,9 +202,60 @@ public class FIXProtocolApp {
         System.in.read();
         
         acceptor.stop();
+        serverApp.shutdown();
         System.out.println("✓ Server stopped");
     }
     
+    static FIXServerApplication createServerApplication(SessionSettings settings) 
+            throws Exception {
+        FIXServerApplication serverApp = new FIXServerApplication();
+        if (PrecompiledValidator.replacesDictionary(settings)) {
+            serverApp.enableValidator(PrecompiledValidator.forServer(), settings);
+            System.out.println("✓ Server: Precompiled validation for order messages");
+        }
+        
+        // The symbol file fixes the IDs its symbols get, so it loads before warm-up interns any
+        if (settings.isSetting(SymbolDictionary.SETTING_SYMBOL_FILE)) {
+            File symbolFile = new File(settings.getString(SymbolDictionary.SETTING_SYMBOL_FILE));
+            long start = System.nanoTime();
+            int loaded = SymbolDictionary.DEFAULT.load(symbolFile);
+            System.out.printf("✓ Server: Loaded %d symbols from %s in %.1f ms%n",
+                loaded, symbolFile, (System.nanoTime() - start) / 1e6);
+        }
+        if (settings.isSetting(SecurityMaster.SETTING_FILE)) {
+            long reloadSeconds = settings.isSetting(SecurityMaster.SETTING_RELOAD_SECONDS)
+                ? settings.getLong(SecurityMaster.SETTING_RELOAD_SECONDS) : 0;
+            serverApp.enableSecurityMaster(new SecurityMasterWatcher(
+                new File(settings.getString(SecurityMaster.SETTING_FILE))), reloadSeconds);
+        }
+        
+        // Prime the hot paths before any counterparty can log on
+        if (JitWarmup.isEnabled(settings)) {
+            JitWarmup.warmServer(serverApp, JitWarmup.getMaxMillis(settings));
+        }
+        
+        serverApp.getMetrics().startExporters(settings);
+        serverApp.getRttMonitor().start(settings);
+        serverApp.getCancelOnDisconnect().configure(settings);
+        if (settings.isSetting(FillCapture.SETTING_DIRECTORY)) {
+            serverApp.enableFillCapture(new FillCapture(new File(settings.getString(FillCapture.SETTING_DIRECTORY))));
+        }
+        if (settings.isSetting(ClOrdIdFilter.SETTING_CAPACITY)) {
+            serverApp.setClOrdIdCapacity((int) settings.getLong(ClOrdIdFilter.SETTING_CAPACITY));
+        }
+        StageTracer.start();
+        
+        // Restore resting orders from the latest snapshot plus journal tail
+        if (settings.isSetting(OrderPersistence.SETTING_STORE_PATH)) {
+            long interval = settings.isSetting(OrderPersistence.SETTING_SNAPSHOT_INTERVAL)
+                ? settings.getLong(OrderPersistence.SETTING_SNAPSHOT_INTERVAL)
+                : OrderPersistence.DEFAULT_SNAPSHOT_INTERVAL;
+            serverApp.enablePersistence(new OrderPersistence(
+                new File(settings.getString(OrderPersistence.SETTING_STORE_PATH)), interval));
+        }
+        return serverApp;
+    }
+    
     private static void startClient(Scanner scanner) throws Exception {
         System.out.println("\n=== Starting FIX Client (Initiator) ===\n");
         
@@ -103,9 +263,9 @@ public class FIXProtocolApp {
         createClientConfig();
         
         SessionSettings settings = new SessionSettings("client.cfg");
-        FIXClientApplication clientApp = new FIXClientApplication();
-        MessageStoreFactory storeFactory = new FileStoreFactory(settings);
-        LogFactory logFactory = new FileLogFactory(settings);
+        FIXClientApplication clientApp = createClientApplication(settings);
+        MessageStoreFactory storeFactory = new IndexedFileStoreFactory(settings);
+        LogFactory logFactory = new RollingFileLogFactory(settings);
         MessageFactory messageFactory = new DefaultMessageFactory();
         
         SocketInitiator initiator = new SocketInitiator(
@@ -123,18 +283,92 @@ public class FIXProtocolApp {
         runClientMenu(scanner, clientApp);
         
         initiator.stop();
+        clientApp.shutdown();
         System.out.println("✓ Client stopped");
     }
     
+    static FIXClientApplication createClientApplication(SessionSettings settings) throws Exception {
+        FIXClientApplication clientApp = new FIXClientApplication();
+        if (JitWarmup.isEnabled(settings)) {
+            JitWarmup.warmClient(clientApp, JitWarmup.getMaxMillis(settings));
+        }
+        if (settings.isSetting(FIXClientApplication.SETTING_RESPONSE_TIMEOUT)) {
+            clientApp.setResponseTimeout(
+                settings.getLong(FIXClientApplication.SETTING_RESPONSE_TIMEOUT), TimeUnit.SECONDS);
+        }
+        clientApp.configureHistory(
+            settings.isSetting(FIXClientApplication.SETTING_HISTORY_CAPACITY) 
+                ? (int) settings.getLong(FIXClientApplication.SETTING_HISTORY_CAPACITY) 
+                : OrderHistoryRing.DEFAULT_CAPACITY,
+            settings.isSetting(FileStoreFactory.SETTING_FILE_STORE_PATH)
+                ? new File(settings.getString(FileStoreFactory.SETTING_FILE_STORE_PATH), 
+                    FIXClientApplication.HISTORY_SPILL_FILE)
+                : null);
+        if (settings.isSetting(OrderRouter.SETTING_POLICY)) {
+            clientApp.getRouter().setPolicy(
+                OrderRouter.Policy.valueOf(settings.getString(OrderRouter.SETTING_POLICY).trim().toUpperCase()));
+        }
+        clientApp.getMetrics().startExporters(settings);
+        clientApp.getRttMonitor().start(settings);
+        return clientApp;
+    }
+    
+    // Same sessions and settings as startBoth, joined by in-process rings instead of TCP
+    private static void startInVm(Scanner scanner) throws Exception {
+        System.out.println("\n=== Starting In-VM Server and Client ===\n");
+        
+        InVmConnector connector = null;
+        FIXServerApplication serverApp = null;
+        FIXClientApplication clientApp = null;
+        try {
+            createServerConfig();
+            createClientConfig();
+            SessionSettings serverSettings = new SessionSettings("server.cfg");
+            SessionSettings clientSettings = new SessionSettings("client.cfg");
+            serverApp = createServerApplication(serverSettings);
+            clientApp = createClientApplication(clientSettings);
+            connector = createInVmConnector(serverApp, serverSettings, clientApp, clientSettings);
+            connector.start();
+            System.out.println("✓ In-VM transport started");
+            
+            clientApp.waitForLogon();
+            runClientMenu(scanner, clientApp);
+        } finally {
+            if (connector != null) {
+                connector.stop();
+            }
+            if (clientApp != null) {
+                clientApp.shutdown();
+            }
+            if (serverApp != null) {
+                serverApp.shutdown();
+            }
+        }
+        System.out.println("✓ In-VM server and client stopped");
+    }
+    
+    static InVmConnector createInVmConnector(FIXServerApplication serverApp, SessionSettings serverSettings,
+            FIXClientApplication clientApp, SessionSettings clientSettings) throws Exception {
+        SessionFactory serverSessions = new DefaultSessionFactory(serverApp, 
+            new IndexedFileStoreFactory(serverSettings), 
+            StageTracer.wrap(new RollingFileLogFactory(serverSettings)), new DefaultMessageFactory());
+        SessionFactory clientSessions = new DefaultSessionFactory(clientApp, 
+            new IndexedFileStoreFactory(clientSettings), 
+            new RollingFileLogFactory(clientSettings), new DefaultMessageFactory());
+        return new InVmConnector(serverSessions, serverSettings, clientSessions, clientSettings);
+    }
+    
     private static void startBoth(Scanner scanner) throws Exception {
+        CountDownLatch serverReady = new CountDownLatch(1);
+        
         // Start server in background thread
         Thread serverThread = new Thread(() -> {
             try {
                 createServerConfig();
                 SessionSettings settings = new SessionSettings("server.cfg");
-                FIXServerApplication serverApp = new FIXServerApplication();
-                MessageStoreFactory storeFactory = new FileStoreFactory(settings);
-                LogFactory logFactory = new FileLogFactory(settings);
+                FIXServerApplication serverApp = createServerApplication(settings);
+                MessageStoreFactory storeFactory = new IndexedFileStoreFactory(settings);
+                LogFactory logFactory = StageTracer.wrap(new RollingFileLogFactory(settings));
                 MessageFactory messageFactory = new DefaultMessageFactory();
                 
                 SocketAcceptor acceptor = new SocketAcceptor(
@@ -143,6 +377,7 @@ public class FIXProtocolApp {
                 
                 acceptor.start();
                 System.out.println("✓ Server started on port 9878\n");
+                serverReady.countDown();
                 
                 // Keep server running
                 synchronized (acceptor) {
@@ -150,13 +385,14 @@ public class FIXProtocolApp {
                 }
             } catch (Exception e) {
                 System.err.println("Server error: " + e.getMessage());
+                serverReady.countDown();
             }
         });
         serverThread.setDaemon(true);
         serverThread.start();
         
-        // Wait for server to start
-        Thread.sleep(2000);
+        // Acceptor.start() returns once the port is bound (or the server failed)
+        serverReady.await();
         
         // Start client
         startClient(scanner);
@@ -173,7 +409,8 @@ public class FIXProtocolApp {
             System.out.println("║ 4. Request Order Status        ║");
             System.out.println("║ 5. View Active Orders          ║");
             System.out.println("║ 6. View Order History          ║");
-            System.out.println("║ 7. Disconnect                  ║");
+            System.out.println("║ 7. View Positions              ║");
+            System.out.println("║ 8. Disconnect                  ║");
             System.out.println("╚════════════════════════════════╝");
             System.out.print("\nChoice: ");
             
@@ -201,6 +438,9 @@ public class FIXProtocolApp {
                         clientApp.displayOrderHistory();
                         break;
                     case 7:
+                        clientApp.displayPositions();
+                        break;
+                    case 8:
                         return;
                     default:
                         System.out.println("Invalid choice");
@@ -222,20 +462,46 @@ public class FIXProtocolApp {
         System.out.print("Quantity: ");
         int quantity = scanner.nextInt();
         
-        System.out.print("Order Type (1=Market, 2=Limit): ");
-        char ordType = scanner.next().charAt(0);
+        System.out.print("Order Type (1=Market, 2=Limit, 3=Stop, 4=Stop Limit, P=Pegged): ");
+        char ordType = Character.toUpperCase(scanner.next().charAt(0));
+        
+        if (ordType == OrdType.PEGGED) {
+            System.out.print("Peg (R=Primary, P=Market): ");
+            char pegType = Character.toUpperCase(scanner.next().charAt(0));
+            System.out.print("Peg Offset: ");
+            double pegOffset = scanner.nextDouble();
+            scanner.nextLine();
+            System.out.print("Time in Force (0=Day, 1=GTC, 3=IOC, 4=FOK): ");
+            char tif = scanner.nextLine().charAt(0);
+            clientApp.sendPeggedOrder(symbol, side, quantity, pegType, pegOffset, tif);
+            return;
+        }
         
+        double stopPx = 0;
+        if (ordType == '3' || ordType == '4') {
+            System.out.print("Stop Price: ");
+            stopPx = scanner.nextDouble();
+        }
         double price = 0;
-        if (ordType == '2') {
+        int maxFloor = 0;
+        if (ordType == '2' || ordType == '4') {
             System.out.print("Limit Price: ");
             price = scanner.nextDouble();
         }
+        if (ordType == '2') {
+            System.out.print("Max Floor (0=fully displayed): ");
+            maxFloor = scanner.nextInt();
+        }
         scanner.nextLine();
         
         System.out.print("Time in Force (0=Day, 1=GTC, 3=IOC, 4=FOK): ");
         char tif = scanner.nextLine().charAt(0);
         
-        clientApp.sendNewOrderSingle(symbol, side, quantity, ordType, price, tif);
+        if (maxFloor > 0) {
+            clientApp.sendIcebergOrder(symbol, side, quantity, price, maxFloor, tif);
+        } else {
+            clientApp.sendNewOrderSingle(symbol, side, quantity, ordType, price, stopPx, tif);
+        }
     }
     
     private static void cancelOrder(Scanner scanner, FIXClientApplication clientApp) {
@@ -265,20 +531,28 @@ public class FIXProtocolApp {
     }
     
     // Configuration file creators
-    private static void createServerConfig() throws IOException {
+    static void createServerConfig() throws IOException {
         String config = "[DEFAULT]\n" +
             "FileStorePath=data/server\n" +
             "FileLogPath=logs/server\n" +
+            "FileIncludeTimeStampForMessages=Y\n" +
+            "FileIncludeMilliseconds=Y\n" +
             "ConnectionType=acceptor\n" +
             "StartTime=00:00:00\n" +
             "EndTime=23:59:59\n" +
             "HeartBtInt=30\n" +
-            "ValidOrderTypes=1,2,3,4\n" +
+            "ValidOrderTypes=1,2,3,4,P\n" +
+            "ValidateIncomingMessage=N\n" +
             "SenderCompID=SERVER_EXCHANGE\n" +
             "TargetCompID=CLIENT_TRADER\n" +
             "ResetOnLogon=Y\n" +
             "ResetOnLogout=Y\n" +
             "ResetOnDisconnect=Y\n" +
+            "OrderStorePath=data/server/orders\n" +
+            "OrderSnapshotInterval=60\n" +
+            "FillCaptureDir=data/server/fills\n" +
+            "WarmupEnabled=Y\n" +
+            "WarmupMaxSeconds=30\n" +
             "\n" +
             "[SESSION]\n" +
             "BeginString=FIX.4.4\n" +
@@ -287,10 +561,12 @@ public class FIXProtocolApp {
         writeConfigFile("server.cfg", config);
     }
     
-    private static void createClientConfig() throws IOException {
+    static void createClientConfig() throws IOException {
         String config = "[DEFAULT]\n" +
             "FileStorePath=data/client\n" +
             "FileLogPath=logs/client\n" +
+            "FileIncludeTimeStampForMessages=Y\n" +
+            "FileIncludeMilliseconds=Y\n" +
             "ConnectionType=initiator\n" +
             "StartTime=00:00:00\n" +
             "EndTime=23:59:59\n" +
@@ -301,6 +577,8 @@ public class FIXProtocolApp {
             "ResetOnLogon=Y\n" +
             "ResetOnLogout=Y\n" +
             "ResetOnDisconnect=Y\n" +
+            "WarmupEnabled=Y\n" +
+            "WarmupMaxSeconds=30\n" +
             "\n" +
             "[SESSION]\n" +
             "BeginString=FIX.4.4\n" +
@@ -322,51 +600,248 @@ public class FIXProtocolApp {
 // FIX SERVER APPLICATION
 // ============================================================================
 class FIXServerApplication extends MessageCracker implements Application {
+    // Keyed by OrderData.bookKey: a ClOrdID only names an order within its own session
     private final Map<String, OrderData> orderBook = new ConcurrentHashMap<>();
     private final Map<SessionID, Boolean> sessions = new ConcurrentHashMap<>();
+    private volatile OrderPersistence persistence;
+    private final MetricsRegistry metrics = new MetricsRegistry("server", this::getOrderBookSizes);
+    private final RttMonitor rttMonitor = new RttMonitor("Server", metrics);
+    private final CancelOnDisconnect cancelOnDisconnect = new CancelOnDisconnect(this::cancelOrders);
+    private final StopTriggerEngine stopTriggers = new StopTriggerEngine();
+    private final MarketBook marketBook = new MarketBook();
+    private volatile SecurityMasterWatcher securityMaster;
+    private final Map<SessionID, ClOrdIdFilter> clOrdIdFilters = new ConcurrentHashMap<>();
+    private volatile FillCapture fillCapture;
+    private volatile PrecompiledValidator validator;
+    private volatile SessionSettings validatorSettings;
+    private final Map<SessionID, Boolean> validatedSessions = new ConcurrentHashMap<>();
+    private volatile int clOrdIdCapacity = ClOrdIdFilter.DEFAULT_CAPACITY;
+    private volatile boolean quiet;
+    private static final long ICEBERG_CLIP_INTERVAL_MS = 250;
+    
+    public FIXServerApplication() {
+        // A parked peg starts working once its reference side is quoted
+        marketBook.setPricedListener(order -> processOrder(order.getSessionID(), order, order.getOrdType()));
+    }
+    
+    // Headless runs turn off the per-message console output
+    public void setQuiet(boolean quiet) {
+        this.quiet = quiet;
+    }
+    
+    // Warm-up sessions never print, so System.out itself is never swapped
+    private PrintStream console(SessionID sessionId) {
+        return quiet || JitWarmup.isWarmupSession(sessionId) ? FIXProtocolApp.DISCARD : System.out;
+    }
+    
+    // Recover the book from disk, then journal every mutation from here on
+    public void enablePersistence(OrderPersistence persistence) throws IOException {
+        int restored = persistence.recover(orderBook);
+        System.out.println("✓ Server: Restored " + restored + " orders from " + persistence.getDirectory());
+        for (OrderData order : orderBook.values()) {
+            if (!order.isFilled() && !order.isCanceled()) {
+                cancelOnDisconnect.onOrderOpened(order);
+                order.setPriority(marketBook.nextPriority());
+                if (order.getStopPx() > 0) {
+                    stopTriggers.park(order);
+                } else {
+                    marketBook.update(order);
+                }
+            }
+        }
+        persistence.start(orderBook);
+        this.persistence = persistence;
+    }
+    
+    // Validate new orders against the instrument table, reloading it when the file changes
+    public void enableSecurityMaster(SecurityMasterWatcher watcher, long reloadSeconds) throws IOException {
+        watcher.reload();
+        watcher.start(reloadSeconds);
+        this.securityMaster = watcher;
+    }
+    
+    // Append every fill from here on to the day's columnar capture file
+    public void enableFillCapture(FillCapture capture) {
+        this.fillCapture = capture;
+    }
+    
+    // Check order messages with precompiled rules on the sessions with ValidateIncomingMessage=N
+    public void enableValidator(PrecompiledValidator validator, SessionSettings settings) {
+        this.validatorSettings = settings;
+        this.validator = validator;
+    }
+    
+    // Warm-up primes the precompiled path whenever any session runs it
+    private boolean usesValidator(SessionID sessionId) {
+        return validatedSessions.computeIfAbsent(sessionId, id -> JitWarmup.isWarmupSession(id)
+            || PrecompiledValidator.replacesDictionary(validatorSettings, id));
+    }
+    
+    public SecurityMaster reloadSecurityMaster() throws IOException {
+        SecurityMasterWatcher watcher = securityMaster;
+        return watcher != null ? watcher.reload() : null;
+    }
+    
+    public void shutdown() {
+        OrderPersistence p = persistence;
+        if (p != null) {
+            p.stop(orderBook);
+        }
+        SecurityMasterWatcher watcher = securityMaster;
+        if (watcher != null) {
+            watcher.stop();
+        }
+        FillCapture capture = fillCapture;
+        if (capture != null) {
+            capture.close();
+        }
+        rttMonitor.stop();
+        cancelOnDisconnect.close();
+        metrics.close();
+    }
+    
+    public MetricsRegistry getMetrics() { return metrics; }
+    public RttMonitor getRttMonitor() { return rttMonitor; }
+    public CancelOnDisconnect getCancelOnDisconnect() { return cancelOnDisconnect; }
+    public StopTriggerEngine getStopTriggers() { return stopTriggers; }
+    public MarketBook getMarketBook() { return marketBook; }
+    public ClOrdIdFilter getClOrdIdFilter(SessionID sessionId) { return clOrdIdFilters.get(sessionId); }
+    
+    // Expected ClOrdIDs per session per day; applies to filters created after the call
+    public void setClOrdIdCapacity(int capacity) { this.clOrdIdCapacity = capacity; }
+    
+    // Open (working) orders per symbol; computed on demand for the metrics exporters
+    public Map<String, Integer> getOrderBookSizes() {
+        int[] counts = new int[SymbolDictionary.DEFAULT.size()];
+        for (OrderData order : orderBook.values()) {
+            if (!order.isFilled() && !order.isCanceled() && order.getSymbolId() < counts.length) {
+                counts[order.getSymbolId()]++;
+            }
+        }
+        Map<String, Integer> sizes = new TreeMap<>();
+        for (int id = 0; id < counts.length; id++) {
+            if (counts[id] > 0) {
+                sizes.put(SymbolDictionary.DEFAULT.nameOf(id), counts[id]);
+            }
+        }
+        return sizes;
+    }
+    
+    public void purgeOrders(SessionID sessionId) {
+        orderBook.values().removeIf(order -> {
+            if (!sessionId.equals(order.getSessionID())) {
+                return false;
+            }
+            if (order.getStopPx() > 0) {
+                stopTriggers.remove(order);
+            }
+            marketBook.remove(order);
+            return true;
+        });
+        cancelOnDisconnect.clear(sessionId);
+    }
+    
+    // Runs on the cancel-on-disconnect thread. The reports are stored for the
+    // session and reach the client on resend if the session is not reset.
+    private int cancelOrders(SessionID sessionId, Collection<OrderData> orders) {
+        int canceled = 0;
+        for (OrderData order : orders) {
+            if (!order.isFilled() && !order.isCanceled()) {
+                if (order.getStopPx() > 0) {
+                    stopTriggers.remove(order);
+                }
+                order.setCanceled(true);
+                marketBook.update(order);
+                journal(order);
+                sendExecutionReport(sessionId, order, ExecType.CANCELED, OrdStatus.CANCELED, 0, 0);
+                canceled++;
+            }
+        }
+        return canceled;
+    }
     
     @Override
     public void onCreate(SessionID sessionId) {
-        System.out.println("Server: Session created - " + sessionId);
+        console(sessionId).println("Server: Session created - " + sessionId);
+        if (!JitWarmup.isWarmupSession(sessionId)) {
+            metrics.register(sessionId);
+        }
     }
     
     @Override
     public void onLogon(SessionID sessionId) {
-        System.out.println("✓ Server: Client logged on - " + sessionId);
+        console(sessionId).println("✓ Server: Client logged on - " + sessionId);
         sessions.put(sessionId, true);
+        rttMonitor.onLogon(sessionId);
+        cancelOnDisconnect.onLogon(sessionId);
+        if (!JitWarmup.isWarmupSession(sessionId)) {
+            clOrdIdFilters.computeIfAbsent(sessionId, id -> new ClOrdIdFilter(clOrdIdCapacity))
+                .startDay(LocalDate.now(ZoneOffset.UTC).toEpochDay());
+        }
     }
     
     @Override
     public void onLogout(SessionID sessionId) {
-        System.out.println("✓ Server: Client logged out - " + sessionId);
+        console(sessionId).println("✓ Server: Client logged out - " + sessionId);
         sessions.remove(sessionId);
+        rttMonitor.onLogout(sessionId);
+        cancelOnDisconnect.onLogout(sessionId);
     }
     
     @Override
     public void toAdmin(Message message, SessionID sessionId) {
-        // Handle admin messages
+        String msgType = MetricsRegistry.msgTypeOf(message);
+        metrics.onOutbound(sessionId, msgType);
+        rttMonitor.onOutboundAdmin(message, msgType);
+        if (MsgType.LOGOUT.equals(msgType)) {
+            cancelOnDisconnect.onLogoutMessage(sessionId);
+        }
     }
     
     @Override
     public void fromAdmin(Message message, SessionID sessionId) {
-        // Handle admin messages from client
+        String msgType = MetricsRegistry.msgTypeOf(message);
+        metrics.onInbound(sessionId, msgType);
+        rttMonitor.onInboundAdmin(message, msgType, sessionId);
+        if (MsgType.LOGOUT.equals(msgType)) {
+            cancelOnDisconnect.onLogoutMessage(sessionId);
+        }
     }
     
     @Override
     public void toApp(Message message, SessionID sessionId) {
-        System.out.println(">> Server sending: " + message.getHeader().getString(MsgType.FIELD));
+        StageTracer.stamp(StageTracer.TO_APP);
+        String msgType = MetricsRegistry.msgTypeOf(message);
+        metrics.onOutbound(sessionId, msgType);
+        console(sessionId).println(">> Server sending: " + msgType);
     }
     
     @Override
     public void fromApp(Message message, SessionID sessionId) 
             throws FieldNotFound, IncorrectDataFormat, IncorrectTagValue, UnsupportedMessageType {
-        System.out.println("<< Server received: " + message.getHeader().getString(MsgType.FIELD));
-        crack(message, sessionId);
+        StageTracer.begin();
+        String msgType = message.getHeader().getString(MsgType.FIELD);
+        metrics.onInbound(sessionId, msgType);
+        console(sessionId).println("<< Server received: " + msgType);
+        
+        // Replies sent while cracking are timed from here
+        MetricsRegistry.beginInbound();
+        try {
+            PrecompiledValidator v = validator;
+            if (v != null && usesValidator(sessionId)) {
+                v.validate(message, msgType);
+            }
+            crack(message, sessionId);
+        } finally {
+            MetricsRegistry.endInbound();
+            StageTracer.end();
+        }
     }
     
     // Handle New Order Single
     public void onMessage(NewOrderSingle order, SessionID sessionId) 
             throws FieldNotFound, UnsupportedMessageType, IncorrectTagValue {
+        StageTracer.stamp(StageTracer.HANDLER);
         
         String clOrdID = order.getClOrdID().getValue();
         Symbol symbol = order.getSymbol();
@@ -379,14 +854,14 @@ class FIXServerApplication extends MessageCracker implements Application {
             price = order.getPrice();
         }
         
-        System.out.println("\n📋 NEW ORDER RECEIVED:");
-        System.out.println("   ClOrdID: " + clOrdID);
-        System.out.println("   Symbol: " + symbol.getValue());
-        System.out.println("   Side: " + (side.getValue() == Side.BUY ? "BUY" : "SELL"));
-        System.out.println("   Quantity: " + orderQty.getValue());
-        System.out.println("   Type: " + getOrderTypeDesc(ordType.getValue()));
-        if (ordType.getValue() == OrdType.LIMIT) {
-            System.out.println("   Price: $" + price.getValue());
+        console(sessionId).println("\n📋 NEW ORDER RECEIVED:");
+        console(sessionId).println("   ClOrdID: " + clOrdID);
+        console(sessionId).println("   Symbol: " + symbol.getValue());
+        console(sessionId).println("   Side: " + (side.getValue() == Side.BUY ? "BUY" : "SELL"));
+        console(sessionId).println("   Quantity: " + orderQty.getValue());
+        console(sessionId).println("   Type: " + getOrderTypeDesc(ordType.getValue()));
+        if (ordType.getValue() == OrdType.LIMIT || ordType.getValue() == OrdType.STOP_LIMIT) {
+            console(sessionId).println("   Price: $" + price.getValue());
         }
         
         // Generate order ID
@@ -395,48 +870,127 @@ class FIXServerApplication extends MessageCracker implements Application {
         // Store order
         OrderData orderData = new OrderData(orderID, clOrdID, symbol.getValue(), 
             side.getValue(), (int)orderQty.getValue(), price.getValue());
-        orderBook.put(clOrdID, orderData);
+        orderData.setOrdType(ordType.getValue());
+        orderData.setSessionID(sessionId);
+        boolean stop = ordType.getValue() == OrdType.STOP || ordType.getValue() == OrdType.STOP_LIMIT;
+        if (stop) {
+            orderData.setStopPx(order.getStopPx().getValue());
+        }
+        if (order.isSetMaxFloor() && order.getMaxFloor().getValue() > 0) {
+            orderData.setMaxFloor((int) order.getMaxFloor().getValue());
+        }
+        if (ordType.getValue() == OrdType.PEGGED) {
+            String execInst = order.isSetExecInst() ? order.getExecInst().getValue() : "";
+            orderData.setPeg(execInst.indexOf(ExecInst.MARKET_PEG) >= 0 ? ExecInst.MARKET_PEG : ExecInst.PRIMARY_PEG,
+                order.isSetPegOffsetValue() ? order.getPegOffsetValue().getValue() : 0);
+        }
+        
+        // A reused ClOrdID must not overwrite the order it already names
+        ClOrdIdFilter filter = clOrdIdFilters.get(sessionId);
+        if (filter != null && filter.checkAndAdd(clOrdID)) {
+            console(sessionId).println("   ⚠ Rejected: Duplicate ClOrdID");
+            sendReject(sessionId, orderData, OrdRejReason.DUPLICATE_ORDER, "Duplicate ClOrdID");
+            return;
+        }
+        
+        // One table lookup; a reload swaps the table without blocking this path
+        SecurityMasterWatcher watcher = securityMaster;
+        if (watcher != null) {
+            int result = watcher.get().validate(symbol.getValue(), orderData.getQuantity(), 
+                orderData.getPrice(), orderData.getStopPx());
+            if (result != SecurityMaster.VALID) {
+                console(sessionId).println("   ⚠ Rejected: " + SecurityMaster.rejectText(result));
+                sendReject(sessionId, orderData, SecurityMaster.rejectReason(result), 
+                    SecurityMaster.rejectText(result));
+                return;
+            }
+        }
+        
+        orderData.setPriority(marketBook.nextPriority());
+        if (orderBook.putIfAbsent(orderData.getBookKey(), orderData) != null) {
+            console(sessionId).println("   ⚠ Rejected: Duplicate ClOrdID");
+            sendReject(sessionId, orderData, OrdRejReason.DUPLICATE_ORDER, "Duplicate ClOrdID");
+            return;
+        }
+        journal(orderData);
+        boolean pegParked = false;
+        if (!JitWarmup.isWarmupSession(sessionId)) {
+            cancelOnDisconnect.onOrderOpened(orderData);
+            if (!stop) {
+                pegParked = marketBook.update(orderData);
+            }
+        }
+        StageTracer.stamp(StageTracer.BOOK_DONE);
+        
+        // Park before the ack so a stop is in its trigger book once acknowledged
+        boolean warmup = JitWarmup.isWarmupSession(sessionId);
+        boolean parked = stop && !warmup && stopTriggers.park(orderData);
         
         // Send acknowledgment (NEW)
         sendExecutionReport(sessionId, orderData, ExecType.NEW, OrdStatus.NEW, 0, 0);
         
-        // Simulate order processing
-        processOrder(sessionId, orderData, ordType.getValue());
+        // Simulate order processing (warm-up orders only exercise the synchronous path)
+        if (warmup) {
+            return;
+        }
+        if (pegParked) {
+            console(sessionId).println("   ⏸ Peg parked until its reference side is quoted");
+        } else if (!stop) {
+            processOrder(sessionId, orderData, ordType.getValue());
+        } else if (parked) {
+            console(sessionId).println("   ⏸ Stop parked at $" + orderData.getStopPx());
+        } else {
+            triggerStops(Collections.singletonList(orderData), orderData.getStopPx());
+        }
     }
     
     // Handle Order Cancel Request
     public void onMessage(OrderCancelRequest cancelRequest, SessionID sessionId) 
             throws FieldNotFound {
+        StageTracer.stamp(StageTracer.HANDLER);
         
         String origClOrdID = cancelRequest.getOrigClOrdID().getValue();
         String clOrdID = cancelRequest.getClOrdID().getValue();
         
-        System.out.println("\n🚫 CANCEL REQUEST:");
-        System.out.println("   Original ClOrdID: " + origClOrdID);
+        console(sessionId).println("\n🚫 CANCEL REQUEST:");
+        console(sessionId).println("   Original ClOrdID: " + origClOrdID);
         
-        OrderData order = orderBook.get(origClOrdID);
+        OrderData order = orderBook.get(OrderData.bookKey(sessionId, origClOrdID));
         if (order != null && !order.isFilled()) {
+            if (order.getStopPx() > 0) {
+                stopTriggers.remove(order);
+            }
             order.setCanceled(true);
-            sendExecutionReport(sessionId, order, ExecType.CANCELED, OrdStatus.CANCELED, 0, 0);
-            System.out.println("   ✓ Order canceled");
+            marketBook.update(order);
+            journal(order);
+            cancelOnDisconnect.onOrderClosed(order);
+            StageTracer.stamp(StageTracer.BOOK_DONE);
+            sendExecutionReport(sessionId, order, clOrdID, origClOrdID, 
+                ExecType.CANCELED, OrdStatus.CANCELED, 0, 0);
+            console(sessionId).println("   ✓ Order canceled");
         } else {
             sendCancelReject(sessionId, clOrdID, origClOrdID, "Order not found or already filled");
-            System.out.println("   ✗ Cancel rejected");
+            console(sessionId).println("   ✗ Cancel rejected");
         }
     }
     
     // Handle Order Cancel/Replace Request
     public void onMessage(OrderCancelReplaceRequest replaceRequest, SessionID sessionId) 
             throws FieldNotFound {
+        StageTracer.stamp(StageTracer.HANDLER);
         
         String origClOrdID = replaceRequest.getOrigClOrdID().getValue();
         String clOrdID = replaceRequest.getClOrdID().getValue();
         
-        System.out.println("\n🔄 REPLACE REQUEST:");
-        System.out.println("   Original ClOrdID: " + origClOrdID);
+        console(sessionId).println("\n🔄 REPLACE REQUEST:");
+        console(sessionId).println("   Original ClOrdID: " + origClOrdID);
         
-        OrderData order = orderBook.get(origClOrdID);
-        if (order != null && !order.isFilled()) {
+        OrderData order = orderBook.get(OrderData.bookKey(sessionId, origClOrdID));
+        if (order != null && !clOrdID.equals(origClOrdID) 
+                && orderBook.containsKey(OrderData.bookKey(sessionId, clOrdID))) {
+            sendCancelReject(sessionId, clOrdID, origClOrdID, "Duplicate ClOrdID");
+            console(sessionId).println("   ✗ Replace rejected: Duplicate ClOrdID");
+        } else if (order != null && !order.isFilled()) {
             // Update order
             if (replaceRequest.isSetOrderQty()) {
                 order.setQuantity((int)replaceRequest.getOrderQty().getValue());
@@ -444,57 +998,85 @@ class FIXServerApplication extends MessageCracker implements Application {
             if (replaceRequest.isSetPrice()) {
                 order.setPrice(replaceRequest.getPrice().getValue());
             }
+            if (replaceRequest.isSetMaxFloor()) {
+                order.setMaxFloor((int) replaceRequest.getMaxFloor().getValue());
+            }
+            boolean restop = order.getStopPx() > 0 && replaceRequest.isSetStopPx()
+                && stopTriggers.remove(order);
+            if (restop) {
+                order.setStopPx(replaceRequest.getStopPx().getValue());
+            }
+            if (order.getStopPx() == 0 && !order.isPegged()) {
+                // A replace loses time priority; pegs keep tracking the BBO
+                order.setPriority(marketBook.nextPriority());
+                marketBook.update(order);
+            }
             
-            orderBook.remove(origClOrdID);
-            orderBook.put(clOrdID, order);
+            orderBook.remove(order.getBookKey());
             order.setClOrdID(clOrdID);
+            orderBook.put(order.getBookKey(), order);
+            journalReplace(origClOrdID, order);
+            StageTracer.stamp(StageTracer.BOOK_DONE);
             
-            sendExecutionReport(sessionId, order, ExecType.REPLACED, OrdStatus.NEW, 0, 0);
-            System.out.println("   ✓ Order replaced");
+            sendExecutionReport(sessionId, order, clOrdID, origClOrdID, 
+                ExecType.REPLACED, OrdStatus.NEW, 0, 0);
+            console(sessionId).println("   ✓ Order replaced");
+            if (restop && !stopTriggers.park(order)) {
+                triggerStops(Collections.singletonList(order), order.getStopPx());
+            }
         } else {
             sendCancelReject(sessionId, clOrdID, origClOrdID, "Order not found or already filled");
-            System.out.println("   ✗ Replace rejected");
+            console(sessionId).println("   ✗ Replace rejected");
         }
     }
     
     // Handle Order Status Request
     public void onMessage(OrderStatusRequest statusRequest, SessionID sessionId) 
             throws FieldNotFound {
+        StageTracer.stamp(StageTracer.HANDLER);
         
         String clOrdID = statusRequest.getClOrdID().getValue();
         
-        System.out.println("\n❓ STATUS REQUEST:");
-        System.out.println("   ClOrdID: " + clOrdID);
+        console(sessionId).println("\n❓ STATUS REQUEST:");
+        console(sessionId).println("   ClOrdID: " + clOrdID);
         
-        OrderData order = orderBook.get(clOrdID);
+        OrderData order = orderBook.get(OrderData.bookKey(sessionId, clOrdID));
+        StageTracer.stamp(StageTracer.BOOK_DONE);
         if (order != null) {
             char execType = order.isFilled() ? ExecType.ORDER_STATUS : ExecType.ORDER_STATUS;
             char ordStatus = order.isFilled() ? OrdStatus.FILLED : 
                            order.isCanceled() ? OrdStatus.CANCELED : OrdStatus.NEW;
             
-            sendExecutionReport(sessionId, order, execType, ordStatus, 
-                order.getFilledQty(), order.getPrice());
+            // A status reply reports CumQty only; it is not a fill
+            sendExecutionReport(sessionId, order, execType, ordStatus, 0, 0);
         }
     }
     
     private void processOrder(SessionID sessionId, OrderData order, char ordType) {
+        metrics.onReportScheduled(sessionId);
         new Thread(() -> {
             try {
                 // Simulate market/limit order processing
                 if (ordType == OrdType.MARKET) {
                     Thread.sleep(500);
+                    priceMarketOrder(order);
                 } else {
                     Thread.sleep(2000);
                 }
                 
-                if (!order.isCanceled()) {
+                if (order.getMaxFloor() > 0) {
+                    fillIcebergClips(sessionId, order);
+                } else if (!order.isCanceled()) {
                     // Partial fill (50%)
                     int partialQty = order.getQuantity() / 2;
                     if (partialQty > 0) {
                         order.setFilledQty(partialQty);
+                        marketBook.update(order);
+                        journal(order);
                         sendExecutionReport(sessionId, order, ExecType.PARTIAL_FILL, 
                             OrdStatus.PARTIALLY_FILLED, partialQty, order.getPrice());
-                        System.out.println("   📊 Partial fill: " + partialQty + " shares");
+                        console(sessionId).println("   📊 Partial fill: " + partialQty + " shares");
+                        onTrade(order.getSymbolId(), order.getPrice());
                         
                         Thread.sleep(1500);
                     }
@@ -503,19 +1085,119 @@ class FIXServerApplication extends MessageCracker implements Application {
                     if (!order.isCanceled()) {
                         int remainingQty = order.getQuantity() - order.getFilledQty();
                         order.setFilledQty(order.getQuantity());
+                        marketBook.update(order);
+                        journal(order);
+                        cancelOnDisconnect.onOrderClosed(order);
                         sendExecutionReport(sessionId, order, ExecType.FILL, 
                             OrdStatus.FILLED, remainingQty, order.getPrice());
-                        System.out.println("   ✅ Order fully filled");
+                        console(sessionId).println("   ✅ Order fully filled");
+                        onTrade(order.getSymbolId(), order.getPrice());
                     }
                 }
             } catch (InterruptedException e) {
                 e.printStackTrace();
+            } finally {
+                metrics.onReportCompleted(sessionId);
             }
         }).start();
     }
     
+    // Each fill takes the whole displayed clip; the replenished clip goes to the
+    // back of the queue with a fresh priority
+    private void fillIcebergClips(SessionID sessionId, OrderData order) throws InterruptedException {
+        while (!order.isCanceled() && !order.isFilled()) {
+            int clip = order.getDisplayQty();
+            order.setFilledQty(order.getFilledQty() + clip);
+            boolean done = order.isFilled();
+            if (!done) {
+                order.setPriority(marketBook.nextPriority());
+            }
+            marketBook.update(order);
+            journal(order);
+            if (done) {
+                cancelOnDisconnect.onOrderClosed(order);
+            }
+            sendExecutionReport(sessionId, order, done ? ExecType.FILL : ExecType.PARTIAL_FILL,
+                done ? OrdStatus.FILLED : OrdStatus.PARTIALLY_FILLED, clip, order.getPrice());
+            console(sessionId).println("   🧊 Iceberg clip filled: " + clip + " shares, " 
+                + (order.getQuantity() - order.getFilledQty()) + " remaining");
+            onTrade(order.getSymbolId(), order.getPrice());
+            if (!done) {
+                Thread.sleep(ICEBERG_CLIP_INTERVAL_MS);
+            }
+        }
+    }
+    
+    // Market fills carry no price in this simulation, so they never move stops
+    // A market order fills at the opposite touch, or at the last trade when that
+    // side is empty; with neither it keeps price 0 and its fills carry no price
+    private void priceMarketOrder(OrderData order) {
+        if (order.getPrice() > 0) {
+            return;
+        }
+        double touch = order.getSide() == Side.BUY 
+            ? marketBook.getBestAsk(order.getSymbol()) : marketBook.getBestBid(order.getSymbol());
+        if (Double.isNaN(touch)) {
+            touch = stopTriggers.getLastTrade(order.getSymbolId());
+        }
+        if (!Double.isNaN(touch)) {
+            order.setPrice(touch);
+            journal(order);
+        }
+    }
+    
+    private void onTrade(int symbolId, double price) {
+        if (price > 0) {
+            List<OrderData> triggered = stopTriggers.onTrade(symbolId, price);
+            if (!triggered.isEmpty()) {
+                triggerStops(triggered, price);
+            }
+        }
+    }
+    
+    // Stops become market orders priced at the trigger trade, stop-limits become limits
+    private void triggerStops(List<OrderData> triggered, double tradePrice) {
+        for (OrderData order : triggered) {
+            if (order.isCanceled() || order.isFilled()) {
+                continue;
+            }
+            if (order.getOrdType() == OrdType.STOP) {
+                order.setOrdType(OrdType.MARKET);
+                order.setPrice(tradePrice);
+            } else {
+                order.setOrdType(OrdType.LIMIT);
+            }
+            console(order.getSessionID()).println("   ⚡ Stop triggered: " + order.getClOrdID() + " at $" + tradePrice);
+            order.setStopPx(0);
+            order.setPriority(marketBook.nextPriority());
+            marketBook.update(order);
+            journal(order);
+            processOrder(order.getSessionID(), order, order.getOrdType());
+        }
+    }
+    
+    private void journal(OrderData order) {
+        OrderPersistence p = persistence;
+        if (p != null) {
+            p.recordUpsert(order);
+        }
+    }
+    
+    private void journalReplace(String origClOrdID, OrderData order) {
+        OrderPersistence p = persistence;
+        if (p != null) {
+            p.recordReplace(origClOrdID, order);
+        }
+    }
+    
     private void sendExecutionReport(SessionID sessionId, OrderData order, 
             char execType, char ordStatus, int lastQty, double lastPx) {
+        sendExecutionReport(sessionId, order, order.getClOrdID(), null, execType, ordStatus, lastQty, lastPx);
+    }
+    
+    // Cancel and replace acks carry the request's ClOrdID and the order's previous one
+    private void sendExecutionReport(SessionID sessionId, OrderData order, String clOrdID, 
+            String origClOrdID, char execType, char ordStatus, int lastQty, double lastPx) {
         try {
             ExecutionReport execReport = new ExecutionReport(
                 new OrderID(order.getOrderID()),
@@ -528,7 +1210,10 @@ class FIXServerApplication extends MessageCracker implements Application {
                 new AvgPx(order.getPrice())
             );
             
-            execReport.set(new ClOrdID(order.getClOrdID()));
+            execReport.set(new ClOrdID(clOrdID));
+            if (origClOrdID != null) {
+                execReport.set(new OrigClOrdID(origClOrdID));
+            }
             execReport.set(new Symbol(order.getSymbol()));
             execReport.set(new OrderQty(order.getQuantity()));
             execReport.set(new Price(order.getPrice()));
@@ -536,9 +1221,15 @@ class FIXServerApplication extends MessageCracker implements Application {
             if (lastQty > 0) {
                 execReport.set(new LastQty(lastQty));
                 execReport.set(new LastPx(lastPx));
+                FillCapture capture = fillCapture;
+                boolean fill = execType == ExecType.PARTIAL_FILL || execType == ExecType.FILL 
+                    || execType == ExecType.TRADE;
+                if (capture != null && fill && !JitWarmup.isWarmupSession(sessionId)) {
+                    capture.record(order.getSymbolId(), order.getSide(), lastQty, lastPx, order.getOrderID());
+                }
             }
             
-            execReport.set(new TransactTime(new Date()));
+            FixClock.stamp(execReport, TransactTime.FIELD);
             
             Session.sendToTarget(execReport, sessionId);
         } catch (Exception e) {
@@ -546,6 +1237,33 @@ class FIXServerApplication extends MessageCracker implements Application {
         }
     }
     
+    // Order-level reject for a NewOrderSingle that never entered the book
+    private void sendReject(SessionID sessionId, OrderData order, int reason, String text) {
+        try {
+            ExecutionReport execReport = new ExecutionReport(
+                new OrderID(order.getOrderID()),
+                new ExecID("EXEC" + System.currentTimeMillis()),
+                new ExecType(ExecType.REJECTED),
+                new OrdStatus(OrdStatus.REJECTED),
+                new Side(order.getSide()),
+                new LeavesQty(0),
+                new CumQty(0),
+                new AvgPx(0)
+            );
+            
+            execReport.set(new ClOrdID(order.getClOrdID()));
+            execReport.set(new Symbol(order.getSymbol()));
+            execReport.set(new OrderQty(order.getQuantity()));
+            execReport.set(new OrdRejReason(reason));
+            execReport.set(new Text(text));
+            FixClock.stamp(execReport, TransactTime.FIELD);
+            
+            Session.sendToTarget(execReport, sessionId);
+        } catch (Exception e) {
+            System.err.println("Error sending reject: " + e.getMessage());
+        }
+    }
+    
     private void sendCancelReject(SessionID sessionId, String clOrdID, 
             String origClOrdID, String reason) {
         try {
@@ -579,43 +1297,95 @@ class FIXServerApplication extends MessageCracker implements Application {
 // FIX CLIENT APPLICATION
 // ============================================================================
 class FIXClientApplication extends MessageCracker implements Application {
+    // Last session created or logged on; used when no venue is routable
     private SessionID sessionId;
+    private final OrderRouter router = new OrderRouter();
+    private static final AtomicLong CLORDID_SEQ = new AtomicLong();
+    
     private final CountDownLatch logonLatch = new CountDownLatch(1);
+    // Every ClOrdID in a replace chain maps to the same order
     private final Map<String, ClientOrder> orders = new ConcurrentHashMap<>();
-    private final List<String> orderHistory = new ArrayList<>();
+    private final ActiveOrderList activeOrders = new ActiveOrderList();
+    private final PositionKeeper positions = new PositionKeeper();
+    // Reports arrive on each venue session's thread, but the history ring and the
+    // position keeper take one writer at a time
+    private final Object reportLock = new Object();
+    private final List<ExecutionListener> listeners = new CopyOnWriteArrayList<>();
+    
+    // Requests awaiting their first response, keyed by the request's ClOrdID. Status
+    // requests reuse the order's ClOrdID, so they get their own table.
+    private final Map<String, OrderFuture> pending = new ConcurrentHashMap<>();
+    private final Map<String, OrderFuture> pendingStatus = new ConcurrentHashMap<>();
+    private volatile long responseTimeoutMillis = DEFAULT_RESPONSE_TIMEOUT_MILLIS;
+    
+    public static final String SETTING_RESPONSE_TIMEOUT = "OrderResponseTimeout";
+    private static final long DEFAULT_RESPONSE_TIMEOUT_MILLIS = 30_000;
+    public static final String SETTING_HISTORY_CAPACITY = "OrderHistoryCapacity";
+    static final String HISTORY_SPILL_FILE = "order-history.bin";
+    // Written only from the session thread; each record carries the order's symbol, side and qty
+    private volatile OrderHistoryRing history = new OrderHistoryRing(OrderHistoryRing.DEFAULT_CAPACITY, null);
+    private final AtomicInteger nextOrderIndex = new AtomicInteger();
+    private final MetricsRegistry metrics = new MetricsRegistry("client", null);
+    private final RttMonitor rttMonitor = new RttMonitor("Client", metrics);
+    private volatile boolean quiet;
+    
+    // Headless runs turn off the per-message console output
+    public void setQuiet(boolean quiet) {
+        this.quiet = quiet;
+    }
+    
+    // Warm-up sessions never print, so System.out itself is never swapped
+    private PrintStream console(SessionID sessionId) {
+        return quiet || JitWarmup.isWarmupSession(sessionId) ? FIXProtocolApp.DISCARD : System.out;
+    }
     
     @Override
     public void onCreate(SessionID sessionId) {
+        if (JitWarmup.isWarmupSession(sessionId)) {
+            return;
+        }
         this.sessionId = sessionId;
-        System.out.println("Client: Session created");
+        router.addVenue(sessionId);
+        metrics.register(sessionId);
+        console(sessionId).println("Client: Session created");
     }
     
     @Override
     public void onLogon(SessionID sessionId) {
-        System.out.println("✓ Client: Logged on to server\n");
+        console(sessionId).println("✓ Client: Logged on to server\n");
         this.sessionId = sessionId;
+        router.onLogon(sessionId);
+        rttMonitor.onLogon(sessionId);
         logonLatch.countDown();
     }
     
     @Override
     public void onLogout(SessionID sessionId) {
-        System.out.println("✓ Client: Logged out from server");
+        console(sessionId).println("✓ Client: Logged out from server");
+        router.onLogout(sessionId);
+        rttMonitor.onLogout(sessionId);
     }
     
     @Override
     public void toAdmin(Message message, SessionID sessionId) {
-        // Handle admin messages
+        String msgType = MetricsRegistry.msgTypeOf(message);
+        metrics.onOutbound(sessionId, msgType);
+        rttMonitor.onOutboundAdmin(message, msgType);
     }
     
     @Override
     public void fromAdmin(Message message, SessionID sessionId) {
-        // Handle admin messages from server
+        String msgType = MetricsRegistry.msgTypeOf(message);
+        metrics.onInbound(sessionId, msgType);
+        rttMonitor.onInboundAdmin(message, msgType, sessionId);
     }
     
     @Override
     public void toApp(Message message, SessionID sessionId) {
         try {
-            System.out.println(">> Client sending: " + message.getHeader().getString(MsgType.FIELD));
+            String msgType = message.getHeader().getString(MsgType.FIELD);
+            metrics.onOutbound(sessionId, msgType);
+            console(sessionId).println(">> Client sending: " + msgType);
         } catch (FieldNotFound e) {
             e.printStackTrace();
         }
@@ -624,9 +1394,34 @@ class FIXClientApplication extends MessageCracker implements Application {
     @Override
     public void fromApp(Message message, SessionID sessionId) 
             throws FieldNotFound, IncorrectDataFormat, IncorrectTagValue, UnsupportedMessageType {
+        metrics.onInbound(sessionId, message.getHeader().getString(MsgType.FIELD));
         crack(message, sessionId);
     }
     
+    public MetricsRegistry getMetrics() { return metrics; }
+    public RttMonitor getRttMonitor() { return rttMonitor; }
+    public OrderRouter getRouter() { return router; }
+    
+    // Callbacks run on the session thread after the client's own bookkeeping
+    public interface ExecutionListener {
+        void onExecutionReport(String clOrdID, char execType, char ordStatus);
+        default void onCancelReject(String clOrdID, String origClOrdID) {}
+    }
+    
+    public void setResponseTimeout(long timeout, TimeUnit unit) {
+        responseTimeoutMillis = unit.toMillis(timeout);
+    }
+    
+    public int getPendingRequestCount() { return pending.size() + pendingStatus.size(); }
+    
+    public void addExecutionListener(ExecutionListener listener) {
+        listeners.add(listener);
+    }
+    
+    public void removeExecutionListener(ExecutionListener listener) {
+        listeners.remove(listener);
+    }
+    
     // Handle Execution Report
     public void onMessage(ExecutionReport execReport, SessionID sessionId) 
             throws FieldNotFound {
@@ -635,36 +1430,81 @@ class FIXClientApplication extends MessageCracker implements Application {
         char execType = execReport.getExecType().getValue();
         char ordStatus = execReport.getOrdStatus().getValue();
         
-        System.out.println("\n📊 EXECUTION REPORT:");
-        System.out.println("   ClOrdID: " + clOrdID);
-        System.out.println("   Exec Type: " + getExecTypeDesc(execType));
-        System.out.println("   Order Status: " + getOrdStatusDesc(ordStatus));
+        console(sessionId).println("\n📊 EXECUTION REPORT:");
+        console(sessionId).println("   ClOrdID: " + clOrdID);
+        console(sessionId).println("   Exec Type: " + getExecTypeDesc(execType));
+        console(sessionId).println("   Order Status: " + getOrdStatusDesc(ordStatus));
         
         if (execReport.isSetOrderID()) {
-            System.out.println("   Order ID: " + execReport.getOrderID().getValue());
+            console(sessionId).println("   Order ID: " + execReport.getOrderID().getValue());
         }
         
         if (execReport.isSetLastQty() && execReport.getLastQty().getValue() > 0) {
-            System.out.println("   Filled Qty: " + (int)execReport.getLastQty().getValue());
-            System.out.println("   Fill Price: $" + execReport.getLastPx().getValue());
+            console(sessionId).println("   Filled Qty: " + (int)execReport.getLastQty().getValue());
+            console(sessionId).println("   Fill Price: $" + execReport.getLastPx().getValue());
         }
         
         if (execReport.isSetCumQty()) {
-            System.out.println("   Cumulative Qty: " + (int)execReport.getCumQty().getValue());
+            console(sessionId).println("   Cumulative Qty: " + (int)execReport.getCumQty().getValue());
         }
         
-        // Update order tracking
+        // Update order tracking; cancel and replace acks name the order in OrigClOrdID
         ClientOrder order = orders.get(clOrdID);
+        if (order == null && execReport.isSetOrigClOrdID()) {
+            order = orders.get(execReport.getOrigClOrdID().getValue());
+        }
         if (order != null) {
-            order.setStatus(getOrdStatusDesc(ordStatus));
+            if (execType == ExecType.REPLACED) {
+                order.replaced(clOrdID, 
+                    execReport.isSetOrderQty() ? (int) execReport.getOrderQty().getValue() : order.getQuantity(),
+                    execReport.isSetPrice() ? execReport.getPrice().getValue() : order.getPrice());
+                orders.put(clOrdID, order);
+            }
+            ClientOrderState next = ClientOrderState.fromOrdStatus(ordStatus);
+            if (next != null) {
+                activeOrders.transition(order, next);
+            }
             if (execReport.isSetCumQty()) {
                 order.setFilledQty((int)execReport.getCumQty().getValue());
             }
+            synchronized (reportLock) {
+                history.record(order.getHistoryIndex(), order.getSymbolId(), order.getSideCode(), 
+                    order.getQuantity(), (byte) ordStatus);
+            }
             
-            String historyEntry = String.format("[%s] %s - %s: %s", 
-                LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss")),
-                clOrdID, order.getSymbol(), getOrdStatusDesc(ordStatus));
-            orderHistory.add(historyEntry);
+            // The first response to a routed order feeds its venue's ack latency
+            long sentNanos = order.takeSentNanos();
+            if (sentNanos != 0 && order.getVenue() != null) {
+                router.onAck(order.getVenue(), System.nanoTime() - sentNanos);
+            }
+        }
+        
+        // Positions default to the session's own account when the report names none.
+        // Warm-up fills are not real, and a fill without a price would corrupt the average cost.
+        if (execReport.isSetLastQty() && execReport.getLastQty().getValue() > 0 && execType != ExecType.ORDER_STATUS
+                && !JitWarmup.isWarmupSession(sessionId)) {
+            if (!execReport.isSetLastPx() || execReport.getLastPx().getValue() <= 0) {
+                console(sessionId).println("   ⚠ Fill without a price left out of positions");
+            } else {
+                synchronized (reportLock) {
+                    positions.onFill(execReport.isSetAccount() ? execReport.getAccount().getValue() 
+                        : sessionId.getSenderCompID(), execReport.getSymbol().getValue(), 
+                        execReport.getSide().getValue(), (long) execReport.getLastQty().getValue(), 
+                        execReport.getLastPx().getValue());
+                }
+            }
+            router.onFill(sessionId, SymbolDictionary.DEFAULT.idOf(execReport.getSymbol().getValue()), 
+                (long) execReport.getLastQty().getValue());
+        }
+        
+        OrderFuture future = execType == ExecType.ORDER_STATUS 
+            ? pendingStatus.remove(clOrdID) : pending.remove(clOrdID);
+        if (future != null) {
+            future.complete(OrderResponse.of(execReport));
+        }
+        
+        for (ExecutionListener listener : listeners) {
+            listener.onExecutionReport(clOrdID, execType, ordStatus);
         }
     }
     
@@ -672,10 +1512,24 @@ class FIXClientApplication extends MessageCracker implements Application {
     public void onMessage(OrderCancelReject reject, SessionID sessionId) 
             throws FieldNotFound {
         
-        System.out.println("\n❌ CANCEL REJECTED:");
-        System.out.println("   ClOrdID: " + reject.getClOrdID().getValue());
+        console(sessionId).println("\n❌ CANCEL REJECTED:");
+        console(sessionId).println("   ClOrdID: " + reject.getClOrdID().getValue());
         if (reject.isSetText()) {
-            System.out.println("   Reason: " + reject.getText().getValue());
+            console(sessionId).println("   Reason: " + reject.getText().getValue());
+        }
+        
+        ClientOrder order = orders.get(reject.getOrigClOrdID().getValue());
+        if (order != null) {
+            activeOrders.requestRejected(order);
+        }
+        
+        OrderFuture future = pending.remove(reject.getClOrdID().getValue());
+        if (future != null) {
+            future.complete(OrderResponse.of(reject));
+        }
+        
+        for (ExecutionListener listener : listeners) {
+            listener.onCancelReject(reject.getClOrdID().getValue(), reject.getOrigClOrdID().getValue());
         }
     }
     
@@ -687,145 +1541,293 @@ class FIXClientApplication extends MessageCracker implements Application {
         }
     }
     
-    public void sendNewOrderSingle(String symbol, char side, int quantity, 
+    public boolean waitForLogon(long timeout, TimeUnit unit) throws InterruptedException {
+        return logonLatch.await(timeout, unit);
+    }
+    
+    // Millisecond prefix keeps IDs readable; the counter keeps them unique at any send rate
+    private static String nextClOrdID(String prefix) {
+        return prefix + System.currentTimeMillis() + "-" + CLORDID_SEQ.incrementAndGet();
+    }
+    
+    // Registered before sending so the response can never arrive first
+    private OrderFuture track(Map<String, OrderFuture> table, String clOrdID) {
+        OrderFuture future = new OrderFuture(clOrdID);
+        table.put(clOrdID, future);
+        return expire(table, future);
+    }
+    
+    // Times the request out and drops it from the table once it completes either way
+    private OrderFuture expire(Map<String, OrderFuture> table, OrderFuture future) {
+        String clOrdID = future.getClOrdID();
+        future.orTimeout(responseTimeoutMillis, TimeUnit.MILLISECONDS)
+            .whenComplete((response, error) -> table.remove(clOrdID, future));
+        return future;
+    }
+    
+    private OrderFuture sendTracked(Map<String, OrderFuture> table, OrderFuture future, 
+            quickfix.Message message, SessionID target) {
+        try {
+            if (!Session.sendToTarget(message, target)) {
+                future.completeExceptionally(new IOException("Session refused " + future.getClOrdID()));
+            }
+        } catch (SessionNotFound e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+    
+    // Follow-up requests go to the venue the order was routed to
+    private SessionID targetOf(ClientOrder order) {
+        SessionID target = order != null ? order.getSessionID() : null;
+        return target != null ? target : sessionId;
+    }
+    
+    // Completes on the first execution report for the order: NEW ack, reject or terminal state
+    public OrderFuture sendNewOrderSingle(String symbol, char side, int quantity, 
             char ordType, double price, char timeInForce) {
+        return sendNewOrderSingle(symbol, side, quantity, ordType, price, 0, timeInForce);
+    }
+    
+    public OrderFuture sendNewOrderSingle(String symbol, char side, int quantity, 
+            char ordType, double price, double stopPx, char timeInForce) {
+        return sendNewOrderSingle(symbol, side, quantity, ordType, price, timeInForce, order -> {
+            if (ordType == OrdType.STOP || ordType == OrdType.STOP_LIMIT) {
+                order.set(new StopPx(stopPx));
+            }
+        });
+    }
+    
+    // Limit order showing at most maxFloor shares at a time
+    public OrderFuture sendIcebergOrder(String symbol, char side, int quantity, 
+            double price, int maxFloor, char timeInForce) {
+        return sendNewOrderSingle(symbol, side, quantity, OrdType.LIMIT, price, timeInForce, 
+            order -> order.set(new MaxFloor(maxFloor)));
+    }
+    
+    // pegType is ExecInst.PRIMARY_PEG (same-side best) or ExecInst.MARKET_PEG (opposite side)
+    public OrderFuture sendPeggedOrder(String symbol, char side, int quantity, 
+            char pegType, double pegOffset, char timeInForce) {
+        return sendNewOrderSingle(symbol, side, quantity, OrdType.PEGGED, 0, timeInForce, order -> {
+            order.set(new ExecInst(String.valueOf(pegType)));
+            order.set(new PegOffsetValue(pegOffset));
+        });
+    }
+    
+    private OrderFuture sendNewOrderSingle(String symbol, char side, int quantity, char ordType, 
+            double price, char timeInForce, Consumer<NewOrderSingle> extraFields) {
+        String clOrdID = nextClOrdID("CLI");
         try {
-            String clOrdID = "CLI" + System.currentTimeMillis();
             
-            NewOrderSingle order = new NewOrderSingle(
-                new ClOrdID(clOrdID),
-                new Side(side),
-                new TransactTime(new Date()),
-                new OrdType(ordType)
-            );
+            NewOrderSingle order = new NewOrderSingle();
+            order.set(new ClOrdID(clOrdID));
+            order.set(new Side(side));
+            FixClock.stamp(order, TransactTime.FIELD);
+            order.set(new OrdType(ordType));
             
             order.set(new Symbol(symbol));
             order.set(new OrderQty(quantity));
             order.set(new TimeInForce(timeInForce));
             
-            if (ordType == OrdType.LIMIT) {
+            if (ordType == OrdType.LIMIT || ordType == OrdType.STOP_LIMIT) {
                 order.set(new Price(price));
             }
-            
-            Session.sendToTarget(order, sessionId);
+            extraFields.accept(order);
             
             // Track order
             ClientOrder clientOrder = new ClientOrder(clOrdID, symbol, 
                 side == Side.BUY ? "BUY" : "SELL", quantity, price);
+            clientOrder.setHistoryIndex(nextOrderIndex.getAndIncrement());
             orders.put(clOrdID, clientOrder);
+            activeOrders.add(clientOrder);
             
-            System.out.println("\n✓ Order sent: " + clOrdID);
+            OrderRouter.Venue venue = router.route(clientOrder.getSymbolId());
+            clientOrder.routed(venue, System.nanoTime());
+            OrderFuture future = sendTracked(pending, track(pending, clOrdID), order, targetOf(clientOrder));
+            if (future.isCompletedExceptionally()) {
+                orders.remove(clOrdID);
+                activeOrders.transition(clientOrder, ClientOrderState.REJECTED);
+            } else {
+                console(sessionId).println("\n✓ Order sent: " + clOrdID);
+            }
+            return future;
         } catch (Exception e) {
             System.err.println("Error sending order: " + e.getMessage());
+            return OrderFuture.failed(clOrdID, e);
         }
     }
     
-    public void sendOrderCancelRequest(String origClOrdID) {
+    // Completes on the cancel ack or the OrderCancelReject
+    public OrderFuture sendOrderCancelRequest(String origClOrdID) {
+        String clOrdID = nextClOrdID("CXL");
         try {
-            String clOrdID = "CXL" + System.currentTimeMillis();
-            
-            OrderCancelRequest cancel = new OrderCancelRequest(
-                new OrigClOrdID(origClOrdID),
-                new ClOrdID(clOrdID),
-                new Side(Side.BUY),
-                new TransactTime(new Date())
-            );
             
             ClientOrder order = orders.get(origClOrdID);
+            OrderCancelRequest cancel = new OrderCancelRequest();
+            cancel.set(new OrigClOrdID(origClOrdID));
+            cancel.set(new ClOrdID(clOrdID));
+            cancel.set(new Side(order != null ? order.getSideCode() : Side.BUY));
+            FixClock.stamp(cancel, TransactTime.FIELD);
+            
             if (order != null) {
                 cancel.set(new Symbol(order.getSymbol()));
                 cancel.set(new OrderQty(order.getQuantity()));
+                activeOrders.beginRequest(order, ClientOrderState.PENDING_CANCEL);
             }
             
-            Session.sendToTarget(cancel, sessionId);
-            System.out.println("\n✓ Cancel request sent");
+            OrderFuture future = sendTracked(pending, track(pending, clOrdID), cancel, targetOf(order));
+            if (order != null && future.isCompletedExceptionally()) {
+                activeOrders.requestRejected(order);
+            }
+            if (!future.isCompletedExceptionally()) {
+                console(sessionId).println("\n✓ Cancel request sent");
+            }
+            return future;
         } catch (Exception e) {
             System.err.println("Error sending cancel: " + e.getMessage());
+            return OrderFuture.failed(clOrdID, e);
         }
     }
     
-    public void sendOrderCancelReplaceRequest(String origClOrdID, int newQty, double newPrice) {
+    // Completes on the replace ack or the OrderCancelReject
+    public OrderFuture sendOrderCancelReplaceRequest(String origClOrdID, int newQty, double newPrice) {
+        String clOrdID = nextClOrdID("REP");
         try {
-            String clOrdID = "REP" + System.currentTimeMillis();
-            
             ClientOrder order = orders.get(origClOrdID);
             if (order == null) {
                 System.err.println("Order not found: " + origClOrdID);
-                return;
+                return OrderFuture.failed(clOrdID, new IllegalArgumentException("Order not found: " + origClOrdID));
             }
             
-            OrderCancelReplaceRequest replace = new OrderCancelReplaceRequest(
-                new OrigClOrdID(origClOrdID),
-                new ClOrdID(clOrdID),
-                new Side(order.getSide().equals("BUY") ? Side.BUY : Side.SELL),
-                new TransactTime(new Date()),
-                new OrdType(OrdType.LIMIT)
-            );
+            OrderCancelReplaceRequest replace = new OrderCancelReplaceRequest();
+            replace.set(new OrigClOrdID(origClOrdID));
+            replace.set(new ClOrdID(clOrdID));
+            replace.set(new Side(order.getSideCode()));
+            FixClock.stamp(replace, TransactTime.FIELD);
+            replace.set(new OrdType(OrdType.LIMIT));
             
             replace.set(new Symbol(order.getSymbol()));
             replace.set(new OrderQty(newQty));
             replace.set(new Price(newPrice));
+            activeOrders.beginRequest(order, ClientOrderState.PENDING_REPLACE);
             
-            Session.sendToTarget(replace, sessionId);
-            System.out.println("\n✓ Replace request sent");
+            OrderFuture future = sendTracked(pending, track(pending, clOrdID), replace, targetOf(order));
+            if (future.isCompletedExceptionally()) {
+                activeOrders.requestRejected(order);
+            }
+            if (!future.isCompletedExceptionally()) {
+                console(sessionId).println("\n✓ Replace request sent");
+            }
+            return future;
         } catch (Exception e) {
             System.err.println("Error sending replace: " + e.getMessage());
+            return OrderFuture.failed(clOrdID, e);
         }
     }
     
-    public void sendOrderStatusRequest(String clOrdID) {
+    // Completes on the status report; concurrent requests for one order share a future
+    public OrderFuture sendOrderStatusRequest(String clOrdID) {
         try {
             ClientOrder order = orders.get(clOrdID);
             if (order == null) {
                 System.err.println("Order not found: " + clOrdID);
-                return;
+                return OrderFuture.failed(clOrdID, new IllegalArgumentException("Order not found: " + clOrdID));
+            }
+            // The report carries the order's current ClOrdID, which may be later in a replace
+            // chain. Concurrent callers share one request; only the one that created it sends.
+            String currentClOrdID = order.getClOrdID();
+            boolean[] created = new boolean[1];
+            OrderFuture future = pendingStatus.computeIfAbsent(currentClOrdID, id -> {
+                created[0] = true;
+                return new OrderFuture(id);
+            });
+            if (!created[0]) {
+                return future;
             }
+            expire(pendingStatus, future);
             
             OrderStatusRequest statusRequest = new OrderStatusRequest(
-                new ClOrdID(clOrdID),
-                new Side(order.getSide().equals("BUY") ? Side.BUY : Side.SELL)
+                new ClOrdID(currentClOrdID),
+                new Side(order.getSideCode())
             );
             
             statusRequest.set(new Symbol(order.getSymbol()));
             
-            Session.sendToTarget(statusRequest, sessionId);
-            System.out.println("\n✓ Status request sent");
+            sendTracked(pendingStatus, future, statusRequest, targetOf(order));
+            if (!future.isCompletedExceptionally()) {
+                console(sessionId).println("\n✓ Status request sent");
+            }
+            return future;
         } catch (Exception e) {
             System.err.println("Error sending status request: " + e.getMessage());
+            return OrderFuture.failed(clOrdID, e);
         }
     }
     
+    // Any ClOrdID of the order's replace chain finds it
+    public ClientOrder getOrder(String clOrdID) { return orders.get(clOrdID); }
+    public int getActiveOrderCount() { return activeOrders.size(); }
+    public PositionKeeper getPositions() { return positions; }
+    public List<ClientOrder> getActiveOrders() { return activeOrders.snapshot(); }
+    
     public void displayActiveOrders() {
         System.out.println("\n╔════════════════════════════════════════════════════════════════════╗");
         System.out.println("║                        ACTIVE ORDERS                               ║");
         System.out.println("╠════════════════════════════════════════════════════════════════════╣");
         
-        boolean hasActive = false;
-        for (ClientOrder order : orders.values()) {
-            if (!order.getStatus().equals("FILLED") && !order.getStatus().equals("CANCELED")) {
-                hasActive = true;
-                System.out.printf("║ %-15s | %-6s | %-4s | %5d @ $%-8.2f | %-12s ║%n",
-                    order.getClOrdID(), order.getSymbol(), order.getSide(),
-                    order.getQuantity(), order.getPrice(), order.getStatus());
-            }
+        List<ClientOrder> active = activeOrders.snapshot();
+        for (ClientOrder order : active) {
+            System.out.printf("║ %-15s | %-6s | %-4s | %5d @ $%-8.2f | %-12s ║%n",
+                order.getClOrdID(), order.getSymbol(), order.getSide(),
+                order.getQuantity(), order.getPrice(), order.getStatus());
         }
         
-        if (!hasActive) {
+        if (active.isEmpty()) {
             System.out.println("║                       No active orders                             ║");
         }
         
         System.out.println("╚════════════════════════════════════════════════════════════════════╝");
     }
     
+    public void displayPositions() {
+        System.out.println("\n╔════════════════════════════════════════════════════════════════════╗");
+        System.out.println("║                          POSITIONS                                 ║");
+        System.out.println("╠════════════════════════════════════════════════════════════════════╣");
+        
+        List<PositionKeeper.Position> snapshot = positions.snapshot();
+        for (PositionKeeper.Position position : snapshot) {
+            System.out.printf("║ %-8s | %-6s | %7d @ $%-7.2f | R %9.2f | U %9.2f ║%n",
+                position.getAccount(), position.getSymbol(), position.getNetQty(), 
+                position.getAvgCost(), position.getRealizedPnl(), position.getUnrealizedPnl());
+        }
+        
+        if (snapshot.isEmpty()) {
+            System.out.println("║                         No positions                               ║");
+        }
+        
+        System.out.println("╚════════════════════════════════════════════════════════════════════╝");
+    }
+    
     public void displayOrderHistory() {
         System.out.println("\n╔════════════════════════════════════════════════════════════════════╗");
         System.out.println("║                        ORDER HISTORY                               ║");
         System.out.println("╠════════════════════════════════════════════════════════════════════╣");
         
-        if (orderHistory.isEmpty()) {
+        OrderHistoryRing ring = history;
+        List<String> entries = new ArrayList<>();
+        long firstShown = ring.forEachRecent((epochMillis, orderIndex, symbolId, side, quantity, status) -> 
+            entries.add(formatHistoryEntry(epochMillis, orderIndex, symbolId, side, quantity, status)));
+        
+        if (entries.isEmpty()) {
             System.out.println("║                       No order history                             ║");
         } else {
-            for (String entry : orderHistory) {
+            if (firstShown > 0) {
+                String older = ring.getSpillFile() != null 
+                    ? firstShown + " earlier events in " + ring.getSpillFile().getPath()
+                    : firstShown + " earlier events dropped";
+                System.out.printf("║ %-66s ║%n", older);
+            }
+            for (String entry : entries) {
                 System.out.printf("║ %-66s ║%n", entry);
             }
         }
@@ -833,6 +1835,33 @@ class FIXClientApplication extends MessageCracker implements Application {
         System.out.println("╚════════════════════════════════════════════════════════════════════╝");
     }
     
+    String formatHistoryEntry(long epochMillis, int orderIndex, int symbolId, char side, int quantity, byte status) {
+        return String.format("[%s] #%d %s %d %s: %s",
+            FixClock.localTime(epochMillis), orderIndex, side == Side.BUY ? "BUY" : "SELL", quantity,
+            SymbolDictionary.DEFAULT.nameOf(symbolId), getOrdStatusDesc((char) status));
+    }
+    
+    // Call before the session starts; reports record into the ring under reportLock
+    public void configureHistory(int capacity, File spillFile) {
+        OrderHistoryRing previous;
+        synchronized (reportLock) {
+            previous = history;
+            history = new OrderHistoryRing(capacity, spillFile);
+        }
+        previous.close();
+    }
+    
+    // Call after the sessions have stopped
+    public void shutdown() {
+        rttMonitor.stop();
+        metrics.close();
+        synchronized (reportLock) {
+            history.close();
+        }
+    }
+    
+    public OrderHistoryRing getHistory() { return history; }
+    
     private String getExecTypeDesc(char execType) {
         switch (execType) {
             case ExecType.NEW: return "New";
@@ -868,16 +1897,38 @@ class OrderData {
     private final String orderID;
     private String clOrdID;
     private final String symbol;
+    private int symbolId;
     private final char side;
     private int quantity;
     private double price;
     private int filledQty;
     private boolean canceled;
+    private char ordType = OrdType.LIMIT;
+    // Non-zero only while parked as a stop; not part of writeTo
+    private double stopPx;
+    // Iceberg clip size (0 = fully displayed) and peg instruction (0 = not pegged)
+    private int maxFloor;
+    private char pegType;
+    private double pegOffset;
+    private long priority;
+    private SessionID sessionId;
+    
+    // Guarded by the MarketBook symbol lock; prev/next link the orders of one price level
+    MarketBook.Level bookedLevel;
+    OrderData levelPrev;
+    OrderData levelNext;
+    double bookedPrice;
+    long bookedQty;
+    long bookedPriority;
+    int pegSlot = -1;
+    boolean pegParked;
     
     public OrderData(String orderID, String clOrdID, String symbol, char side, int quantity, double price) {
         this.orderID = orderID;
         this.clOrdID = clOrdID;
         this.symbol = symbol;
+        // -1 until first used, so a rejected order's symbol never enters the dictionary
+        this.symbolId = SymbolDictionary.DEFAULT.find(symbol);
         this.side = side;
         this.quantity = quantity;
         this.price = price;
@@ -888,47 +1939,6768 @@ class OrderData {
     public String getOrderID() { return orderID; }
     public String getClOrdID() { return clOrdID; }
     public String getSymbol() { return symbol; }
+    // Only the book paths ask, and only for accepted orders
+    public int getSymbolId() {
+        int id = symbolId;
+        if (id < 0) {
+            id = SymbolDictionary.DEFAULT.idOf(symbol);
+            symbolId = id;
+        }
+        return id;
+    }
     public char getSide() { return side; }
     public int getQuantity() { return quantity; }
     public double getPrice() { return price; }
     public int getFilledQty() { return filledQty; }
     public boolean isCanceled() { return canceled; }
     public boolean isFilled() { return filledQty >= quantity; }
+    public char getOrdType() { return ordType; }
+    public double getStopPx() { return stopPx; }
+    public int getMaxFloor() { return maxFloor; }
+    public char getPegType() { return pegType; }
+    public double getPegOffset() { return pegOffset; }
+    public boolean isPegged() { return pegType != 0; }
+    public long getPriority() { return priority; }
+    
+    public int getDisplayQty() {
+        int leaves = quantity - filledQty;
+        return maxFloor > 0 ? Math.min(maxFloor, leaves) : leaves;
+    }
+    public SessionID getSessionID() { return sessionId; }
+    
+    // ClOrdIDs are only unique per session, so the server's book keys on both
+    public static String bookKey(SessionID sessionId, String clOrdID) {
+        return sessionId != null ? sessionId + "\u0001" + clOrdID : clOrdID;
+    }
+    public String getBookKey() { return bookKey(sessionId, clOrdID); }
     
     public void setClOrdID(String clOrdID) { this.clOrdID = clOrdID; }
     public void setQuantity(int quantity) { this.quantity = quantity; }
     public void setPrice(double price) { this.price = price; }
     public void setFilledQty(int filledQty) { this.filledQty = filledQty; }
     public void setCanceled(boolean canceled) { this.canceled = canceled; }
+    public void setOrdType(char ordType) { this.ordType = ordType; }
+    public void setStopPx(double stopPx) { this.stopPx = stopPx; }
+    public void setMaxFloor(int maxFloor) { this.maxFloor = maxFloor; }
+    public void setPeg(char pegType, double pegOffset) {
+        this.pegType = pegType;
+        this.pegOffset = pegOffset;
+    }
+    public void setPriority(long priority) { this.priority = priority; }
+    public void setSessionID(SessionID sessionId) { this.sessionId = sessionId; }
+    
+    // Full order state, shared by snapshots and journal records
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeUTF(orderID);
+        out.writeUTF(clOrdID);
+        out.writeUTF(symbol);
+        out.writeChar(side);
+        out.writeInt(quantity);
+        out.writeDouble(price);
+        out.writeInt(filledQty);
+        out.writeBoolean(canceled);
+        out.writeChar(ordType);
+        out.writeUTF(sessionId != null ? sessionId.toString() : "");
+    }
+    
+    public static OrderData readFrom(DataInput in) throws IOException {
+        OrderData order = new OrderData(in.readUTF(), in.readUTF(), in.readUTF(),
+            in.readChar(), in.readInt(), in.readDouble());
+        order.filledQty = in.readInt();
+        order.canceled = in.readBoolean();
+        order.ordType = in.readChar();
+        String session = in.readUTF();
+        order.sessionId = session.isEmpty() ? null : new SessionID(session);
+        return order;
+    }
 }
 
 class ClientOrder {
-    private final String clOrdID;
+    // First ClOrdID of the chain; getClOrdID() follows replaces
+    private final String firstClOrdID;
+    private volatile String clOrdID;
     private final String symbol;
+    private final int symbolId;
     private final String side;
-    private final int quantity;
-    private final double price;
-    private String status;
-    private int filledQty;
+    private volatile int quantity;
+    private volatile double price;
+    private volatile ClientOrderState state = ClientOrderState.PENDING_NEW;
+    private volatile int filledQty;
+    private int historyIndex;
+    // Venue the order was routed to, and when it was sent until the first response
+    private volatile OrderRouter.Venue venue;
+    private volatile long sentNanos;
+    
+    // Guarded by the owning ActiveOrderList
+    ClientOrderState stateBeforeRequest;
+    ClientOrder prevActive;
+    ClientOrder nextActive;
     
     public ClientOrder(String clOrdID, String symbol, String side, int quantity, double price) {
+        this.firstClOrdID = clOrdID;
         this.clOrdID = clOrdID;
         this.symbol = symbol;
+        this.symbolId = SymbolDictionary.DEFAULT.idOf(symbol);
         this.side = side;
         this.quantity = quantity;
         this.price = price;
-        this.status = "PENDING";
         this.filledQty = 0;
     }
     
     public String getClOrdID() { return clOrdID; }
+    public String getFirstClOrdID() { return firstClOrdID; }
     public String getSymbol() { return symbol; }
+    public int getSymbolId() { return symbolId; }
     public String getSide() { return side; }
+    public char getSideCode() { return side.equals("BUY") ? Side.BUY : Side.SELL; }
     public int getQuantity() { return quantity; }
     public double getPrice() { return price; }
-    public String getStatus() { return status; }
+    public ClientOrderState getState() { return state; }
+    public String getStatus() { return state.getLabel(); }
     public int getFilledQty() { return filledQty; }
+    int getHistoryIndex() { return historyIndex; }
+    void setHistoryIndex(int historyIndex) { this.historyIndex = historyIndex; }
+    OrderRouter.Venue getVenue() { return venue; }
+    public SessionID getSessionID() { return venue != null ? venue.getSessionID() : null; }
+    
+    void routed(OrderRouter.Venue venue, long sentNanos) {
+        this.venue = venue;
+        this.sentNanos = sentNanos;
+    }
+    
+    // Send time on the first call, 0 after; called from the session thread
+    long takeSentNanos() {
+        long sent = sentNanos;
+        sentNanos = 0;
+        return sent;
+    }
     
-    public void setStatus(String status) { this.status = status; }
+    void setState(ClientOrderState state) { this.state = state; }
     public void setFilledQty(int filledQty) { this.filledQty = filledQty; }
-}
\ No newline at end of file
+    
+    void replaced(String newClOrdID, int newQuantity, double newPrice) {
+        this.clOrdID = newClOrdID;
+        this.quantity = newQuantity;
+        this.price = newPrice;
+    }
+}
+
+enum ClientOrderState {
+    PENDING_NEW("PENDING"),
+    NEW("NEW"),
+    PARTIALLY_FILLED("PARTIAL"),
+    PENDING_CANCEL("PENDING_CANCEL"),
+    PENDING_REPLACE("PENDING_REPLACE"),
+    FILLED("FILLED"),
+    CANCELED("CANCELED"),
+    REJECTED("REJECTED");
+    
+    private final String label;
+    
+    ClientOrderState(String label) {
+        this.label = label;
+    }
+    
+    public String getLabel() { return label; }
+    
+    public boolean isTerminal() {
+        return this == FILLED || this == CANCELED || this == REJECTED;
+    }
+    
+    public boolean isPendingRequest() {
+        return this == PENDING_CANCEL || this == PENDING_REPLACE;
+    }
+    
+    // Null for statuses that do not move the client-side state
+    static ClientOrderState fromOrdStatus(char ordStatus) {
+        switch (ordStatus) {
+            case OrdStatus.NEW: return NEW;
+            case OrdStatus.PARTIALLY_FILLED: return PARTIALLY_FILLED;
+            case OrdStatus.FILLED: return FILLED;
+            case OrdStatus.CANCELED: return CANCELED;
+            case OrdStatus.REJECTED: return REJECTED;
+            case OrdStatus.PENDING_CANCEL: return PENDING_CANCEL;
+            case OrdStatus.PENDING_REPLACE: return PENDING_REPLACE;
+            default: return null;
+        }
+    }
+}
+
+// Intrusive doubly-linked list of non-terminal orders. Every state change goes
+// through transition(), which links or unlinks the order, so active-order views
+// cost O(active) no matter how many orders were ever sent.
+class ActiveOrderList {
+    private ClientOrder head;
+    private ClientOrder tail;
+    private int size;
+    
+    public synchronized void add(ClientOrder order) {
+        order.prevActive = tail;
+        order.nextActive = null;
+        if (tail == null) {
+            head = order;
+        } else {
+            tail.nextActive = order;
+        }
+        tail = order;
+        size++;
+    }
+    
+    private void unlink(ClientOrder order) {
+        if (order.prevActive == null) {
+            head = order.nextActive;
+        } else {
+            order.prevActive.nextActive = order.nextActive;
+        }
+        if (order.nextActive == null) {
+            tail = order.prevActive;
+        } else {
+            order.nextActive.prevActive = order.prevActive;
+        }
+        order.prevActive = null;
+        order.nextActive = null;
+        size--;
+    }
+    
+    // Terminal states are absorbing; late reports for a finished order are ignored
+    public synchronized boolean transition(ClientOrder order, ClientOrderState next) {
+        ClientOrderState current = order.getState();
+        if (current.isTerminal() || current == next) {
+            return false;
+        }
+        order.setState(next);
+        if (next.isTerminal()) {
+            unlink(order);
+        }
+        return true;
+    }
+    
+    // Cancel/replace sent: remember the state to fall back to if it is rejected
+    public synchronized boolean beginRequest(ClientOrder order, ClientOrderState pendingState) {
+        ClientOrderState current = order.getState();
+        if (current.isTerminal()) {
+            return false;
+        }
+        if (!current.isPendingRequest()) {
+            order.stateBeforeRequest = current;
+        }
+        order.setState(pendingState);
+        return true;
+    }
+    
+    public synchronized void requestRejected(ClientOrder order) {
+        if (order.getState().isPendingRequest() && order.stateBeforeRequest != null) {
+            order.setState(order.stateBeforeRequest);
+        }
+    }
+    
+    public synchronized int size() { return size; }
+    
+    public synchronized List<ClientOrder> snapshot() {
+        List<ClientOrder> active = new ArrayList<>(size);
+        for (ClientOrder order = head; order != null; order = order.nextActive) {
+            active.add(order);
+        }
+        return active;
+    }
+}
+
+// Pending response to one client request; the ClOrdID is known as soon as it is sent
+class OrderFuture extends CompletableFuture<OrderResponse> {
+    private final String clOrdID;
+    private final long sentNanos = System.nanoTime();
+    
+    public OrderFuture(String clOrdID) {
+        this.clOrdID = clOrdID;
+    }
+    
+    public String getClOrdID() { return clOrdID; }
+    public long getSentNanos() { return sentNanos; }
+    
+    static OrderFuture failed(String clOrdID, Throwable cause) {
+        OrderFuture future = new OrderFuture(clOrdID);
+        future.completeExceptionally(cause);
+        return future;
+    }
+}
+
+class OrderResponse {
+    private final String clOrdID;
+    private final String origClOrdID;
+    private final String orderID;
+    private final char execType;
+    private final char ordStatus;
+    private final int cumQty;
+    private final String text;
+    private final boolean cancelReject;
+    private final long receivedNanos = System.nanoTime();
+    
+    private OrderResponse(String clOrdID, String origClOrdID, String orderID, char execType, 
+            char ordStatus, int cumQty, String text, boolean cancelReject) {
+        this.clOrdID = clOrdID;
+        this.origClOrdID = origClOrdID;
+        this.orderID = orderID;
+        this.execType = execType;
+        this.ordStatus = ordStatus;
+        this.cumQty = cumQty;
+        this.text = text;
+        this.cancelReject = cancelReject;
+    }
+    
+    static OrderResponse of(ExecutionReport report) throws FieldNotFound {
+        return new OrderResponse(report.getClOrdID().getValue(),
+            report.isSetOrigClOrdID() ? report.getOrigClOrdID().getValue() : null,
+            report.getOrderID().getValue(), report.getExecType().getValue(), 
+            report.getOrdStatus().getValue(), (int) report.getCumQty().getValue(),
+            report.isSetText() ? report.getText().getValue() : null, false);
+    }
+    
+    static OrderResponse of(OrderCancelReject reject) throws FieldNotFound {
+        return new OrderResponse(reject.getClOrdID().getValue(), reject.getOrigClOrdID().getValue(),
+            reject.getOrderID().getValue(), ExecType.REJECTED, reject.getOrdStatus().getValue(), 0,
+            reject.isSetText() ? reject.getText().getValue() : null, true);
+    }
+    
+    public String getClOrdID() { return clOrdID; }
+    public String getOrigClOrdID() { return origClOrdID; }
+    public String getOrderID() { return orderID; }
+    public char getExecType() { return execType; }
+    public char getOrdStatus() { return ordStatus; }
+    public int getCumQty() { return cumQty; }
+    public String getText() { return text; }
+    public boolean isCancelReject() { return cancelReject; }
+    public boolean isRejected() { return cancelReject || execType == ExecType.REJECTED; }
+    public long getReceivedNanos() { return receivedNanos; }
+}
+
+// ============================================================================
+// ORDER BOOK PERSISTENCE (SNAPSHOT + JOURNAL)
+// ============================================================================
+// Snapshots never stop order flow: the journal is rolled to a new segment under
+// its lock (a few microseconds), then the book is copied out while orders keep
+// arriving. Every journal record carries the full order state, so replaying the
+// tail over a snapshot that already saw some of those changes is idempotent.
+class OrderPersistence {
+    public static final String SETTING_STORE_PATH = "OrderStorePath";
+    public static final String SETTING_SNAPSHOT_INTERVAL = "OrderSnapshotInterval";
+    public static final long DEFAULT_SNAPSHOT_INTERVAL = 60;
+    
+    private static final int SNAPSHOT_MAGIC = 0x4F424B53;
+    private static final int FORMAT_VERSION = 1;
+    private static final byte REC_UPSERT = 1;
+    private static final byte REC_REPLACE = 2;
+    // Set on a record or snapshot marker when optional fields follow the order
+    private static final byte STOP_FLAG = 0x10;
+    private static final byte DISPLAY_FLAG = 0x20;
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String JOURNAL_PREFIX = "journal-";
+    private static final long FLUSH_INTERVAL_MS = 5;
+    private static final int IO_BUFFER_SIZE = 1 << 20;
+    
+    private final File directory;
+    private final long snapshotIntervalSeconds;
+    private final ScheduledExecutorService scheduler;
+    
+    // Guarded by this; journalCrc accumulates the bytes of the record being written
+    private DataOutputStream journalOut;
+    private final CRC32 journalCrc = new CRC32();
+    private long nextSeq = 1;
+    private boolean dirty;
+    
+    public OrderPersistence(File directory, long snapshotIntervalSeconds) {
+        this.directory = directory;
+        this.snapshotIntervalSeconds = snapshotIntervalSeconds;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "order-persistence");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    public File getDirectory() { return directory; }
+    
+    // Load the latest snapshot, then replay the journal records written after it
+    public int recover(Map<String, OrderData> orderBook) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create order store: " + directory);
+        }
+        
+        long baseSeq = 1;
+        List<File> snapshots = list(SNAPSHOT_PREFIX);
+        if (!snapshots.isEmpty()) {
+            baseSeq = readSnapshot(snapshots.get(snapshots.size() - 1), orderBook);
+        }
+        
+        long lastSeq = baseSeq - 1;
+        for (File segment : list(JOURNAL_PREFIX)) {
+            long firstSeq = sequenceOf(segment, JOURNAL_PREFIX);
+            if (firstSeq < baseSeq) {
+                continue;
+            }
+            // A segment opened after a crash starts right after the last good record;
+            // anything further on was written past a bad record and is not applied
+            if (firstSeq > lastSeq + 1) {
+                System.err.println("⚠ Order journal replay stopped at sequence " + lastSeq 
+                    + "; " + segment.getName() + " and later segments skipped");
+                break;
+            }
+            lastSeq = replaySegment(segment, baseSeq, lastSeq, orderBook);
+        }
+        
+        synchronized (this) {
+            nextSeq = lastSeq + 1;
+        }
+        return orderBook.size();
+    }
+    
+    public void start(Map<String, OrderData> orderBook) throws IOException {
+        synchronized (this) {
+            openSegment();
+        }
+        scheduler.scheduleWithFixedDelay(this::flush, 
+            FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                snapshot(orderBook);
+            } catch (IOException e) {
+                System.err.println("Error writing order snapshot: " + e.getMessage());
+            }
+        }, snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
+    }
+    
+    public void stop(Map<String, OrderData> orderBook) {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(5, TimeUnit.SECONDS);
+            snapshot(orderBook);
+            synchronized (this) {
+                journalOut.close();
+            }
+        } catch (Exception e) {
+            System.err.println("Error closing order store: " + e.getMessage());
+        }
+    }
+    
+    public synchronized void recordUpsert(OrderData order) {
+        try {
+            journalCrc.reset();
+            journalOut.writeLong(nextSeq++);
+            journalOut.writeByte(REC_UPSERT | extensionFlags(order));
+            order.writeTo(journalOut);
+            writeExtensions(journalOut, order);
+            endRecord();
+        } catch (IOException e) {
+            System.err.println("Error writing order journal: " + e.getMessage());
+        }
+    }
+    
+    public synchronized void recordReplace(String origClOrdID, OrderData order) {
+        try {
+            journalCrc.reset();
+            journalOut.writeLong(nextSeq++);
+            journalOut.writeByte(REC_REPLACE | extensionFlags(order));
+            journalOut.writeUTF(origClOrdID);
+            order.writeTo(journalOut);
+            writeExtensions(journalOut, order);
+            endRecord();
+        } catch (IOException e) {
+            System.err.println("Error writing order journal: " + e.getMessage());
+        }
+    }
+    
+    // Every record ends with the CRC32 of its bytes
+    private void endRecord() throws IOException {
+        journalOut.writeInt((int) journalCrc.getValue());
+        dirty = true;
+    }
+    
+    private static int extensionFlags(OrderData order) {
+        return (order.getStopPx() > 0 ? STOP_FLAG : 0)
+            | (order.getMaxFloor() > 0 || order.isPegged() ? DISPLAY_FLAG : 0);
+    }
+    
+    private static void writeExtensions(DataOutput out, OrderData order) throws IOException {
+        if (order.getStopPx() > 0) {
+            out.writeDouble(order.getStopPx());
+        }
+        if (order.getMaxFloor() > 0 || order.isPegged()) {
+            out.writeInt(order.getMaxFloor());
+            out.writeChar(order.getPegType());
+            out.writeDouble(order.getPegOffset());
+        }
+    }
+    
+    private static void readExtensions(DataInput in, int flags, OrderData order) throws IOException {
+        if ((flags & STOP_FLAG) != 0) {
+            order.setStopPx(in.readDouble());
+        }
+        if ((flags & DISPLAY_FLAG) != 0) {
+            order.setMaxFloor(in.readInt());
+            order.setPeg(in.readChar(), in.readDouble());
+        }
+    }
+    
+    // Group commit: hand buffered records to the OS every few milliseconds
+    private synchronized void flush() {
+        if (dirty) {
+            try {
+                journalOut.flush();
+                dirty = false;
+            } catch (IOException e) {
+                System.err.println("Error flushing order journal: " + e.getMessage());
+            }
+        }
+    }
+    
+    public void snapshot(Map<String, OrderData> orderBook) throws IOException {
+        long baseSeq = roll();
+        
+        File target = new File(directory, SNAPSHOT_PREFIX + formatSeq(baseSeq));
+        File temp = new File(directory, target.getName() + ".tmp");
+        int count = 0;
+        try (FileOutputStream file = new FileOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(
+                 new BufferedOutputStream(file, IO_BUFFER_SIZE))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(baseSeq);
+            for (OrderData order : orderBook.values()) {
+                out.writeByte(1 | extensionFlags(order));
+                order.writeTo(out);
+                writeExtensions(out, order);
+                count++;
+            }
+            out.writeByte(0);
+            out.writeInt(count);
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        
+        // Everything before baseSeq is now covered by the snapshot
+        for (File old : list(SNAPSHOT_PREFIX)) {
+            if (sequenceOf(old, SNAPSHOT_PREFIX) < baseSeq) {
+                old.delete();
+            }
+        }
+        for (File old : list(JOURNAL_PREFIX)) {
+            if (sequenceOf(old, JOURNAL_PREFIX) < baseSeq) {
+                old.delete();
+            }
+        }
+    }
+    
+    private synchronized long roll() throws IOException {
+        journalOut.close();
+        dirty = false;
+        openSegment();
+        return nextSeq;
+    }
+    
+    // A segment named after nextSeq holds no complete record yet, so truncating is safe
+    private void openSegment() throws IOException {
+        File segment = new File(directory, JOURNAL_PREFIX + formatSeq(nextSeq));
+        journalOut = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(
+            new FileOutputStream(segment, false), IO_BUFFER_SIZE), journalCrc));
+    }
+    
+    private long readSnapshot(File snapshot, Map<String, OrderData> orderBook) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(snapshot), IO_BUFFER_SIZE))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Unsupported order snapshot: " + snapshot);
+            }
+            long baseSeq = in.readLong();
+            int count = 0;
+            byte marker;
+            while ((marker = in.readByte()) != 0) {
+                OrderData order = OrderData.readFrom(in);
+                readExtensions(in, marker, order);
+                orderBook.put(order.getBookKey(), order);
+                count++;
+            }
+            if (in.readInt() != count) {
+                throw new IOException("Truncated order snapshot: " + snapshot);
+            }
+            return baseSeq;
+        }
+    }
+    
+    // Returns the last sequence applied. A torn record at the tail, or the first record
+    // whose CRC does not match, ends the segment.
+    private long replaySegment(File segment, long fromSeq, long lastSeq, Map<String, OrderData> orderBook) 
+            throws IOException {
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(
+                new FileInputStream(segment), IO_BUFFER_SIZE), crc))) {
+            while (true) {
+                crc.reset();
+                long seq;
+                String origClOrdID;
+                OrderData order;
+                try {
+                    seq = in.readLong();
+                    byte type = in.readByte();
+                    origClOrdID = (type & ~(STOP_FLAG | DISPLAY_FLAG)) == REC_REPLACE ? in.readUTF() : null;
+                    order = OrderData.readFrom(in);
+                    readExtensions(in, type, order);
+                } catch (EOFException e) {
+                    return lastSeq;
+                } catch (IOException | RuntimeException e) {
+                    // Garbage can fail to decode before its CRC is reached
+                    return badRecord(segment, lastSeq);
+                }
+                int expected = (int) crc.getValue();
+                if (in.readInt() != expected) {
+                    return badRecord(segment, lastSeq);
+                }
+                if (seq < fromSeq) {
+                    continue;
+                }
+                if (origClOrdID != null) {
+                    orderBook.remove(OrderData.bookKey(order.getSessionID(), origClOrdID));
+                }
+                orderBook.put(order.getBookKey(), order);
+                lastSeq = seq;
+            }
+        } catch (EOFException e) {
+            return lastSeq;
+        }
+    }
+    
+    private static long badRecord(File segment, long lastSeq) {
+        System.err.println("⚠ Corrupt record in " + segment.getName() + " after sequence " + lastSeq 
+            + "; the rest of the segment is ignored");
+        return lastSeq;
+    }
+    
+    private List<File> list(String prefix) {
+        File[] files = directory.listFiles((dir, name) -> 
+            name.startsWith(prefix) && !name.endsWith(".tmp"));
+        List<File> result = new ArrayList<>();
+        if (files != null) {
+            result.addAll(Arrays.asList(files));
+            result.sort(Comparator.comparing(File::getName));
+        }
+        return result;
+    }
+    
+    private static long sequenceOf(File file, String prefix) {
+        return Long.parseLong(file.getName().substring(prefix.length()));
+    }
+    
+    private static String formatSeq(long seq) {
+        return String.format("%020d", seq);
+    }
+}
+
+// ============================================================================
+// JVM WARM-UP
+// ============================================================================
+// Drives synthetic traffic through decode -> crack -> book -> encode on loopback
+// sessions whose output is discarded, until the JIT stops compiling. The server
+// runs this before the acceptor opens, so real logons never meet interpreted code.
+class JitWarmup {
+    public static final String SETTING_ENABLED = "WarmupEnabled";
+    public static final String SETTING_MAX_SECONDS = "WarmupMaxSeconds";
+    
+    static final SessionID SERVER_SESSION = new SessionID("FIX.4.4", "WARMUP_EXCHANGE", "WARMUP_TRADER");
+    static final SessionID CLIENT_SESSION = new SessionID("FIX.4.4", "WARMUP_TRADER", "WARMUP_EXCHANGE");
+    
+    private static final String[] SYMBOLS = {"AAPL", "GOOGL", "MSFT", "AMZN", "TSLA"};
+    private static final int BATCH_SIZE = 1000;
+    private static final int MIN_BATCHES = 5;
+    private static final int STABLE_BATCHES = 3;
+    private static final long SETTLED_COMPILE_MILLIS = 1;
+    private static final long DEFAULT_MAX_SECONDS = 30;
+    
+    @FunctionalInterface
+    private interface Batch {
+        void run(int firstId) throws Exception;
+    }
+    
+    public static boolean isEnabled(SessionSettings settings) throws ConfigError, FieldConvertError {
+        return settings.isSetting(SETTING_ENABLED) && settings.getBool(SETTING_ENABLED);
+    }
+    
+    public static long getMaxMillis(SessionSettings settings) throws ConfigError, FieldConvertError {
+        long seconds = settings.isSetting(SETTING_MAX_SECONDS)
+            ? settings.getLong(SETTING_MAX_SECONDS) : DEFAULT_MAX_SECONDS;
+        return TimeUnit.SECONDS.toMillis(seconds);
+    }
+    
+    public static boolean isWarmupSession(SessionID sessionId) {
+        return SERVER_SESSION.equals(sessionId) || CLIENT_SESSION.equals(sessionId);
+    }
+    
+    public static void warmServer(FIXServerApplication serverApp, long maxMillis) throws Exception {
+        Session session = createSession(serverApp, SERVER_SESSION, "acceptor");
+        try {
+            run("Server", maxMillis, firstId -> {
+                for (int i = firstId; i < firstId + BATCH_SIZE; i++) {
+                    serverRound(session, serverApp, i);
+                }
+            });
+        } finally {
+            session.close();
+            serverApp.purgeOrders(SERVER_SESSION);
+        }
+    }
+    
+    public static void warmClient(FIXClientApplication clientApp, long maxMillis) throws Exception {
+        Session session = createSession(clientApp, CLIENT_SESSION, "initiator");
+        try {
+            run("Client", maxMillis, firstId -> {
+                for (int i = firstId; i < firstId + BATCH_SIZE; i++) {
+                    clientRound(session, clientApp, i);
+                }
+            });
+        } finally {
+            session.close();
+        }
+    }
+    
+    // New order, status, replace and cancel for one synthetic order
+    private static void serverRound(Session session, Application app, int id) throws Exception {
+        String clOrdID = "WARMUP" + id;
+        String replaceID = "WARMUPR" + id;
+        char side = id % 2 == 0 ? Side.BUY : Side.SELL;
+        String symbol = SYMBOLS[id % SYMBOLS.length];
+        
+        NewOrderSingle order = new NewOrderSingle(
+            new ClOrdID(clOrdID), new Side(side), new TransactTime(new Date()), new OrdType(OrdType.LIMIT));
+        order.set(new Symbol(symbol));
+        order.set(new OrderQty(100));
+        order.set(new Price(100.0 + id % 50));
+        order.set(new TimeInForce(TimeInForce.DAY));
+        deliver(session, app, order, id);
+        
+        OrderStatusRequest status = new OrderStatusRequest(new ClOrdID(clOrdID), new Side(side));
+        status.set(new Symbol(symbol));
+        deliver(session, app, status, id);
+        
+        OrderCancelReplaceRequest replace = new OrderCancelReplaceRequest(
+            new OrigClOrdID(clOrdID), new ClOrdID(replaceID), new Side(side),
+            new TransactTime(new Date()), new OrdType(OrdType.LIMIT));
+        replace.set(new Symbol(symbol));
+        replace.set(new OrderQty(200));
+        replace.set(new Price(99.0 + id % 50));
+        deliver(session, app, replace, id);
+        
+        OrderCancelRequest cancel = new OrderCancelRequest(
+            new OrigClOrdID(replaceID), new ClOrdID("WARMUPC" + id), new Side(side), new TransactTime(new Date()));
+        cancel.set(new Symbol(symbol));
+        cancel.set(new OrderQty(200));
+        deliver(session, app, cancel, id);
+    }
+    
+    // Ack, partial fill and fill reports for one synthetic order
+    private static void clientRound(Session session, Application app, int id) throws Exception {
+        String clOrdID = "WARMUP" + id;
+        char[][] steps = {
+            {ExecType.NEW, OrdStatus.NEW},
+            {ExecType.PARTIAL_FILL, OrdStatus.PARTIALLY_FILLED},
+            {ExecType.FILL, OrdStatus.FILLED}
+        };
+        for (int step = 0; step < steps.length; step++) {
+            int cumQty = step * 50;
+            ExecutionReport report = new ExecutionReport(
+                new OrderID("WARMUPORD" + id), new ExecID("WARMUPEXEC" + id + "-" + step),
+                new ExecType(steps[step][0]), new OrdStatus(steps[step][1]), new Side(Side.BUY),
+                new LeavesQty(100 - cumQty), new CumQty(cumQty), new AvgPx(100.0));
+            report.set(new ClOrdID(clOrdID));
+            report.set(new Symbol(SYMBOLS[id % SYMBOLS.length]));
+            report.set(new OrderQty(100));
+            if (cumQty > 0) {
+                report.set(new LastQty(50));
+                report.set(new LastPx(100.0));
+            }
+            FixClock.stamp(report, TransactTime.FIELD);
+            deliver(session, app, report, id);
+        }
+    }
+    
+    // Encode as the counterparty would, then decode and crack like an inbound message
+    private static void deliver(Session session, Application app, quickfix.Message message, int seqNum) 
+            throws Exception {
+        SessionID sessionId = session.getSessionID();
+        message.getHeader().setString(SenderCompID.FIELD, sessionId.getTargetCompID());
+        message.getHeader().setString(TargetCompID.FIELD, sessionId.getSenderCompID());
+        message.getHeader().setInt(MsgSeqNum.FIELD, seqNum + 1);
+        quickfix.Message decoded = MessageUtils.parse(session, message.toString());
+        app.fromApp(decoded, sessionId);
+    }
+    
+    private static void run(String name, long maxMillis, Batch batch) throws Exception {
+        CompilationMXBean jit = ManagementFactory.getCompilationMXBean();
+        boolean tracked = jit != null && jit.isCompilationTimeMonitoringSupported();
+        long start = System.currentTimeMillis();
+        long deadline = start + maxMillis;
+        long lastCompileTime = tracked ? jit.getTotalCompilationTime() : 0;
+        int batches = 0;
+        int stable = 0;
+        
+        // Handlers print nothing for the warm-up sessions
+        while (System.currentTimeMillis() < deadline) {
+            batch.run(batches++ * BATCH_SIZE);
+            if (tracked) {
+                long compileTime = jit.getTotalCompilationTime();
+                stable = compileTime - lastCompileTime <= SETTLED_COMPILE_MILLIS ? stable + 1 : 0;
+                lastCompileTime = compileTime;
+            }
+            if (batches >= MIN_BATCHES && (!tracked || stable >= STABLE_BATCHES)) {
+                break;
+            }
+        }
+        
+        System.out.println("✓ " + name + " warm-up: " + batches * BATCH_SIZE + " orders in " 
+            + (System.currentTimeMillis() - start) + " ms" 
+            + (tracked ? ", JIT " + (stable >= STABLE_BATCHES ? "settled" : "still compiling") 
+                + " (" + lastCompileTime + " ms compiling)" : ""));
+    }
+    
+    private static Session createSession(Application app, SessionID sessionId, String connectionType) 
+            throws ConfigError {
+        SessionSettings settings = new SessionSettings();
+        settings.setString(sessionId, "ConnectionType", connectionType);
+        settings.setString(sessionId, "NonStopSession", "Y");
+        settings.setString(sessionId, "HeartBtInt", "30");
+        settings.setString(sessionId, "PersistMessages", "N");
+        settings.setString(sessionId, "UseDataDictionary", "Y");
+        
+        Session session = new DefaultSessionFactory(app, new MemoryStoreFactory(), 
+            new CompositeLogFactory(new LogFactory[0]), new DefaultMessageFactory())
+            .create(sessionId, settings);
+        
+        // Never logged on, so outbound messages are encoded and then dropped here
+        session.setResponder(new Responder() {
+            @Override
+            public boolean send(String data) { return true; }
+            
+            @Override
+            public void disconnect() {}
+            
+            @Override
+            public String getRemoteAddress() { return "warmup"; }
+        });
+        return session;
+    }
+}
+
+// ============================================================================
+// METRICS (JMX + PROMETHEUS TEXT)
+// ============================================================================
+// Hot-path updates only touch striped counters (LongAdder, striped histogram
+// arrays); rates, percentiles and book sizes are computed when someone reads them.
+class MetricsRegistry {
+    public static final String SETTING_METRICS_FILE = "MetricsFile";
+    public static final String SETTING_METRICS_PORT = "MetricsPort";
+    public static final String SETTING_METRICS_INTERVAL = "MetricsInterval";
+    private static final long DEFAULT_METRICS_INTERVAL = 10;
+    private static final String JMX_DOMAIN = "fixapp";
+    
+    public interface SessionMetricsMXBean {
+        String getSessionID();
+        Map<String, Long> getInboundMessages();
+        Map<String, Long> getOutboundMessages();
+        double getInboundRate();
+        double getOutboundRate();
+        long getOutboundQueueDepth();
+        long getLatencyCount();
+        double getLatencyP50Micros();
+        double getLatencyP99Micros();
+        double getLatencyP999Micros();
+        double getLatencyMaxMicros();
+        long getRttCount();
+        double getRttP50Micros();
+        double getRttP99Micros();
+        double getRttMaxMicros();
+    }
+    
+    public interface ApplicationMetricsMXBean {
+        int getSessionCount();
+        Map<String, Integer> getOrderBookSizes();
+    }
+    
+    // fromApp entry time of the message being cracked on this thread (0 = none)
+    private static final ThreadLocal<long[]> INBOUND_START = ThreadLocal.withInitial(() -> new long[1]);
+    
+    private final String role;
+    private final Supplier<Map<String, Integer>> orderBookSizes;
+    private final Map<SessionID, SessionMetrics> sessions = new ConcurrentHashMap<>();
+    private final List<ObjectName> mbeanNames = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService scheduler;
+    private volatile HttpServer httpServer;
+    
+    public MetricsRegistry(String role, Supplier<Map<String, Integer>> orderBookSizes) {
+        this.role = role;
+        this.orderBookSizes = orderBookSizes;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, role + "-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::sampleRates, 1, 1, TimeUnit.SECONDS);
+        
+        registerMBean("type=Application,role=" + role, new ApplicationMetricsMXBean() {
+            @Override
+            public int getSessionCount() { return sessions.size(); }
+            
+            @Override
+            public Map<String, Integer> getOrderBookSizes() {
+                return orderBookSizes != null ? orderBookSizes.get() : Collections.emptyMap();
+            }
+        });
+    }
+    
+    public void register(SessionID sessionId) {
+        sessions.computeIfAbsent(sessionId, id -> {
+            SessionMetrics metrics = new SessionMetrics(id);
+            registerMBean("type=Session,role=" + role + ",session=" + ObjectName.quote(id.toString()), metrics);
+            return metrics;
+        });
+    }
+    
+    public SessionMetrics get(SessionID sessionId) {
+        return sessions.get(sessionId);
+    }
+    
+    public void onInbound(SessionID sessionId, String msgType) {
+        SessionMetrics metrics = sessions.get(sessionId);
+        if (metrics != null) {
+            metrics.countInbound(msgType);
+        }
+    }
+    
+    public void onOutbound(SessionID sessionId, String msgType) {
+        SessionMetrics metrics = sessions.get(sessionId);
+        if (metrics != null) {
+            metrics.countOutbound(msgType);
+            long start = INBOUND_START.get()[0];
+            if (start != 0) {
+                metrics.recordLatency(System.nanoTime() - start);
+            }
+        }
+    }
+    
+    public void onReportScheduled(SessionID sessionId) {
+        SessionMetrics metrics = sessions.get(sessionId);
+        if (metrics != null) {
+            metrics.queueDepth.increment();
+        }
+    }
+    
+    public void onReportCompleted(SessionID sessionId) {
+        SessionMetrics metrics = sessions.get(sessionId);
+        if (metrics != null) {
+            metrics.queueDepth.decrement();
+        }
+    }
+    
+    public static void beginInbound() {
+        INBOUND_START.get()[0] = System.nanoTime();
+    }
+    
+    public static void endInbound() {
+        INBOUND_START.get()[0] = 0;
+    }
+    
+    public static String msgTypeOf(quickfix.Message message) {
+        try {
+            return message.getHeader().getString(MsgType.FIELD);
+        } catch (FieldNotFound e) {
+            return "?";
+        }
+    }
+    
+    // Optional Prometheus text output: a periodically rewritten file and/or an HTTP port
+    public void startExporters(SessionSettings settings) throws ConfigError, FieldConvertError, IOException {
+        if (settings.isSetting(SETTING_METRICS_FILE)) {
+            File file = new File(settings.getString(SETTING_METRICS_FILE));
+            long interval = settings.isSetting(SETTING_METRICS_INTERVAL)
+                ? settings.getLong(SETTING_METRICS_INTERVAL) : DEFAULT_METRICS_INTERVAL;
+            scheduler.scheduleAtFixedRate(() -> dumpTo(file), interval, interval, TimeUnit.SECONDS);
+            System.out.println("✓ Metrics written to " + file + " every " + interval + "s");
+        }
+        if (settings.isSetting(SETTING_METRICS_PORT)) {
+            int port = settings.getInt(SETTING_METRICS_PORT);
+            HttpServer server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+            server.createContext("/metrics", exchange -> {
+                StringWriter text = new StringWriter();
+                writePrometheus(text);
+                byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+            httpServer = server;
+            System.out.println("✓ Metrics served on http://localhost:" + port + "/metrics");
+        }
+    }
+    
+    public void close() {
+        scheduler.shutdownNow();
+        HttpServer server = httpServer;
+        if (server != null) {
+            server.stop(0);
+        }
+        for (ObjectName name : mbeanNames) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (Exception e) {
+                // Already gone
+            }
+        }
+        mbeanNames.clear();
+    }
+    
+    public void writePrometheus(Writer out) throws IOException {
+        out.write("# HELP fix_messages_total FIX messages by session, direction and MsgType\n");
+        out.write("# TYPE fix_messages_total counter\n");
+        for (SessionMetrics metrics : sessions.values()) {
+            String labels = "role=\"" + role + "\",session=\"" + metrics.getSessionID() + "\"";
+            for (Map.Entry<String, Long> e : metrics.getInboundMessages().entrySet()) {
+                out.write("fix_messages_total{" + labels + ",direction=\"in\",msg_type=\"" 
+                    + e.getKey() + "\"} " + e.getValue() + "\n");
+            }
+            for (Map.Entry<String, Long> e : metrics.getOutboundMessages().entrySet()) {
+                out.write("fix_messages_total{" + labels + ",direction=\"out\",msg_type=\"" 
+                    + e.getKey() + "\"} " + e.getValue() + "\n");
+            }
+        }
+        
+        out.write("# HELP fix_from_app_to_send_seconds Time from fromApp entry to each reply send\n");
+        out.write("# TYPE fix_from_app_to_send_seconds summary\n");
+        for (SessionMetrics metrics : sessions.values()) {
+            String labels = "role=\"" + role + "\",session=\"" + metrics.getSessionID() + "\"";
+            LatencyHistogram latency = metrics.getLatency();
+            for (double q : new double[] {0.5, 0.99, 0.999}) {
+                out.write("fix_from_app_to_send_seconds{" + labels + ",quantile=\"" + q + "\"} " 
+                    + latency.getValueAtPercentile(q * 100) / 1e9 + "\n");
+            }
+            out.write("fix_from_app_to_send_seconds_count{" + labels + "} " + latency.getCount() + "\n");
+        }
+        
+        out.write("# HELP fix_session_rtt_seconds TestRequest/Heartbeat round trip over the last minute\n");
+        out.write("# TYPE fix_session_rtt_seconds summary\n");
+        for (SessionMetrics metrics : sessions.values()) {
+            String labels = "role=\"" + role + "\",session=\"" + metrics.getSessionID() + "\"";
+            RollingLatencyHistogram rtt = metrics.getRtt();
+            for (double q : new double[] {0.5, 0.99}) {
+                out.write("fix_session_rtt_seconds{" + labels + ",quantile=\"" + q + "\"} " 
+                    + rtt.getValueAtPercentile(q * 100) / 1e9 + "\n");
+            }
+            out.write("fix_session_rtt_seconds_count{" + labels + "} " + rtt.getCount() + "\n");
+        }
+        
+        out.write("# HELP fix_outbound_queue_depth Execution reports scheduled but not yet sent\n");
+        out.write("# TYPE fix_outbound_queue_depth gauge\n");
+        for (SessionMetrics metrics : sessions.values()) {
+            out.write("fix_outbound_queue_depth{role=\"" + role + "\",session=\"" 
+                + metrics.getSessionID() + "\"} " + metrics.getOutboundQueueDepth() + "\n");
+        }
+        
+        if (orderBookSizes != null) {
+            out.write("# HELP fix_order_book_orders Working orders per symbol\n");
+            out.write("# TYPE fix_order_book_orders gauge\n");
+            for (Map.Entry<String, Integer> e : orderBookSizes.get().entrySet()) {
+                out.write("fix_order_book_orders{role=\"" + role + "\",symbol=\"" 
+                    + e.getKey() + "\"} " + e.getValue() + "\n");
+            }
+        }
+    }
+    
+    private void dumpTo(File file) {
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+                writePrometheus(out);
+            }
+            Files.move(temp.toPath(), file.toPath(), 
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Error writing metrics: " + e.getMessage());
+        }
+    }
+    
+    private void sampleRates() {
+        for (SessionMetrics metrics : sessions.values()) {
+            metrics.sampleRates();
+        }
+    }
+    
+    private void registerMBean(String properties, Object mbean) {
+        try {
+            ObjectName name = new ObjectName(JMX_DOMAIN + ":" + properties);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, name);
+            mbeanNames.add(name);
+        } catch (Exception e) {
+            System.err.println("Error registering MBean " + properties + ": " + e.getMessage());
+        }
+    }
+}
+
+class SessionMetrics implements MetricsRegistry.SessionMetricsMXBean {
+    // Single-character MsgTypes index directly; anything longer shares slot 0
+    private static final int MSG_TYPE_SLOTS = 128;
+    
+    private final SessionID sessionId;
+    private final LongAdder[] inbound = new LongAdder[MSG_TYPE_SLOTS];
+    private final LongAdder[] outbound = new LongAdder[MSG_TYPE_SLOTS];
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final RollingLatencyHistogram rtt = new RollingLatencyHistogram(RTT_WINDOWS);
+    final LongAdder queueDepth = new LongAdder();
+    
+    // Session round trip covers the last RTT_WINDOWS x RTT_WINDOW_SECONDS
+    private static final int RTT_WINDOWS = 6;
+    private static final int RTT_WINDOW_SECONDS = 10;
+    
+    // Written by the sampler thread only
+    private int samples;
+    private long lastInbound;
+    private long lastOutbound;
+    private long lastSampleNanos = System.nanoTime();
+    private volatile double inboundRate;
+    private volatile double outboundRate;
+    
+    public SessionMetrics(SessionID sessionId) {
+        this.sessionId = sessionId;
+        for (int i = 0; i < MSG_TYPE_SLOTS; i++) {
+            inbound[i] = new LongAdder();
+            outbound[i] = new LongAdder();
+        }
+    }
+    
+    void countInbound(String msgType) { inbound[slotOf(msgType)].increment(); }
+    void countOutbound(String msgType) { outbound[slotOf(msgType)].increment(); }
+    void recordLatency(long nanos) { latency.record(nanos); }
+    void recordRtt(long nanos) { rtt.record(nanos); }
+    LatencyHistogram getLatency() { return latency; }
+    RollingLatencyHistogram getRtt() { return rtt; }
+    
+    void sampleRates() {
+        long now = System.nanoTime();
+        long in = total(inbound);
+        long out = total(outbound);
+        double seconds = (now - lastSampleNanos) / 1e9;
+        inboundRate = (in - lastInbound) / seconds;
+        outboundRate = (out - lastOutbound) / seconds;
+        lastInbound = in;
+        lastOutbound = out;
+        lastSampleNanos = now;
+        if (++samples % RTT_WINDOW_SECONDS == 0) {
+            rtt.rotate();
+        }
+    }
+    
+    @Override public String getSessionID() { return sessionId.toString(); }
+    @Override public Map<String, Long> getInboundMessages() { return counts(inbound); }
+    @Override public Map<String, Long> getOutboundMessages() { return counts(outbound); }
+    @Override public double getInboundRate() { return inboundRate; }
+    @Override public double getOutboundRate() { return outboundRate; }
+    @Override public long getOutboundQueueDepth() { return queueDepth.sum(); }
+    @Override public long getLatencyCount() { return latency.getCount(); }
+    @Override public double getLatencyP50Micros() { return latency.getValueAtPercentile(50) / 1e3; }
+    @Override public double getLatencyP99Micros() { return latency.getValueAtPercentile(99) / 1e3; }
+    @Override public double getLatencyP999Micros() { return latency.getValueAtPercentile(99.9) / 1e3; }
+    @Override public double getLatencyMaxMicros() { return latency.getMax() / 1e3; }
+    @Override public long getRttCount() { return rtt.getCount(); }
+    @Override public double getRttP50Micros() { return rtt.getValueAtPercentile(50) / 1e3; }
+    @Override public double getRttP99Micros() { return rtt.getValueAtPercentile(99) / 1e3; }
+    @Override public double getRttMaxMicros() { return rtt.getMax() / 1e3; }
+    
+    private static int slotOf(String msgType) {
+        if (msgType.length() == 1) {
+            char c = msgType.charAt(0);
+            if (c > 0 && c < MSG_TYPE_SLOTS) {
+                return c;
+            }
+        }
+        return 0;
+    }
+    
+    private static long total(LongAdder[] counters) {
+        long sum = 0;
+        for (LongAdder counter : counters) {
+            sum += counter.sum();
+        }
+        return sum;
+    }
+    
+    private static Map<String, Long> counts(LongAdder[] counters) {
+        Map<String, Long> result = new TreeMap<>();
+        for (int i = 0; i < counters.length; i++) {
+            long count = counters[i].sum();
+            if (count > 0) {
+                result.put(i == 0 ? "other" : String.valueOf((char) i), count);
+            }
+        }
+        return result;
+    }
+}
+
+// Log-linear histogram (8 sub-buckets per power of two, ~12% resolution), striped
+// across threads so concurrent recorders rarely share a cache line.
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    private static final int STRIPES = 8;
+    
+    private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+    
+    public LatencyHistogram() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+    }
+    
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        stripes[stripe].incrementAndGet(bucketOf(value));
+        max.accumulate(value);
+    }
+    
+    public long getCount() {
+        long count = 0;
+        for (long c : snapshot()) {
+            count += c;
+        }
+        return count;
+    }
+    
+    public long getMax() { return max.get(); }
+    
+    // Upper bound of the bucket holding the given percentile (0-100)
+    public long getValueAtPercentile(double percentile) {
+        return valueAtPercentile(snapshot(), percentile, getMax());
+    }
+    
+    public long[] snapshot() {
+        long[] counts = new long[BUCKETS];
+        addTo(counts);
+        return counts;
+    }
+    
+    void addTo(long[] counts) {
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += stripe.get(i);
+            }
+        }
+    }
+    
+    // Adds another histogram's counts, e.g. per-thread or per-chunk results
+    public void merge(LatencyHistogram other) {
+        add(other.snapshot(), other.getMax());
+    }
+    
+    // Adds counts laid out as snapshot() returns them
+    void add(long[] counts, long countsMax) {
+        AtomicLongArray target = stripes[0];
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counts[i] != 0) {
+                target.addAndGet(i, counts[i]);
+            }
+        }
+        max.accumulate(countsMax);
+    }
+    
+    // Not atomic with respect to concurrent recorders; callers reset idle windows only
+    public void reset() {
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                stripe.set(i, 0);
+            }
+        }
+        max.reset();
+    }
+    
+    static long valueAtPercentile(long[] counts, double percentile, long max) {
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), max);
+            }
+        }
+        return max;
+    }
+    
+    static int bucketCount() { return BUCKETS; }
+    
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+    
+    static long lowerBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+    }
+    
+    static long upperBoundOf(int bucket) {
+        return bucket + 1 < BUCKETS ? lowerBoundOf(bucket + 1) - 1 : Long.MAX_VALUE;
+    }
+}
+
+// ============================================================================
+// PIPELINE STAGE TRACING
+// ============================================================================
+// Run with -Dfix.trace=true to record nanosecond stamps per inbound message into a
+// preallocated ring per thread. ENABLED is a static final, so with tracing off the
+// JIT removes every stamp call. Dump on demand through JMX (fixapp:type=StageTracer)
+// or automatically when a message exceeds -Dfix.trace.thresholdMicros.
+class StageTracer {
+    public static final boolean ENABLED = Boolean.getBoolean("fix.trace");
+    
+    public static final int FROM_APP = 0;
+    public static final int HANDLER = 1;
+    public static final int BOOK_DONE = 2;
+    public static final int TO_APP = 3;
+    public static final int SOCKET_WRITE = 4;
+    static final int STAGES = 5;
+    static final String[] STAGE_NAMES = {"fromApp", "handler", "book", "toApp", "write"};
+    
+    static final int RING_CAPACITY = 4096;
+    private static final int AUTO_DUMP_TRACES = 32;
+    private static final long AUTO_DUMP_MIN_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    
+    public interface StageTracerMXBean {
+        long getThresholdMicros();
+        void setThresholdMicros(long micros);
+        String dump();
+    }
+    
+    private static final List<TraceRing> RINGS = new CopyOnWriteArrayList<>();
+    private static final ThreadLocal<TraceRing> RING = ThreadLocal.withInitial(() -> {
+        TraceRing ring = new TraceRing(Thread.currentThread().getName());
+        RINGS.add(ring);
+        return ring;
+    });
+    
+    private static volatile long thresholdNanos = 
+        TimeUnit.MICROSECONDS.toNanos(Long.getLong("fix.trace.thresholdMicros", 0));
+    private static volatile long lastAutoDumpNanos;
+    
+    public static void start() {
+        if (!ENABLED) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StageTracerMXBean() {
+                @Override
+                public long getThresholdMicros() { return TimeUnit.NANOSECONDS.toMicros(thresholdNanos); }
+                
+                @Override
+                public void setThresholdMicros(long micros) { thresholdNanos = TimeUnit.MICROSECONDS.toNanos(micros); }
+                
+                @Override
+                public String dump() {
+                    StringWriter text = new StringWriter();
+                    dumpAll(new PrintWriter(text), RING_CAPACITY);
+                    return text.toString();
+                }
+            }, new ObjectName("fixapp:type=StageTracer"));
+        } catch (Exception e) {
+            System.err.println("Error registering stage tracer: " + e.getMessage());
+        }
+        System.out.println("✓ Stage tracing enabled (threshold " 
+            + TimeUnit.NANOSECONDS.toMicros(thresholdNanos) + " us)");
+    }
+    
+    public static LogFactory wrap(LogFactory delegate) {
+        return ENABLED ? new TracingLogFactory(delegate) : delegate;
+    }
+    
+    public static void begin() {
+        if (ENABLED) {
+            RING.get().begin(System.nanoTime());
+        }
+    }
+    
+    public static void stamp(int stage) {
+        if (ENABLED) {
+            RING.get().stamp(stage, System.nanoTime());
+        }
+    }
+    
+    public static void end() {
+        if (ENABLED) {
+            TraceRing ring = RING.get();
+            long elapsed = ring.end();
+            long threshold = thresholdNanos;
+            if (threshold > 0 && elapsed > threshold) {
+                long now = System.nanoTime();
+                if (now - lastAutoDumpNanos > AUTO_DUMP_MIN_INTERVAL_NANOS) {
+                    lastAutoDumpNanos = now;
+                    PrintWriter out = new PrintWriter(System.err);
+                    out.println("⚠ Message took " + elapsed / 1000 + " us (threshold " + threshold / 1000 + " us)");
+                    ring.dump(out, AUTO_DUMP_TRACES);
+                    out.flush();
+                }
+            }
+        }
+    }
+    
+    // Rings of other threads are read without synchronization; the in-flight slot is skipped
+    public static void dumpAll(PrintWriter out, int maxTracesPerThread) {
+        for (TraceRing ring : RINGS) {
+            ring.dump(out, maxTracesPerThread);
+        }
+        out.flush();
+    }
+}
+
+class TraceRing {
+    private static final int MASK = StageTracer.RING_CAPACITY - 1;
+    
+    private final String threadName;
+    private final long[] stamps = new long[StageTracer.RING_CAPACITY * StageTracer.STAGES];
+    private long next;
+    private int current = -1;
+    
+    TraceRing(String threadName) {
+        this.threadName = threadName;
+    }
+    
+    void begin(long now) {
+        current = (int) (next & MASK) * StageTracer.STAGES;
+        Arrays.fill(stamps, current, current + StageTracer.STAGES, 0L);
+        stamps[current + StageTracer.FROM_APP] = now;
+    }
+    
+    // Only the first occurrence of a stage counts (e.g. the ack, not later replies)
+    void stamp(int stage, long now) {
+        if (current >= 0 && stamps[current + stage] == 0) {
+            stamps[current + stage] = now;
+        }
+    }
+    
+    long end() {
+        if (current < 0) {
+            return 0;
+        }
+        long start = stamps[current];
+        long last = start;
+        for (int stage = 1; stage < StageTracer.STAGES; stage++) {
+            last = Math.max(last, stamps[current + stage]);
+        }
+        current = -1;
+        next++;
+        return last - start;
+    }
+    
+    void dump(PrintWriter out, int maxTraces) {
+        long end = next;
+        long count = Math.min(Math.min(end, StageTracer.RING_CAPACITY), maxTraces);
+        out.println("--- " + threadName + " (" + count + " of " + end + " traces, us from fromApp) ---");
+        for (long seq = end - count; seq < end; seq++) {
+            int base = (int) (seq & MASK) * StageTracer.STAGES;
+            long start = stamps[base];
+            StringBuilder line = new StringBuilder();
+            for (int stage = 1; stage < StageTracer.STAGES; stage++) {
+                long stampNanos = stamps[base + stage];
+                line.append(StageTracer.STAGE_NAMES[stage]).append('=')
+                    .append(stampNanos == 0 ? "-" : String.format("%.1f", (stampNanos - start) / 1000.0))
+                    .append(' ');
+            }
+            out.println(line.toString().trim());
+        }
+    }
+}
+
+// QuickFIX/J logs each outgoing message immediately before handing it to the socket
+class TracingLogFactory implements LogFactory {
+    private final LogFactory delegate;
+    
+    TracingLogFactory(LogFactory delegate) {
+        this.delegate = delegate;
+    }
+    
+    @Override
+    public Log create(SessionID sessionId) {
+        return new TracingLog(delegate.create(sessionId));
+    }
+    
+    // Closeable so that Session.close() still reaches a closeable delegate
+    private static final class TracingLog implements Log, Closeable {
+        private final Log log;
+        
+        TracingLog(Log log) {
+            this.log = log;
+        }
+        
+        @Override
+        public void clear() { log.clear(); }
+        
+        @Override
+        public void onIncoming(String message) { log.onIncoming(message); }
+        
+        @Override
+        public void onOutgoing(String message) {
+            StageTracer.stamp(StageTracer.SOCKET_WRITE);
+            log.onOutgoing(message);
+        }
+        
+        @Override
+        public void onEvent(String text) { log.onEvent(text); }
+        
+        @Override
+        public void onErrorEvent(String text) { log.onErrorEvent(text); }
+        
+        @Override
+        public void close() throws IOException {
+            if (log instanceof Closeable) {
+                ((Closeable) log).close();
+            }
+        }
+    }
+}
+
+// Fixed number of rotating windows; reads merge all windows, so the view always
+// spans the last (windows - 1) to (windows) rotation periods
+class RollingLatencyHistogram {
+    private final LatencyHistogram[] windows;
+    private volatile int current;
+    
+    public RollingLatencyHistogram(int windowCount) {
+        windows = new LatencyHistogram[windowCount];
+        for (int i = 0; i < windowCount; i++) {
+            windows[i] = new LatencyHistogram();
+        }
+    }
+    
+    public void record(long value) {
+        windows[current].record(value);
+    }
+    
+    // Clears the oldest window before recorders move onto it
+    public void rotate() {
+        int next = (current + 1) % windows.length;
+        windows[next].reset();
+        current = next;
+    }
+    
+    public long getCount() {
+        long count = 0;
+        for (long c : snapshot()) {
+            count += c;
+        }
+        return count;
+    }
+    
+    public long getMax() {
+        long max = 0;
+        for (LatencyHistogram window : windows) {
+            max = Math.max(max, window.getMax());
+        }
+        return max;
+    }
+    
+    public long getValueAtPercentile(double percentile) {
+        return LatencyHistogram.valueAtPercentile(snapshot(), percentile, getMax());
+    }
+    
+    private long[] snapshot() {
+        long[] counts = new long[LatencyHistogram.bucketCount()];
+        for (LatencyHistogram window : windows) {
+            window.addTo(counts);
+        }
+        return counts;
+    }
+}
+
+// ============================================================================
+// SESSION ROUND-TRIP MONITOR
+// ============================================================================
+// Every outbound TestRequest (ours or the engine's) gets a TestReqID carrying its
+// send time; the echoing Heartbeat closes the loop in fromAdmin. One probe per
+// HeartBtInt replaces the idle heartbeat the engine would have sent anyway.
+class RttMonitor {
+    public static final String SETTING_RTT_WARN_MICROS = "RttWarnMicros";
+    private static final String TEST_REQ_PREFIX = "RTT-";
+    private static final long DEFAULT_HEARTBEAT_SECONDS = 30;
+    
+    private final String role;
+    private final MetricsRegistry metrics;
+    private final Set<SessionID> loggedOn = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService scheduler;
+    private volatile long warnNanos;
+    
+    public RttMonitor(String role, MetricsRegistry metrics) {
+        this.role = role;
+        this.metrics = metrics;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, role.toLowerCase() + "-rtt-probe");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    public void start(SessionSettings settings) throws ConfigError, FieldConvertError {
+        long interval = settings.isSetting(Session.SETTING_HEARTBTINT)
+            ? settings.getLong(Session.SETTING_HEARTBTINT) : DEFAULT_HEARTBEAT_SECONDS;
+        if (settings.isSetting(SETTING_RTT_WARN_MICROS)) {
+            warnNanos = TimeUnit.MICROSECONDS.toNanos(settings.getLong(SETTING_RTT_WARN_MICROS));
+        }
+        scheduler.scheduleAtFixedRate(this::probe, interval, interval, TimeUnit.SECONDS);
+    }
+    
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+    
+    public void onLogon(SessionID sessionId) {
+        if (!JitWarmup.isWarmupSession(sessionId)) {
+            loggedOn.add(sessionId);
+        }
+    }
+    
+    public void onLogout(SessionID sessionId) {
+        loggedOn.remove(sessionId);
+    }
+    
+    public void onOutboundAdmin(quickfix.Message message, String msgType) {
+        if (MsgType.TEST_REQUEST.equals(msgType)) {
+            message.setString(TestReqID.FIELD, TEST_REQ_PREFIX + System.nanoTime());
+        }
+    }
+    
+    public void onInboundAdmin(quickfix.Message message, String msgType, SessionID sessionId) {
+        if (!MsgType.HEARTBEAT.equals(msgType) || !message.isSetField(TestReqID.FIELD)) {
+            return;
+        }
+        try {
+            String testReqId = message.getString(TestReqID.FIELD);
+            if (!testReqId.startsWith(TEST_REQ_PREFIX)) {
+                return;
+            }
+            long rtt = System.nanoTime() - Long.parseLong(testReqId.substring(TEST_REQ_PREFIX.length()));
+            SessionMetrics sessionMetrics = metrics.get(sessionId);
+            if (sessionMetrics != null) {
+                sessionMetrics.recordRtt(rtt);
+            }
+            long warn = warnNanos;
+            if (warn > 0 && rtt > warn) {
+                System.out.println("⚠ " + role + ": Round trip " + rtt / 1000 + " us on " 
+                    + sessionId + " exceeds " + warn / 1000 + " us");
+            }
+        } catch (FieldNotFound | NumberFormatException e) {
+            // Not one of our probes
+        }
+    }
+    
+    private void probe() {
+        for (SessionID sessionId : loggedOn) {
+            try {
+                Session.sendToTarget(new TestRequest(new TestReqID(TEST_REQ_PREFIX)), sessionId);
+            } catch (SessionNotFound e) {
+                loggedOn.remove(sessionId);
+            }
+        }
+    }
+}
+
+// ============================================================================
+// INDEXED MESSAGE STORE
+// ============================================================================
+// Drop-in for FileStoreFactory (same FileStorePath/FileStoreSync settings). Message
+// bodies are appended to one file and every sequence number keeps its offset and
+// length in memory, so a ResendRequest turns into a few large positional reads
+// instead of a scan of the header file. With FileStoreArchiveOnReset=Y a reset
+// keeps the old body and index as <file>.<yyyyMMdd-HHmmss> and the body is
+// compressed in the background; readArchived() replays from it later.
+class IndexedFileStoreFactory implements MessageStoreFactory {
+    public static final String SETTING_ARCHIVE_ON_RESET = "FileStoreArchiveOnReset";
+    
+    private final SessionSettings settings;
+    
+    public IndexedFileStoreFactory(SessionSettings settings) {
+        this.settings = settings;
+    }
+    
+    @Override
+    public MessageStore create(SessionID sessionId) {
+        try {
+            String path = settings.getString(sessionId, FileStoreFactory.SETTING_FILE_STORE_PATH);
+            boolean sync = settings.isSetting(sessionId, FileStoreFactory.SETTING_FILE_STORE_SYNC)
+                && settings.getBool(sessionId, FileStoreFactory.SETTING_FILE_STORE_SYNC);
+            IndexedFileStore store = new IndexedFileStore(new File(path), sessionId, sync);
+            if (settings.isSetting(sessionId, SETTING_ARCHIVE_ON_RESET) 
+                    && settings.getBool(sessionId, SETTING_ARCHIVE_ON_RESET)) {
+                LogArchiver.DEFAULT.configure(settings);
+                store.setArchiver(LogArchiver.DEFAULT);
+            }
+            return store;
+        } catch (Exception e) {
+            throw new RuntimeError(e);
+        }
+    }
+}
+
+class IndexedFileStore implements MessageStore, Closeable {
+    // Index record: seq (int), offset (long), length (int)
+    private static final int INDEX_RECORD_SIZE = 16;
+    private static final int READ_CHUNK_SIZE = 4 << 20;
+    private static final int INITIAL_CAPACITY = 1024;
+    
+    private final File bodyFile;
+    private final File indexFile;
+    private final File seqNumsFile;
+    private final File sessionFile;
+    private final boolean sync;
+    private final Charset charset = CharsetSupport.getCharsetInstance();
+    private LogArchiver archiver;
+    private final ByteBuffer indexRecord = ByteBuffer.allocate(INDEX_RECORD_SIZE);
+    private final ByteBuffer seqNumsRecord = ByteBuffer.allocate(8);
+    
+    // Indexed by sequence number; length 0 means not stored
+    private long[] offsets = new long[INITIAL_CAPACITY];
+    private int[] lengths = new int[INITIAL_CAPACITY];
+    private int maxSeq;
+    
+    private FileChannel body;
+    private FileChannel index;
+    private FileChannel seqNums;
+    private long bodyEnd;
+    private long indexEnd;
+    private int nextSenderMsgSeqNum = 1;
+    private int nextTargetMsgSeqNum = 1;
+    private Date creationTime;
+    
+    public IndexedFileStore(File directory, SessionID sessionId, boolean sync) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create message store: " + directory);
+        }
+        String prefix = FileUtil.sessionIdFileName(sessionId) + ".";
+        this.bodyFile = new File(directory, prefix + "ibody");
+        this.indexFile = new File(directory, prefix + "iindex");
+        this.seqNumsFile = new File(directory, prefix + "iseqnums");
+        this.sessionFile = new File(directory, prefix + "isession");
+        this.sync = sync;
+        open();
+    }
+    
+    private void open() throws IOException {
+        body = FileChannel.open(bodyFile.toPath(), 
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index = FileChannel.open(indexFile.toPath(), 
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        seqNums = FileChannel.open(seqNumsFile.toPath(), 
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        bodyEnd = body.size();
+        loadIndex();
+        loadSeqNums();
+        loadCreationTime();
+    }
+    
+    private void loadIndex() throws IOException {
+        Arrays.fill(lengths, 0);
+        maxSeq = 0;
+        // A torn record from a crash mid-write is dropped
+        indexEnd = index.size() - index.size() % INDEX_RECORD_SIZE;
+        ByteBuffer buffer = ByteBuffer.allocate(INDEX_RECORD_SIZE * 65536);
+        long position = 0;
+        while (position < indexEnd) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), indexEnd - position));
+            while (buffer.hasRemaining()) {
+                if (index.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("Message index truncated: " + indexFile);
+                }
+            }
+            buffer.flip();
+            while (buffer.remaining() >= INDEX_RECORD_SIZE) {
+                int seq = buffer.getInt();
+                long offset = buffer.getLong();
+                int length = buffer.getInt();
+                if (offset + length <= bodyEnd) {
+                    put(seq, offset, length);
+                }
+            }
+            position += buffer.limit();
+        }
+        index.truncate(indexEnd);
+    }
+    
+    private void loadSeqNums() throws IOException {
+        if (seqNums.size() >= 8) {
+            seqNumsRecord.clear();
+            seqNums.read(seqNumsRecord, 0);
+            seqNumsRecord.flip();
+            nextSenderMsgSeqNum = seqNumsRecord.getInt();
+            nextTargetMsgSeqNum = seqNumsRecord.getInt();
+        } else {
+            writeSeqNums();
+        }
+    }
+    
+    private void loadCreationTime() throws IOException {
+        if (sessionFile.exists() && sessionFile.length() >= 8) {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(sessionFile))) {
+                creationTime = new Date(in.readLong());
+            }
+        } else {
+            writeCreationTime(new Date());
+        }
+    }
+    
+    private void writeCreationTime(Date time) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(sessionFile))) {
+            out.writeLong(time.getTime());
+        }
+        creationTime = time;
+    }
+    
+    private void writeSeqNums() throws IOException {
+        seqNumsRecord.clear();
+        seqNumsRecord.putInt(nextSenderMsgSeqNum).putInt(nextTargetMsgSeqNum).flip();
+        seqNums.write(seqNumsRecord, 0);
+        if (sync) {
+            seqNums.force(false);
+        }
+    }
+    
+    private void put(int seq, long offset, int length) {
+        if (seq >= offsets.length) {
+            int capacity = Math.max(offsets.length * 2, seq + 1);
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+        }
+        offsets[seq] = offset;
+        lengths[seq] = length;
+        maxSeq = Math.max(maxSeq, seq);
+    }
+    
+    @Override
+    public synchronized boolean set(int sequence, String message) throws IOException {
+        byte[] bytes = message.getBytes(charset);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            body.write(buffer, bodyEnd + buffer.position());
+        }
+        indexRecord.clear();
+        indexRecord.putInt(sequence).putLong(bodyEnd).putInt(bytes.length).flip();
+        while (indexRecord.hasRemaining()) {
+            index.write(indexRecord, indexEnd + indexRecord.position());
+        }
+        if (sync) {
+            body.force(false);
+            index.force(false);
+        }
+        put(sequence, bodyEnd, bytes.length);
+        bodyEnd += bytes.length;
+        indexEnd += INDEX_RECORD_SIZE;
+        return true;
+    }
+    
+    // Stored messages in the range are normally adjacent in the body file, so each
+    // chunk read serves many of them
+    @Override
+    public synchronized void get(int startSequence, int endSequence, Collection<String> messages) 
+            throws IOException {
+        int last = Math.min(endSequence, maxSeq);
+        ByteBuffer chunk = null;
+        long chunkStart = 0;
+        for (int seq = Math.max(1, startSequence); seq <= last; seq++) {
+            int length = lengths[seq];
+            if (length == 0) {
+                continue;
+            }
+            long offset = offsets[seq];
+            if (chunk == null || offset < chunkStart || offset + length > chunkStart + chunk.limit()) {
+                int size = (int) Math.min(Math.max(READ_CHUNK_SIZE, length), bodyEnd - offset);
+                if (chunk == null || chunk.capacity() < size) {
+                    chunk = ByteBuffer.allocate(Math.max(size, READ_CHUNK_SIZE));
+                }
+                chunk.clear();
+                chunk.limit(size);
+                while (chunk.hasRemaining()) {
+                    if (body.read(chunk, offset + chunk.position()) < 0) {
+                        throw new EOFException("Message store truncated: " + bodyFile);
+                    }
+                }
+                chunkStart = offset;
+            }
+            messages.add(new String(chunk.array(), (int) (offset - chunkStart), length, charset));
+        }
+    }
+    
+    @Override
+    public synchronized int getNextSenderMsgSeqNum() { return nextSenderMsgSeqNum; }
+    
+    @Override
+    public synchronized int getNextTargetMsgSeqNum() { return nextTargetMsgSeqNum; }
+    
+    @Override
+    public synchronized void setNextSenderMsgSeqNum(int next) throws IOException {
+        nextSenderMsgSeqNum = next;
+        writeSeqNums();
+    }
+    
+    @Override
+    public synchronized void setNextTargetMsgSeqNum(int next) throws IOException {
+        nextTargetMsgSeqNum = next;
+        writeSeqNums();
+    }
+    
+    @Override
+    public synchronized void incrNextSenderMsgSeqNum() throws IOException {
+        setNextSenderMsgSeqNum(nextSenderMsgSeqNum + 1);
+    }
+    
+    @Override
+    public synchronized void incrNextTargetMsgSeqNum() throws IOException {
+        setNextTargetMsgSeqNum(nextTargetMsgSeqNum + 1);
+    }
+    
+    @Override
+    public synchronized Date getCreationTime() { return creationTime; }
+    
+    // Null keeps the default of discarding stored messages on reset
+    void setArchiver(LogArchiver archiver) { this.archiver = archiver; }
+    
+    @Override
+    public synchronized void reset() throws IOException {
+        if (archiver != null && bodyEnd > 0) {
+            archiveSegment();
+        }
+        body.truncate(0);
+        index.truncate(0);
+        bodyEnd = 0;
+        indexEnd = 0;
+        offsets = new long[INITIAL_CAPACITY];
+        lengths = new int[INITIAL_CAPACITY];
+        maxSeq = 0;
+        nextSenderMsgSeqNum = 1;
+        nextTargetMsgSeqNum = 1;
+        writeSeqNums();
+        writeCreationTime(new Date());
+    }
+    
+    // Moves the body and index aside and reopens empty files in their place
+    private void archiveSegment() throws IOException {
+        body.force(false);
+        index.force(false);
+        body.close();
+        index.close();
+        String stamp = RollingFileLogFactory.SEGMENT_STAMP.format(Instant.now());
+        File archivedBody = new File(bodyFile.getPath() + "." + stamp);
+        File archivedIndex = new File(indexFile.getPath() + "." + stamp);
+        for (int n = 1; archivedIndex.exists(); n++) {
+            archivedBody = new File(bodyFile.getPath() + "." + stamp + "-" + n);
+            archivedIndex = new File(indexFile.getPath() + "." + stamp + "-" + n);
+        }
+        Files.move(bodyFile.toPath(), archivedBody.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        Files.move(indexFile.toPath(), archivedIndex.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        body = FileChannel.open(bodyFile.toPath(), 
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index = FileChannel.open(indexFile.toPath(), 
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        archiver.submit(archivedBody, false);
+    }
+    
+    // Replays messages from a body/index pair moved aside by a reset, whether the
+    // body is still raw or already compressed (body.gz); only the blocks holding
+    // the requested sequence numbers are inflated
+    static void readArchived(File archivedBody, File archivedIndex, int startSequence, int endSequence,
+            Collection<String> messages) throws IOException {
+        TreeMap<Integer, long[]> records = new TreeMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(archivedIndex)))) {
+            for (long n = archivedIndex.length() / INDEX_RECORD_SIZE; n > 0; n--) {
+                int seq = in.readInt();
+                long offset = in.readLong();
+                int length = in.readInt();
+                if (seq >= startSequence && seq <= endSequence) {
+                    records.put(seq, new long[] { offset, length });
+                }
+            }
+        }
+        if (records.isEmpty()) {
+            return;
+        }
+        File compressed = LogArchiver.archiveOf(archivedBody);
+        BlockGzipFile archive = !archivedBody.exists() && BlockGzipFile.isArchive(compressed)
+            ? BlockGzipFile.open(compressed) : null;
+        Charset charset = CharsetSupport.getCharsetInstance();
+        // Windows of READ_CHUNK_SIZE as in get(), so a range of any size is replayed
+        try (RandomAccessFile raw = archive == null ? new RandomAccessFile(archivedBody, "r") : null) {
+            long bodyEnd = archive != null ? archive.getUncompressedSize() : raw.length();
+            byte[] chunk = null;
+            long chunkStart = 0;
+            for (long[] record : records.values()) {
+                long offset = record[0];
+                int length = (int) record[1];
+                if (offset + length > bodyEnd) {
+                    throw new EOFException("Archived message store truncated: " + archivedBody);
+                }
+                if (chunk == null || offset < chunkStart || offset + length > chunkStart + chunk.length) {
+                    int size = (int) Math.min(Math.max(READ_CHUNK_SIZE, length), bodyEnd - offset);
+                    if (archive != null) {
+                        chunk = archive.read(offset, size);
+                    } else {
+                        chunk = new byte[size];
+                        raw.seek(offset);
+                        raw.readFully(chunk);
+                    }
+                    chunkStart = offset;
+                }
+                messages.add(new String(chunk, (int) (offset - chunkStart), length, charset));
+            }
+        }
+    }
+    
+    @Override
+    public synchronized void refresh() throws IOException {
+        close();
+        open();
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        body.close();
+        index.close();
+        seqNums.close();
+    }
+}
+
+// ============================================================================
+// HEADLESS SCENARIO RUNNER
+// ============================================================================
+// Drives the client from a properties file instead of the Scanner menus, paced on
+// nanoTime, and writes a JSON results file. Every wait is on a real signal: the
+// acceptor has bound when start() returns, the client on its logon latch, and the
+// drain phase on outstanding acknowledgements.
+//
+//   name=mixed-limit          durationSeconds=30     ratePerSecond=200
+//   symbols=AAPL,MSFT,GOOGL   mix.new=70  mix.cancel=15  mix.replace=10  mix.status=5
+//   marketPercent=10          quantity.min=100       quantity.max=1000
+//   price.min=100             price.max=200          seed=42
+//   mode=both|client|invm     drainSeconds=10        logonTimeoutSeconds=60
+//   quiet=true                results=results/mixed-limit.json
+class ScenarioRunner implements FIXClientApplication.ExecutionListener {
+    private final String name;
+    private final long durationNanos;
+    private final double ratePerSecond;
+    private final String[] symbols;
+    private final int[] mix;
+    private final int marketPercent;
+    private final int minQty;
+    private final int maxQty;
+    private final double minPrice;
+    private final double maxPrice;
+    private final Random random;
+    
+    // Acked, still-working orders the driver may cancel, replace or query
+    private final List<String> live = new ArrayList<>();
+    
+    // Requests sent whose future has not completed yet; drain() waits on drained
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Object drained = new Object();
+    
+    private static final String[] ACTIONS = {"new", "cancel", "replace", "status"};
+    private static final int[] DEFAULT_MIX = {70, 15, 10, 5};
+    private static final int NEW = 0;
+    private static final int CANCEL = 1;
+    private static final int REPLACE = 2;
+    private static final int STATUS = 3;
+    private final LongAdder[] sent = newCounters();
+    private final LongAdder[] acked = newCounters();
+    private final LatencyHistogram[] ackLatency = {
+        new LatencyHistogram(), new LatencyHistogram(), new LatencyHistogram(), new LatencyHistogram()
+    };
+    private final LongAdder partialFills = new LongAdder();
+    private final LongAdder fills = new LongAdder();
+    private final LongAdder rejects = new LongAdder();
+    private final LongAdder cancelRejects = new LongAdder();
+    private final LongAdder sendFailures = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    
+    ScenarioRunner(Properties scenario) {
+        this.name = scenario.getProperty("name", "mixed");
+        this.durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(scenario.getProperty("durationSeconds", "30")));
+        this.ratePerSecond = Double.parseDouble(scenario.getProperty("ratePerSecond", "100"));
+        this.symbols = scenario.getProperty("symbols", "AAPL,MSFT,GOOGL").split("\\s*,\\s*");
+        this.mix = new int[ACTIONS.length];
+        for (int i = 0; i < ACTIONS.length; i++) {
+            mix[i] = Integer.parseInt(scenario.getProperty("mix." + ACTIONS[i], String.valueOf(DEFAULT_MIX[i])));
+        }
+        this.marketPercent = Integer.parseInt(scenario.getProperty("marketPercent", "0"));
+        this.minQty = Integer.parseInt(scenario.getProperty("quantity.min", "100"));
+        this.maxQty = Integer.parseInt(scenario.getProperty("quantity.max", "1000"));
+        this.minPrice = Double.parseDouble(scenario.getProperty("price.min", "100"));
+        this.maxPrice = Double.parseDouble(scenario.getProperty("price.max", "200"));
+        this.random = new Random(Long.parseLong(scenario.getProperty("seed", "42")));
+        if (ratePerSecond <= 0 || symbols.length == 0 || Arrays.stream(mix).sum() <= 0) {
+            throw new IllegalArgumentException("Scenario needs a positive rate, symbols and an order mix");
+        }
+    }
+    
+    private static LongAdder[] newCounters() {
+        LongAdder[] counters = new LongAdder[ACTIONS.length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+    
+    public static void run(File file) throws Exception {
+        Properties scenario = new Properties();
+        try (Reader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            scenario.load(in);
+        }
+        ScenarioRunner runner = new ScenarioRunner(scenario);
+        String mode = scenario.getProperty("mode", "both").toLowerCase();
+        boolean quiet = Boolean.parseBoolean(scenario.getProperty("quiet", "true"));
+        long logonTimeout = Long.parseLong(scenario.getProperty("logonTimeoutSeconds", "60"));
+        long drainNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(scenario.getProperty("drainSeconds", "10")));
+        File results = new File(scenario.getProperty("results", "results/" + runner.name + ".json"));
+        
+        SocketAcceptor acceptor = null;
+        SocketInitiator initiator = null;
+        InVmConnector connector = null;
+        FIXServerApplication serverApp = null;
+        FIXClientApplication clientApp = null;
+        try {
+            FIXProtocolApp.createClientConfig();
+            SessionSettings clientSettings = new SessionSettings("client.cfg");
+            SessionSettings serverSettings = null;
+            if (!"client".equals(mode)) {
+                FIXProtocolApp.createServerConfig();
+                serverSettings = new SessionSettings("server.cfg");
+                serverApp = FIXProtocolApp.createServerApplication(serverSettings);
+            }
+            clientApp = FIXProtocolApp.createClientApplication(clientSettings);
+            clientApp.addExecutionListener(runner);
+            // Only per-message output is silenced; these progress lines still print
+            clientApp.setQuiet(quiet);
+            if (serverApp != null) {
+                serverApp.setQuiet(quiet);
+            }
+            
+            if ("invm".equals(mode)) {
+                connector = FIXProtocolApp.createInVmConnector(serverApp, serverSettings, clientApp, clientSettings);
+                connector.start();
+                System.out.println("✓ Scenario running over the in-VM transport");
+            } else {
+                if (serverApp != null) {
+                    acceptor = new SocketAcceptor(serverApp, new IndexedFileStoreFactory(serverSettings),
+                        serverSettings, StageTracer.wrap(new RollingFileLogFactory(serverSettings)), 
+                        new DefaultMessageFactory());
+                    acceptor.start();
+                    System.out.println("✓ Scenario server listening");
+                }
+                initiator = new SocketInitiator(clientApp, new IndexedFileStoreFactory(clientSettings),
+                    clientSettings, new RollingFileLogFactory(clientSettings), new DefaultMessageFactory());
+                initiator.start();
+            }
+            if (!clientApp.waitForLogon(logonTimeout, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("No logon within " + logonTimeout + " seconds");
+            }
+            System.out.println("✓ Scenario '" + runner.name + "' running for " 
+                + TimeUnit.NANOSECONDS.toSeconds(runner.durationNanos) + "s at " 
+                + runner.ratePerSecond + " msg/s");
+            
+            long elapsed = runner.drive(clientApp);
+            runner.drain(drainNanos);
+            runner.writeResults(results, elapsed);
+            System.out.println("✓ Scenario complete, results in " + results.getPath());
+        } finally {
+            if (connector != null) {
+                connector.stop();
+            }
+            if (initiator != null) {
+                initiator.stop();
+            }
+            if (clientApp != null) {
+                clientApp.shutdown();
+            }
+            if (acceptor != null) {
+                acceptor.stop();
+            }
+            if (serverApp != null) {
+                serverApp.shutdown();
+            }
+        }
+    }
+    
+    // Fixed-rate schedule: a late send does not push back the ones after it
+    long drive(FIXClientApplication client) {
+        long intervalNanos = (long) (1e9 / ratePerSecond);
+        long start = System.nanoTime();
+        long end = start + durationNanos;
+        long next = start;
+        int mixTotal = Arrays.stream(mix).sum();
+        
+        while (next < end) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            int pick = random.nextInt(mixTotal);
+            int action = 0;
+            while (pick >= mix[action]) {
+                pick -= mix[action++];
+            }
+            String target = action == 0 ? null : pickLive();
+            if (target == null) {
+                action = 0;
+            }
+            dispatch(client, action, target);
+            next += intervalNanos;
+        }
+        return System.nanoTime() - start;
+    }
+    
+    private void dispatch(FIXClientApplication client, int action, String target) {
+        OrderFuture future;
+        switch (action) {
+            case CANCEL:
+                removeLive(target);
+                future = client.sendOrderCancelRequest(target);
+                break;
+            case REPLACE:
+                // The replacement leaves the working set; only its ack is measured
+                removeLive(target);
+                int qty = minQty + random.nextInt(maxQty - minQty + 1);
+                future = client.sendOrderCancelReplaceRequest(target, qty, randomPrice());
+                break;
+            case STATUS:
+                future = client.sendOrderStatusRequest(target);
+                break;
+            default:
+                String symbol = symbols[random.nextInt(symbols.length)];
+                char side = random.nextBoolean() ? Side.BUY : Side.SELL;
+                int quantity = minQty + random.nextInt(maxQty - minQty + 1);
+                boolean market = random.nextInt(100) < marketPercent;
+                future = client.sendNewOrderSingle(symbol, side, quantity, 
+                    market ? OrdType.MARKET : OrdType.LIMIT, market ? 0 : randomPrice(), TimeInForce.DAY);
+                break;
+        }
+        // Send failures complete before the call returns; timeouts come much later
+        if (future.isCompletedExceptionally()) {
+            sendFailures.increment();
+            return;
+        }
+        sent[action].increment();
+        inFlight.incrementAndGet();
+        future.whenComplete((response, error) -> {
+            if (response != null) {
+                onResponse(action, future, response);
+            } else {
+                timeouts.increment();
+            }
+            if (inFlight.decrementAndGet() == 0) {
+                synchronized (drained) {
+                    drained.notifyAll();
+                }
+            }
+        });
+    }
+    
+    private void onResponse(int action, OrderFuture future, OrderResponse response) {
+        // Latency is taken from the receive stamp, not from when this callback runs
+        acked[action].increment();
+        ackLatency[action].record(response.getReceivedNanos() - future.getSentNanos());
+        if (response.isCancelReject()) {
+            cancelRejects.increment();
+        } else if (response.isRejected()) {
+            rejects.increment();
+        } else if (action == NEW && response.getExecType() == ExecType.NEW) {
+            addLive(response.getClOrdID());
+        }
+    }
+    
+    private double randomPrice() {
+        return Math.round((minPrice + random.nextDouble() * (maxPrice - minPrice)) * 100) / 100.0;
+    }
+    
+    private synchronized String pickLive() {
+        return live.isEmpty() ? null : live.get(random.nextInt(live.size()));
+    }
+    
+    private synchronized void addLive(String clOrdID) {
+        live.add(clOrdID);
+    }
+    
+    private synchronized void removeLive(String clOrdID) {
+        int i = live.indexOf(clOrdID);
+        if (i >= 0) {
+            // Order in the list does not matter, so swap-remove
+            live.set(i, live.get(live.size() - 1));
+            live.remove(live.size() - 1);
+        }
+    }
+    
+    // Fills arrive after the acks the futures cover, so they are counted here
+    @Override
+    public void onExecutionReport(String clOrdID, char execType, char ordStatus) {
+        if (execType == ExecType.PARTIAL_FILL) {
+            partialFills.increment();
+        } else if (execType == ExecType.FILL) {
+            fills.increment();
+            removeLive(clOrdID);
+        }
+    }
+    
+    void drain(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        synchronized (drained) {
+            long remaining;
+            while (outstanding() > 0 && (remaining = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(drained, remaining);
+            }
+        }
+    }
+    
+    private int outstanding() {
+        return inFlight.get();
+    }
+    
+    void writeResults(File file, long elapsedNanos) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create results directory: " + dir);
+        }
+        long totalSent = 0;
+        for (LongAdder counter : sent) {
+            totalSent += counter.sum();
+        }
+        double seconds = elapsedNanos / 1e9;
+        
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"scenario\": \"").append(name.replace("\"", "\\\"")).append("\",\n");
+        json.append("  \"finishedAt\": \"").append(java.time.Instant.now()).append("\",\n");
+        json.append("  \"durationSeconds\": ").append(seconds).append(",\n");
+        json.append("  \"targetRate\": ").append(ratePerSecond).append(",\n");
+        json.append("  \"achievedRate\": ").append(totalSent / seconds).append(",\n");
+        json.append("  \"sendFailures\": ").append(sendFailures.sum()).append(",\n");
+        json.append("  \"partialFills\": ").append(partialFills.sum()).append(",\n");
+        json.append("  \"fills\": ").append(fills.sum()).append(",\n");
+        json.append("  \"rejects\": ").append(rejects.sum()).append(",\n");
+        json.append("  \"cancelRejects\": ").append(cancelRejects.sum()).append(",\n");
+        json.append("  \"timeouts\": ").append(timeouts.sum()).append(",\n");
+        json.append("  \"unacknowledged\": ").append(outstanding()).append(",\n");
+        json.append("  \"requests\": {\n");
+        for (int i = 0; i < ACTIONS.length; i++) {
+            LatencyHistogram latency = ackLatency[i];
+            json.append("    \"").append(ACTIONS[i]).append("\": {")
+                .append("\"sent\": ").append(sent[i].sum())
+                .append(", \"acked\": ").append(acked[i].sum())
+                .append(", \"ackP50Micros\": ").append(latency.getValueAtPercentile(50) / 1e3)
+                .append(", \"ackP99Micros\": ").append(latency.getValueAtPercentile(99) / 1e3)
+                .append(", \"ackMaxMicros\": ").append(latency.getMax() / 1e3)
+                .append(i < ACTIONS.length - 1 ? "},\n" : "}\n");
+        }
+        json.append("  }\n");
+        json.append("}\n");
+        
+        File tmp = new File(file.getPath() + ".tmp");
+        Files.write(tmp.toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
+
+// ============================================================================
+// IN-VM LOOPBACK TRANSPORT
+// ============================================================================
+// Connects initiator and acceptor Sessions in the same JVM through a pair of byte
+// rings instead of a localhost socket. Sessions are created by the usual factories
+// and run the full QuickFIX/J protocol (logon, sequence numbers, heartbeats,
+// resends); only the transport underneath them changes.
+class InVmConnector {
+    public static final String SETTING_RING_CAPACITY = "InVmRingCapacity";
+    public static final int DEFAULT_RING_CAPACITY = 1 << 20;
+    
+    // Session.next() drives heartbeats, logon and timeouts, as the socket timer does
+    private static final long TIMER_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int IDLE_SPINS = 200;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long SEND_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long DEFAULT_RECONNECT_SECONDS = 30;
+    
+    private final List<Pair> pairs = new ArrayList<>();
+    private final List<Thread> pumps = new ArrayList<>();
+    private final int ringCapacity;
+    private final Charset charset = CharsetSupport.getCharsetInstance();
+    private volatile boolean running;
+    private volatile boolean timersDue;
+    
+    public InVmConnector(SessionFactory acceptorFactory, SessionSettings acceptorSettings,
+            SessionFactory initiatorFactory, SessionSettings initiatorSettings) 
+            throws ConfigError, FieldConvertError {
+        this.ringCapacity = initiatorSettings.isSetting(SETTING_RING_CAPACITY)
+            ? (int) initiatorSettings.getLong(SETTING_RING_CAPACITY) : DEFAULT_RING_CAPACITY;
+        Map<SessionID, Session> acceptors = createSessions(acceptorFactory, acceptorSettings);
+        for (Session initiator : createSessions(initiatorFactory, initiatorSettings).values()) {
+            SessionID id = initiator.getSessionID();
+            Session acceptor = acceptors.get(
+                new SessionID(id.getBeginString(), id.getTargetCompID(), id.getSenderCompID()));
+            if (acceptor == null) {
+                throw new ConfigError("No acceptor session matches initiator " + id);
+            }
+            long reconnectSeconds = initiatorSettings.isSetting(id, Initiator.SETTING_RECONNECT_INTERVAL)
+                ? initiatorSettings.getLong(id, Initiator.SETTING_RECONNECT_INTERVAL) 
+                : DEFAULT_RECONNECT_SECONDS;
+            pairs.add(new Pair(acceptor, initiator, TimeUnit.SECONDS.toNanos(reconnectSeconds)));
+        }
+    }
+    
+    private static Map<SessionID, Session> createSessions(SessionFactory factory, SessionSettings settings) 
+            throws ConfigError {
+        Map<SessionID, Session> sessions = new LinkedHashMap<>();
+        Iterator<SessionID> ids = settings.sectionIterator();
+        while (ids.hasNext()) {
+            SessionID id = ids.next();
+            sessions.put(id, factory.create(id, settings));
+        }
+        return sessions;
+    }
+    
+    public void start() {
+        running = true;
+        for (Pair pair : pairs) {
+            startPump(pair, true);
+            startPump(pair, false);
+        }
+    }
+    
+    private void startPump(Pair pair, boolean acceptorSide) {
+        Session session = acceptorSide ? pair.acceptor : pair.initiator;
+        Thread thread = new Thread(() -> pump(pair, acceptorSide), 
+            "invm-" + (acceptorSide ? "acceptor-" : "initiator-") + session.getSessionID());
+        thread.setDaemon(true);
+        pumps.add(thread);
+        thread.start();
+    }
+    
+    // Log out initiators, give the Logout exchange up to LogoutTimeout, then tear down
+    public void stop() throws IOException, InterruptedException {
+        long deadline = System.nanoTime();
+        for (Pair pair : pairs) {
+            if (pair.initiator.isLoggedOn()) {
+                pair.initiator.logout("In-VM connector stopping");
+            }
+            deadline = Math.max(deadline, System.nanoTime() 
+                + TimeUnit.SECONDS.toNanos(pair.initiator.getLogoutTimeout()));
+        }
+        timersDue = true;
+        while (System.nanoTime() < deadline && anyLoggedOn()) {
+            Thread.sleep(10);
+        }
+        running = false;
+        for (Thread pump : pumps) {
+            pump.join();
+        }
+        for (Pair pair : pairs) {
+            for (Session session : new Session[] {pair.initiator, pair.acceptor}) {
+                if (session.hasResponder()) {
+                    session.disconnect("In-VM connector stopped", false);
+                }
+                session.close();
+            }
+        }
+    }
+    
+    private boolean anyLoggedOn() {
+        for (Pair pair : pairs) {
+            if (pair.initiator.isLoggedOn() || pair.acceptor.isLoggedOn()) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    // Each side's pump is the only consumer of its inbound ring and the only caller
+    // of next() on its session, mirroring one socket reader thread per session
+    private void pump(Pair pair, boolean acceptorSide) {
+        Session session = acceptorSide ? pair.acceptor : pair.initiator;
+        long nextTimer = System.nanoTime();
+        int idle = 0;
+        while (running) {
+            Link link = pair.link;
+            byte[] data = link == null ? null 
+                : (acceptorSide ? link.toAcceptor : link.toInitiator).poll();
+            if (data != null) {
+                deliver(session, new String(data, charset));
+                idle = 0;
+            }
+            
+            long now = System.nanoTime();
+            if (now >= nextTimer || timersDue) {
+                nextTimer = now + TIMER_INTERVAL_NANOS;
+                try {
+                    if (link != null && link.closed && session.hasResponder()) {
+                        session.disconnect("In-VM counterparty disconnected", false);
+                    }
+                    if (!acceptorSide) {
+                        pair.connectIfDue(now);
+                    }
+                    session.next();
+                } catch (IOException e) {
+                    session.getLog().onErrorEvent("In-VM timer error: " + e.getMessage());
+                }
+            }
+            
+            if (data == null) {
+                if (++idle > IDLE_SPINS) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                } else {
+                    Thread.onSpinWait();
+                }
+            }
+        }
+    }
+    
+    private static void deliver(Session session, String raw) {
+        if (!session.hasResponder()) {
+            return;
+        }
+        try {
+            session.next(MessageUtils.parse(session, raw));
+        } catch (InvalidMessage e) {
+            session.getLog().onErrorEvent("Invalid in-VM message: " + e.getMessage() + ": " + raw);
+        } catch (Exception e) {
+            session.getLog().onErrorEvent("Error processing in-VM message: " + e + ": " + raw);
+        }
+    }
+    
+    private final class Pair {
+        final Session acceptor;
+        final Session initiator;
+        final long reconnectNanos;
+        volatile Link link;
+        long lastConnectNanos = Long.MIN_VALUE / 2;
+        
+        Pair(Session acceptor, Session initiator, long reconnectNanos) {
+            this.acceptor = acceptor;
+            this.initiator = initiator;
+            this.reconnectNanos = reconnectNanos;
+        }
+        
+        // Called from the initiator pump only; waits for the acceptor side to drop the old link
+        void connectIfDue(long now) {
+            Link current = link;
+            if ((current != null && !current.closed) || initiator.hasResponder() || acceptor.hasResponder()
+                    || !initiator.isEnabled() || now - lastConnectNanos < reconnectNanos) {
+                return;
+            }
+            lastConnectNanos = now;
+            Link next = new Link(ringCapacity);
+            acceptor.setResponder(new LinkResponder(next, next.toInitiator, "in-vm:" + initiator.getSessionID()));
+            initiator.setResponder(new LinkResponder(next, next.toAcceptor, "in-vm:" + acceptor.getSessionID()));
+            link = next;
+        }
+    }
+    
+    // One connection: a ring per direction, closed by either side's disconnect
+    private static final class Link {
+        final ByteRing toAcceptor;
+        final ByteRing toInitiator;
+        volatile boolean closed;
+        
+        Link(int capacity) {
+            toAcceptor = new ByteRing(capacity);
+            toInitiator = new ByteRing(capacity);
+        }
+    }
+    
+    private final class LinkResponder implements Responder {
+        private final Link link;
+        private final ByteRing out;
+        private final String remoteAddress;
+        
+        LinkResponder(Link link, ByteRing out, String remoteAddress) {
+            this.link = link;
+            this.out = out;
+            this.remoteAddress = remoteAddress;
+        }
+        
+        // Resends bypass the Session's sequence-number lock, so sends are serialized
+        // here to keep the ring single-producer. A full ring applies backpressure for
+        // up to SEND_TIMEOUT_NANOS; after that the message stays in the store for resend.
+        @Override
+        public synchronized boolean send(String data) {
+            byte[] bytes = data.getBytes(charset);
+            long deadline = 0;
+            while (!link.closed) {
+                if (out.offer(bytes)) {
+                    return true;
+                }
+                long now = System.nanoTime();
+                if (deadline == 0) {
+                    deadline = now + SEND_TIMEOUT_NANOS;
+                } else if (now > deadline) {
+                    return false;
+                }
+                Thread.onSpinWait();
+            }
+            return false;
+        }
+        
+        @Override
+        public void disconnect() {
+            link.closed = true;
+        }
+        
+        @Override
+        public String getRemoteAddress() { return remoteAddress; }
+    }
+}
+
+// Single-producer/single-consumer ring of length-prefixed byte records. Positions
+// only grow; the producer caches the consumer position to avoid reading it per send.
+class ByteRing {
+    private static final int HEADER_SIZE = 4;
+    
+    private final byte[] buffer;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private long headCache;
+    
+    public ByteRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 64) - 1) << 1;
+        this.buffer = new byte[size];
+        this.mask = size - 1;
+    }
+    
+    public int capacity() { return buffer.length; }
+    
+    public boolean offer(byte[] data) {
+        int required = HEADER_SIZE + data.length;
+        if (required > buffer.length) {
+            throw new IllegalArgumentException("Record of " + data.length + " bytes exceeds ring capacity");
+        }
+        long position = tail.get();
+        if (position + required - headCache > buffer.length) {
+            headCache = head.get();
+            if (position + required - headCache > buffer.length) {
+                return false;
+            }
+        }
+        int length = data.length;
+        writeLength(position, length);
+        copyIn(position + HEADER_SIZE, data, length);
+        tail.lazySet(position + required);
+        return true;
+    }
+    
+    public byte[] poll() {
+        long position = head.get();
+        if (position == tail.get()) {
+            return null;
+        }
+        int length = readLength(position);
+        byte[] data = new byte[length];
+        copyOut(position + HEADER_SIZE, data, length);
+        head.lazySet(position + HEADER_SIZE + length);
+        return data;
+    }
+    
+    // Big-endian length prefix, a byte at a time so it can straddle the wrap
+    private void writeLength(long position, int length) {
+        for (int i = 0; i < HEADER_SIZE; i++) {
+            buffer[(int) ((position + i) & mask)] = (byte) (length >>> (24 - 8 * i));
+        }
+    }
+    
+    private int readLength(long position) {
+        int length = 0;
+        for (int i = 0; i < HEADER_SIZE; i++) {
+            length = length << 8 | buffer[(int) ((position + i) & mask)] & 0xFF;
+        }
+        return length;
+    }
+    
+    private void copyIn(long position, byte[] src, int length) {
+        int offset = (int) (position & mask);
+        int first = Math.min(length, buffer.length - offset);
+        System.arraycopy(src, 0, buffer, offset, first);
+        System.arraycopy(src, first, buffer, 0, length - first);
+    }
+    
+    private void copyOut(long position, byte[] dst, int length) {
+        int offset = (int) (position & mask);
+        int first = Math.min(length, buffer.length - offset);
+        System.arraycopy(buffer, offset, dst, 0, first);
+        System.arraycopy(buffer, 0, dst, first, length - first);
+    }
+}
+
+// ============================================================================
+// ORDER HISTORY RING
+// ============================================================================
+
+// Fixed-capacity record of order events, written by the session thread and read by
+// the menu thread. Entries are primitives and are only formatted when read. Before
+// the producer can wrap onto slots that were never spilled it appends the oldest
+// half of the ring to the spill file (22 bytes per record), or drops it if unset.
+// Spilled records carry wall-clock millis, so runs append to one file without a
+// per-run header.
+class OrderHistoryRing implements Closeable {
+    static final int RECORD_SIZE = 22;
+    static final int DEFAULT_CAPACITY = 4096;
+    
+    // Each entry carries what the history shows, so no table of orders has to outlive it.
+    // Symbol IDs on disk decode against the same SymbolFile.
+    public interface Visitor {
+        void visit(long epochMillis, int orderIndex, int symbolId, char side, int quantity, byte status);
+    }
+    
+    private final long[] timestamps;
+    private final int[] orderIndexes;
+    private final int[] symbolIds;
+    private final byte[] sides;
+    private final int[] quantities;
+    private final byte[] statuses;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long spilled;
+    
+    private final File spillFile;
+    private DataOutputStream spillOut;
+    private boolean spillFailed;
+    
+    // Maps nanoTime stamps back to wall-clock time when formatting
+    private final long baseMillis = System.currentTimeMillis();
+    private final long baseNanos = System.nanoTime();
+    
+    public OrderHistoryRing(int capacity, File spillFile) {
+        int size = Integer.highestOneBit(Math.max(capacity, 4) - 1) << 1;
+        this.timestamps = new long[size];
+        this.orderIndexes = new int[size];
+        this.symbolIds = new int[size];
+        this.sides = new byte[size];
+        this.quantities = new int[size];
+        this.statuses = new byte[size];
+        this.mask = size - 1;
+        this.spillFile = spillFile;
+    }
+    
+    public int capacity() { return timestamps.length; }
+    public long size() { return tail.get(); }
+    public long getSpilledCount() { return spilled; }
+    public File getSpillFile() { return spillFile; }
+    
+    // Single producer only
+    public void record(int orderIndex, int symbolId, char side, int quantity, byte status) {
+        long seq = tail.get();
+        // One slot early: readers treat the slot being overwritten as gone
+        if (seq - spilled == timestamps.length - 1) {
+            spillOldestHalf();
+        }
+        int slot = (int) seq & mask;
+        timestamps[slot] = System.nanoTime();
+        orderIndexes[slot] = orderIndex;
+        symbolIds[slot] = symbolId;
+        sides[slot] = (byte) side;
+        quantities[slot] = quantity;
+        statuses[slot] = status;
+        tail.lazySet(seq + 1);
+    }
+    
+    private void spillOldestHalf() {
+        int count = timestamps.length / 2;
+        if (spillFile != null && !spillFailed) {
+            try {
+                if (spillOut == null) {
+                    File parent = spillFile.getAbsoluteFile().getParentFile();
+                    if (parent != null) {
+                        parent.mkdirs();
+                    }
+                    spillOut = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(spillFile, true), 64 * 1024));
+                }
+                for (long seq = spilled; seq < spilled + count; seq++) {
+                    int slot = (int) seq & mask;
+                    spillOut.writeLong(baseMillis + (timestamps[slot] - baseNanos) / 1_000_000);
+                    spillOut.writeInt(orderIndexes[slot]);
+                    spillOut.writeInt(symbolIds[slot]);
+                    spillOut.writeByte(sides[slot]);
+                    spillOut.writeInt(quantities[slot]);
+                    spillOut.writeByte(statuses[slot]);
+                }
+                spillOut.flush();
+            } catch (IOException e) {
+                spillFailed = true;
+                System.err.println("⚠ Order history spill failed, dropping old entries: " + e.getMessage());
+            }
+        }
+        spilled += count;
+    }
+    
+    // Same thread as record(); a later spill reopens the file for append
+    @Override
+    public void close() {
+        if (spillOut != null) {
+            try {
+                spillOut.close();
+            } catch (IOException e) {
+                System.err.println("⚠ Order history spill close failed: " + e.getMessage());
+            }
+            spillOut = null;
+        }
+    }
+    
+    // Visits the entries still held in memory, oldest first, and returns the sequence
+    // of the first one visited. Slots the producer overwrote mid-copy are skipped.
+    public long forEachRecent(Visitor visitor) {
+        long end = tail.get();
+        long start = Math.max(0, end - timestamps.length);
+        int count = (int) (end - start);
+        long[] nanos = new long[count];
+        int[] indexes = new int[count];
+        int[] symbols = new int[count];
+        byte[] sideCodes = new byte[count];
+        int[] qtys = new int[count];
+        byte[] codes = new byte[count];
+        for (int i = 0; i < count; i++) {
+            int slot = (int) (start + i) & mask;
+            nanos[i] = timestamps[slot];
+            indexes[i] = orderIndexes[slot];
+            symbols[i] = symbolIds[slot];
+            sideCodes[i] = sides[slot];
+            qtys[i] = quantities[slot];
+            codes[i] = statuses[slot];
+        }
+        long firstValid = Math.max(start, tail.get() - timestamps.length + 1);
+        for (long seq = firstValid; seq < end; seq++) {
+            int i = (int) (seq - start);
+            visitor.visit(baseMillis + (nanos[i] - baseNanos) / 1_000_000, indexes[i], 
+                symbols[i], (char) sideCodes[i], qtys[i], codes[i]);
+        }
+        return firstValid;
+    }
+    
+    public static long readSpillFile(File file, Visitor visitor) throws IOException {
+        long count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            // A record cut short by a crash is ignored
+            long records = file.length() / RECORD_SIZE;
+            for (; count < records; count++) {
+                long epochMillis = in.readLong();
+                int orderIndex = in.readInt();
+                int symbolId = in.readInt();
+                char side = (char) in.readByte();
+                int quantity = in.readInt();
+                byte status = in.readByte();
+                visitor.visit(epochMillis, orderIndex, symbolId, side, quantity, status);
+            }
+        }
+        return count;
+    }
+}
+
+// ============================================================================
+// CANCEL ON DISCONNECT
+// ============================================================================
+
+// Cancels a session's open orders when it logs out and/or drops. Open orders are
+// indexed per session, so the cancel detaches one set and walks only that session's
+// orders, on a thread of its own so other sessions never wait on it. A session that
+// logs back on within the grace period keeps its orders.
+class CancelOnDisconnect {
+    public static final String SETTING_MODE = "CancelOnDisconnect";
+    public static final String SETTING_GRACE_SECONDS = "CancelOnDisconnectGraceSeconds";
+    
+    enum Mode {
+        NONE, LOGOUT, DISCONNECT, BOTH;
+        
+        boolean appliesTo(boolean loggedOut) {
+            return this == BOTH || (loggedOut ? this == LOGOUT : this == DISCONNECT);
+        }
+        
+        static Mode parse(String value) {
+            switch (value.trim().toUpperCase()) {
+                case "Y": return BOTH;
+                case "N": return NONE;
+                default: return valueOf(value.trim().toUpperCase());
+            }
+        }
+    }
+    
+    static final class Policy {
+        static final Policy NONE = new Policy(Mode.NONE, 0);
+        
+        final Mode mode;
+        final long graceMillis;
+        
+        Policy(Mode mode, long graceMillis) {
+            this.mode = mode;
+            this.graceMillis = graceMillis;
+        }
+    }
+    
+    public interface Canceler {
+        // Returns how many of the orders were still open and got canceled
+        int cancel(SessionID sessionId, Collection<OrderData> orders);
+    }
+    
+    private final Canceler canceler;
+    private final Map<SessionID, Set<OrderData>> openOrders = new ConcurrentHashMap<>();
+    private final Map<SessionID, Policy> policies = new ConcurrentHashMap<>();
+    private final Set<SessionID> logoutSeen = ConcurrentHashMap.newKeySet();
+    // Token per scheduled cancel; a logon removes it so the timer becomes a no-op
+    private final Map<SessionID, Object> pendingCancels = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private volatile SessionSettings settings;
+    
+    public CancelOnDisconnect(Canceler canceler) {
+        this.canceler = canceler;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cancel-on-disconnect");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    // Policies are read per session on first use, so dynamic sessions pick up defaults
+    public void configure(SessionSettings settings) {
+        this.settings = settings;
+        policies.clear();
+    }
+    
+    public void setPolicy(SessionID sessionId, Policy policy) {
+        policies.put(sessionId, policy);
+    }
+    
+    public Policy getPolicy(SessionID sessionId) {
+        return policies.computeIfAbsent(sessionId, this::readPolicy);
+    }
+    
+    private Policy readPolicy(SessionID sessionId) {
+        SessionSettings s = settings;
+        if (s == null || !s.isSetting(sessionId, SETTING_MODE)) {
+            return Policy.NONE;
+        }
+        try {
+            Mode mode = Mode.parse(s.getString(sessionId, SETTING_MODE));
+            long grace = s.isSetting(sessionId, SETTING_GRACE_SECONDS)
+                ? s.getLong(sessionId, SETTING_GRACE_SECONDS) * 1000 : 0;
+            return new Policy(mode, grace);
+        } catch (ConfigError | FieldConvertError | IllegalArgumentException e) {
+            System.err.println("⚠ Invalid cancel-on-disconnect setting for " + sessionId + ": " + e.getMessage());
+            return Policy.NONE;
+        }
+    }
+    
+    public void onOrderOpened(OrderData order) {
+        if (order.getSessionID() != null) {
+            openOrders.computeIfAbsent(order.getSessionID(), id -> ConcurrentHashMap.newKeySet()).add(order);
+        }
+    }
+    
+    public void onOrderClosed(OrderData order) {
+        if (order.getSessionID() != null) {
+            Set<OrderData> open = openOrders.get(order.getSessionID());
+            if (open != null) {
+                open.remove(order);
+            }
+        }
+    }
+    
+    public int getOpenOrderCount(SessionID sessionId) {
+        Set<OrderData> open = openOrders.get(sessionId);
+        return open != null ? open.size() : 0;
+    }
+    
+    public void clear(SessionID sessionId) {
+        openOrders.remove(sessionId);
+    }
+    
+    // Logout sent or received before the session went down
+    public void onLogoutMessage(SessionID sessionId) {
+        logoutSeen.add(sessionId);
+    }
+    
+    public void onLogon(SessionID sessionId) {
+        logoutSeen.remove(sessionId);
+        if (pendingCancels.remove(sessionId) != null) {
+            System.out.println("✓ Server: " + sessionId + " logged back on within grace period, "
+                + getOpenOrderCount(sessionId) + " open orders kept");
+        }
+    }
+    
+    public void onLogout(SessionID sessionId) {
+        boolean loggedOut = logoutSeen.remove(sessionId);
+        Policy policy = getPolicy(sessionId);
+        if (!policy.mode.appliesTo(loggedOut) || getOpenOrderCount(sessionId) == 0) {
+            return;
+        }
+        
+        Object token = new Object();
+        pendingCancels.put(sessionId, token);
+        try {
+            scheduler.schedule(() -> {
+                if (pendingCancels.remove(sessionId, token)) {
+                    cancelOpenOrders(sessionId);
+                }
+            }, policy.graceMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            pendingCancels.remove(sessionId, token);
+        }
+    }
+    
+    private void cancelOpenOrders(SessionID sessionId) {
+        Set<OrderData> open = openOrders.remove(sessionId);
+        if (open == null || open.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        int canceled = canceler.cancel(sessionId, open);
+        System.out.printf("✓ Server: Cancel-on-disconnect canceled %d orders for %s in %.1f ms%n",
+            canceled, sessionId, (System.nanoTime() - start) / 1e6);
+    }
+    
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
+
+// ============================================================================
+// STOP TRIGGER BOOKS
+// ============================================================================
+
+// Parked stop and stop-limit orders per symbol, keyed by stop price. Buy stops
+// trigger on a trade at or above the stop and sell stops at or below, so a trade
+// pops one contiguous key range per side: O(triggered), not O(parked). Triggered
+// orders come back buys first by ascending stop, then sells by descending stop,
+// in arrival order within a level.
+class StopTriggerEngine {
+    private final SymbolSlots<StopTriggerBook> books = new SymbolSlots<>(id -> new StopTriggerBook());
+    
+    // False if the last trade has already crossed the stop; the caller triggers it now
+    public boolean park(OrderData order) {
+        return books.getOrCreate(order.getSymbolId()).park(order);
+    }
+    
+    public boolean remove(OrderData order) {
+        StopTriggerBook book = books.get(order.getSymbolId());
+        return book != null && book.remove(order);
+    }
+    
+    public List<OrderData> onTrade(int symbolId, double price) {
+        return books.getOrCreate(symbolId).onTrade(price);
+    }
+    
+    // A symbol no order has used has nothing parked
+    public List<OrderData> onTrade(String symbol, double price) {
+        int symbolId = SymbolDictionary.DEFAULT.find(symbol);
+        return symbolId >= 0 ? onTrade(symbolId, price) : Collections.emptyList();
+    }
+    
+    public double getLastTrade(int symbolId) {
+        StopTriggerBook book = books.get(symbolId);
+        return book != null ? book.lastTrade() : Double.NaN;
+    }
+    
+    public int getParkedCount(String symbol) {
+        int symbolId = SymbolDictionary.DEFAULT.find(symbol);
+        StopTriggerBook book = symbolId >= 0 ? books.get(symbolId) : null;
+        return book != null ? book.size() : 0;
+    }
+    
+    static final class StopTriggerBook {
+        private final TreeMap<Double, ArrayDeque<OrderData>> buyStops = new TreeMap<>();
+        private final TreeMap<Double, ArrayDeque<OrderData>> sellStops = new TreeMap<>();
+        private double lastTrade = Double.NaN;
+        private int size;
+        
+        synchronized boolean park(OrderData order) {
+            double stopPx = order.getStopPx();
+            boolean buy = order.getSide() == Side.BUY;
+            if (!Double.isNaN(lastTrade) && (buy ? lastTrade >= stopPx : lastTrade <= stopPx)) {
+                return false;
+            }
+            (buy ? buyStops : sellStops).computeIfAbsent(stopPx, p -> new ArrayDeque<>()).addLast(order);
+            size++;
+            return true;
+        }
+        
+        synchronized boolean remove(OrderData order) {
+            TreeMap<Double, ArrayDeque<OrderData>> stops = order.getSide() == Side.BUY ? buyStops : sellStops;
+            ArrayDeque<OrderData> level = stops.get(order.getStopPx());
+            if (level == null || !level.remove(order)) {
+                return false;
+            }
+            if (level.isEmpty()) {
+                stops.remove(order.getStopPx());
+            }
+            size--;
+            return true;
+        }
+        
+        synchronized List<OrderData> onTrade(double price) {
+            lastTrade = price;
+            List<OrderData> triggered = new ArrayList<>();
+            drain(buyStops.headMap(price, true), triggered);
+            drain(sellStops.tailMap(price, true).descendingMap(), triggered);
+            size -= triggered.size();
+            return triggered;
+        }
+        
+        private static void drain(NavigableMap<Double, ArrayDeque<OrderData>> levels, List<OrderData> out) {
+            for (ArrayDeque<OrderData> level : levels.values()) {
+                out.addAll(level);
+            }
+            levels.clear();
+        }
+        
+        synchronized int size() { return size; }
+        
+        synchronized double lastTrade() { return lastTrade; }
+    }
+}
+
+// ============================================================================
+// MARKET BOOK (BBO, ICEBERGS, PEGS)
+// ============================================================================
+
+// Displayed quantity per price level for each symbol, from which the BBO is read.
+// Each level queues its orders in time priority. Icebergs show only their current
+// clip and go to the back of the queue when it is replenished. Pegged orders stay
+// out of the levels and sit in four buckets (buy/sell x primary/market peg): a bid
+// move reprices only buy primary and sell market pegs, an offer move the other two.
+// Buckets are arrays with swap-remove, so peg churn and repricing do not allocate.
+// A peg whose reference side is empty has no price yet; it is parked in a second
+// set of buckets until that side is quoted.
+class MarketBook {
+    private static final int BUY_PRIMARY = 0;
+    private static final int BUY_MARKET = 1;
+    private static final int SELL_PRIMARY = 2;
+    private static final int SELL_MARKET = 3;
+    
+    private final SymbolSlots<SymbolBook> books = new SymbolSlots<>(id -> new SymbolBook(this));
+    private final AtomicLong prioritySeq = new AtomicLong();
+    private volatile Consumer<OrderData> pricedListener;
+    
+    // Time priority; an iceberg takes a fresh one each time its clip is replenished
+    public long nextPriority() {
+        return prioritySeq.incrementAndGet();
+    }
+    
+    // Queries never add a symbol or a book; null if the symbol has none
+    private SymbolBook book(String symbol) {
+        int symbolId = SymbolDictionary.DEFAULT.find(symbol);
+        return symbolId >= 0 ? books.get(symbolId) : null;
+    }
+    
+    // Brings the order's displayed quantity, price level or peg slot in line with its state.
+    // An order that has no time priority yet takes the next one. True if the order is
+    // a peg left parked; the priced listener hears when it gets a price.
+    public boolean update(OrderData order) {
+        if (order.getPriority() == 0) {
+            order.setPriority(nextPriority());
+        }
+        return books.getOrCreate(order.getSymbolId()).update(order, false);
+    }
+    
+    public void remove(OrderData order) {
+        books.getOrCreate(order.getSymbolId()).update(order, true);
+    }
+    
+    // Called under the symbol lock for each parked peg as it is priced
+    public void setPricedListener(Consumer<OrderData> listener) {
+        pricedListener = listener;
+    }
+    
+    public double getBestBid(String symbol) {
+        SymbolBook book = book(symbol);
+        return book != null ? book.bestBid : Double.NaN;
+    }
+    
+    public double getBestAsk(String symbol) {
+        SymbolBook book = book(symbol);
+        return book != null ? book.bestAsk : Double.NaN;
+    }
+    
+    public long getDisplayedQty(String symbol, char side, double price) {
+        SymbolBook book = book(symbol);
+        return book != null ? book.levelQty(side, price) : 0;
+    }
+    
+    public List<OrderData> getQueue(String symbol, char side, double price) {
+        SymbolBook book = book(symbol);
+        return book != null ? book.queue(side, price) : Collections.emptyList();
+    }
+    
+    public int getPeggedCount(String symbol) {
+        SymbolBook book = book(symbol);
+        return book != null ? book.peggedCount() : 0;
+    }
+    
+    public int getParkedPegCount(String symbol) {
+        SymbolBook book = book(symbol);
+        return book != null ? book.parkedCount() : 0;
+    }
+    
+    public long getRepriceCount(String symbol) {
+        SymbolBook book = book(symbol);
+        return book != null ? book.repriced : 0;
+    }
+    
+    private static int bucketOf(OrderData order) {
+        return (order.getSide() == Side.BUY ? BUY_PRIMARY : SELL_PRIMARY)
+            + (order.getPegType() == ExecInst.MARKET_PEG ? 1 : 0);
+    }
+    
+    // Displayed quantity and the orders showing it, linked through the orders in time
+    // priority. Emptied levels go back to their book's pool with their boxed price.
+    static final class Level {
+        Double price;
+        long qty;
+        OrderData head;
+        OrderData tail;
+        Level nextFree;
+        
+        // A new priority is the highest yet, so this walks back only for older ones
+        void link(OrderData order) {
+            OrderData after = tail;
+            while (after != null && after.bookedPriority > order.bookedPriority) {
+                after = after.levelPrev;
+            }
+            OrderData before = after != null ? after.levelNext : head;
+            order.levelPrev = after;
+            order.levelNext = before;
+            if (after != null) {
+                after.levelNext = order;
+            } else {
+                head = order;
+            }
+            if (before != null) {
+                before.levelPrev = order;
+            } else {
+                tail = order;
+            }
+        }
+        
+        void unlink(OrderData order) {
+            if (order.levelPrev != null) {
+                order.levelPrev.levelNext = order.levelNext;
+            } else {
+                head = order.levelNext;
+            }
+            if (order.levelNext != null) {
+                order.levelNext.levelPrev = order.levelPrev;
+            } else {
+                tail = order.levelPrev;
+            }
+            order.levelPrev = null;
+            order.levelNext = null;
+        }
+    }
+    
+    static final class SymbolBook {
+        private final MarketBook owner;
+        private final TreeMap<Double, Level> bids = new TreeMap<>(Comparator.reverseOrder());
+        private final TreeMap<Double, Level> asks = new TreeMap<>();
+        private final PegBucket[] pegs = {new PegBucket(), new PegBucket(), new PegBucket(), new PegBucket()};
+        private final PegBucket[] parked = {new PegBucket(), new PegBucket(), new PegBucket(), new PegBucket()};
+        private Level freeLevels;
+        private volatile double bestBid = Double.NaN;
+        private volatile double bestAsk = Double.NaN;
+        private volatile long repriced;
+        
+        SymbolBook(MarketBook owner) {
+            this.owner = owner;
+        }
+        
+        synchronized boolean update(OrderData order, boolean removed) {
+            boolean open = !removed && !order.isCanceled() && !order.isFilled();
+            if (order.isPegged()) {
+                int bucket = bucketOf(order);
+                if (open && order.pegSlot < 0) {
+                    double reference = referenceOf(bucket);
+                    if (Double.isNaN(reference)) {
+                        parked[bucket].add(order);
+                        order.pegParked = true;
+                    } else {
+                        pegs[bucket].add(order);
+                        order.setPrice(reference + order.getPegOffset());
+                    }
+                } else if (!open && order.pegSlot >= 0) {
+                    (order.pegParked ? parked : pegs)[bucket].remove(order);
+                    order.pegParked = false;
+                }
+                return order.pegParked;
+            }
+            
+            long qty = open && order.getOrdType() == OrdType.LIMIT && order.getPrice() > 0 
+                ? order.getDisplayQty() : 0;
+            Level level = order.bookedLevel;
+            if (level != null && qty > 0 && order.bookedPrice == order.getPrice()) {
+                // Fill or replenish at the same price: the level stays, and so does the BBO
+                level.qty += qty - order.bookedQty;
+                order.bookedQty = qty;
+                if (order.bookedPriority != order.getPriority()) {
+                    level.unlink(order);
+                    order.bookedPriority = order.getPriority();
+                    level.link(order);
+                }
+                return false;
+            }
+            
+            unbook(order);
+            if (qty > 0) {
+                TreeMap<Double, Level> levels = order.getSide() == Side.BUY ? bids : asks;
+                level = levels.get(order.getPrice());
+                if (level == null) {
+                    level = pooledLevel(order.getPrice());
+                    levels.put(level.price, level);
+                }
+                level.qty += qty;
+                order.bookedLevel = level;
+                order.bookedPrice = order.getPrice();
+                order.bookedQty = qty;
+                order.bookedPriority = order.getPriority();
+                level.link(order);
+            }
+            refreshBbo();
+            return false;
+        }
+        
+        private void unbook(OrderData order) {
+            Level level = order.bookedLevel;
+            if (level == null) {
+                return;
+            }
+            level.qty -= order.bookedQty;
+            level.unlink(order);
+            if (level.head == null) {
+                (order.getSide() == Side.BUY ? bids : asks).remove(level.price);
+                level.nextFree = freeLevels;
+                freeLevels = level;
+            }
+            order.bookedLevel = null;
+            order.bookedQty = 0;
+        }
+        
+        // The last level freed is the likeliest to come back, at the same boxed price
+        private Level pooledLevel(double price) {
+            Level level = freeLevels;
+            if (level == null) {
+                level = new Level();
+            } else {
+                freeLevels = level.nextFree;
+                level.nextFree = null;
+            }
+            if (level.price == null || level.price.doubleValue() != price) {
+                level.price = price;
+            }
+            return level;
+        }
+        
+        private double referenceOf(int bucket) {
+            return bucket == BUY_PRIMARY || bucket == SELL_MARKET ? bestBid : bestAsk;
+        }
+        
+        private void refreshBbo() {
+            double bid = bids.isEmpty() ? Double.NaN : bids.firstKey();
+            if (Double.compare(bid, bestBid) != 0) {
+                bestBid = bid;
+                repriced += pegs[BUY_PRIMARY].reprice(bid) + pegs[SELL_MARKET].reprice(bid);
+                unpark(BUY_PRIMARY, bid);
+                unpark(SELL_MARKET, bid);
+            }
+            double ask = asks.isEmpty() ? Double.NaN : asks.firstKey();
+            if (Double.compare(ask, bestAsk) != 0) {
+                bestAsk = ask;
+                repriced += pegs[BUY_MARKET].reprice(ask) + pegs[SELL_PRIMARY].reprice(ask);
+                unpark(BUY_MARKET, ask);
+                unpark(SELL_PRIMARY, ask);
+            }
+        }
+        
+        // The reference side is quoted again: parked pegs take a price and join their bucket
+        private void unpark(int bucket, double reference) {
+            PegBucket waiting = parked[bucket];
+            if (Double.isNaN(reference)) {
+                return;
+            }
+            Consumer<OrderData> listener = owner.pricedListener;
+            while (waiting.size > 0) {
+                OrderData order = waiting.orders[waiting.size - 1];
+                waiting.remove(order);
+                order.pegParked = false;
+                order.setPrice(reference + order.getPegOffset());
+                pegs[bucket].add(order);
+                if (listener != null) {
+                    listener.accept(order);
+                }
+            }
+        }
+        
+        synchronized long levelQty(char side, double price) {
+            Level level = (side == Side.BUY ? bids : asks).get(price);
+            return level != null ? level.qty : 0;
+        }
+        
+        synchronized List<OrderData> queue(char side, double price) {
+            Level level = (side == Side.BUY ? bids : asks).get(price);
+            if (level == null) {
+                return Collections.emptyList();
+            }
+            List<OrderData> queue = new ArrayList<>();
+            for (OrderData order = level.head; order != null; order = order.levelNext) {
+                queue.add(order);
+            }
+            return queue;
+        }
+        
+        synchronized int peggedCount() {
+            int count = 0;
+            for (int b = 0; b < pegs.length; b++) {
+                count += pegs[b].size + parked[b].size;
+            }
+            return count;
+        }
+        
+        synchronized int parkedCount() {
+            int count = 0;
+            for (PegBucket bucket : parked) {
+                count += bucket.size;
+            }
+            return count;
+        }
+    }
+    
+    // Unordered; each order remembers its slot for O(1) removal
+    static final class PegBucket {
+        private OrderData[] orders = new OrderData[16];
+        private int size;
+        
+        void add(OrderData order) {
+            if (size == orders.length) {
+                orders = Arrays.copyOf(orders, size * 2);
+            }
+            order.pegSlot = size;
+            orders[size++] = order;
+        }
+        
+        void remove(OrderData order) {
+            OrderData last = orders[--size];
+            orders[order.pegSlot] = last;
+            last.pegSlot = order.pegSlot;
+            orders[size] = null;
+            order.pegSlot = -1;
+        }
+        
+        // Orders keep their last price while the reference side is empty
+        int reprice(double reference) {
+            if (Double.isNaN(reference)) {
+                return 0;
+            }
+            for (int i = 0; i < size; i++) {
+                orders[i].setPrice(reference + orders[i].getPegOffset());
+            }
+            return size;
+        }
+    }
+}
+
+// ============================================================================
+// SYMBOL DICTIONARY
+// ============================================================================
+
+// Maps instrument strings to dense int IDs so books and counters can be plain
+// arrays indexed by ID. Open addressing with linear probing at load <= 0.5; reads
+// are lock-free (a key is published after its ID), inserts and resizes take the
+// lock. SymbolFile preloads the reference list, one symbol per line, IDs in file order.
+class SymbolDictionary {
+    public static final String SETTING_SYMBOL_FILE = "SymbolFile";
+    // Shared by the server's books; IDs are only meaningful within one process
+    public static final SymbolDictionary DEFAULT = new SymbolDictionary(1024);
+    
+    private static final class Table {
+        final AtomicReferenceArray<String> keys;
+        final int[] ids;
+        final int mask;
+        
+        Table(int capacity) {
+            keys = new AtomicReferenceArray<>(capacity);
+            ids = new int[capacity];
+            mask = capacity - 1;
+        }
+    }
+    
+    private volatile Table table;
+    private volatile String[] names;
+    private int size;
+    
+    public SymbolDictionary(int expectedSymbols) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSymbols, 8) * 2 - 1) << 1;
+        this.table = new Table(capacity);
+        this.names = new String[Math.max(expectedSymbols, 8)];
+    }
+    
+    public int load(File file) throws IOException {
+        int loaded = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.US_ASCII)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    idOf(line);
+                    loaded++;
+                }
+            }
+        }
+        return loaded;
+    }
+    
+    // -1 if the symbol has no ID yet
+    public int find(String symbol) {
+        Table t = table;
+        int slot = hash(symbol) & t.mask;
+        String key;
+        while ((key = t.keys.get(slot)) != null) {
+            if (key.equals(symbol)) {
+                return t.ids[slot];
+            }
+            slot = (slot + 1) & t.mask;
+        }
+        return -1;
+    }
+    
+    public int idOf(String symbol) {
+        int id = find(symbol);
+        return id >= 0 ? id : insert(symbol);
+    }
+    
+    public String nameOf(int id) {
+        return names[id];
+    }
+    
+    public synchronized int size() {
+        return size;
+    }
+    
+    private synchronized int insert(String symbol) {
+        int id = find(symbol);
+        if (id >= 0) {
+            return id;
+        }
+        id = size++;
+        if (id == names.length) {
+            names = Arrays.copyOf(names, id * 2);
+        }
+        names[id] = symbol;
+        // Volatile re-write publishes the new element to nameOf readers
+        names = names;
+        if (size * 2 > table.ids.length) {
+            Table grown = new Table(table.ids.length * 2);
+            for (int i = 0; i < id; i++) {
+                put(grown, names[i], i);
+            }
+            put(grown, symbol, id);
+            table = grown;
+        } else {
+            put(table, symbol, id);
+        }
+        return id;
+    }
+    
+    private static void put(Table t, String symbol, int id) {
+        int slot = hash(symbol) & t.mask;
+        while (t.keys.get(slot) != null) {
+            slot = (slot + 1) & t.mask;
+        }
+        t.ids[slot] = id;
+        t.keys.set(slot, symbol);
+    }
+    
+    private static int hash(String symbol) {
+        int h = symbol.hashCode();
+        return h ^ (h >>> 16);
+    }
+}
+
+// Per-symbol state in an array indexed by symbol ID, created on first use
+class SymbolSlots<T> {
+    private final IntFunction<T> factory;
+    private volatile Object[] slots = new Object[64];
+    
+    public SymbolSlots(IntFunction<T> factory) {
+        this.factory = factory;
+    }
+    
+    @SuppressWarnings("unchecked")
+    public T get(int symbolId) {
+        Object[] current = slots;
+        return symbolId < current.length ? (T) current[symbolId] : null;
+    }
+    
+    public T getOrCreate(int symbolId) {
+        T value = get(symbolId);
+        return value != null ? value : create(symbolId);
+    }
+    
+    @SuppressWarnings("unchecked")
+    private synchronized T create(int symbolId) {
+        Object[] current = slots;
+        if (symbolId >= current.length) {
+            current = Arrays.copyOf(current, Integer.highestOneBit(symbolId) << 1);
+        }
+        if (current[symbolId] == null) {
+            current[symbolId] = factory.apply(symbolId);
+        }
+        slots = current;
+        return (T) current[symbolId];
+    }
+}
+
+// ============================================================================
+// SECURITY MASTER
+// ============================================================================
+
+// Read-only instrument table mapped straight from disk. The file carries its own
+// open-addressing slot table, so opening it costs one mmap and a header check no
+// matter how many instruments it holds. A lookup hashes the symbol and probes slots
+// that point at fixed 64-byte records. Build the file from CSV with compile().
+class SecurityMaster {
+    public static final String SETTING_FILE = "SecurityMasterFile";
+    public static final String SETTING_RELOAD_SECONDS = "SecurityMasterReloadSeconds";
+    
+    public static final byte STATUS_TRADING = 0;
+    public static final byte STATUS_HALTED = 1;
+    public static final byte STATUS_CLOSED = 2;
+    
+    private static final int MAGIC = 0x5345434D;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 64;
+    static final int SYMBOL_BYTES = 16;
+    
+    // Record layout after the zero-padded ASCII symbol
+    private static final int OFF_TICK = 16;
+    private static final int OFF_LOT = 24;
+    private static final int OFF_LOWER = 28;
+    private static final int OFF_UPPER = 36;
+    private static final int OFF_STATUS = 44;
+    
+    private final File file;
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int slotMask;
+    private final int recordsOffset;
+    
+    private SecurityMaster(File file, ByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a security master file: " + file);
+        }
+        int slots = buffer.getInt(12);
+        this.file = file;
+        this.buffer = buffer;
+        this.count = buffer.getInt(8);
+        this.slotMask = slots - 1;
+        this.recordsOffset = HEADER_SIZE + slots * 4;
+        if (Integer.bitCount(slots) != 1 || (long) recordsOffset + (long) count * RECORD_SIZE > buffer.capacity()) {
+            throw new IOException("Truncated security master file: " + file);
+        }
+    }
+    
+    public static SecurityMaster open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new SecurityMaster(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+    
+    public File getFile() { return file; }
+    public int size() { return count; }
+    
+    // Record index, or -1 for an unknown symbol
+    public int find(String symbol) {
+        int length = symbol.length();
+        if (length == 0 || length > SYMBOL_BYTES) {
+            return -1;
+        }
+        int slot = hash(symbol) & slotMask;
+        int entry;
+        while ((entry = buffer.getInt(HEADER_SIZE + slot * 4)) != 0) {
+            if (symbolEquals(entry - 1, symbol)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & slotMask;
+        }
+        return -1;
+    }
+    
+    private boolean symbolEquals(int record, String symbol) {
+        int base = recordsOffset + record * RECORD_SIZE;
+        int length = symbol.length();
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(base + i) != (byte) symbol.charAt(i)) {
+                return false;
+            }
+        }
+        return length == SYMBOL_BYTES || buffer.get(base + length) == 0;
+    }
+    
+    public double getTickSize(int record) { return buffer.getDouble(recordsOffset + record * RECORD_SIZE + OFF_TICK); }
+    public int getLotSize(int record) { return buffer.getInt(recordsOffset + record * RECORD_SIZE + OFF_LOT); }
+    public double getLowerBand(int record) { return buffer.getDouble(recordsOffset + record * RECORD_SIZE + OFF_LOWER); }
+    public double getUpperBand(int record) { return buffer.getDouble(recordsOffset + record * RECORD_SIZE + OFF_UPPER); }
+    public byte getStatus(int record) { return buffer.get(recordsOffset + record * RECORD_SIZE + OFF_STATUS); }
+    
+    // A tick size of 0 or less places no constraint on the price
+    public boolean isOnTick(int record, double price) {
+        double tick = getTickSize(record);
+        if (tick <= 0) {
+            return true;
+        }
+        double ticks = price / tick;
+        return Math.abs(ticks - Math.rint(ticks)) < 1e-6;
+    }
+    
+    // Validation outcomes; rejectReason()/rejectText() map them onto the ER fields
+    public static final int VALID = 0;
+    public static final int UNKNOWN_SYMBOL = 1;
+    public static final int NOT_TRADING = 2;
+    public static final int BAD_LOT = 3;
+    public static final int NOT_ON_TICK = 4;
+    public static final int OUT_OF_BAND = 5;
+    
+    // Prices of zero (market and pegged orders) skip the tick and band checks
+    public int validate(String symbol, int quantity, double price, double stopPx) {
+        int record = find(symbol);
+        if (record < 0) {
+            return UNKNOWN_SYMBOL;
+        }
+        if (getStatus(record) != STATUS_TRADING) {
+            return NOT_TRADING;
+        }
+        int lot = getLotSize(record);
+        if (quantity <= 0 || (lot > 0 && quantity % lot != 0)) {
+            return BAD_LOT;
+        }
+        int result = checkPrice(record, price);
+        return result != VALID ? result : checkPrice(record, stopPx);
+    }
+    
+    // Unset prices (0) are not checked
+    private int checkPrice(int record, double px) {
+        if (px <= 0) {
+            return VALID;
+        }
+        if (!isOnTick(record, px)) {
+            return NOT_ON_TICK;
+        }
+        if (px < getLowerBand(record) || px > getUpperBand(record)) {
+            return OUT_OF_BAND;
+        }
+        return VALID;
+    }
+    
+    public static int rejectReason(int result) {
+        switch (result) {
+            case UNKNOWN_SYMBOL: return OrdRejReason.UNKNOWN_SYMBOL;
+            case NOT_TRADING: return OrdRejReason.EXCHANGE_CLOSED;
+            case BAD_LOT: return OrdRejReason.INCORRECT_QUANTITY;
+            default: return OrdRejReason.OTHER;
+        }
+    }
+    
+    public static String rejectText(int result) {
+        switch (result) {
+            case UNKNOWN_SYMBOL: return "Unknown symbol";
+            case NOT_TRADING: return "Instrument not trading";
+            case BAD_LOT: return "Quantity not a multiple of lot size";
+            case NOT_ON_TICK: return "Price not on tick";
+            case OUT_OF_BAND: return "Price outside band";
+            default: return "Rejected";
+        }
+    }
+    
+    // FNV-1a over the symbol's ASCII bytes; must match between compile() and find()
+    private static int hash(String symbol) {
+        int h = 0x811C9DC5;
+        for (int i = 0; i < symbol.length(); i++) {
+            h = (h ^ (symbol.charAt(i) & 0xFF)) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+    
+    // CSV lines: symbol,tickSize,lotSize,lowerBand,upperBand,status (T=trading, H=halted, C=closed).
+    // The target is replaced atomically, so a running server can reload it at any time.
+    public static int compile(File csv, File target) throws IOException {
+        List<String[]> rows = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(csv.toPath(), StandardCharsets.US_ASCII)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#") || line.regionMatches(true, 0, "symbol,", 0, 7)) {
+                    continue;
+                }
+                String[] fields = line.split(",");
+                if (fields.length != 6 || fields[0].isEmpty() || fields[0].length() > SYMBOL_BYTES) {
+                    throw new IOException("Bad security master line: " + line);
+                }
+                rows.add(fields);
+            }
+        }
+        
+        int slots = Integer.highestOneBit(Math.max(rows.size(), 1) * 2 - 1) << 1;
+        int recordsOffset = HEADER_SIZE + slots * 4;
+        ByteBuffer out = ByteBuffer.allocate(recordsOffset + rows.size() * RECORD_SIZE);
+        out.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, rows.size()).putInt(12, slots);
+        for (int record = 0; record < rows.size(); record++) {
+            String[] fields = rows.get(record);
+            String symbol = fields[0].trim();
+            int slot = hash(symbol) & (slots - 1);
+            while (out.getInt(HEADER_SIZE + slot * 4) != 0) {
+                slot = (slot + 1) & (slots - 1);
+            }
+            out.putInt(HEADER_SIZE + slot * 4, record + 1);
+            
+            int base = recordsOffset + record * RECORD_SIZE;
+            for (int i = 0; i < symbol.length(); i++) {
+                out.put(base + i, (byte) symbol.charAt(i));
+            }
+            out.putDouble(base + OFF_TICK, Double.parseDouble(fields[1].trim()));
+            out.putInt(base + OFF_LOT, Integer.parseInt(fields[2].trim()));
+            out.putDouble(base + OFF_LOWER, Double.parseDouble(fields[3].trim()));
+            out.putDouble(base + OFF_UPPER, Double.parseDouble(fields[4].trim()));
+            out.put(base + OFF_STATUS, parseStatus(fields[5].trim()));
+        }
+        
+        File temp = new File(target.getAbsoluteFile().getParentFile(), target.getName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            channel.force(true);
+        }
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, 
+            StandardCopyOption.REPLACE_EXISTING);
+        return rows.size();
+    }
+    
+    private static byte parseStatus(String status) throws IOException {
+        switch (status.toUpperCase()) {
+            case "T": return STATUS_TRADING;
+            case "H": return STATUS_HALTED;
+            case "C": return STATUS_CLOSED;
+            default: throw new IOException("Unknown instrument status: " + status);
+        }
+    }
+}
+
+// Holds the current security master and swaps in a new mapping when the file
+// changes. Readers take one volatile read per order, so a reload never pauses flow.
+class SecurityMasterWatcher {
+    private volatile SecurityMaster current;
+    private final File file;
+    private volatile long loadedModified;
+    private ScheduledExecutorService scheduler;
+    
+    public SecurityMasterWatcher(File file) {
+        this.file = file;
+    }
+    
+    public SecurityMaster get() { return current; }
+    
+    public synchronized SecurityMaster reload() throws IOException {
+        long modified = file.lastModified();
+        long start = System.nanoTime();
+        SecurityMaster master = SecurityMaster.open(file);
+        current = master;
+        loadedModified = modified;
+        System.out.printf("✓ Security master: %d instruments mapped from %s in %.1f ms%n",
+            master.size(), file, (System.nanoTime() - start) / 1e6);
+        return master;
+    }
+    
+    public synchronized void start(long pollSeconds) {
+        if (pollSeconds <= 0 || scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "security-master-watcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            if (file.lastModified() != loadedModified) {
+                try {
+                    reload();
+                } catch (IOException e) {
+                    System.err.println("⚠ Security master reload failed, keeping previous table: " + e.getMessage());
+                }
+            }
+        }, pollSeconds, pollSeconds, TimeUnit.SECONDS);
+    }
+    
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+}
+
+// ============================================================================
+// DUPLICATE CLORDID FILTER
+// ============================================================================
+
+// Per-session record of the ClOrdIDs seen this trading day, in fixed memory.
+// A blocked bloom filter answers "definitely new" from a single 64-byte block;
+// only a bloom hit goes on to the exact set, an off-heap open-addressing table
+// of 64-bit ID hashes. QuickFIX/J delivers a session's messages on one thread,
+// so the filter is not synchronized.
+class ClOrdIdFilter {
+    public static final String SETTING_CAPACITY = "DuplicateClOrdIDCapacity";
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+    
+    private static final int BLOCK_LONGS = 8;      // 512 bits, one cache line
+    private static final int BITS_PER_ID = 10;
+    private static final int PROBES = 6;
+    
+    private final long[] bloom;
+    private final int blockMask;
+    private final ByteBuffer table;
+    private final int slotMask;
+    private final int capacity;
+    private int entries;
+    private boolean overflowed;
+    private long tradingDay = Long.MIN_VALUE;
+    private volatile long duplicates;
+    
+    public ClOrdIdFilter(int capacity) {
+        this.capacity = Math.max(capacity, 16);
+        int blocks = Integer.highestOneBit(
+            (int) Math.max(1, ((long) this.capacity * BITS_PER_ID + 511) / 512) * 2 - 1);
+        this.bloom = new long[blocks * BLOCK_LONGS];
+        this.blockMask = blocks - 1;
+        int slots = Integer.highestOneBit(this.capacity * 2 - 1) << 1;
+        this.table = ByteBuffer.allocateDirect(slots * 8);
+        this.slotMask = slots - 1;
+    }
+    
+    // True if the ID was already seen today; otherwise records it
+    public boolean checkAndAdd(CharSequence clOrdID) {
+        long hash = hash(clOrdID);
+        if (!bloomTestAndSet(hash)) {
+            insert(hash);
+            return false;
+        }
+        if (insert(hash)) {
+            return false;
+        }
+        duplicates++;
+        return true;
+    }
+    
+    // Clears the filter when the session logs on for a new trading day
+    public void startDay(long epochDay) {
+        if (epochDay != tradingDay) {
+            clear();
+            tradingDay = epochDay;
+        }
+    }
+    
+    public void clear() {
+        Arrays.fill(bloom, 0L);
+        for (int i = 0; i < table.capacity(); i += 8) {
+            table.putLong(i, 0L);
+        }
+        entries = 0;
+        overflowed = false;
+    }
+    
+    public int size() { return entries; }
+    public long getDuplicateCount() { return duplicates; }
+    public long getMemoryBytes() { return bloom.length * 8L + table.capacity(); }
+    
+    private boolean bloomTestAndSet(long hash) {
+        int base = ((int) (hash >>> 32) & blockMask) * BLOCK_LONGS;
+        long bits = hash * 0x9E3779B97F4A7C15L;
+        boolean present = true;
+        for (int i = 0; i < PROBES; i++) {
+            int bit = (int) (bits >>> (i * 9)) & 511;
+            int word = base + (bit >>> 6);
+            long mask = 1L << bit;
+            if ((bloom[word] & mask) == 0) {
+                present = false;
+                bloom[word] |= mask;
+            }
+        }
+        return present;
+    }
+    
+    // False if the hash is already in the table. Once the table holds `capacity`
+    // IDs new ones are left to the bloom filter and duplicates of them are missed.
+    private boolean insert(long hash) {
+        long key = hash == 0 ? 1 : hash;
+        int slot = (int) hash & slotMask;
+        long existing;
+        while ((existing = table.getLong(slot * 8)) != 0) {
+            if (existing == key) {
+                return false;
+            }
+            slot = (slot + 1) & slotMask;
+        }
+        if (entries >= capacity) {
+            if (!overflowed) {
+                overflowed = true;
+                System.err.println("⚠ Duplicate ClOrdID table full at " + capacity 
+                    + " IDs; later IDs are checked by the bloom filter only");
+            }
+            return true;
+        }
+        table.putLong(slot * 8, key);
+        entries++;
+        return true;
+    }
+    
+    // 64-bit FNV-1a finished with the MurmurHash3 mixer
+    static long hash(CharSequence value) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h = (h ^ value.charAt(i)) * 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB93FE1A85EC5L;
+        return h ^ (h >>> 33);
+    }
+}
+
+// ============================================================================
+// POSITION AND P&L KEEPING
+// ============================================================================
+
+// Net position, average cost and realized P&L per account and symbol, updated
+// in O(1) from each fill. State lives in parallel primitive columns indexed by
+// position number. One thread applies fills; any thread may read. Each position
+// has its own sequence counter (odd while being written), so a reader retries
+// instead of locking and the fill path never waits on a snapshot.
+class PositionKeeper {
+    
+    public static final class Position {
+        private final String account;
+        private final String symbol;
+        private final long netQty;
+        private final double avgCost;
+        private final double realizedPnl;
+        private final double markPrice;
+        
+        Position(String account, String symbol, long netQty, double avgCost, 
+                double realizedPnl, double markPrice) {
+            this.account = account;
+            this.symbol = symbol;
+            this.netQty = netQty;
+            this.avgCost = avgCost;
+            this.realizedPnl = realizedPnl;
+            this.markPrice = markPrice;
+        }
+        
+        public String getAccount() { return account; }
+        public String getSymbol() { return symbol; }
+        public long getNetQty() { return netQty; }
+        public double getAvgCost() { return avgCost; }
+        public double getRealizedPnl() { return realizedPnl; }
+        public double getMarkPrice() { return markPrice; }
+        // Marked at the symbol's last fill price
+        public double getUnrealizedPnl() { return netQty * (markPrice - avgCost); }
+    }
+    
+    // Columns are replaced, never resized in place, so a reader holding an old
+    // set still sees consistent (if stale) values.
+    private static final class Columns {
+        final long[] netQty;
+        final double[] avgCost;
+        final double[] realizedPnl;
+        final int[] symbolIds;
+        final String[] accounts;
+        final AtomicLongArray sequence;
+        
+        Columns(int capacity) {
+            netQty = new long[capacity];
+            avgCost = new double[capacity];
+            realizedPnl = new double[capacity];
+            symbolIds = new int[capacity];
+            accounts = new String[capacity];
+            sequence = new AtomicLongArray(capacity);
+        }
+        
+        Columns grow(int size) {
+            Columns grown = new Columns(netQty.length * 2);
+            System.arraycopy(netQty, 0, grown.netQty, 0, size);
+            System.arraycopy(avgCost, 0, grown.avgCost, 0, size);
+            System.arraycopy(realizedPnl, 0, grown.realizedPnl, 0, size);
+            System.arraycopy(symbolIds, 0, grown.symbolIds, 0, size);
+            System.arraycopy(accounts, 0, grown.accounts, 0, size);
+            return grown;
+        }
+    }
+    
+    private volatile Columns columns = new Columns(64);
+    private volatile int size;
+    
+    // Last fill price per symbol ID, stored as double bits
+    private volatile AtomicLongArray marks = new AtomicLongArray(64);
+    
+    // Writer-side index: account ID, then symbol ID, to position number + 1
+    private final Map<String, Integer> accountIds = new HashMap<>();
+    private int[][] positionIndex = new int[0][];
+    
+    // Reader-side index, touched only when a position is first opened
+    private final Map<String, Integer> positionsByKey = new ConcurrentHashMap<>();
+    
+    private final LongAdder fills = new LongAdder();
+    
+    // Signed by side: buys add to the position, sells subtract
+    public void onFill(String account, String symbol, char side, long qty, double px) {
+        int symbolId = SymbolDictionary.DEFAULT.idOf(symbol);
+        int position = positionFor(account, symbolId);
+        long signed = side == Side.BUY ? qty : -qty;
+        
+        Columns c = columns;
+        long seq = c.sequence.get(position);
+        c.sequence.set(position, seq + 1);
+        VarHandle.storeStoreFence();
+        
+        long net = c.netQty[position];
+        double avg = c.avgCost[position];
+        if (net == 0 || (net > 0) == (signed > 0)) {
+            avg = (avg * Math.abs(net) + px * qty) / (Math.abs(net) + qty);
+        } else {
+            long closed = Math.min(qty, Math.abs(net));
+            c.realizedPnl[position] += closed * (px - avg) * Long.signum(net);
+            if (qty > Math.abs(net)) {
+                avg = px;               // flipped through flat; the remainder opens at this fill
+            } else if (qty == Math.abs(net)) {
+                avg = 0;
+            }
+        }
+        c.netQty[position] = net + signed;
+        c.avgCost[position] = avg;
+        
+        c.sequence.set(position, seq + 2);
+        markFor(symbolId).lazySet(symbolId, Double.doubleToRawLongBits(px));
+        fills.increment();
+    }
+    
+    private int positionFor(String account, int symbolId) {
+        Integer accountId = accountIds.get(account);
+        if (accountId == null) {
+            accountId = accountIds.size();
+            accountIds.put(account, accountId);
+            positionIndex = Arrays.copyOf(positionIndex, accountId + 1);
+            positionIndex[accountId] = new int[Math.max(16, SymbolDictionary.DEFAULT.size())];
+        }
+        int[] bySymbol = positionIndex[accountId];
+        if (symbolId >= bySymbol.length) {
+            bySymbol = positionIndex[accountId] = Arrays.copyOf(bySymbol, Math.max(symbolId + 1, bySymbol.length * 2));
+        }
+        int slot = bySymbol[symbolId];
+        if (slot != 0) {
+            return slot - 1;
+        }
+        int position = open(account, symbolId);
+        bySymbol[symbolId] = position + 1;
+        return position;
+    }
+    
+    private int open(String account, int symbolId) {
+        int position = size;
+        Columns c = columns;
+        if (position == c.netQty.length) {
+            c = c.grow(position);
+            columns = c;
+        }
+        c.symbolIds[position] = symbolId;
+        c.accounts[position] = account;
+        size = position + 1;
+        positionsByKey.put(key(account, SymbolDictionary.DEFAULT.nameOf(symbolId)), position);
+        return position;
+    }
+    
+    private AtomicLongArray markFor(int symbolId) {
+        AtomicLongArray m = marks;
+        if (symbolId >= m.length()) {
+            AtomicLongArray grown = new AtomicLongArray(Math.max(symbolId + 1, m.length() * 2));
+            for (int i = 0; i < m.length(); i++) {
+                grown.set(i, m.get(i));
+            }
+            marks = m = grown;
+        }
+        return m;
+    }
+    
+    private static String key(String account, String symbol) {
+        return account + '\u0001' + symbol;
+    }
+    
+    public Position get(String account, String symbol) {
+        Integer position = positionsByKey.get(key(account, symbol));
+        return position != null ? read(position) : null;
+    }
+    
+    public List<Position> snapshot() {
+        int count = size;
+        List<Position> positions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            positions.add(read(i));
+        }
+        return positions;
+    }
+    
+    public int size() { return size; }
+    public long getFillCount() { return fills.sum(); }
+    
+    private Position read(int position) {
+        while (true) {
+            Columns c = columns;
+            long before = c.sequence.get(position);
+            if ((before & 1) == 0) {
+                long net = c.netQty[position];
+                double avg = c.avgCost[position];
+                double realized = c.realizedPnl[position];
+                VarHandle.loadLoadFence();
+                if (c.sequence.get(position) == before && c == columns) {
+                    int symbolId = c.symbolIds[position];
+                    AtomicLongArray m = marks;
+                    double mark = symbolId < m.length() ? Double.longBitsToDouble(m.get(symbolId)) : 0;
+                    return new Position(c.accounts[position], SymbolDictionary.DEFAULT.nameOf(symbolId),
+                        net, avg, realized, mark);
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+}
+
+// ============================================================================
+// FILL CAPTURE (COLUMNAR)
+// ============================================================================
+
+// Appends every server fill to a per-day columnar file. Fills are collected in
+// primitive arrays under a short lock. A background thread swaps the full batch
+// for an empty one and writes it as one block: the symbol names first used in
+// this file, then one chunk per column. Symbol IDs in a file are local to it, so
+// files stay readable whatever dictionary the writing process had. Files are
+// named fills-yyyyMMdd.col.
+class FillCapture {
+    public static final String SETTING_DIRECTORY = "FillCaptureDir";
+    
+    private static final int MAGIC = 0x46494C42;   // "FILB"
+    private static final int BLOCK_FILLS = 65536;
+    private static final long FLUSH_INTERVAL_MS = 1000;
+    private static final DateTimeFormatter FILE_DAY = DateTimeFormatter.ofPattern("yyyyMMdd");
+    
+    private static final class Batch {
+        final long[] times = new long[BLOCK_FILLS];
+        final int[] symbolIds = new int[BLOCK_FILLS];
+        final byte[] sides = new byte[BLOCK_FILLS];
+        final int[] quantities = new int[BLOCK_FILLS];
+        final double[] prices = new double[BLOCK_FILLS];
+        final String[] orderIds = new String[BLOCK_FILLS];
+        int size;
+    }
+    
+    private final File directory;
+    private final SymbolDictionary symbols;
+    private Batch filling = new Batch();
+    private Batch spare = new Batch();
+    private boolean closed;
+    private boolean failed;
+    private long dropped;
+    private int writing;   // size of the batch out with the writer
+    private final Thread writer;
+    
+    // Writer thread only
+    private FileChannel channel;
+    private String fileDay;
+    private int[] fileSymbolIds = new int[0];   // dictionary ID to file ID + 1
+    private int fileSymbolCount;
+    private ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_FILLS * 40).order(ByteOrder.LITTLE_ENDIAN);
+    private long written;
+    
+    public FillCapture(File directory) {
+        this(directory, SymbolDictionary.DEFAULT);
+    }
+    
+    FillCapture(File directory, SymbolDictionary symbols) {
+        this.directory = directory;
+        this.symbols = symbols;
+        directory.mkdirs();
+        writer = new Thread(this::writeLoop, "fill-capture-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+    
+    public static File fileFor(File directory, LocalDate day) {
+        return new File(directory, "fills-" + FILE_DAY.format(day) + ".col");
+    }
+    
+    public void record(int symbolId, char side, int quantity, double price, String orderId) {
+        long now = FixClock.epochMillis();
+        synchronized (this) {
+            while (filling.size == BLOCK_FILLS && !closed) {
+                notifyAll();
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (closed) {
+                dropped++;
+                return;
+            }
+            Batch b = filling;
+            int i = b.size++;
+            b.times[i] = now;
+            b.symbolIds[i] = symbolId;
+            b.sides[i] = (byte) side;
+            b.quantities[i] = quantity;
+            b.prices[i] = price;
+            b.orderIds[i] = orderId;
+            if (b.size == BLOCK_FILLS) {
+                notifyAll();
+            }
+        }
+    }
+    
+    public synchronized long getWrittenCount() { return written; }
+    
+    // Fills recorded after close or after the writer failed, including those it was holding
+    public synchronized long getDroppedCount() { return dropped; }
+    
+    public synchronized boolean isFailed() { return failed; }
+    
+    // Blocks until everything recorded so far is on disk
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void writeLoop() {
+        try {
+            while (true) {
+                Batch batch;
+                boolean last;
+                synchronized (this) {
+                    // Producers only wake us for a full batch; otherwise flush on the interval
+                    while (!closed && filling.size < BLOCK_FILLS) {
+                        wait(FLUSH_INTERVAL_MS);
+                        if (filling.size > 0) {
+                            break;
+                        }
+                    }
+                    last = closed;
+                    batch = filling;
+                    filling = spare;
+                    spare = null;
+                    writing = batch.size;
+                    notifyAll();
+                }
+                if (batch.size > 0) {
+                    writeBlock(batch);
+                }
+                synchronized (this) {
+                    written += batch.size;
+                    writing = 0;
+                    batch.size = 0;
+                    Arrays.fill(batch.orderIds, null);
+                    spare = batch;
+                    notifyAll();
+                }
+                if (last) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("⚠ Fill capture stopped: " + e);
+            synchronized (this) {
+                failed = true;
+                dropped += filling.size + writing;
+                filling.size = 0;
+            }
+        } finally {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            closeChannel();
+        }
+    }
+    
+    private void writeBlock(Batch batch) throws IOException {
+        // Blocks go to the file of their first fill's local day
+        String day = FILE_DAY.format(Instant.ofEpochMilli(batch.times[0]).atZone(ZoneId.systemDefault()));
+        if (!day.equals(fileDay)) {
+            closeChannel();
+            channel = FileChannel.open(new File(directory, "fills-" + day + ".col").toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            fileDay = day;
+            Arrays.fill(fileSymbolIds, 0);
+            fileSymbolCount = 0;
+            // A file from an earlier run today keeps its symbol IDs
+            if (channel.size() > 0) {
+                File file = fileFor(directory, LocalDate.parse(day, FILE_DAY));
+                long complete = completeLength(file);
+                if (complete < channel.size()) {
+                    System.err.println("⚠ Fill capture cut a partial block at offset " + complete + " in " + file);
+                    channel.truncate(complete);
+                }
+                Fills existing = read(file);
+                for (int fileId = 0; fileId < existing.symbolNames.length; fileId++) {
+                    mapSymbol(symbols.idOf(existing.symbolNames[fileId]), fileId);
+                }
+                fileSymbolCount = existing.symbolNames.length;
+            }
+        }
+        
+        // Rewrite dictionary IDs to file IDs, defining the ones this file has not seen
+        int n = batch.size;
+        List<Integer> newSymbols = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            int id = batch.symbolIds[i];
+            int fileId = id < fileSymbolIds.length ? fileSymbolIds[id] - 1 : -1;
+            if (fileId < 0) {
+                fileId = fileSymbolCount++;
+                mapSymbol(id, fileId);
+                newSymbols.add(id);
+            }
+            batch.symbolIds[i] = fileId;
+        }
+        byte[][] ids = new byte[n][];
+        int idBytes = 0;
+        for (int i = 0; i < n; i++) {
+            ids[i] = batch.orderIds[i].getBytes(StandardCharsets.US_ASCII);
+            idBytes += ids[i].length;
+        }
+        
+        int needed = 16 + n * (8 + 4 + 1 + 4 + 8 + 4) + idBytes;
+        for (int id : newSymbols) {
+            needed += 6 + symbols.nameOf(id).length();
+        }
+        if (block.capacity() < needed) {
+            block = ByteBuffer.allocateDirect(needed).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        ByteBuffer out = block;
+        out.clear();
+        out.putInt(MAGIC).putInt(n).putInt(newSymbols.size()).putInt(idBytes);
+        for (int id : newSymbols) {
+            byte[] name = symbols.nameOf(id).getBytes(StandardCharsets.US_ASCII);
+            out.putInt(fileSymbolIds[id] - 1).putShort((short) name.length).put(name);
+        }
+        out.asLongBuffer().put(batch.times, 0, n);
+        out.position(out.position() + n * 8);
+        out.asIntBuffer().put(batch.symbolIds, 0, n);
+        out.position(out.position() + n * 4);
+        out.put(batch.sides, 0, n);
+        out.asIntBuffer().put(batch.quantities, 0, n);
+        out.position(out.position() + n * 4);
+        out.asDoubleBuffer().put(batch.prices, 0, n);
+        out.position(out.position() + n * 8);
+        int end = 0;
+        for (int i = 0; i < n; i++) {
+            end += ids[i].length;
+            out.putInt(end);
+        }
+        for (int i = 0; i < n; i++) {
+            out.put(ids[i]);
+        }
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+    }
+    
+    private void mapSymbol(int id, int fileId) {
+        if (id >= fileSymbolIds.length) {
+            fileSymbolIds = Arrays.copyOf(fileSymbolIds, Math.max(id + 1, fileSymbolIds.length * 2));
+        }
+        fileSymbolIds[id] = fileId + 1;
+    }
+    
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.force(false);
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("⚠ Fill capture close failed: " + e.getMessage());
+            }
+            channel = null;
+        }
+    }
+    
+    // Length of the file up to the end of its last complete block
+    static long completeLength(File file) throws IOException {
+        return scan(map(file), file, new HashMap<>(), new long[2]);
+    }
+    
+    // Reads a whole day's file into one set of column arrays
+    public static Fills read(File file) throws IOException {
+        ByteBuffer in = map(file);
+        
+        // First pass sizes the columns and collects the symbol names
+        Map<Integer, String> names = new HashMap<>();
+        long[] totals = new long[2];
+        int end = scan(in, file, names, totals);
+        int maxId = names.keySet().stream().mapToInt(Integer::intValue).max().orElse(-1);
+        
+        Fills fills = new Fills((int) totals[0], (int) totals[1], maxId + 1);
+        names.forEach((id, name) -> fills.symbolNames[id] = name);
+        in.limit(end).rewind();
+        int row = 0;
+        int idOffset = 0;
+        while (in.remaining() >= 16) {
+            in.getInt();
+            int n = in.getInt();
+            int symbolCount = in.getInt();
+            int blockIdBytes = in.getInt();
+            for (int s = 0; s < symbolCount; s++) {
+                in.getInt();
+                int length = in.getShort();
+                in.position(in.position() + length);
+            }
+            in.asLongBuffer().get(fills.times, row, n);
+            in.position(in.position() + n * 8);
+            in.asIntBuffer().get(fills.symbolIds, row, n);
+            in.position(in.position() + n * 4);
+            in.get(fills.sides, row, n);
+            in.asIntBuffer().get(fills.quantities, row, n);
+            in.position(in.position() + n * 4);
+            in.asDoubleBuffer().get(fills.prices, row, n);
+            in.position(in.position() + n * 8);
+            for (int i = 0; i < n; i++) {
+                fills.orderIdEnds[row + i] = idOffset + in.getInt();
+            }
+            in.get(fills.orderIdBytes, idOffset, blockIdBytes);
+            row += n;
+            idOffset += blockIdBytes;
+        }
+        return fills;
+    }
+    
+    private static ByteBuffer map(File file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+    
+    // Walks the blocks, adding fill and order ID byte counts to totals. A block cut
+    // short by a crash ends the walk; its offset is returned.
+    private static int scan(ByteBuffer in, File file, Map<Integer, String> names, long[] totals) 
+            throws IOException {
+        while (in.remaining() >= 16) {
+            int start = in.position();
+            if (in.getInt() != MAGIC) {
+                throw new IOException("Corrupt fill capture block at offset " + start + " in " + file);
+            }
+            int n = in.getInt();
+            int symbolCount = in.getInt();
+            int blockIdBytes = in.getInt();
+            Map<Integer, String> blockNames = new HashMap<>();
+            for (int s = 0; s < symbolCount; s++) {
+                if (in.remaining() < 6 || in.remaining() < 6 + in.getShort(in.position() + 4)) {
+                    return start;
+                }
+                int id = in.getInt();
+                byte[] name = new byte[in.getShort()];
+                in.get(name);
+                blockNames.put(id, new String(name, StandardCharsets.US_ASCII));
+            }
+            long body = (long) n * (8 + 4 + 1 + 4 + 8 + 4) + blockIdBytes;
+            if (in.remaining() < body) {
+                return start;
+            }
+            in.position(in.position() + (int) body);
+            names.putAll(blockNames);
+            totals[0] += n;
+            totals[1] += blockIdBytes;
+        }
+        return in.position();
+    }
+    
+    // One day of fills as parallel columns; row i is the i-th fill written
+    public static final class Fills {
+        public final long[] times;
+        public final int[] symbolIds;
+        public final byte[] sides;
+        public final int[] quantities;
+        public final double[] prices;
+        final int[] orderIdEnds;
+        final byte[] orderIdBytes;
+        final String[] symbolNames;
+        
+        Fills(int size, int idBytes, int symbolCount) {
+            times = new long[size];
+            symbolIds = new int[size];
+            sides = new byte[size];
+            quantities = new int[size];
+            prices = new double[size];
+            orderIdEnds = new int[size];
+            orderIdBytes = new byte[idBytes];
+            symbolNames = new String[symbolCount];
+        }
+        
+        public int size() { return times.length; }
+        
+        public String orderId(int row) {
+            int start = row == 0 ? 0 : orderIdEnds[row - 1];
+            return new String(orderIdBytes, start, orderIdEnds[row] - start, StandardCharsets.US_ASCII);
+        }
+        
+        public String symbolName(int symbolId) {
+            return symbolId < symbolNames.length ? symbolNames[symbolId] : null;
+        }
+        
+        // ID used in this file's symbolIds column, or -1 if the symbol never traded
+        public int symbolId(String symbol) {
+            for (int id = 0; id < symbolNames.length; id++) {
+                if (symbol.equals(symbolNames[id])) {
+                    return id;
+                }
+            }
+            return -1;
+        }
+        
+        public double notional() {
+            double total = 0;
+            for (int i = 0; i < quantities.length; i++) {
+                total += quantities[i] * prices[i];
+            }
+            return total;
+        }
+        
+        // Quantity traded per symbol ID
+        public long[] volumeBySymbol() {
+            long[] volume = new long[symbolNames.length];
+            for (int i = 0; i < symbolIds.length; i++) {
+                volume[symbolIds[i]] += quantities[i];
+            }
+            return volume;
+        }
+        
+        public long volume(int symbolId, char side) {
+            long total = 0;
+            for (int i = 0; i < symbolIds.length; i++) {
+                total += (symbolIds[i] == symbolId && sides[i] == side) ? quantities[i] : 0;
+            }
+            return total;
+        }
+    }
+}
+
+// ============================================================================
+// FIX LOG SCANNING
+// ============================================================================
+
+// Helpers for reading FileLog message logs without building quickfix.Message
+// objects. A log is split into ranges that end on a line break so each range
+// can be mapped and parsed on its own.
+class FixLogChunks {
+    public static final long DEFAULT_CHUNK_BYTES = 32L * 1024 * 1024;
+    static final byte SOH = 1;
+    
+    // [start, end) byte ranges covering the file, each ending after a '\n'
+    static List<long[]> split(File file, long chunkBytes) throws IOException {
+        List<long[]> ranges = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer probe = ByteBuffer.allocate(4096);
+            long start = 0;
+            while (start < size) {
+                long end = chunkBytes >= size - start ? size : start + chunkBytes;
+                // Extend to the end of the line that straddles the boundary
+                while (end < size) {
+                    probe.clear();
+                    int read = channel.read(probe, end);
+                    int newline = -1;
+                    for (int i = 0; i < read; i++) {
+                        if (probe.get(i) == '\n') {
+                            newline = i;
+                            break;
+                        }
+                    }
+                    if (newline >= 0) {
+                        end += newline + 1;
+                        break;
+                    }
+                    end += Math.max(read, 0);
+                }
+                ranges.add(new long[] { start, Math.min(end, size) });
+                start = end;
+            }
+        }
+        return ranges;
+    }
+    
+    static ByteBuffer map(File file, long start, long end) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        }
+    }
+    
+    // A line-aligned slice of a live log, a rolled segment or a compressed archive
+    static final class Range {
+        final File file;
+        final long start;
+        final long end;
+        
+        Range(File file, long start, long end) {
+            this.file = file;
+            this.start = start;
+            this.end = end;
+        }
+        
+        ByteBuffer map() throws IOException {
+            if (BlockGzipFile.isArchive(file)) {
+                return ByteBuffer.wrap(BlockGzipFile.open(file).read(start, (int) (end - start)));
+            }
+            return FixLogChunks.map(file, start, end);
+        }
+    }
+    
+    // Ranges over a session's segments in order. Archive ranges are runs of whole
+    // index blocks, so only those blocks are inflated.
+    static List<Range> split(List<File> segments, long chunkBytes) throws IOException {
+        List<Range> ranges = new ArrayList<>();
+        for (File segment : segments) {
+            if (BlockGzipFile.isArchive(segment)) {
+                BlockGzipFile archive = BlockGzipFile.open(segment);
+                int blocks = archive.getBlockCount();
+                for (int first = 0; first < blocks; ) {
+                    int last = first + 1;
+                    while (last < blocks && archive.getBlockOffset(last) - archive.getBlockOffset(first) < chunkBytes) {
+                        last++;
+                    }
+                    long end = last < blocks ? archive.getBlockOffset(last) : archive.getUncompressedSize();
+                    ranges.add(new Range(segment, archive.getBlockOffset(first), end));
+                    first = last;
+                }
+            } else {
+                for (long[] range : split(segment, chunkBytes)) {
+                    ranges.add(new Range(segment, range[0], range[1]));
+                }
+            }
+        }
+        return ranges;
+    }
+    
+    static long uncompressedSize(File segment) throws IOException {
+        return BlockGzipFile.isArchive(segment) ? BlockGzipFile.open(segment).getUncompressedSize() : segment.length();
+    }
+    
+    // FileLog message logs and their rolled or archived segments
+    static boolean isMessageLog(String name) {
+        return name.contains(".messages.log") && !name.endsWith(".idx") && !name.endsWith(".tmp");
+    }
+    
+    // Session name from a FileLog file name, e.g. FIX.4.4-SENDER-TARGET
+    static String sessionOf(File log) {
+        String name = log.getName();
+        int suffix = name.indexOf(".messages.log");
+        return suffix > 0 ? name.substring(0, suffix) : name;
+    }
+    
+    // Segments grouped by session, oldest first and the live log last
+    static Map<String, List<File>> bySession(List<File> logs) {
+        Map<String, List<File>> sessions = new LinkedHashMap<>();
+        for (File log : logs) {
+            sessions.computeIfAbsent(sessionOf(log), s -> new ArrayList<>()).add(log);
+        }
+        for (List<File> segments : sessions.values()) {
+            segments.sort(Comparator.comparing(FixLogChunks::segmentKey));
+        }
+        return sessions;
+    }
+    
+    // .messages.log.20261018-120000-2.gz sorts as 20261018-120000 0000000002
+    private static String segmentKey(File segment) {
+        String name = segment.getName();
+        int at = name.indexOf(".messages.log");
+        String suffix = at < 0 ? "" : name.substring(at + ".messages.log".length());
+        if (suffix.endsWith(BlockGzipFile.SUFFIX)) {
+            suffix = suffix.substring(0, suffix.length() - BlockGzipFile.SUFFIX.length());
+        }
+        if (suffix.length() < 16) {
+            return "~";     // the live log
+        }
+        String stamp = suffix.substring(1, 16);
+        String n = suffix.length() > 17 ? suffix.substring(17) : "0";
+        return stamp + String.format("%10s", n);
+    }
+    
+    // Tag positions of one message line, reused from line to line
+    static final class Fields {
+        private int[] tags = new int[64];
+        private int[] starts = new int[64];
+        private int[] ends = new int[64];
+        private int count;
+        private ByteBuffer buffer;
+        private int lineStart;
+        private int messageStart;
+        
+        private boolean message;
+        
+        // Parses the line starting at `from` in one pass and returns where the next
+        // line starts; hasMessage() tells whether the line held a FIX message
+        int parseLine(ByteBuffer buffer, int from, int limit) {
+            this.buffer = buffer;
+            this.lineStart = from;
+            count = 0;
+            message = false;
+            // FileLog may prefix a "yyyyMMdd-HH:mm:ss.SSS: " timestamp
+            int pos = from;
+            byte b = 0;
+            while (pos + 1 < limit && (b = buffer.get(pos)) != '\n' && !(b == '8' && buffer.get(pos + 1) == '=')) {
+                pos++;
+            }
+            if (pos + 1 >= limit || b == '\n') {
+                return skipLine(buffer, pos, limit);
+            }
+            message = true;
+            messageStart = pos;
+            while (pos < limit) {
+                int tag = 0;
+                while (pos < limit && (b = buffer.get(pos)) != '=') {
+                    if (b == '\n') {
+                        return pos + 1;
+                    }
+                    tag = tag * 10 + (b - '0');
+                    pos++;
+                }
+                int valueStart = ++pos;
+                while (pos < limit && (b = buffer.get(pos)) != SOH && b != '\n') {
+                    pos++;
+                }
+                if (count == tags.length) {
+                    tags = Arrays.copyOf(tags, count * 2);
+                    starts = Arrays.copyOf(starts, count * 2);
+                    ends = Arrays.copyOf(ends, count * 2);
+                }
+                tags[count] = tag;
+                starts[count] = valueStart;
+                ends[count] = pos;
+                count++;
+                pos++;
+                if (b == '\n') {
+                    return pos;
+                }
+            }
+            return limit;
+        }
+        
+        private static int skipLine(ByteBuffer buffer, int pos, int limit) {
+            while (pos < limit && buffer.get(pos) != '\n') {
+                pos++;
+            }
+            return pos + 1;
+        }
+        
+        boolean hasMessage() { return message; }
+        
+        int find(int tag) {
+            for (int i = 0; i < count; i++) {
+                if (tags[i] == tag) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        
+        // First character of the tag's value, or 0 if absent
+        char charValue(int tag) {
+            int i = find(tag);
+            return i >= 0 && ends[i] > starts[i] ? (char) buffer.get(starts[i]) : 0;
+        }
+        
+        // 64-bit hash of the tag's value bytes (as ClOrdIdFilter.hash), or 0 if absent
+        long hash(int tag) {
+            int i = find(tag);
+            if (i < 0) {
+                return 0;
+            }
+            long h = 0xCBF29CE484222325L;
+            for (int k = starts[i]; k < ends[i]; k++) {
+                h = (h ^ (buffer.get(k) & 0xFF)) * 0x100000001B3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xFF51AFD7ED558CCDL;
+            h ^= h >>> 33;
+            h *= 0xC4CEB93FE1A85EC5L;
+            return h ^ (h >>> 33);
+        }
+        
+        String value(int tag) {
+            int i = find(tag);
+            if (i < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[ends[i] - starts[i]];
+            for (int k = 0; k < bytes.length; k++) {
+                bytes[k] = buffer.get(starts[i] + k);
+            }
+            return new String(bytes, StandardCharsets.US_ASCII);
+        }
+        
+        int lineStart() { return lineStart; }
+        int messageStart() { return messageStart; }
+        
+        private int cachedDate = -1;
+        private long cachedDayMicros;
+        
+        // FileLog "yyyyMMdd-HH:mm:ss[.fraction]: " prefix as UTC epoch microseconds, or -1
+        long timestampMicros() {
+            int p = lineStart;
+            if (messageStart - p < 17 || buffer.get(p + 8) != '-') {
+                return -1;
+            }
+            int date = digits(p, 8);
+            if (date != cachedDate) {
+                cachedDayMicros = LocalDate.of(date / 10000, date / 100 % 100, date % 100).toEpochDay() 
+                    * 86_400_000_000L;
+                cachedDate = date;
+            }
+            long micros = ((digits(p + 9, 2) * 60L + digits(p + 12, 2)) * 60L + digits(p + 15, 2)) * 1_000_000L;
+            p += 17;
+            if (buffer.get(p) == '.') {
+                long scale = 100_000;
+                while (++p < messageStart && buffer.get(p) >= '0' && buffer.get(p) <= '9') {
+                    micros += (buffer.get(p) - '0') * scale;
+                    scale /= 10;
+                }
+            }
+            return cachedDayMicros + micros;
+        }
+        
+        private int digits(int from, int length) {
+            int value = 0;
+            for (int i = from; i < from + length; i++) {
+                value = value * 10 + (buffer.get(i) - '0');
+            }
+            return value;
+        }
+    }
+}
+
+// ============================================================================
+// END-OF-DAY REPORT
+// ============================================================================
+
+// Rebuilds the day's per-symbol and per-session figures from the fill capture
+// file and the server's message logs. Both inputs are cut into ranges that are
+// aggregated in parallel on a ForkJoinPool; per-range totals are plain sums, so
+// merging them is exact and the order of merging does not matter. Feed it one
+// side's logs (normally logs/server) so each message is counted once.
+class EodReport {
+    private static final int FILL_ROWS_PER_TASK = 1 << 16;
+    
+    public static final class SymbolSummary {
+        public final String symbol;
+        public final long fills;
+        public final long volume;
+        public final long buyVolume;
+        public final double notional;
+        public final long orders;
+        public final long filledOrders;
+        public final long canceledOrders;
+        
+        SymbolSummary(String symbol, long fills, long volume, long buyVolume, double notional,
+                long orders, long filledOrders, long canceledOrders) {
+            this.symbol = symbol;
+            this.fills = fills;
+            this.volume = volume;
+            this.buyVolume = buyVolume;
+            this.notional = notional;
+            this.orders = orders;
+            this.filledOrders = filledOrders;
+            this.canceledOrders = canceledOrders;
+        }
+        
+        public double getVwap() { return volume > 0 ? notional / volume : 0; }
+        public long getSellVolume() { return volume - buyVolume; }
+        public double getFillRatio() { return orders > 0 ? (double) filledOrders / orders : 0; }
+        public double getCancelRate() { return orders > 0 ? (double) canceledOrders / orders : 0; }
+    }
+    
+    public static final class SessionSummary {
+        public final String session;
+        public final long newOrders;
+        public final long cancelRequests;
+        public final long replaceRequests;
+        public final long executions;
+        public final long filledOrders;
+        public final long canceledOrders;
+        public final long rejectedOrders;
+        
+        SessionSummary(String session, OrderFlowTotals totals) {
+            this.session = session;
+            this.newOrders = totals.newOrders;
+            this.cancelRequests = totals.cancelRequests;
+            this.replaceRequests = totals.replaceRequests;
+            this.executions = totals.executions;
+            this.filledOrders = totals.filledOrders;
+            this.canceledOrders = totals.canceledOrders;
+            this.rejectedOrders = totals.rejectedOrders;
+        }
+        
+        public double getFillRatio() { return newOrders > 0 ? (double) filledOrders / newOrders : 0; }
+        public double getCancelRate() { return newOrders > 0 ? (double) canceledOrders / newOrders : 0; }
+    }
+    
+    // Per-symbol fill sums, indexed by the fill file's symbol IDs
+    static final class FillTotals {
+        final long[] fills;
+        final long[] volume;
+        final long[] buyVolume;
+        final double[] notional;
+        
+        FillTotals(int symbols) {
+            fills = new long[symbols];
+            volume = new long[symbols];
+            buyVolume = new long[symbols];
+            notional = new double[symbols];
+        }
+        
+        FillTotals merge(FillTotals other) {
+            for (int i = 0; i < fills.length; i++) {
+                fills[i] += other.fills[i];
+                volume[i] += other.volume[i];
+                buyVolume[i] += other.buyVolume[i];
+                notional[i] += other.notional[i];
+            }
+            return this;
+        }
+    }
+    
+    static final class OrderFlowTotals {
+        long newOrders;
+        long cancelRequests;
+        long replaceRequests;
+        long executions;
+        long filledOrders;
+        long canceledOrders;
+        long rejectedOrders;
+        // Symbol -> {orders, filled, canceled}
+        final Map<String, long[]> bySymbol = new HashMap<>();
+        
+        OrderFlowTotals merge(OrderFlowTotals other) {
+            newOrders += other.newOrders;
+            cancelRequests += other.cancelRequests;
+            replaceRequests += other.replaceRequests;
+            executions += other.executions;
+            filledOrders += other.filledOrders;
+            canceledOrders += other.canceledOrders;
+            rejectedOrders += other.rejectedOrders;
+            other.bySymbol.forEach((symbol, counts) -> {
+                long[] mine = bySymbol.computeIfAbsent(symbol, s -> new long[3]);
+                for (int i = 0; i < mine.length; i++) {
+                    mine[i] += counts[i];
+                }
+            });
+            return this;
+        }
+        
+        void count(FixLogChunks.Fields fields) {
+            switch (fields.charValue(35)) {
+                case 'D':
+                    newOrders++;
+                    bump(fields, 0);
+                    break;
+                case 'F':
+                    cancelRequests++;
+                    break;
+                case 'G':
+                    replaceRequests++;
+                    break;
+                case '8':
+                    char execType = fields.charValue(150);
+                    if (execType == ExecType.TRADE || execType == ExecType.PARTIAL_FILL || execType == ExecType.FILL) {
+                        executions++;
+                        if (fields.charValue(39) == OrdStatus.FILLED) {
+                            filledOrders++;
+                            bump(fields, 1);
+                        }
+                    } else if (execType == ExecType.CANCELED) {
+                        canceledOrders++;
+                        bump(fields, 2);
+                    } else if (execType == ExecType.REJECTED) {
+                        rejectedOrders++;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        
+        private void bump(FixLogChunks.Fields fields, int column) {
+            String symbol = fields.value(55);
+            if (symbol != null) {
+                bySymbol.computeIfAbsent(symbol, s -> new long[3])[column]++;
+            }
+        }
+    }
+    
+    private static final class FillTask extends RecursiveTask<FillTotals> {
+        private static final long serialVersionUID = 1L;
+        
+        private final FillCapture.Fills fills;
+        private final int from;
+        private final int to;
+        
+        FillTask(FillCapture.Fills fills, int from, int to) {
+            this.fills = fills;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected FillTotals compute() {
+            if (to - from > FILL_ROWS_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                FillTask left = new FillTask(fills, from, mid);
+                left.fork();
+                FillTotals right = new FillTask(fills, mid, to).compute();
+                return left.join().merge(right);
+            }
+            FillTotals totals = new FillTotals(fills.symbolNames.length);
+            int[] symbolIds = fills.symbolIds;
+            int[] quantities = fills.quantities;
+            double[] prices = fills.prices;
+            byte[] sides = fills.sides;
+            for (int i = from; i < to; i++) {
+                int id = symbolIds[i];
+                totals.fills[id]++;
+                totals.volume[id] += quantities[i];
+                totals.notional[id] += quantities[i] * prices[i];
+                if (sides[i] == Side.BUY) {
+                    totals.buyVolume[id] += quantities[i];
+                }
+            }
+            return totals;
+        }
+    }
+    
+    private static final class LogTask extends RecursiveTask<OrderFlowTotals> {
+        private static final long serialVersionUID = 1L;
+        
+        private final List<FixLogChunks.Range> ranges;
+        private final int from;
+        private final int to;
+        
+        LogTask(List<FixLogChunks.Range> ranges, int from, int to) {
+            this.ranges = ranges;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected OrderFlowTotals compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                LogTask left = new LogTask(ranges, from, mid);
+                left.fork();
+                OrderFlowTotals right = new LogTask(ranges, mid, to).compute();
+                return left.join().merge(right);
+            }
+            OrderFlowTotals totals = new OrderFlowTotals();
+            ByteBuffer buffer;
+            try {
+                buffer = ranges.get(from).map();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            FixLogChunks.Fields fields = new FixLogChunks.Fields();
+            int limit = buffer.limit();
+            for (int pos = 0; pos < limit; ) {
+                pos = fields.parseLine(buffer, pos, limit);
+                if (fields.hasMessage()) {
+                    totals.count(fields);
+                }
+            }
+            return totals;
+        }
+    }
+    
+    private final List<SymbolSummary> symbols;
+    private final List<SessionSummary> sessions;
+    
+    private EodReport(List<SymbolSummary> symbols, List<SessionSummary> sessions) {
+        this.symbols = symbols;
+        this.sessions = sessions;
+    }
+    
+    public List<SymbolSummary> getSymbols() { return symbols; }
+    public List<SessionSummary> getSessions() { return sessions; }
+    
+    public SymbolSummary getSymbol(String symbol) {
+        for (SymbolSummary summary : symbols) {
+            if (summary.symbol.equals(symbol)) {
+                return summary;
+            }
+        }
+        return null;
+    }
+    
+    public static EodReport build(File fillFile, List<File> logs) throws IOException {
+        return build(fillFile, logs, ForkJoinPool.commonPool(), FixLogChunks.DEFAULT_CHUNK_BYTES);
+    }
+    
+    // fillFile may be null or missing; logs are FileLog *.messages.log files and
+    // their rolled or archived segments
+    static EodReport build(File fillFile, List<File> logs, ForkJoinPool pool, long chunkBytes) 
+            throws IOException {
+        List<String> sessionNames = new ArrayList<>();
+        List<ForkJoinTask<OrderFlowTotals>> logTasks = new ArrayList<>();
+        for (Map.Entry<String, List<File>> session : FixLogChunks.bySession(logs).entrySet()) {
+            List<FixLogChunks.Range> ranges = FixLogChunks.split(session.getValue(), chunkBytes);
+            sessionNames.add(session.getKey());
+            logTasks.add(ranges.isEmpty() ? null : pool.submit(new LogTask(ranges, 0, ranges.size())));
+        }
+        FillCapture.Fills fills = fillFile != null && fillFile.exists() ? FillCapture.read(fillFile) : null;
+        FillTotals fillTotals = fills == null || fills.size() == 0 
+            ? null : pool.invoke(new FillTask(fills, 0, fills.size()));
+        
+        try {
+            List<SessionSummary> sessions = new ArrayList<>();
+            OrderFlowTotals allFlow = new OrderFlowTotals();
+            for (int i = 0; i < sessionNames.size(); i++) {
+                OrderFlowTotals flow = logTasks.get(i) != null ? logTasks.get(i).join() : new OrderFlowTotals();
+                sessions.add(new SessionSummary(sessionNames.get(i), flow));
+                allFlow.merge(flow);
+            }
+            
+            Map<String, SymbolSummary> bySymbol = new TreeMap<>();
+            if (fillTotals != null) {
+                for (int id = 0; id < fillTotals.fills.length; id++) {
+                    String symbol = fills.symbolName(id);
+                    long[] flow = allFlow.bySymbol.getOrDefault(symbol, new long[3]);
+                    bySymbol.put(symbol, new SymbolSummary(symbol, fillTotals.fills[id], fillTotals.volume[id],
+                        fillTotals.buyVolume[id], fillTotals.notional[id], flow[0], flow[1], flow[2]));
+                }
+            }
+            allFlow.bySymbol.forEach((symbol, flow) -> bySymbol.putIfAbsent(symbol, 
+                new SymbolSummary(symbol, 0, 0, 0, 0, flow[0], flow[1], flow[2])));
+            return new EodReport(new ArrayList<>(bySymbol.values()), sessions);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+    
+    public void print(PrintStream out) {
+        out.println("\n=== END OF DAY: SYMBOLS ===");
+        out.printf("%-10s %8s %12s %12s %12s %10s %8s %8s%n", 
+            "Symbol", "Fills", "Volume", "Bought", "Sold", "VWAP", "Fill%", "Cxl%");
+        for (SymbolSummary s : symbols) {
+            out.printf("%-10s %8d %12d %12d %12d %10.4f %7.1f%% %7.1f%%%n", s.symbol, s.fills, s.volume,
+                s.buyVolume, s.getSellVolume(), s.getVwap(), s.getFillRatio() * 100, s.getCancelRate() * 100);
+        }
+        out.println("\n=== END OF DAY: SESSIONS ===");
+        out.printf("%-40s %8s %8s %8s %8s %8s %8s %8s%n", 
+            "Session", "Orders", "Cancels", "Replaces", "Execs", "Rejects", "Fill%", "Cxl%");
+        for (SessionSummary s : sessions) {
+            out.printf("%-40s %8d %8d %8d %8d %8d %7.1f%% %7.1f%%%n", s.session, s.newOrders, s.cancelRequests,
+                s.replaceRequests, s.executions, s.rejectedOrders, s.getFillRatio() * 100, s.getCancelRate() * 100);
+        }
+    }
+}
+
+// ============================================================================
+// FIX LOG LATENCY ANALYZER
+// ============================================================================
+
+// Offline order-to-ack latency from FileLog message logs written with
+// FileIncludeTimeStampForMessages=Y. Each log is mapped in line-aligned ranges
+// that are parsed in parallel. A NewOrderSingle is joined to the first
+// ExecutionReport with the same ClOrdID, keyed by a 64-bit hash of the ID bytes.
+// Within a range the join runs on a primitive open-addressing table. A range
+// hands on the orders it could not close and the first reports it could not
+// place, and neighbouring ranges join those when their results merge, so an
+// order whose ack falls in the next range still counts.
+class FixLogAnalyzer {
+    private static final int ACKED = -1;
+    
+    private static final class PendingOrder {
+        final long micros;
+        final String symbol;
+        
+        PendingOrder(long micros, String symbol) {
+            this.micros = micros;
+            this.symbol = symbol;
+        }
+    }
+    
+    // Latency counts laid out as LatencyHistogram.snapshot(), plus the maximum
+    private static final class Counts {
+        final long[] buckets = new long[LatencyHistogram.bucketCount()];
+        long max;
+        
+        void record(long value) {
+            buckets[LatencyHistogram.bucketOf(Math.max(value, 0))]++;
+            max = Math.max(max, value);
+        }
+        
+        void add(Counts other) {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] += other.buckets[i];
+            }
+            max = Math.max(max, other.max);
+        }
+    }
+    
+    // Hash key -> (time, int value); grows at half full. Keys of 0 are stored as 1.
+    private static final class HashTable {
+        long[] keys = new long[1 << 12];
+        long[] times = new long[keys.length];
+        int[] values = new int[keys.length];
+        int size;
+        
+        int find(long key) {
+            key = key == 0 ? 1 : key;
+            int mask = keys.length - 1;
+            for (int slot = (int) key & mask; ; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return slot;
+                }
+                if (keys[slot] == 0) {
+                    return -1;
+                }
+            }
+        }
+        
+        void put(long key, long time, int value) {
+            if (size * 2 >= keys.length) {
+                rehash();
+            }
+            key = key == 0 ? 1 : key;
+            int mask = keys.length - 1;
+            int slot = (int) key & mask;
+            while (keys[slot] != 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (keys[slot] == 0) {
+                size++;
+            }
+            keys[slot] = key;
+            times[slot] = time;
+            values[slot] = value;
+        }
+        
+        private void rehash() {
+            long[] oldKeys = keys;
+            long[] oldTimes = times;
+            int[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            times = new long[keys.length];
+            values = new int[keys.length];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    put(oldKeys[i], oldTimes[i], oldValues[i]);
+                }
+            }
+        }
+    }
+    
+    private static final class RangeResult {
+        final Counts all = new Counts();
+        final List<String> symbols = new ArrayList<>();
+        final List<Counts> symbolCounts = new ArrayList<>();
+        final Map<String, Integer> symbolIndex = new HashMap<>();
+        final Counts[] byHour = new Counts[24];
+        final Map<Long, PendingOrder> unacked = new HashMap<>();
+        final Map<Long, Long> unplacedAcks = new HashMap<>();
+        long matched;
+        
+        int indexOf(String symbol) {
+            Integer index = symbolIndex.get(symbol);
+            if (index == null) {
+                index = symbols.size();
+                symbols.add(symbol);
+                symbolCounts.add(new Counts());
+                symbolIndex.put(symbol, index);
+            }
+            return index;
+        }
+        
+        void record(int symbol, long orderMicros, long ackMicros) {
+            long latency = ackMicros - orderMicros;
+            int hour = (int) (orderMicros / 3_600_000_000L % 24);
+            all.record(latency);
+            symbolCounts.get(symbol).record(latency);
+            if (byHour[hour] == null) {
+                byHour[hour] = new Counts();
+            }
+            byHour[hour].record(latency);
+            matched++;
+        }
+        
+        // `later` covers the byte range right after this one
+        RangeResult merge(RangeResult later) {
+            for (Map.Entry<Long, Long> ack : later.unplacedAcks.entrySet()) {
+                PendingOrder order = unacked.remove(ack.getKey());
+                if (order != null) {
+                    record(indexOf(order.symbol), order.micros, ack.getValue());
+                } else {
+                    unplacedAcks.putIfAbsent(ack.getKey(), ack.getValue());
+                }
+            }
+            unacked.putAll(later.unacked);
+            all.add(later.all);
+            for (int i = 0; i < later.symbols.size(); i++) {
+                symbolCounts.get(indexOf(later.symbols.get(i))).add(later.symbolCounts.get(i));
+            }
+            for (int h = 0; h < 24; h++) {
+                if (later.byHour[h] != null) {
+                    if (byHour[h] == null) {
+                        byHour[h] = new Counts();
+                    }
+                    byHour[h].add(later.byHour[h]);
+                }
+            }
+            matched += later.matched;
+            return this;
+        }
+    }
+    
+    private static final class RangeTask extends RecursiveTask<RangeResult> {
+        private static final long serialVersionUID = 1L;
+        
+        private final List<FixLogChunks.Range> ranges;
+        private final int from;
+        private final int to;
+        
+        RangeTask(List<FixLogChunks.Range> ranges, int from, int to) {
+            this.ranges = ranges;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected RangeResult compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                RangeTask earlier = new RangeTask(ranges, from, mid);
+                earlier.fork();
+                RangeResult later = new RangeTask(ranges, mid, to).compute();
+                return earlier.join().merge(later);
+            }
+            ByteBuffer buffer;
+            try {
+                buffer = ranges.get(from).map();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            RangeResult result = new RangeResult();
+            HashTable orders = new HashTable();     // ClOrdID -> (order time, symbol index or ACKED)
+            HashTable symbols = new HashTable();    // symbol -> (unused, symbol index)
+            FixLogChunks.Fields fields = new FixLogChunks.Fields();
+            int limit = buffer.limit();
+            for (int pos = 0; pos < limit; ) {
+                pos = fields.parseLine(buffer, pos, limit);
+                if (!fields.hasMessage()) {
+                    continue;
+                }
+                char msgType = fields.charValue(35);
+                if (msgType != 'D' && msgType != '8') {
+                    continue;
+                }
+                long micros = fields.timestampMicros();
+                long clOrdID = fields.hash(11);
+                if (micros < 0 || clOrdID == 0) {
+                    continue;
+                }
+                if (msgType == 'D') {
+                    long symbolHash = fields.hash(55);
+                    int slot = symbols.find(symbolHash);
+                    int symbol;
+                    if (slot >= 0) {
+                        symbol = symbols.values[slot];
+                    } else {
+                        String name = fields.value(55);
+                        symbol = result.indexOf(name != null ? name : "?");
+                        symbols.put(symbolHash, 0, symbol);
+                    }
+                    orders.put(clOrdID, micros, symbol);
+                } else {
+                    int slot = orders.find(clOrdID);
+                    if (slot < 0) {
+                        result.unplacedAcks.putIfAbsent(clOrdID, micros);
+                    } else if (orders.values[slot] != ACKED) {
+                        result.record(orders.values[slot], orders.times[slot], micros);
+                        orders.values[slot] = ACKED;
+                    }
+                }
+            }
+            for (int slot = 0; slot < orders.keys.length; slot++) {
+                if (orders.keys[slot] != 0 && orders.values[slot] != ACKED) {
+                    result.unacked.put(orders.keys[slot], new PendingOrder(orders.times[slot], 
+                        result.symbols.get(orders.values[slot])));
+                }
+            }
+            return result;
+        }
+    }
+    
+    // Latency distributions in microseconds
+    public static final class Report {
+        private final Map<String, LatencyHistogram> bySession = new TreeMap<>();
+        private final Map<String, LatencyHistogram> bySymbol = new TreeMap<>();
+        private final Map<Integer, LatencyHistogram> byHour = new TreeMap<>();
+        private final LatencyHistogram all = new LatencyHistogram();
+        private long matched;
+        private long unacked;
+        private long bytes;
+        private long elapsedNanos;
+        
+        private static LatencyHistogram histogramOf(Counts counts) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.add(counts.buckets, counts.max);
+            return histogram;
+        }
+        
+        void add(String session, RangeResult result) {
+            LatencyHistogram sessionHistogram = histogramOf(result.all);
+            bySession.put(session, sessionHistogram);
+            all.merge(sessionHistogram);
+            for (int i = 0; i < result.symbols.size(); i++) {
+                bySymbol.computeIfAbsent(result.symbols.get(i), s -> new LatencyHistogram())
+                    .merge(histogramOf(result.symbolCounts.get(i)));
+            }
+            for (int h = 0; h < 24; h++) {
+                if (result.byHour[h] != null) {
+                    byHour.computeIfAbsent(h, x -> new LatencyHistogram()).merge(histogramOf(result.byHour[h]));
+                }
+            }
+            matched += result.matched;
+            unacked += result.unacked.size();
+        }
+        
+        public Map<String, LatencyHistogram> getBySession() { return bySession; }
+        public Map<String, LatencyHistogram> getBySymbol() { return bySymbol; }
+        public Map<Integer, LatencyHistogram> getByHour() { return byHour; }
+        public LatencyHistogram getAll() { return all; }
+        public long getMatchedCount() { return matched; }
+        public long getUnackedCount() { return unacked; }
+        public long getBytes() { return bytes; }
+        public double getGigabytesPerSecond() { 
+            return elapsedNanos > 0 ? bytes / (double) elapsedNanos : 0; 
+        }
+        
+        public void print(PrintStream out) {
+            out.printf("%n=== ORDER-TO-ACK LATENCY (µs) === %d orders, %d unacked, %.2f GB/s%n",
+                matched, unacked, getGigabytesPerSecond());
+            out.printf("%-40s %10s %10s %10s %10s %10s%n", "", "Count", "p50", "p90", "p99", "Max");
+            printRow(out, "ALL", all);
+            bySession.forEach((session, h) -> printRow(out, "session " + session, h));
+            bySymbol.forEach((symbol, h) -> printRow(out, "symbol " + symbol, h));
+            byHour.forEach((hour, h) -> printRow(out, String.format("hour %02d:00 UTC", hour), h));
+        }
+        
+        private static void printRow(PrintStream out, String label, LatencyHistogram h) {
+            out.printf("%-40s %10d %10d %10d %10d %10d%n", label, h.getCount(), h.getValueAtPercentile(50),
+                h.getValueAtPercentile(90), h.getValueAtPercentile(99), h.getMax());
+        }
+    }
+    
+    public static Report analyze(List<File> logs) throws IOException {
+        return analyze(logs, ForkJoinPool.commonPool(), FixLogChunks.DEFAULT_CHUNK_BYTES);
+    }
+    
+    static Report analyze(List<File> logs, ForkJoinPool pool, long chunkBytes) throws IOException {
+        long start = System.nanoTime();
+        Report report = new Report();
+        List<String> sessions = new ArrayList<>();
+        List<ForkJoinTask<RangeResult>> tasks = new ArrayList<>();
+        // A session's rolled segments form one sequence of ranges, so orders acked
+        // after a rollover still join
+        for (Map.Entry<String, List<File>> session : FixLogChunks.bySession(logs).entrySet()) {
+            List<FixLogChunks.Range> ranges = FixLogChunks.split(session.getValue(), chunkBytes);
+            sessions.add(session.getKey());
+            tasks.add(ranges.isEmpty() ? null : pool.submit(new RangeTask(ranges, 0, ranges.size())));
+            for (File segment : session.getValue()) {
+                report.bytes += FixLogChunks.uncompressedSize(segment);
+            }
+        }
+        try {
+            for (int i = 0; i < sessions.size(); i++) {
+                RangeResult result = tasks.get(i) != null ? tasks.get(i).join() : new RangeResult();
+                report.add(sessions.get(i), result);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        report.elapsedNanos = System.nanoTime() - start;
+        return report;
+    }
+}
+
+// ============================================================================
+// LOG ROLLOVER AND ARCHIVING
+// ============================================================================
+
+// A closed log or store segment compressed as a series of independent gzip
+// members (so `zcat` still reads it whole) plus a sidecar `.idx` that maps each
+// member to its uncompressed range. read() inflates only the members that
+// overlap the requested range. Log segments are cut on line breaks, so every
+// member holds whole lines and can be parsed on its own.
+class BlockGzipFile {
+    public static final String SUFFIX = ".gz";
+    public static final String INDEX_SUFFIX = ".gz.idx";
+    public static final int DEFAULT_BLOCK_BYTES = 1 << 20;
+    private static final int MAGIC = 0x425A4958;   // "BZIX"
+    
+    private final File file;
+    private final long[] uncompressedOffsets;
+    private final int[] uncompressedLengths;
+    private final long[] compressedOffsets;
+    private final int[] compressedLengths;
+    
+    private BlockGzipFile(File file, long[] uncompressedOffsets, int[] uncompressedLengths,
+            long[] compressedOffsets, int[] compressedLengths) {
+        this.file = file;
+        this.uncompressedOffsets = uncompressedOffsets;
+        this.uncompressedLengths = uncompressedLengths;
+        this.compressedOffsets = compressedOffsets;
+        this.compressedLengths = compressedLengths;
+    }
+    
+    public static boolean isArchive(File file) {
+        return file.getName().endsWith(SUFFIX) && indexOf(file).exists();
+    }
+    
+    static File indexOf(File archive) {
+        return new File(archive.getPath() + ".idx");
+    }
+    
+    public static BlockGzipFile open(File archive) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(indexOf(archive))))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a block index: " + indexOf(archive));
+            }
+            int count = in.readInt();
+            long[] uOffsets = new long[count];
+            int[] uLengths = new int[count];
+            long[] cOffsets = new long[count];
+            int[] cLengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                uOffsets[i] = in.readLong();
+                cOffsets[i] = in.readLong();
+                uLengths[i] = in.readInt();
+                cLengths[i] = in.readInt();
+            }
+            return new BlockGzipFile(archive, uOffsets, uLengths, cOffsets, cLengths);
+        }
+    }
+    
+    public File getFile() { return file; }
+    public int getBlockCount() { return uncompressedOffsets.length; }
+    public long getBlockOffset(int block) { return uncompressedOffsets[block]; }
+    
+    public long getUncompressedSize() {
+        int last = uncompressedOffsets.length - 1;
+        return last < 0 ? 0 : uncompressedOffsets[last] + uncompressedLengths[last];
+    }
+    
+    public byte[] readBlock(int block) throws IOException {
+        byte[] compressed = new byte[compressedLengths[block]];
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.wrap(compressed);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, compressedOffsets[block] + buffer.position()) < 0) {
+                    throw new EOFException("Archive truncated: " + file);
+                }
+            }
+        }
+        byte[] block0 = new byte[uncompressedLengths[block]];
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            int read = 0;
+            while (read < block0.length) {
+                int n = in.read(block0, read, block0.length - read);
+                if (n < 0) {
+                    throw new EOFException("Archive block " + block + " short in " + file);
+                }
+                read += n;
+            }
+        }
+        return block0;
+    }
+    
+    // Uncompressed bytes [offset, offset + length), inflating only the overlapping blocks
+    public byte[] read(long offset, int length) throws IOException {
+        byte[] out = new byte[length];
+        int block = Arrays.binarySearch(uncompressedOffsets, offset);
+        if (block < 0) {
+            block = -block - 2;
+        }
+        int copied = 0;
+        for (; copied < length && block >= 0 && block < uncompressedOffsets.length; block++) {
+            byte[] data = readBlock(block);
+            int from = (int) (offset + copied - uncompressedOffsets[block]);
+            int n = Math.min(data.length - from, length - copied);
+            System.arraycopy(data, from, out, copied, n);
+            copied += n;
+        }
+        if (copied < length) {
+            throw new EOFException("Range past end of archive: " + file);
+        }
+        return out;
+    }
+    
+    // Writes source as target.gz plus target.gz.idx; the throttle is charged per block
+    static void compress(File source, File target, int blockBytes, boolean lineAligned, 
+            LogArchiver.Throttle throttle) throws IOException {
+        File temp = new File(target.getPath() + ".tmp");
+        File tempIndex = new File(indexOf(target).getPath() + ".tmp");
+        List<long[]> blocks = new ArrayList<>();
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                 StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(blockBytes);
+            ByteArrayOutputStream member = new ByteArrayOutputStream(blockBytes / 4);
+            long uncompressed = 0;
+            long compressed = 0;
+            boolean eof = false;
+            while (!eof || buffer.position() > 0) {
+                while (!eof && buffer.hasRemaining()) {
+                    eof = in.read(buffer) < 0;
+                }
+                int end = buffer.position();
+                if (lineAligned && !eof) {
+                    // Keep the partial last line for the next block, unless there is no line break at all
+                    int cut = end;
+                    while (cut > 0 && buffer.get(cut - 1) != '\n') {
+                        cut--;
+                    }
+                    end = cut > 0 ? cut : end;
+                }
+                member.reset();
+                try (GZIPOutputStream gzip = new GZIPOutputStream(member, 65536)) {
+                    gzip.write(buffer.array(), 0, end);
+                }
+                ByteBuffer packed = ByteBuffer.wrap(member.toByteArray());
+                while (packed.hasRemaining()) {
+                    out.write(packed);
+                }
+                blocks.add(new long[] { uncompressed, compressed, end, member.size() });
+                uncompressed += end;
+                compressed += member.size();
+                
+                // Carry the unwritten tail to the front of the buffer
+                int tail = buffer.position() - end;
+                System.arraycopy(buffer.array(), end, buffer.array(), 0, tail);
+                buffer.position(tail);
+                throttle.acquire(end + member.size());
+            }
+            out.force(true);
+        }
+        try (DataOutputStream index = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tempIndex)))) {
+            index.writeInt(MAGIC);
+            index.writeInt(blocks.size());
+            for (long[] block : blocks) {
+                index.writeLong(block[0]);
+                index.writeLong(block[1]);
+                index.writeInt((int) block[2]);
+                index.writeInt((int) block[3]);
+            }
+        }
+        // isArchive() keys on the index, so it appears only once the archive is in place
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, 
+            StandardCopyOption.REPLACE_EXISTING);
+        Files.move(tempIndex.toPath(), indexOf(target).toPath(), StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+    }
+}
+
+// Compresses closed segments on one low-priority background thread. Reads and
+// writes are rate-limited so archiving never competes with live session I/O for
+// the disk. A segment is deleted only after its archive and index are in place.
+class LogArchiver {
+    public static final String SETTING_MAX_BYTES_PER_SECOND = "ArchiveMaxBytesPerSecond";
+    public static final long DEFAULT_MAX_BYTES_PER_SECOND = 16L << 20;
+    
+    public static final LogArchiver DEFAULT = new LogArchiver(DEFAULT_MAX_BYTES_PER_SECOND);
+    
+    // Simple pacing: sleeps whenever the bytes moved so far run ahead of the rate
+    static final class Throttle {
+        private volatile long bytesPerSecond;
+        private long windowStart = System.nanoTime();
+        private long windowBytes;
+        
+        Throttle(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+        
+        void acquire(long bytes) {
+            long rate = bytesPerSecond;
+            if (rate <= 0) {
+                return;
+            }
+            windowBytes += bytes;
+            long due = windowStart + windowBytes * 1_000_000_000L / rate;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            if (wait < -1_000_000_000L) {
+                // Idle for a while; do not let old slack turn into a burst
+                windowStart = System.nanoTime();
+                windowBytes = 0;
+            }
+        }
+    }
+    
+    private final Throttle throttle;
+    private final Deque<Object[]> queue = new ArrayDeque<>();
+    private Thread worker;
+    private int inFlight;
+    private final AtomicLong archived = new AtomicLong();
+    
+    LogArchiver(long maxBytesPerSecond) {
+        this.throttle = new Throttle(maxBytesPerSecond);
+    }
+    
+    public void configure(SessionSettings settings) throws ConfigError, FieldConvertError {
+        if (settings.isSetting(SETTING_MAX_BYTES_PER_SECOND)) {
+            setMaxBytesPerSecond(settings.getLong(SETTING_MAX_BYTES_PER_SECOND));
+        }
+    }
+    
+    // 0 disables the limit
+    public void setMaxBytesPerSecond(long bytesPerSecond) { throttle.bytesPerSecond = bytesPerSecond; }
+    public long getArchivedCount() { return archived.get(); }
+    
+    public static File archiveOf(File segment) {
+        return new File(segment.getPath() + BlockGzipFile.SUFFIX);
+    }
+    
+    public synchronized void submit(File segment, boolean lineAligned) {
+        queue.add(new Object[] { segment, lineAligned });
+        inFlight++;
+        if (worker == null) {
+            worker = new Thread(this::run, "log-archiver");
+            worker.setDaemon(true);
+            worker.setPriority(Thread.MIN_PRIORITY);
+            worker.start();
+        }
+        notifyAll();
+    }
+    
+    // True once every submitted segment has been archived (or failed)
+    public synchronized boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (inFlight > 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+    
+    private void run() {
+        while (true) {
+            Object[] job;
+            synchronized (this) {
+                while (queue.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                job = queue.poll();
+            }
+            File segment = (File) job[0];
+            try {
+                BlockGzipFile.compress(segment, archiveOf(segment), BlockGzipFile.DEFAULT_BLOCK_BYTES, 
+                    (Boolean) job[1], throttle);
+                Files.delete(segment.toPath());
+                archived.incrementAndGet();
+            } catch (IOException e) {
+                System.err.println("⚠ Archiving " + segment + " failed, segment kept: " + e.getMessage());
+            } finally {
+                synchronized (this) {
+                    inFlight--;
+                    notifyAll();
+                }
+            }
+        }
+    }
+}
+
+// Drop-in for FileLogFactory (same FileLogPath, FileIncludeTimeStampForMessages,
+// FileIncludeMilliseconds and FileLogHeartbeats settings) that rolls each session's
+// message and event logs at FileLogRollBytes or at the UTC day boundary. A rolled
+// segment is renamed to <log>.<yyyyMMdd-HHmmss> and handed to the archiver.
+class RollingFileLogFactory implements LogFactory {
+    public static final String SETTING_ROLL_BYTES = "FileLogRollBytes";
+    public static final long DEFAULT_ROLL_BYTES = 256L << 20;
+    static final DateTimeFormatter SEGMENT_STAMP = 
+        DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss").withZone(ZoneOffset.UTC);
+    
+    private final SessionSettings settings;
+    private final LogArchiver archiver;
+    
+    public RollingFileLogFactory(SessionSettings settings) {
+        this(settings, LogArchiver.DEFAULT);
+    }
+    
+    RollingFileLogFactory(SessionSettings settings, LogArchiver archiver) {
+        this.settings = settings;
+        this.archiver = archiver;
+    }
+    
+    @Override
+    public Log create(SessionID sessionId) {
+        try {
+            File directory = new File(settings.getString(sessionId, FileLogFactory.SETTING_FILE_LOG_PATH));
+            archiver.configure(settings);
+            return new RollingFileLog(directory, FileUtil.sessionIdFileName(sessionId),
+                flag(sessionId, FileLogFactory.SETTING_INCLUDE_TIMESTAMP_FOR_MESSAGES, false),
+                flag(sessionId, FileLogFactory.SETTING_INCLUDE_MILLIS_IN_TIMESTAMP, false),
+                flag(sessionId, FileLogFactory.SETTING_LOG_HEARTBEATS, true),
+                settings.isSetting(sessionId, SETTING_ROLL_BYTES) 
+                    ? settings.getLong(sessionId, SETTING_ROLL_BYTES) : DEFAULT_ROLL_BYTES,
+                archiver);
+        } catch (Exception e) {
+            throw new RuntimeError(e);
+        }
+    }
+    
+    private boolean flag(SessionID sessionId, String key, boolean defaultValue) 
+            throws ConfigError, FieldConvertError {
+        return settings.isSetting(sessionId, key) ? settings.getBool(sessionId, key) : defaultValue;
+    }
+    
+    static final class RollingFileLog implements Log, Closeable {
+        private final Segment messages;
+        private final Segment events;
+        private final boolean timestampMessages;
+        private final int fractionDigits;
+        private final boolean logHeartbeats;
+        
+        RollingFileLog(File directory, String prefix, boolean timestampMessages, boolean millis,
+                boolean logHeartbeats, long rollBytes, LogArchiver archiver) throws IOException {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create log directory: " + directory);
+            }
+            this.messages = new Segment(new File(directory, prefix + ".messages.log"), rollBytes, archiver);
+            this.events = new Segment(new File(directory, prefix + ".event.log"), rollBytes, archiver);
+            this.timestampMessages = timestampMessages;
+            this.fractionDigits = millis ? 3 : 0;
+            this.logHeartbeats = logHeartbeats;
+        }
+        
+        @Override
+        public void clear() {
+            messages.clear();
+            events.clear();
+        }
+        
+        @Override
+        public void onIncoming(String message) { logMessage(message); }
+        
+        @Override
+        public void onOutgoing(String message) { logMessage(message); }
+        
+        @Override
+        public void onEvent(String text) { 
+            events.append(true, fractionDigits, text); 
+        }
+        
+        @Override
+        public void onErrorEvent(String text) { onEvent(text); }
+        
+        private void logMessage(String message) {
+            if (!logHeartbeats && message.contains("\u000135=0\u0001")) {
+                return;
+            }
+            messages.append(timestampMessages, fractionDigits, message);
+        }
+        
+        // Session.close() closes a Closeable log when the session is reset away or removed
+        @Override
+        public void close() throws IOException {
+            try {
+                messages.close();
+            } finally {
+                events.close();
+            }
+        }
+    }
+    
+    // One live log file; rolls before a write that would cross the size or day limit
+    static final class Segment {
+        private final File file;
+        private final long rollBytes;
+        private final LogArchiver archiver;
+        private FileOutputStream out;
+        private long size;
+        private long day;
+        private byte[] line = new byte[1024];
+        
+        Segment(File file, long rollBytes, LogArchiver archiver) throws IOException {
+            this.file = file;
+            this.rollBytes = rollBytes;
+            this.archiver = archiver;
+            // Segments rolled before a crash and never archived
+            File[] leftovers = file.getParentFile().listFiles((dir, name) -> 
+                name.startsWith(file.getName() + ".") && name.indexOf('.', file.getName().length() + 1) < 0);
+            if (leftovers != null) {
+                for (File leftover : leftovers) {
+                    archiver.submit(leftover, true);
+                }
+            }
+            open();
+        }
+        
+        private void open() throws IOException {
+            out = new FileOutputStream(file, true);
+            size = file.length();
+            day = file.exists() && size > 0 ? file.lastModified() / 86_400_000L : System.currentTimeMillis() / 86_400_000L;
+        }
+        
+        // Builds "<timestamp>: <text>\n" in a reused buffer; text is ISO-8859-1 like the FIX wire format
+        synchronized void append(boolean stamped, int fractionDigits, String text) {
+            if (out == null) {
+                return;
+            }
+            try {
+                long nanos = FixClock.epochNanos();
+                int length = text.length() + 32;
+                if (line.length < length) {
+                    line = new byte[Math.max(length, line.length * 2)];
+                }
+                int end = 0;
+                if (stamped) {
+                    end = FixClock.formatUtc(nanos, fractionDigits, line, 0);
+                    line[end++] = ':';
+                    line[end++] = ' ';
+                }
+                for (int i = 0; i < text.length(); i++) {
+                    char c = text.charAt(i);
+                    line[end++] = c <= 0xFF ? (byte) c : (byte) '?';
+                }
+                line[end++] = '\n';
+                long now = nanos / 1_000_000;
+                if (size > 0 && (size + end > rollBytes || now / 86_400_000L != day)) {
+                    roll(now);
+                }
+                out.write(line, 0, end);
+                size += end;
+            } catch (IOException e) {
+                System.err.println("⚠ Log write failed for " + file + ": " + e.getMessage());
+            }
+        }
+        
+        private void roll(long now) throws IOException {
+            out.close();
+            String stamp = SEGMENT_STAMP.format(Instant.ofEpochMilli(now));
+            File rolled = new File(file.getPath() + "." + stamp);
+            for (int n = 1; rolled.exists() || LogArchiver.archiveOf(rolled).exists(); n++) {
+                rolled = new File(file.getPath() + "." + stamp + "-" + n);
+            }
+            Files.move(file.toPath(), rolled.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            archiver.submit(rolled, true);
+            out = new FileOutputStream(file, false);
+            size = 0;
+            day = now / 86_400_000L;
+        }
+        
+        synchronized void clear() {
+            if (out == null) {
+                return;
+            }
+            try {
+                out.close();
+                out = new FileOutputStream(file, false);
+                size = 0;
+            } catch (IOException e) {
+                System.err.println("⚠ Log clear failed for " + file + ": " + e.getMessage());
+            }
+        }
+        
+        // Later appends are dropped
+        synchronized void close() throws IOException {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+        }
+    }
+}
+
+// ============================================================================
+// PRECOMPILED HOT-PATH VALIDATOR
+// ============================================================================
+
+// Replaces DataDictionary validation (run with ValidateIncomingMessage=N) for the
+// order messages the server accepts. Rules are compiled from the dictionary once:
+// a per-tag type code, a slot for each required tag and a table of allowed values
+// for CHAR enums. validate() checks a message in one pass over its body fields and
+// then compares the required bits seen with the mask. Failures are thrown as
+// FieldException, which the session turns into a Reject (35=3) with the reason.
+// Repeating group contents are left to the parser.
+class PrecompiledValidator {
+    public static final String DICTIONARY = "FIX44.xml";
+    
+    private static final byte UNDEFINED = 0;
+    private static final byte STRING = 1;
+    private static final byte INT = 2;
+    private static final byte DECIMAL = 3;
+    private static final byte CHAR = 4;
+    private static final byte BOOLEAN = 5;
+    private static final byte TIMESTAMP = 6;
+    
+    private static final class Rules {
+        final byte[] kinds;
+        final byte[] requiredSlots;
+        final boolean[][] charValues;
+        final boolean[] stringEnums;
+        long requiredMask;
+        int[] requiredTags = new int[0];
+        
+        Rules(int maxTag) {
+            kinds = new byte[maxTag + 1];
+            requiredSlots = new byte[maxTag + 1];
+            charValues = new boolean[maxTag + 1][];
+            stringEnums = new boolean[maxTag + 1];
+            Arrays.fill(requiredSlots, (byte) -1);
+        }
+        
+        void require(int tag) {
+            if (requiredSlots[tag] >= 0) {
+                return;
+            }
+            if (requiredTags.length == 64) {
+                throw new IllegalStateException("More than 64 required tags");
+            }
+            requiredSlots[tag] = (byte) requiredTags.length;
+            requiredMask |= 1L << requiredTags.length;
+            requiredTags = Arrays.copyOf(requiredTags, requiredTags.length + 1);
+            requiredTags[requiredTags.length - 1] = tag;
+        }
+    }
+    
+    private final DataDictionary dictionary;
+    private final Map<String, Rules> rules = new HashMap<>();
+    private final LongAdder rejected = new LongAdder();
+    
+    // The messages FIXServerApplication handles, with the fields its handlers read
+    public static PrecompiledValidator forServer() throws ConfigError {
+        PrecompiledValidator validator = new PrecompiledValidator(new DataDictionary(DICTIONARY),
+            MsgType.ORDER_SINGLE, MsgType.ORDER_CANCEL_REQUEST, MsgType.ORDER_CANCEL_REPLACE_REQUEST,
+            MsgType.ORDER_STATUS_REQUEST);
+        validator.require(MsgType.ORDER_SINGLE, Symbol.FIELD, OrderQty.FIELD);
+        validator.require(MsgType.ORDER_CANCEL_REQUEST, OrigClOrdID.FIELD);
+        validator.require(MsgType.ORDER_CANCEL_REPLACE_REQUEST, OrigClOrdID.FIELD);
+        return validator;
+    }
+    
+    // True when any configured session turns DataDictionary validation off
+    public static boolean replacesDictionary(SessionSettings settings) throws ConfigError {
+        for (Iterator<SessionID> it = settings.sectionIterator(); it.hasNext(); ) {
+            if (replacesDictionary(settings, it.next())) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    public static boolean replacesDictionary(SessionSettings settings, SessionID sessionId) {
+        try {
+            return settings != null && settings.isSetting(sessionId, Session.SETTING_VALIDATE_INCOMING_MESSAGE)
+                && !settings.getBool(sessionId, Session.SETTING_VALIDATE_INCOMING_MESSAGE);
+        } catch (ConfigError | FieldConvertError e) {
+            System.err.println("⚠ Invalid " + Session.SETTING_VALIDATE_INCOMING_MESSAGE + " for " 
+                + sessionId + ": " + e.getMessage());
+            return false;
+        }
+    }
+    
+    PrecompiledValidator(DataDictionary dictionary, String... msgTypes) {
+        this.dictionary = dictionary;
+        int maxTag = 0;
+        for (int tag : dictionary.getOrderedFields()) {
+            maxTag = Math.max(maxTag, tag);
+        }
+        for (String msgType : msgTypes) {
+            Rules compiled = new Rules(maxTag);
+            for (int tag : dictionary.getOrderedFields()) {
+                if (!dictionary.isMsgField(msgType, tag)) {
+                    continue;
+                }
+                compiled.kinds[tag] = kindOf(dictionary.getFieldType(tag));
+                if (dictionary.isRequiredField(msgType, tag)) {
+                    compiled.require(tag);
+                }
+                if (dictionary.hasFieldValue(tag)) {
+                    if (compiled.kinds[tag] == CHAR) {
+                        compiled.charValues[tag] = new boolean[128];
+                        for (char c = ' '; c < 127; c++) {
+                            compiled.charValues[tag][c] = dictionary.isFieldValue(tag, String.valueOf(c));
+                        }
+                    } else if (compiled.kinds[tag] == STRING || compiled.kinds[tag] == INT) {
+                        compiled.stringEnums[tag] = true;
+                    }
+                }
+            }
+            rules.put(msgType, compiled);
+        }
+    }
+    
+    private static byte kindOf(FieldType type) {
+        switch (type) {
+            case INT: case LENGTH: case SEQNUM: case NUMINGROUP: case DAYOFMONTH:
+                return INT;
+            case PRICE: case AMT: case QTY: case FLOAT: case PRICEOFFSET: case PERCENTAGE:
+                return DECIMAL;
+            case CHAR:
+                return CHAR;
+            case BOOLEAN:
+                return BOOLEAN;
+            case UTCTIMESTAMP:
+                return TIMESTAMP;
+            default:
+                // Multiple-value fields are checked as plain strings
+                return STRING;
+        }
+    }
+    
+    // Tags the handlers read without an isSet check, beyond what the dictionary requires
+    public void require(String msgType, int... tags) {
+        Rules compiled = rules.get(msgType);
+        for (int tag : tags) {
+            compiled.require(tag);
+        }
+    }
+    
+    public boolean handles(String msgType) { return rules.containsKey(msgType); }
+    public long getRejectedCount() { return rejected.sum(); }
+    
+    public void validate(Message message, String msgType) {
+        Rules compiled = rules.get(msgType);
+        if (compiled == null) {
+            return;
+        }
+        long seen = 0;
+        char ordType = 0;
+        Iterator<Field<?>> fields = message.iterator();
+        while (fields.hasNext()) {
+            Field<?> field = fields.next();
+            int tag = field.getTag();
+            byte kind = tag < compiled.kinds.length ? compiled.kinds[tag] : UNDEFINED;
+            if (kind == UNDEFINED) {
+                throw reject(SessionRejectReason.TAG_NOT_DEFINED_FOR_THIS_MESSAGE_TYPE, tag);
+            }
+            String value = field.getObject().toString();
+            if (value.isEmpty()) {
+                throw reject(SessionRejectReason.TAG_SPECIFIED_WITHOUT_A_VALUE, tag);
+            }
+            if (!hasFormat(kind, value)) {
+                throw reject(SessionRejectReason.INCORRECT_DATA_FORMAT_FOR_VALUE, tag);
+            }
+            boolean[] allowed = compiled.charValues[tag];
+            if (allowed != null ? value.charAt(0) >= 128 || !allowed[value.charAt(0)]
+                    : compiled.stringEnums[tag] && !dictionary.isFieldValue(tag, value)) {
+                throw reject(SessionRejectReason.VALUE_IS_INCORRECT, tag);
+            }
+            int slot = compiled.requiredSlots[tag];
+            if (slot >= 0) {
+                seen |= 1L << slot;
+            }
+            if (tag == OrdType.FIELD) {
+                ordType = value.charAt(0);
+            }
+        }
+        long missing = compiled.requiredMask & ~seen;
+        if (missing != 0) {
+            throw reject(SessionRejectReason.REQUIRED_TAG_MISSING, 
+                compiled.requiredTags[Long.numberOfTrailingZeros(missing)]);
+        }
+        // Price and StopPx are conditionally required by OrdType
+        if ((ordType == OrdType.LIMIT || ordType == OrdType.STOP_LIMIT) && !message.isSetField(Price.FIELD)) {
+            throw reject(SessionRejectReason.REQUIRED_TAG_MISSING, Price.FIELD);
+        }
+        if ((ordType == OrdType.STOP || ordType == OrdType.STOP_LIMIT) && !message.isSetField(StopPx.FIELD)) {
+            throw reject(SessionRejectReason.REQUIRED_TAG_MISSING, StopPx.FIELD);
+        }
+    }
+    
+    private FieldException reject(int reason, int tag) {
+        rejected.increment();
+        return new FieldException(reason, tag);
+    }
+    
+    private static boolean hasFormat(byte kind, String value) {
+        int length = value.length();
+        switch (kind) {
+            case INT: {
+                int i = value.charAt(0) == '-' ? 1 : 0;
+                if (i == length) {
+                    return false;
+                }
+                for (; i < length; i++) {
+                    if (!isDigit(value.charAt(i))) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            case DECIMAL: {
+                int i = value.charAt(0) == '-' ? 1 : 0;
+                boolean digits = false;
+                boolean point = false;
+                for (; i < length; i++) {
+                    char c = value.charAt(i);
+                    if (isDigit(c)) {
+                        digits = true;
+                    } else if (c == '.' && !point) {
+                        point = true;
+                    } else {
+                        return false;
+                    }
+                }
+                return digits;
+            }
+            case CHAR:
+                return length == 1;
+            case BOOLEAN:
+                return length == 1 && (value.charAt(0) == 'Y' || value.charAt(0) == 'N');
+            case TIMESTAMP: {
+                // yyyyMMdd-HH:mm:ss with optional fractional seconds
+                if (length < 17 || value.charAt(8) != '-' || value.charAt(11) != ':' || value.charAt(14) != ':') {
+                    return false;
+                }
+                for (int i = 0; i < 17; i++) {
+                    if (i != 8 && i != 11 && i != 14 && !isDigit(value.charAt(i))) {
+                        return false;
+                    }
+                }
+                if (length > 17 && value.charAt(17) != '.') {
+                    return false;
+                }
+                for (int i = 18; i < length; i++) {
+                    if (!isDigit(value.charAt(i))) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            default:
+                return true;
+        }
+    }
+    
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
+
+// ============================================================================
+// CLOCK AND TIMESTAMP FORMATTING
+// ============================================================================
+
+// Wall-clock time for every hot path that stamps a message, a fill or a log line.
+// epochNanos() extends an anchor (read from Instant.now() at most once a second)
+// with System.nanoTime(), so it costs a nanoTime call, keeps nanosecond steps and
+// never runs backwards when a re-anchor finds the wall clock stepped back.
+// The "yyyyMMdd-HH:mm:ss." prefix is built once per second and shared; formatting
+// a timestamp copies it and writes the fraction digits in place.
+final class FixClock {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private static final int PREFIX_LENGTH = 18;
+    
+    private static final class Anchor {
+        final long epochNanos;
+        final long nanoTime;
+        // What the previous anchors reached; readings never drop below it
+        final long floor;
+        
+        Anchor(long epochNanos, long nanoTime, long floor) {
+            this.epochNanos = epochNanos;
+            this.nanoTime = nanoTime;
+            this.floor = floor;
+        }
+    }
+    
+    // One second's formatted prefix, replaced as a whole when the second changes
+    private static final class Second {
+        final long epochSecond;
+        final byte[] utcPrefix = new byte[PREFIX_LENGTH];
+        
+        Second(long epochSecond) {
+            this.epochSecond = epochSecond;
+            LocalDateTime time = LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC);
+            writeDigits(utcPrefix, 0, time.getYear(), 4);
+            writeDigits(utcPrefix, 4, time.getMonthValue(), 2);
+            writeDigits(utcPrefix, 6, time.getDayOfMonth(), 2);
+            utcPrefix[8] = '-';
+            writeDigits(utcPrefix, 9, time.getHour(), 2);
+            utcPrefix[11] = ':';
+            writeDigits(utcPrefix, 12, time.getMinute(), 2);
+            utcPrefix[14] = ':';
+            writeDigits(utcPrefix, 15, time.getSecond(), 2);
+            utcPrefix[17] = '.';
+        }
+    }
+    
+    private static final class LocalSecond {
+        final long epochSecond;
+        final String text;
+        
+        LocalSecond(long epochSecond) {
+            this.epochSecond = epochSecond;
+            this.text = LOCAL_TIME.format(Instant.ofEpochSecond(epochSecond));
+        }
+    }
+    
+    private static final DateTimeFormatter LOCAL_TIME = 
+        DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+    private static final ThreadLocal<char[]> CHARS = ThreadLocal.withInitial(() -> new char[PREFIX_LENGTH + 9]);
+    private static volatile Anchor anchor = newAnchor(Long.MIN_VALUE);
+    private static volatile Second second = new Second(0);
+    private static volatile LocalSecond localSecond = new LocalSecond(0);
+    
+    private FixClock() {}
+    
+    private static Anchor newAnchor(long floor) {
+        Instant now = Instant.now();
+        return new Anchor(now.getEpochSecond() * NANOS_PER_SECOND + now.getNano(), System.nanoTime(), floor);
+    }
+    
+    public static long epochNanos() {
+        long nanoTime = System.nanoTime();
+        Anchor a = anchor;
+        long elapsed = nanoTime - a.nanoTime;
+        if (elapsed >= NANOS_PER_SECOND || elapsed < 0) {
+            // Re-read the wall clock so NTP adjustments show up within a second. A step
+            // back holds the clock at what the old anchor reached until the wall catches up.
+            a = newAnchor(Math.max(a.floor, a.epochNanos + Math.max(elapsed, 0)));
+            anchor = a;
+            elapsed = 0;
+        }
+        return Math.max(a.epochNanos + elapsed, a.floor);
+    }
+    
+    public static long epochMicros() { return epochNanos() / 1_000; }
+    public static long epochMillis() { return epochNanos() / 1_000_000; }
+    
+    // Writes yyyyMMdd-HH:mm:ss[.fff|.ffffff|.fffffffff] (0, 3, 6 or 9 digits) and returns the end offset
+    public static int formatUtc(long epochNanos, int fractionDigits, byte[] target, int offset) {
+        long epochSecond = Math.floorDiv(epochNanos, NANOS_PER_SECOND);
+        Second s = second;
+        if (s.epochSecond != epochSecond) {
+            s = new Second(epochSecond);
+            second = s;
+        }
+        if (fractionDigits == 0) {
+            System.arraycopy(s.utcPrefix, 0, target, offset, PREFIX_LENGTH - 1);
+            return offset + PREFIX_LENGTH - 1;
+        }
+        System.arraycopy(s.utcPrefix, 0, target, offset, PREFIX_LENGTH);
+        long fraction = Math.floorMod(epochNanos, NANOS_PER_SECOND);
+        for (int i = fractionDigits; i < 9; i++) {
+            fraction /= 10;
+        }
+        writeDigits(target, offset + PREFIX_LENGTH, (int) fraction, fractionDigits);
+        return offset + PREFIX_LENGTH + fractionDigits;
+    }
+    
+    // UTCTimestamp value for TransactTime and similar fields, millisecond precision
+    public static String utcTimestamp() {
+        return utcTimestamp(epochNanos(), 3);
+    }
+    
+    public static String utcTimestamp(long epochNanos, int fractionDigits) {
+        char[] chars = CHARS.get();
+        long epochSecond = Math.floorDiv(epochNanos, NANOS_PER_SECOND);
+        Second s = second;
+        if (s.epochSecond != epochSecond) {
+            s = new Second(epochSecond);
+            second = s;
+        }
+        int length = fractionDigits == 0 ? PREFIX_LENGTH - 1 : PREFIX_LENGTH + fractionDigits;
+        for (int i = 0; i < Math.min(length, PREFIX_LENGTH); i++) {
+            chars[i] = (char) s.utcPrefix[i];
+        }
+        long fraction = Math.floorMod(epochNanos, NANOS_PER_SECOND);
+        for (int i = fractionDigits; i < 9; i++) {
+            fraction /= 10;
+        }
+        for (int i = length - 1; i >= PREFIX_LENGTH; i--) {
+            chars[i] = (char) ('0' + fraction % 10);
+            fraction /= 10;
+        }
+        return new String(chars, 0, length);
+    }
+    
+    // Sets a UTCTimestamp field (e.g. TransactTime) to now without a Date or formatter
+    public static void stamp(FieldMap fields, int tag) {
+        fields.setString(tag, utcTimestamp());
+    }
+    
+    // HH:mm:ss in the local zone, cached for the last second asked for
+    public static String localTime(long epochMillis) {
+        long epochSecond = Math.floorDiv(epochMillis, 1_000L);
+        LocalSecond s = localSecond;
+        if (s.epochSecond != epochSecond) {
+            s = new LocalSecond(epochSecond);
+            localSecond = s;
+        }
+        return s.text;
+    }
+    
+    private static void writeDigits(byte[] target, int offset, int value, int digits) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            target[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+}
+
+// ============================================================================
+// SMART ORDER ROUTING
+// ============================================================================
+
+// Chooses the venue session for each new order. Venues are added as sessions are
+// created and are eligible while logged on; logons and logouts republish the array
+// of eligible venues. Per-venue state is atomic and updated from the report-handling
+// threads without locks, so route() reads a few fields per venue. Policies:
+//   ROUND_ROBIN  rotate over logged-on venues
+//   LATENCY      lowest moving average of order-to-ack time; unmeasured venues first
+//   LIQUIDITY    most available quantity for the symbol, from setLiquidity() or, 
+//                failing that, a moving average of recent fill sizes
+// Statistics age out after the stale interval. A venue whose ack latency has not
+// been sampled for that long is probed with the next order, and a sample after a
+// gap restarts its average. Quotes older than the interval give way to fills, and
+// the fill average halves for every interval without a fill.
+class OrderRouter {
+    public static final String SETTING_POLICY = "OrderRoutingPolicy";
+    
+    public enum Policy { ROUND_ROBIN, LATENCY, LIQUIDITY }
+    
+    // Moving averages weight a new sample 1/8
+    private static final int EWMA_SHIFT = 3;
+    
+    static final class Venue {
+        final SessionID sessionId;
+        final int index;
+        volatile boolean loggedOn;
+        final AtomicLong ackNanos = new AtomicLong();
+        volatile long ackAt;     // nanoTime of the last ack sample
+        volatile long probeAt;   // nanoTime an order last went out as a probe
+        final SymbolSlots<Liquidity> liquidity = new SymbolSlots<>(id -> new Liquidity());
+        final LongAdder routed = new LongAdder();
+        
+        Venue(SessionID sessionId, int index) {
+            this.sessionId = sessionId;
+            this.index = index;
+        }
+        
+        public SessionID getSessionID() { return sessionId; }
+        public boolean isLoggedOn() { return loggedOn; }
+        public long getAckNanos() { return ackNanos.get(); }
+        public long getRoutedCount() { return routed.sum(); }
+    }
+    
+    // Quoted and fill-derived figures are kept apart so fills never blend into a quote
+    static final class Liquidity {
+        volatile long quoted;
+        volatile long quotedAt;   // 0 until quoted
+        final AtomicLong filled = new AtomicLong();
+        volatile long filledAt;
+    }
+    
+    private volatile Venue[] venues = new Venue[0];
+    private volatile Venue[] eligible = new Venue[0];
+    private volatile Policy policy = Policy.ROUND_ROBIN;
+    private volatile long staleNanos = TimeUnit.SECONDS.toNanos(10);
+    private final AtomicInteger nextVenue = new AtomicInteger();
+    
+    public void setPolicy(Policy policy) { this.policy = policy; }
+    public Policy getPolicy() { return policy; }
+    
+    public void setStaleAfter(long duration, TimeUnit unit) {
+        staleNanos = Math.max(1, unit.toNanos(duration));
+    }
+    
+    public List<Venue> getVenues() { return Arrays.asList(venues); }
+    
+    // Venue set changes only on session creation, so copy-on-write keeps route() lock-free
+    public synchronized Venue addVenue(SessionID sessionId) {
+        Venue existing = venueOf(sessionId);
+        if (existing != null) {
+            return existing;
+        }
+        Venue[] current = venues;
+        Venue venue = new Venue(sessionId, current.length);
+        Venue[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = venue;
+        venues = next;
+        return venue;
+    }
+    
+    public Venue venueOf(SessionID sessionId) {
+        for (Venue venue : venues) {
+            if (venue.sessionId.equals(sessionId)) {
+                return venue;
+            }
+        }
+        return null;
+    }
+    
+    public void onLogon(SessionID sessionId) { setLoggedOn(sessionId, true); }
+    public void onLogout(SessionID sessionId) { setLoggedOn(sessionId, false); }
+    
+    private synchronized void setLoggedOn(SessionID sessionId, boolean on) {
+        Venue venue = venueOf(sessionId);
+        if (venue == null) {
+            return;
+        }
+        venue.loggedOn = on;
+        List<Venue> live = new ArrayList<>();
+        for (Venue v : venues) {
+            if (v.loggedOn) {
+                live.add(v);
+            }
+        }
+        eligible = live.toArray(new Venue[0]);
+    }
+    
+    // Null when no venue is logged on
+    public Venue route(int symbolId) {
+        Venue[] current = eligible;
+        int n = current.length;
+        if (n == 0) {
+            return null;
+        }
+        int start = Math.floorMod(nextVenue.getAndIncrement(), n);
+        Policy p = policy;
+        if (p == Policy.ROUND_ROBIN) {
+            current[start].routed.increment();
+            return current[start];
+        }
+        long now = System.nanoTime();
+        long stale = staleNanos;
+        Venue best = null;
+        long bestScore = 0;
+        for (int i = 0; i < n; i++) {
+            Venue venue = current[(start + i) % n];
+            // Lower is better; ties keep the rotation order. A venue due a probe scores as unmeasured.
+            long score = p == Policy.LATENCY 
+                ? (now - Math.max(venue.ackAt, venue.probeAt) > stale ? 0 : venue.ackNanos.get())
+                : -liquidityOf(venue, symbolId, now, stale);
+            if (best == null || score < bestScore) {
+                best = venue;
+                bestScore = score;
+            }
+        }
+        if (p == Policy.LATENCY && bestScore == 0) {
+            best.probeAt = now;
+        }
+        best.routed.increment();
+        return best;
+    }
+    
+    // Available quantity as route() sees it now
+    public long getLiquidity(SessionID sessionId, int symbolId) {
+        Venue venue = venueOf(sessionId);
+        return venue != null ? liquidityOf(venue, symbolId, System.nanoTime(), staleNanos) : 0;
+    }
+    
+    private static long liquidityOf(Venue venue, int symbolId, long now, long stale) {
+        Liquidity l = venue.liquidity.get(symbolId);
+        if (l == null) {
+            return 0;
+        }
+        long quotedAt = l.quotedAt;
+        if (quotedAt != 0 && now - quotedAt <= stale) {
+            return l.quoted;
+        }
+        long halvings = (now - l.filledAt) / stale;
+        return halvings >= Long.SIZE ? 0 : l.filled.get() >> halvings;
+    }
+    
+    public void onAck(Venue venue, long ackNanos) {
+        long now = System.nanoTime();
+        update(venue.ackNanos, ackNanos, now - venue.ackAt > staleNanos);
+        venue.ackAt = now;
+    }
+    
+    public void onFill(SessionID sessionId, int symbolId, long quantity) {
+        Venue venue = venueOf(sessionId);
+        if (venue != null) {
+            long now = System.nanoTime();
+            Liquidity l = venue.liquidity.getOrCreate(symbolId);
+            update(l.filled, quantity, now - l.filledAt > staleNanos);
+            l.filledAt = now;
+        }
+    }
+    
+    // Quoted or known quantity at the venue, e.g. from a market data feed
+    public void setLiquidity(SessionID sessionId, int symbolId, long quantity) {
+        Venue venue = venueOf(sessionId);
+        if (venue != null) {
+            Liquidity l = venue.liquidity.getOrCreate(symbolId);
+            l.quoted = quantity;
+            l.quotedAt = System.nanoTime();
+        }
+    }
+    
+    // A stale average restarts from the sample instead of blending it in
+    private static void update(AtomicLong average, long sample, boolean restart) {
+        long current;
+        long next;
+        do {
+            current = average.get();
+            next = current == 0 || restart ? sample : current + ((sample - current) >> EWMA_SHIFT);
+        } while (!average.compareAndSet(current, next));
+    }
+}
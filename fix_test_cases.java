@@ -32,8 +32,20 @@ import quickfix.field.*;
 import quickfix.fix44.*;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
@@ -51,7 +63,31 @@ import static org.awaitility.Awaitility.*;
     OrderLifecycleTest.class,
     ErrorHandlingTest.class,
     PerformanceTest.class,
-    IntegrationTest.class
+    IntegrationTest.class,
+    OrderPersistenceTest.class,
+    MetricsTest.class,
+    IndexedFileStoreTest.class,
+    InVmTransportTest.class,
+    AsyncOrderApiTest.class,
+    ClientOrderStateTest.class,
+    OrderHistoryRingTest.class,
+    CancelOnDisconnectTest.class,
+    StopTriggerTest.class,
+    MarketBookTest.class,
+    SymbolDictionaryTest.class,
+    SecurityMasterTest.class,
+    DuplicateClOrdIdTest.class,
+    PositionKeeperTest.class,
+    FillCaptureTest.class,
+    EodReportTest.class,
+    FixLogAnalyzerTest.class,
+    LogArchiveTest.class,
+    PrecompiledValidatorTest.class,
+    FixClockTest.class,
+    OrderRouterTest.class,
+    ScenarioRunnerTest.class,
+    StageTracerTest.class,
+    JitWarmupTest.class
 })
 public class FIXProtocolTestSuite {
     // Test suite entry point
@@ -881,6 +917,2730 @@ public class IntegrationTest {
     }
 }
 
+// ============================================================================
+// TEST 7: ORDER BOOK PERSISTENCE
+// ============================================================================
+public class OrderPersistenceTest {
+    
+    @Test
+    public void test01_RecoverSnapshotAndJournalTail() throws Exception {
+        System.out.println("\n=== TEST: Snapshot + Journal Recovery ===");
+        
+        File dir = Files.createTempDirectory("orders").toFile();
+        Map<String, OrderData> book = new ConcurrentHashMap<>();
+        OrderPersistence persistence = new OrderPersistence(dir, 3600);
+        persistence.recover(book);
+        persistence.start(book);
+        try {
+            OrderData gtc = new OrderData("ORD1", "GTC001", "AAPL", Side.BUY, 100, 150.0);
+            gtc.setMaxFloor(25);
+            book.put(gtc.getClOrdID(), gtc);
+            persistence.recordUpsert(gtc);
+            OrderData[] stops = new OrderData[2];
+            for (int i = 0; i < stops.length; i++) {
+                stops[i] = new OrderData("ORD-S" + i, "STOP00" + i, "NVDA", Side.BUY, 100, 0);
+                stops[i].setOrdType(OrdType.STOP);
+                stops[i].setStopPx(490.0 + i);
+                book.put(stops[i].getClOrdID(), stops[i]);
+                persistence.recordUpsert(stops[i]);
+            }
+            persistence.snapshot(book);
+            stops[1].setStopPx(505.0);
+            persistence.recordUpsert(stops[1]);
+            
+            // Changes after the snapshot only exist in the journal
+            OrderData other = new OrderData("ORD2", "GTC002", "MSFT", Side.SELL, 50, 380.0);
+            book.put(other.getClOrdID(), other);
+            persistence.recordUpsert(other);
+            gtc.setFilledQty(40);
+            persistence.recordUpsert(gtc);
+            book.remove("GTC002");
+            other.setClOrdID("GTC003");
+            book.put("GTC003", other);
+            persistence.recordReplace("GTC002", other);
+        } finally {
+            persistence.stop(book);
+        }
+        
+        Map<String, OrderData> restored = new ConcurrentHashMap<>();
+        int count = new OrderPersistence(dir, 3600).recover(restored);
+        
+        assertEquals(4, count);
+        assertEquals(40, restored.get("GTC001").getFilledQty());
+        assertEquals(25, restored.get("GTC001").getMaxFloor());
+        assertEquals("Stop price from the snapshot", 490.0, restored.get("STOP000").getStopPx(), 0.0001);
+        assertEquals("Stop price from the journal", 505.0, restored.get("STOP001").getStopPx(), 0.0001);
+        assertEquals(0.0, restored.get("GTC003").getStopPx(), 0.0001);
+        assertNull("Replaced ClOrdID should be gone", restored.get("GTC002"));
+        assertEquals("MSFT", restored.get("GTC003").getSymbol());
+        System.out.println("✓ Restored " + count + " orders from snapshot and journal");
+    }
+    
+    @Test
+    public void test02_TornJournalTailIgnored() throws Exception {
+        System.out.println("\n=== TEST: Torn Journal Tail ===");
+        
+        File dir = Files.createTempDirectory("orders").toFile();
+        Map<String, OrderData> book = new ConcurrentHashMap<>();
+        OrderPersistence persistence = new OrderPersistence(dir, 3600);
+        persistence.recover(book);
+        persistence.start(book);
+        try {
+            persistence.recordUpsert(new OrderData("ORD1", "TORN001", "AAPL", Side.BUY, 100, 150.0));
+            Thread.sleep(50);
+            
+            // Simulate a crash halfway through the next record
+            File[] segments = dir.listFiles((d, name) -> name.startsWith("journal-"));
+            assertNotNull(segments);
+            for (File segment : segments) {
+                if (segment.length() > 0) {
+                    java.io.RandomAccessFile raf = new java.io.RandomAccessFile(segment, "rw");
+                    raf.seek(raf.length());
+                    raf.writeLong(2);
+                    raf.writeByte(1);
+                    raf.close();
+                }
+            }
+            
+            Map<String, OrderData> restored = new ConcurrentHashMap<>();
+            assertEquals(1, new OrderPersistence(dir, 3600).recover(restored));
+        } finally {
+            persistence.stop(book);
+        }
+        System.out.println("✓ Partial record at the journal tail was skipped");
+    }
+    
+    @Test
+    public void test03_ReplayStopsAtCorruptRecord() throws Exception {
+        System.out.println("\n=== TEST: Corrupt Journal Record ===");
+        
+        File dir = Files.createTempDirectory("orders").toFile();
+        File crashed = Files.createTempDirectory("orders").toFile();
+        Map<String, OrderData> book = new ConcurrentHashMap<>();
+        OrderPersistence persistence = new OrderPersistence(dir, 3600);
+        persistence.recover(book);
+        persistence.start(book);
+        try {
+            File journal = dir.listFiles((d, name) -> name.startsWith("journal-"))[0];
+            persistence.recordUpsert(new OrderData("ORD1", "CRC001", "AAPL", Side.BUY, 100, 150.0));
+            await().atMost(5, TimeUnit.SECONDS).until(() -> journal.length() > 0);
+            long recordLength = journal.length();
+            persistence.recordUpsert(new OrderData("ORD2", "CRC002", "AAPL", Side.BUY, 100, 150.0));
+            persistence.recordUpsert(new OrderData("ORD3", "CRC003", "AAPL", Side.BUY, 100, 150.0));
+            await().atMost(5, TimeUnit.SECONDS).until(() -> journal.length() == 3 * recordLength);
+            
+            // Take the journal as a crash would leave it, with one flipped byte in the middle record
+            File copy = new File(crashed, journal.getName());
+            Files.copy(journal.toPath(), copy.toPath());
+            try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(copy, "rw")) {
+                long position = recordLength + recordLength / 2;
+                raf.seek(position);
+                int b = raf.read();
+                raf.seek(position);
+                raf.write(b ^ 0x01);
+            }
+            // A later segment can only follow the last good record, so this one is past a gap
+            Files.copy(journal.toPath(), new File(crashed, "journal-" + String.format("%020d", 4)).toPath());
+        } finally {
+            persistence.stop(book);
+        }
+        
+        Map<String, OrderData> restored = new ConcurrentHashMap<>();
+        assertEquals(1, new OrderPersistence(crashed, 3600).recover(restored));
+        assertNotNull(restored.get("CRC001"));
+        assertNull("Nothing after the bad record is applied", restored.get("CRC003"));
+        System.out.println("✓ Replay stopped at the record whose CRC did not match");
+    }
+}
+
+// ============================================================================
+// TEST 8: METRICS
+// ============================================================================
+public class MetricsTest {
+    
+    @Test
+    public void test01_LatencyHistogramPercentiles() {
+        System.out.println("\n=== TEST: Latency Histogram Percentiles ===");
+        
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1_000_000, histogram.getMax());
+        long p50 = histogram.getValueAtPercentile(50);
+        long p99 = histogram.getValueAtPercentile(99);
+        assertTrue("p50 within bucket resolution: " + p50, p50 >= 500_000 && p50 < 570_000);
+        assertTrue("p99 within bucket resolution: " + p99, p99 >= 990_000 && p99 <= 1_000_000);
+        System.out.println("✓ p50=" + p50 + "ns p99=" + p99 + "ns");
+    }
+    
+    @Test
+    public void test02_SessionCountersAndPrometheusText() throws Exception {
+        System.out.println("\n=== TEST: Session Counters and Prometheus Text ===");
+        
+        MetricsRegistry registry = new MetricsRegistry("test", 
+            () -> java.util.Collections.singletonMap("AAPL", 3));
+        SessionID sessionId = new SessionID("FIX.4.4", "METRICS_SERVER", "METRICS_CLIENT");
+        registry.register(sessionId);
+        
+        registry.onInbound(sessionId, MsgType.ORDER_SINGLE);
+        registry.onInbound(sessionId, MsgType.ORDER_SINGLE);
+        MetricsRegistry.beginInbound();
+        registry.onOutbound(sessionId, MsgType.EXECUTION_REPORT);
+        MetricsRegistry.endInbound();
+        registry.onOutbound(sessionId, MsgType.HEARTBEAT);
+        
+        SessionMetrics metrics = registry.get(sessionId);
+        assertEquals(Long.valueOf(2), metrics.getInboundMessages().get("D"));
+        assertEquals(Long.valueOf(1), metrics.getOutboundMessages().get("8"));
+        assertEquals("Only replies inside fromApp are timed", 1, metrics.getLatencyCount());
+        
+        java.io.StringWriter text = new java.io.StringWriter();
+        registry.writePrometheus(text);
+        assertTrue(text.toString().contains("direction=\"in\",msg_type=\"D\"} 2"));
+        assertTrue(text.toString().contains("fix_order_book_orders{role=\"test\",symbol=\"AAPL\"} 3"));
+        registry.close();
+        System.out.println("✓ Counters and exposition text verified");
+    }
+    
+    @Test
+    public void test03_TestRequestRoundTrip() throws Exception {
+        System.out.println("\n=== TEST: TestRequest Round Trip ===");
+        
+        MetricsRegistry registry = new MetricsRegistry("test", null);
+        SessionID sessionId = new SessionID("FIX.4.4", "RTT_SERVER", "RTT_CLIENT");
+        registry.register(sessionId);
+        RttMonitor monitor = new RttMonitor("Test", registry);
+        
+        TestRequest probe = new TestRequest(new TestReqID("RTT"));
+        monitor.onOutboundAdmin(probe, MsgType.TEST_REQUEST);
+        String testReqId = probe.getString(TestReqID.FIELD);
+        assertTrue("Send time stamped into TestReqID: " + testReqId, testReqId.startsWith("RTT-"));
+        
+        Thread.sleep(2);
+        Heartbeat echo = new Heartbeat();
+        echo.set(new TestReqID(testReqId));
+        monitor.onInboundAdmin(echo, MsgType.HEARTBEAT, sessionId);
+        monitor.onInboundAdmin(new Heartbeat(), MsgType.HEARTBEAT, sessionId);
+        
+        SessionMetrics metrics = registry.get(sessionId);
+        assertEquals("Only the echoed probe is measured", 1, metrics.getRttCount());
+        assertTrue(metrics.getRttMaxMicros() >= 2000);
+        
+        // Six rotations age the sample out of the rolling window
+        for (int i = 0; i < 6; i++) {
+            metrics.getRtt().rotate();
+        }
+        assertEquals(0, metrics.getRttCount());
+        monitor.stop();
+        registry.close();
+        System.out.println("✓ Round trip measured and aged out");
+    }
+}
+
+// ============================================================================
+// TEST 9: INDEXED MESSAGE STORE
+// ============================================================================
+
+public class IndexedFileStoreTest {
+    
+    @Test
+    public void test01_ResendRangeFromIndex() throws Exception {
+        System.out.println("\n=== TEST: Indexed Resend Range ===");
+        
+        File dir = Files.createTempDirectory("store").toFile();
+        SessionID sessionId = new SessionID("FIX.4.4", "STORE_SERVER", "STORE_CLIENT");
+        IndexedFileStore store = new IndexedFileStore(dir, sessionId, false);
+        for (int seq = 1; seq <= 100_000; seq++) {
+            store.set(seq, "8=FIX.4.4\u00019=5\u000135=0\u000134=" + seq + "\u000110=000\u0001");
+        }
+        store.setNextSenderMsgSeqNum(100_001);
+        
+        List<String> messages = new ArrayList<>();
+        long start = System.nanoTime();
+        store.get(1, 100_000, messages);
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        assertEquals(100_000, messages.size());
+        assertTrue(messages.get(99_999).contains("\u000134=100000\u0001"));
+        System.out.println("✓ 100k messages read back in " + elapsedMs + " ms");
+        
+        // Index and sequence numbers survive a reopen
+        store.close();
+        IndexedFileStore reopened = new IndexedFileStore(dir, sessionId, false);
+        assertEquals(100_001, reopened.getNextSenderMsgSeqNum());
+        messages.clear();
+        reopened.get(500, 502, messages);
+        assertEquals(3, messages.size());
+        assertTrue(messages.get(0).contains("\u000134=500\u0001"));
+        reopened.close();
+        System.out.println("✓ Store reopened with index intact");
+    }
+    
+    @Test
+    public void test02_ResetClearsMessages() throws Exception {
+        System.out.println("\n=== TEST: Indexed Store Reset ===");
+        
+        File dir = Files.createTempDirectory("store").toFile();
+        SessionID sessionId = new SessionID("FIX.4.4", "STORE_SERVER", "STORE_CLIENT");
+        IndexedFileStore store = new IndexedFileStore(dir, sessionId, false);
+        store.set(1, "first");
+        store.set(3, "third");
+        store.incrNextTargetMsgSeqNum();
+        
+        List<String> messages = new ArrayList<>();
+        store.get(1, 10, messages);
+        assertEquals(Arrays.asList("first", "third"), messages);
+        
+        store.reset();
+        messages.clear();
+        store.get(1, 10, messages);
+        assertTrue(messages.isEmpty());
+        assertEquals(1, store.getNextTargetMsgSeqNum());
+        store.close();
+        System.out.println("✓ Reset truncated store and sequence numbers");
+    }
+}
+
+// ============================================================================
+// TEST 10: IN-VM TRANSPORT
+// ============================================================================
+
+public class InVmTransportTest {
+    
+    @Test
+    public void test01_ByteRingWrapsAndBlocksWhenFull() {
+        System.out.println("\n=== TEST: Byte Ring Wrap-Around ===");
+        
+        ByteRing ring = new ByteRing(64);
+        byte[] record = new byte[20];
+        for (int round = 0; round < 10; round++) {
+            java.util.Arrays.fill(record, (byte) round);
+            assertTrue(ring.offer(record));
+            assertTrue(ring.offer(record));
+            assertFalse("Third record does not fit in 64 bytes", ring.offer(record));
+            assertArrayEquals(record, ring.poll());
+            assertArrayEquals(record, ring.poll());
+            assertNull(ring.poll());
+        }
+        System.out.println("✓ Records survive wrap-around and a full ring refuses offers");
+    }
+    
+    @Test
+    public void test03_LengthPrefixStraddlesWrap() {
+        System.out.println("\n=== TEST: Byte Ring Split Length Prefix ===");
+        
+        // Odd record sizes put the prefix at every offset, including across the end
+        ByteRing ring = new ByteRing(1024);
+        for (int i = 0; i < 5_000; i++) {
+            byte[] record = new byte[257 + i % 500];
+            java.util.Arrays.fill(record, (byte) i);
+            assertTrue(ring.offer(record));
+            assertArrayEquals(record, ring.poll());
+        }
+        assertNull(ring.poll());
+        System.out.println("✓ Length prefixes split across the wrap read back intact");
+    }
+    
+    @Test
+    public void test02_SessionsLogOnAndTradeOverRings() throws Exception {
+        System.out.println("\n=== TEST: In-VM Logon and Order Flow ===");
+        
+        SessionID clientId;
+        try (LoopbackFixture loop = new LoopbackFixture("INVM").start()) {
+            FIXClientApplication clientApp = loop.getClientApp();
+            clientId = loop.getClientId();
+            
+            OrderFuture order = clientApp.sendNewOrderSingle("AAPL", Side.BUY, 100, 
+                OrdType.LIMIT, 150.0, TimeInForce.DAY);
+            OrderResponse ack = order.get(5, TimeUnit.SECONDS);
+            assertEquals(ExecType.NEW, ack.getExecType());
+            assertEquals(order.getClOrdID(), ack.getClOrdID());
+            
+            // HeartBtInt=1: idle heartbeats keep advancing sequence numbers
+            Session client = Session.lookupSession(clientId);
+            int before = client.getStore().getNextTargetMsgSeqNum();
+            await().atMost(5, TimeUnit.SECONDS).until(
+                () -> client.getStore().getNextTargetMsgSeqNum() > before + 1);
+            System.out.println("✓ Logon, order ack and heartbeats over in-VM rings");
+        }
+        assertFalse(Session.doesSessionExist(clientId));
+    }
+    
+    static SessionSettings inVmSettings(SessionID sessionId, String connectionType) {
+        SessionSettings settings = new SessionSettings();
+        settings.setString(sessionId, "ConnectionType", connectionType);
+        settings.setString(sessionId, "NonStopSession", "Y");
+        settings.setString(sessionId, "HeartBtInt", "1");
+        settings.setString(sessionId, "ReconnectInterval", "1");
+        settings.setString(sessionId, "UseDataDictionary", "Y");
+        return settings;
+    }
+}
+
+// ============================================================================
+// TEST 11: ASYNC ORDER API
+// ============================================================================
+
+public class AsyncOrderApiTest {
+    private static LoopbackFixture loop;
+    private static FIXServerApplication serverApp;
+    private static FIXClientApplication clientApp;
+    
+    @BeforeClass
+    public static void startLoopback() throws Exception {
+        loop = new LoopbackFixture("ASYNC").start();
+        serverApp = loop.getServerApp();
+        clientApp = loop.getClientApp();
+    }
+    
+    @AfterClass
+    public static void stopLoopback() throws Exception {
+        loop.close();
+    }
+    
+    @Test
+    public void test01_PipelinedOrdersCompleteOnAck() throws Exception {
+        System.out.println("\n=== TEST: Pipelined Async Orders ===");
+        
+        List<OrderFuture> futures = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            futures.add(clientApp.sendNewOrderSingle("MSFT", Side.SELL, 10, 
+                OrdType.LIMIT, 380.0 + i * 0.01, TimeInForce.DAY));
+        }
+        java.util.concurrent.CompletableFuture.allOf(futures.toArray(new OrderFuture[0]))
+            .get(10, TimeUnit.SECONDS);
+        for (OrderFuture future : futures) {
+            assertEquals(future.getClOrdID(), future.get().getClOrdID());
+            assertEquals(ExecType.NEW, future.get().getExecType());
+        }
+        System.out.println("✓ 200 in-flight orders acknowledged without blocking per order");
+    }
+    
+    @Test
+    public void test02_CancelAckAndReject() throws Exception {
+        System.out.println("\n=== TEST: Async Cancel and Cancel Reject ===");
+        
+        OrderFuture order = clientApp.sendNewOrderSingle("AAPL", Side.BUY, 100, 
+            OrdType.LIMIT, 150.0, TimeInForce.DAY);
+        order.get(5, TimeUnit.SECONDS);
+        
+        OrderResponse canceled = clientApp.sendOrderCancelRequest(order.getClOrdID()).get(5, TimeUnit.SECONDS);
+        assertEquals(ExecType.CANCELED, canceled.getExecType());
+        assertEquals(order.getClOrdID(), canceled.getOrigClOrdID());
+        
+        // Known to the client but gone from the server's book
+        OrderFuture stale = clientApp.sendNewOrderSingle("AAPL", Side.SELL, 100, 
+            OrdType.LIMIT, 151.0, TimeInForce.DAY);
+        stale.get(5, TimeUnit.SECONDS);
+        serverApp.purgeOrders(loop.getServerId());
+        OrderResponse rejected = clientApp.sendOrderCancelRequest(stale.getClOrdID()).get(5, TimeUnit.SECONDS);
+        assertTrue(rejected.isCancelReject());
+        assertTrue(rejected.isRejected());
+        System.out.println("✓ Cancel ack and reject correlated by ClOrdID");
+    }
+    
+    @Test
+    public void test03_UnansweredRequestTimesOut() throws Exception {
+        System.out.println("\n=== TEST: Async Request Timeout ===");
+        
+        OrderFuture order = clientApp.sendNewOrderSingle("GOOGL", Side.BUY, 10, 
+            OrdType.LIMIT, 2800.0, TimeInForce.DAY);
+        order.get(5, TimeUnit.SECONDS);
+        
+        // The server answers status requests only for orders it still holds
+        serverApp.purgeOrders(loop.getServerId());
+        clientApp.setResponseTimeout(200, TimeUnit.MILLISECONDS);
+        try {
+            OrderFuture status = clientApp.sendOrderStatusRequest(order.getClOrdID());
+            try {
+                status.get(5, TimeUnit.SECONDS);
+                fail("Status request should time out");
+            } catch (java.util.concurrent.ExecutionException e) {
+                assertTrue(e.getCause() instanceof java.util.concurrent.TimeoutException);
+            }
+            // The table entry goes in a completion callback that may still be running
+            await().atMost(5, TimeUnit.SECONDS).until(() -> clientApp.getPendingRequestCount() == 0);
+        } finally {
+            clientApp.setResponseTimeout(30, TimeUnit.SECONDS);
+        }
+        System.out.println("✓ Unanswered request completed exceptionally after timeout");
+    }
+    
+    @Test
+    public void test04_ReplaceChainAndActiveOrders() throws Exception {
+        System.out.println("\n=== TEST: Replace Chain and Active Orders ===");
+        
+        OrderFuture order = clientApp.sendNewOrderSingle("TSLA", Side.BUY, 50, 
+            OrdType.LIMIT, 240.0, TimeInForce.DAY);
+        order.get(5, TimeUnit.SECONDS);
+        ClientOrder tracked = clientApp.getOrder(order.getClOrdID());
+        assertTrue(clientApp.getActiveOrders().contains(tracked));
+        
+        OrderFuture replace = clientApp.sendOrderCancelReplaceRequest(order.getClOrdID(), 75, 241.5);
+        assertEquals(ExecType.REPLACED, replace.get(5, TimeUnit.SECONDS).getExecType());
+        assertSame("Both ClOrdIDs resolve to one order", tracked, clientApp.getOrder(replace.getClOrdID()));
+        assertEquals(replace.getClOrdID(), tracked.getClOrdID());
+        assertEquals(order.getClOrdID(), tracked.getFirstClOrdID());
+        assertEquals(75, tracked.getQuantity());
+        assertEquals(241.5, tracked.getPrice(), 0.0001);
+        assertEquals(ClientOrderState.NEW, tracked.getState());
+        
+        clientApp.sendOrderCancelRequest(tracked.getClOrdID()).get(5, TimeUnit.SECONDS);
+        assertEquals(ClientOrderState.CANCELED, tracked.getState());
+        assertFalse(clientApp.getActiveOrders().contains(tracked));
+        System.out.println("✓ Replaced order followed through its ClOrdID chain and unlinked on cancel");
+    }
+    
+    @Test
+    public void test05_StatusByOriginalClOrdIDAfterReplace() throws Exception {
+        System.out.println("\n=== TEST: Status Request After Replace ===");
+        
+        OrderFuture order = clientApp.sendNewOrderSingle("AMZN", Side.BUY, 20, 
+            OrdType.LIMIT, 170.0, TimeInForce.DAY);
+        order.get(5, TimeUnit.SECONDS);
+        OrderFuture replace = clientApp.sendOrderCancelReplaceRequest(order.getClOrdID(), 30, 171.0);
+        replace.get(5, TimeUnit.SECONDS);
+        
+        // Asked by the original ClOrdID, answered under the current one
+        OrderFuture status = clientApp.sendOrderStatusRequest(order.getClOrdID());
+        assertSame("Repeated request joins the one in flight", 
+            status, clientApp.sendOrderStatusRequest(order.getClOrdID()));
+        OrderResponse response = status.get(5, TimeUnit.SECONDS);
+        assertEquals(replace.getClOrdID(), response.getClOrdID());
+        assertEquals(ExecType.ORDER_STATUS, response.getExecType());
+        await().atMost(5, TimeUnit.SECONDS).until(() -> clientApp.getPendingRequestCount() == 0);
+        
+        clientApp.sendOrderCancelRequest(replace.getClOrdID()).get(5, TimeUnit.SECONDS);
+        System.out.println("✓ Status request resolved through the replace chain");
+    }
+}
+
+// ============================================================================
+// TEST 12: CLIENT ORDER STATE MACHINE
+// ============================================================================
+
+public class ClientOrderStateTest {
+    
+    @Test
+    public void test01_ActiveListTracksTransitions() {
+        System.out.println("\n=== TEST: Active Order List Transitions ===");
+        
+        ActiveOrderList active = new ActiveOrderList();
+        ClientOrder[] orders = new ClientOrder[5];
+        for (int i = 0; i < orders.length; i++) {
+            orders[i] = new ClientOrder("C" + i, "AAPL", "BUY", 100, 150.0);
+            active.add(orders[i]);
+        }
+        assertEquals(5, active.size());
+        
+        // Unlink head, middle and tail
+        assertTrue(active.transition(orders[0], ClientOrderState.FILLED));
+        assertTrue(active.transition(orders[2], ClientOrderState.CANCELED));
+        assertTrue(active.transition(orders[4], ClientOrderState.REJECTED));
+        assertEquals(Arrays.asList(orders[1], orders[3]), active.snapshot());
+        
+        // Terminal states are absorbing
+        assertFalse(active.transition(orders[0], ClientOrderState.NEW));
+        assertEquals(ClientOrderState.FILLED, orders[0].getState());
+        assertEquals(2, active.size());
+        System.out.println("✓ Terminal transitions unlink orders in O(1)");
+    }
+    
+    @Test
+    public void test02_RejectedRequestRestoresState() {
+        System.out.println("\n=== TEST: Cancel Reject Restores State ===");
+        
+        ActiveOrderList active = new ActiveOrderList();
+        ClientOrder order = new ClientOrder("C1", "MSFT", "SELL", 100, 380.0);
+        active.add(order);
+        active.transition(order, ClientOrderState.PARTIALLY_FILLED);
+        
+        assertTrue(active.beginRequest(order, ClientOrderState.PENDING_CANCEL));
+        assertEquals("PENDING_CANCEL", order.getStatus());
+        active.requestRejected(order);
+        assertEquals(ClientOrderState.PARTIALLY_FILLED, order.getState());
+        
+        assertEquals(ClientOrderState.PARTIALLY_FILLED, ClientOrderState.fromOrdStatus(OrdStatus.PARTIALLY_FILLED));
+        assertNull(ClientOrderState.fromOrdStatus(OrdStatus.DONE_FOR_DAY));
+        System.out.println("✓ Rejected cancel falls back to the prior state");
+    }
+}
+
+// ============================================================================
+// TEST 13: ORDER HISTORY RING
+// ============================================================================
+
+public class OrderHistoryRingTest {
+    
+    @Test
+    public void test01_OldEntriesSpillToDisk() throws Exception {
+        System.out.println("\n=== TEST: Order History Spill ===");
+        
+        File spill = new File(Files.createTempDirectory("history").toFile(), "order-history.bin");
+        OrderHistoryRing ring = new OrderHistoryRing(8, spill);
+        for (int i = 0; i < 100; i++) {
+            ring.record(i, i % 7, i % 2 == 0 ? Side.BUY : Side.SELL, 100 + i, (byte) OrdStatus.NEW);
+        }
+        
+        List<Integer> onDisk = new ArrayList<>();
+        long spilled = OrderHistoryRing.readSpillFile(spill, (millis, index, symbolId, side, qty, status) -> {
+            assertEquals(index % 7, symbolId);
+            assertEquals(index % 2 == 0 ? Side.BUY : Side.SELL, side);
+            assertEquals(100 + index, qty);
+            onDisk.add(index);
+        });
+        List<Integer> inMemory = new ArrayList<>();
+        long first = ring.forEachRecent((millis, index, symbolId, side, qty, status) -> inMemory.add(index));
+        
+        assertEquals(ring.getSpilledCount(), spilled);
+        assertEquals(OrderHistoryRing.RECORD_SIZE * spilled, spill.length());
+        assertTrue("Everything older than the ring reached disk", first <= spilled);
+        for (int i = 0; i < onDisk.size(); i++) {
+            assertEquals(i, (int) onDisk.get(i));
+        }
+        assertEquals(99, (int) inMemory.get(inMemory.size() - 1));
+        assertEquals(first, (long) inMemory.get(0));
+        
+        // The entry alone is enough to format it
+        int aapl = SymbolDictionary.DEFAULT.idOf("AAPL");
+        String entry = new FIXClientApplication().formatHistoryEntry(System.currentTimeMillis(), 42, aapl, 
+            Side.SELL, 250, (byte) OrdStatus.FILLED);
+        assertTrue(entry, entry.endsWith("#42 SELL 250 AAPL: FILLED"));
+        System.out.println("✓ " + spilled + " entries spilled, " + inMemory.size() + " held in memory");
+    }
+    
+    @Test
+    public void test02_ReaderConcurrentWithProducer() throws Exception {
+        System.out.println("\n=== TEST: Order History Concurrent Read ===");
+        
+        OrderHistoryRing ring = new OrderHistoryRing(1024, null);
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < 2_000_000; i++) {
+                ring.record(i, 0, Side.BUY, 100, (byte) OrdStatus.FILLED);
+            }
+        });
+        producer.start();
+        
+        int reads = 0;
+        while (producer.isAlive() || reads == 0) {
+            int[] last = {-1};
+            ring.forEachRecent((millis, index, symbolId, side, qty, status) -> {
+                assertTrue("Entries are visited in order", index > last[0]);
+                assertEquals(OrdStatus.FILLED, (char) status);
+                last[0] = index;
+            });
+            reads++;
+        }
+        producer.join();
+        assertEquals(2_000_000, ring.size());
+        System.out.println("✓ " + reads + " snapshots read while the producer wrapped the ring");
+    }
+    
+    @Test
+    public void test03_LaterRunAppendsToSpillFile() throws Exception {
+        System.out.println("\n=== TEST: Order History Spill Across Runs ===");
+        
+        File spill = new File(Files.createTempDirectory("history").toFile(), "order-history.bin");
+        long before = System.currentTimeMillis();
+        OrderHistoryRing first = new OrderHistoryRing(8, spill);
+        for (int i = 0; i < 20; i++) {
+            first.record(i, 0, Side.BUY, 100, (byte) OrdStatus.NEW);
+        }
+        first.close();
+        long firstSpilled = first.getSpilledCount();
+        
+        // A restarted client keeps the earlier run's records
+        OrderHistoryRing second = new OrderHistoryRing(8, spill);
+        for (int i = 1000; i < 1020; i++) {
+            second.record(i, 0, Side.BUY, 100, (byte) OrdStatus.FILLED);
+        }
+        second.close();
+        
+        List<Integer> onDisk = new ArrayList<>();
+        List<Long> times = new ArrayList<>();
+        long spilled = OrderHistoryRing.readSpillFile(spill, (millis, index, symbolId, side, qty, status) -> {
+            onDisk.add(index);
+            times.add(millis);
+        });
+        assertEquals(firstSpilled + second.getSpilledCount(), spilled);
+        assertEquals(0, (int) onDisk.get(0));
+        assertEquals(1000, (int) onDisk.get((int) firstSpilled));
+        for (long millis : times) {
+            assertTrue(millis >= before - 1 && millis <= System.currentTimeMillis() + 1);
+        }
+        System.out.println("✓ Second run appended " + second.getSpilledCount() + " records after " + firstSpilled);
+    }
+}
+
+// ============================================================================
+// TEST 14: CANCEL ON DISCONNECT
+// ============================================================================
+
+public class CancelOnDisconnectTest {
+    
+    @Test
+    public void test01_LogoutCancelsOpenOrders() throws Exception {
+        System.out.println("\n=== TEST: Cancel On Logout ===");
+        
+        try (LoopbackFixture loop = new LoopbackFixture("COD")) {
+            SessionID serverId = loop.getServerId();
+            FIXServerApplication serverApp = loop.getServerApp();
+            FIXClientApplication clientApp = loop.getClientApp();
+            loop.getServerSettings().setString(serverId, CancelOnDisconnect.SETTING_MODE, "Y");
+            serverApp.getCancelOnDisconnect().configure(loop.getServerSettings());
+            loop.start();
+            
+            List<OrderFuture> futures = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                futures.add(clientApp.sendNewOrderSingle("IBM", Side.BUY, 100, 
+                    OrdType.LIMIT, 140.0, TimeInForce.DAY));
+            }
+            java.util.concurrent.CompletableFuture.allOf(futures.toArray(new OrderFuture[0]))
+                .get(10, TimeUnit.SECONDS);
+            assertEquals(1000, serverApp.getCancelOnDisconnect().getOpenOrderCount(serverId));
+            
+            loop.stopConnector();
+            await().atMost(5, TimeUnit.SECONDS).until(() -> serverApp.getOrderBookSizes().isEmpty());
+            assertEquals(0, serverApp.getCancelOnDisconnect().getOpenOrderCount(serverId));
+        }
+        System.out.println("✓ 1000 resting orders canceled when the session logged out");
+    }
+    
+    @Test
+    public void test02_GracePeriodAndMode() throws Exception {
+        System.out.println("\n=== TEST: Cancel On Disconnect Grace Period ===");
+        
+        SessionID sessionId = new SessionID("FIX.4.4", "COD_SERVER", "COD_GRACE");
+        List<OrderData> canceled = new CopyOnWriteArrayList<>();
+        CancelOnDisconnect cod = new CancelOnDisconnect((id, orders) -> {
+            canceled.addAll(orders);
+            return orders.size();
+        });
+        for (int i = 0; i < 5; i++) {
+            OrderData order = new OrderData("ORD" + i, "C" + i, "AAPL", Side.BUY, 100, 150.0);
+            order.setSessionID(sessionId);
+            cod.onOrderOpened(order);
+        }
+        
+        // Disconnect-only policy ignores a clean logout
+        cod.setPolicy(sessionId, new CancelOnDisconnect.Policy(CancelOnDisconnect.Mode.DISCONNECT, 0));
+        cod.onLogoutMessage(sessionId);
+        cod.onLogout(sessionId);
+        Thread.sleep(100);
+        assertTrue(canceled.isEmpty());
+        
+        // Logging back on inside the grace period keeps the orders
+        cod.setPolicy(sessionId, new CancelOnDisconnect.Policy(CancelOnDisconnect.Mode.BOTH, 200));
+        cod.onLogout(sessionId);
+        cod.onLogon(sessionId);
+        Thread.sleep(400);
+        assertTrue(canceled.isEmpty());
+        assertEquals(5, cod.getOpenOrderCount(sessionId));
+        
+        cod.onLogout(sessionId);
+        await().atMost(2, TimeUnit.SECONDS).until(() -> canceled.size() == 5);
+        assertEquals(0, cod.getOpenOrderCount(sessionId));
+        cod.close();
+        System.out.println("✓ Grace period and logout/disconnect modes respected");
+    }
+}
+
+// ============================================================================
+// TEST 15: STOP TRIGGER ENGINE
+// ============================================================================
+
+public class StopTriggerTest {
+    
+    private static OrderData stop(String clOrdID, char side, double stopPx) {
+        OrderData order = new OrderData("ORD-" + clOrdID, clOrdID, "AAPL", side, 100, 0);
+        order.setOrdType(OrdType.STOP);
+        order.setStopPx(stopPx);
+        return order;
+    }
+    
+    @Test
+    public void test01_TradePopsCrossedRangeInOrder() {
+        System.out.println("\n=== TEST: Stop Trigger Range Scan ===");
+        
+        StopTriggerEngine engine = new StopTriggerEngine();
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(engine.park(stop("B" + i, Side.BUY, 151.0 + (i % 100) * 0.01)));
+            assertTrue(engine.park(stop("S" + i, Side.SELL, 149.0 - (i % 100) * 0.01)));
+        }
+        assertTrue(engine.park(stop("B-late", Side.BUY, 151.0)));
+        
+        // Crosses buy levels 151.00 and 151.01 only
+        List<OrderData> triggered = engine.onTrade("AAPL", 151.015);
+        assertEquals(201, triggered.size());
+        assertEquals("B0", triggered.get(0).getClOrdID());
+        assertEquals("B-late", triggered.get(100).getClOrdID());
+        assertEquals("B1", triggered.get(101).getClOrdID());
+        assertEquals(20_000 - 200, engine.getParkedCount("AAPL"));
+        assertTrue(engine.onTrade("AAPL", 150.0).isEmpty());
+        
+        // Sells come back from the highest stop down
+        List<OrderData> sells = engine.onTrade("AAPL", 148.985);
+        assertEquals(200, sells.size());
+        assertEquals(149.0, sells.get(0).getStopPx(), 0.0001);
+        assertEquals(148.99, sells.get(199).getStopPx(), 0.0001);
+        System.out.println("✓ Trade triggered only the crossed levels, in price then arrival order");
+    }
+    
+    @Test
+    public void test02_RemoveAndImmediateTrigger() {
+        System.out.println("\n=== TEST: Stop Cancel and Immediate Trigger ===");
+        
+        StopTriggerEngine engine = new StopTriggerEngine();
+        OrderData parked = stop("B1", Side.BUY, 155.0);
+        engine.park(parked);
+        assertTrue(engine.remove(parked));
+        assertFalse(engine.remove(parked));
+        assertTrue(engine.onTrade("AAPL", 160.0).isEmpty());
+        
+        // Last trade already at or through the stop
+        assertFalse(engine.park(stop("B2", Side.BUY, 158.0)));
+        assertFalse(engine.park(stop("S1", Side.SELL, 160.0)));
+        assertTrue(engine.park(stop("S2", Side.SELL, 159.0)));
+        System.out.println("✓ Canceled stops unparked; already-crossed stops trigger on entry");
+    }
+    
+    @Test
+    public void test03_FillTriggersParkedStop() throws Exception {
+        System.out.println("\n=== TEST: Fill Triggers Stop Over Loopback ===");
+        
+        try (LoopbackFixture loop = new LoopbackFixture("STOP").start()) {
+            FIXServerApplication serverApp = loop.getServerApp();
+            FIXClientApplication clientApp = loop.getClientApp();
+            
+            OrderFuture stop = clientApp.sendNewOrderSingle("NVDA", Side.BUY, 100, 
+                OrdType.STOP, 0, 500.0, TimeInForce.DAY);
+            stop.get(5, TimeUnit.SECONDS);
+            assertEquals(1, serverApp.getStopTriggers().getParkedCount("NVDA"));
+            
+            // Its fill prints a trade through the stop
+            clientApp.sendNewOrderSingle("NVDA", Side.SELL, 100, 
+                OrdType.LIMIT, 501.0, TimeInForce.DAY).get(5, TimeUnit.SECONDS);
+            ClientOrder stopOrder = clientApp.getOrder(stop.getClOrdID());
+            await().atMost(10, TimeUnit.SECONDS).until(() -> stopOrder.getFilledQty() > 0);
+            assertEquals(0, serverApp.getStopTriggers().getParkedCount("NVDA"));
+        }
+        System.out.println("✓ Parked stop triggered by a fill and executed");
+    }
+}
+
+// ============================================================================
+// TEST 16: ICEBERG AND PEGGED ORDERS
+// ============================================================================
+
+public class MarketBookTest {
+    
+    private static OrderData limit(String clOrdID, char side, int qty, double price) {
+        return new OrderData("ORD-" + clOrdID, clOrdID, "AAPL", side, qty, price);
+    }
+    
+    @Test
+    public void test01_IcebergShowsOnlyItsClip() {
+        System.out.println("\n=== TEST: Iceberg Displayed Quantity ===");
+        
+        MarketBook book = new MarketBook();
+        book.update(limit("B1", Side.BUY, 100, 150.0));
+        OrderData iceberg = limit("B2", Side.BUY, 1000, 150.5);
+        iceberg.setMaxFloor(100);
+        book.update(iceberg);
+        book.update(limit("S1", Side.SELL, 200, 151.0));
+        
+        assertEquals(150.5, book.getBestBid("AAPL"), 0.0001);
+        assertEquals(151.0, book.getBestAsk("AAPL"), 0.0001);
+        assertEquals(100, book.getDisplayedQty("AAPL", Side.BUY, 150.5));
+        
+        // Replenished clip, then the last partial clip
+        iceberg.setFilledQty(100);
+        book.update(iceberg);
+        assertEquals(100, book.getDisplayedQty("AAPL", Side.BUY, 150.5));
+        iceberg.setFilledQty(950);
+        book.update(iceberg);
+        assertEquals(50, book.getDisplayedQty("AAPL", Side.BUY, 150.5));
+        
+        iceberg.setFilledQty(1000);
+        book.update(iceberg);
+        assertEquals(0, book.getDisplayedQty("AAPL", Side.BUY, 150.5));
+        assertEquals(150.0, book.getBestBid("AAPL"), 0.0001);
+        System.out.println("✓ Iceberg displayed one clip at a time and left the BBO when filled");
+    }
+    
+    @Test
+    public void test02_BboMoveRepricesOnlyAffectedPegs() {
+        System.out.println("\n=== TEST: Peg Repricing ===");
+        
+        MarketBook book = new MarketBook();
+        book.update(limit("B1", Side.BUY, 100, 150.0));
+        book.update(limit("S1", Side.SELL, 100, 151.0));
+        
+        List<OrderData> primaryBuys = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            OrderData peg = limit("P" + i, Side.BUY, 100, 0);
+            peg.setOrdType(OrdType.PEGGED);
+            peg.setPeg(ExecInst.PRIMARY_PEG, -0.01);
+            book.update(peg);
+            primaryBuys.add(peg);
+        }
+        OrderData marketSell = limit("M1", Side.SELL, 100, 0);
+        marketSell.setOrdType(OrdType.PEGGED);
+        marketSell.setPeg(ExecInst.MARKET_PEG, 0.0);
+        book.update(marketSell);
+        assertEquals(149.99, primaryBuys.get(0).getPrice(), 0.0001);
+        assertEquals(150.0, marketSell.getPrice(), 0.0001);
+        assertEquals(10_001, book.getPeggedCount("AAPL"));
+        
+        // An offer move touches no bid-referenced pegs
+        long before = book.getRepriceCount("AAPL");
+        book.update(limit("S2", Side.SELL, 100, 150.8));
+        assertEquals(before, book.getRepriceCount("AAPL"));
+        
+        book.update(limit("B2", Side.BUY, 100, 150.5));
+        assertEquals(before + 10_001, book.getRepriceCount("AAPL"));
+        assertEquals(150.49, primaryBuys.get(9_999).getPrice(), 0.0001);
+        assertEquals(150.5, marketSell.getPrice(), 0.0001);
+        
+        // Canceled pegs leave the index
+        primaryBuys.get(0).setCanceled(true);
+        book.update(primaryBuys.get(0));
+        assertEquals(10_000, book.getPeggedCount("AAPL"));
+        System.out.println("✓ Bid move repriced exactly the bid-referenced pegs");
+    }
+    
+    @Test
+    public void test04_LevelQueuesInTimePriority() {
+        System.out.println("\n=== TEST: Price Level Time Priority ===");
+        
+        MarketBook book = new MarketBook();
+        OrderData iceberg = limit("B1", Side.BUY, 200, 150.0);
+        iceberg.setMaxFloor(50);
+        OrderData plain = limit("B2", Side.BUY, 100, 150.0);
+        book.update(iceberg);
+        book.update(plain);
+        assertEquals(Arrays.asList(iceberg, plain), book.getQueue("AAPL", Side.BUY, 150.0));
+        
+        // A partial fill keeps its place
+        plain.setFilledQty(50);
+        book.update(plain);
+        assertEquals(Arrays.asList(iceberg, plain), book.getQueue("AAPL", Side.BUY, 150.0));
+        
+        // A replenished clip goes to the back
+        iceberg.setFilledQty(50);
+        iceberg.setPriority(book.nextPriority());
+        book.update(iceberg);
+        assertEquals(Arrays.asList(plain, iceberg), book.getQueue("AAPL", Side.BUY, 150.0));
+        assertEquals(100, book.getDisplayedQty("AAPL", Side.BUY, 150.0));
+        
+        plain.setCanceled(true);
+        book.update(plain);
+        assertEquals(Arrays.asList(iceberg), book.getQueue("AAPL", Side.BUY, 150.0));
+        System.out.println("✓ Level queue in time priority; replenished iceberg lost its place");
+    }
+    
+    @Test
+    public void test05_PegParkedUntilReferenceQuoted() {
+        System.out.println("\n=== TEST: Peg Parked Without Reference ===");
+        
+        MarketBook book = new MarketBook();
+        List<OrderData> priced = new ArrayList<>();
+        book.setPricedListener(priced::add);
+        OrderData peg = limit("P1", Side.BUY, 100, 0);
+        peg.setOrdType(OrdType.PEGGED);
+        peg.setPeg(ExecInst.PRIMARY_PEG, -0.01);
+        OrderData canceled = limit("P2", Side.BUY, 100, 0);
+        canceled.setOrdType(OrdType.PEGGED);
+        canceled.setPeg(ExecInst.PRIMARY_PEG, 0.0);
+        assertTrue("No bid to peg to", book.update(peg));
+        assertTrue(book.update(canceled));
+        assertEquals(2, book.getParkedPegCount("AAPL"));
+        assertEquals(0.0, peg.getPrice(), 0.0);
+        
+        canceled.setCanceled(true);
+        book.update(canceled);
+        assertEquals(1, book.getParkedPegCount("AAPL"));
+        
+        // An offer does not price a bid-referenced peg
+        book.update(limit("S1", Side.SELL, 100, 151.0));
+        assertTrue(priced.isEmpty());
+        book.update(limit("B1", Side.BUY, 100, 150.0));
+        assertEquals(Arrays.asList(peg), priced);
+        assertEquals(149.99, peg.getPrice(), 0.0001);
+        assertEquals(0, book.getParkedPegCount("AAPL"));
+        assertEquals(1, book.getPeggedCount("AAPL"));
+        System.out.println("✓ Peg parked until the bid appeared, then priced off it");
+    }
+    
+    @Test
+    public void test06_ReplenishChurnDoesNotAllocate() {
+        System.out.println("\n=== TEST: Allocation-Free Level Churn ===");
+        
+        java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        MarketBook book = new MarketBook();
+        OrderData[] icebergs = new OrderData[3];
+        for (int i = 0; i < icebergs.length; i++) {
+            icebergs[i] = limit("I" + i, Side.SELL, Integer.MAX_VALUE, 151.0);
+            icebergs[i].setMaxFloor(100);
+            book.update(icebergs[i]);
+        }
+        OrderData older = limit("B0", Side.BUY, 100, 150.0);
+        older.setPriority(book.nextPriority());
+        
+        long thread = Thread.currentThread().getId();
+        long start = 0;
+        for (int round = 0; round < 2; round++) {
+            if (round == 1) {
+                start = allocations.getThreadAllocatedBytes(thread);
+            }
+            for (int i = 0; i < 300_000; i++) {
+                // Each clip fills, replenishes and goes to the back of the level
+                OrderData iceberg = icebergs[i % icebergs.length];
+                iceberg.setFilledQty(iceberg.getFilledQty() + 100);
+                iceberg.setPriority(book.nextPriority());
+                book.update(iceberg);
+            }
+        }
+        long allocated = allocations.getThreadAllocatedBytes(thread) - start;
+        assertTrue("Allocated " + allocated + " bytes", allocated < 4_096);
+        assertEquals(Arrays.asList(icebergs), book.getQueue("AAPL", Side.SELL, 151.0));
+        assertEquals(300, book.getDisplayedQty("AAPL", Side.SELL, 151.0));
+        
+        // An older priority still lands in its place, and an emptied level comes back empty
+        OrderData newer = limit("B1", Side.BUY, 100, 150.0);
+        book.update(newer);
+        book.update(older);
+        assertEquals(Arrays.asList(older, newer), book.getQueue("AAPL", Side.BUY, 150.0));
+        older.setCanceled(true);
+        newer.setCanceled(true);
+        book.update(older);
+        book.update(newer);
+        assertTrue(Double.isNaN(book.getBestBid("AAPL")));
+        OrderData again = limit("B2", Side.BUY, 100, 150.0);
+        book.update(again);
+        assertEquals(Arrays.asList(again), book.getQueue("AAPL", Side.BUY, 150.0));
+        assertEquals(100, book.getDisplayedQty("AAPL", Side.BUY, 150.0));
+        System.out.println("✓ 300K replenishes re-queued with " + allocated + " bytes allocated");
+    }
+    
+    @Test
+    public void test03_IcebergAndPegOverLoopback() throws Exception {
+        System.out.println("\n=== TEST: Iceberg and Peg Over Loopback ===");
+        
+        try (LoopbackFixture loop = new LoopbackFixture("ICE").start()) {
+            FIXServerApplication serverApp = loop.getServerApp();
+            FIXClientApplication clientApp = loop.getClientApp();
+            
+            OrderFuture iceberg = clientApp.sendIcebergOrder("AMZN", Side.BUY, 1000, 180.0, 250, TimeInForce.DAY);
+            iceberg.get(5, TimeUnit.SECONDS);
+            assertEquals(250, serverApp.getMarketBook().getDisplayedQty("AMZN", Side.BUY, 180.0));
+            
+            OrderFuture peg = clientApp.sendPeggedOrder("AMZN", Side.BUY, 100, ExecInst.PRIMARY_PEG, -0.05, TimeInForce.DAY);
+            assertEquals(ExecType.NEW, peg.get(5, TimeUnit.SECONDS).getExecType());
+            assertEquals(1, serverApp.getMarketBook().getPeggedCount("AMZN"));
+            
+            ClientOrder tracked = clientApp.getOrder(iceberg.getClOrdID());
+            await().atMost(10, TimeUnit.SECONDS).until(() -> tracked.getState() == ClientOrderState.FILLED);
+            assertEquals(1000, tracked.getFilledQty());
+        }
+        System.out.println("✓ Iceberg filled clip by clip; pegged order accepted and indexed");
+    }
+}
+
+// ============================================================================
+// TEST 17: SYMBOL DICTIONARY
+// ============================================================================
+
+public class SymbolDictionaryTest {
+    
+    @Test
+    public void test01_PreloadedIdsAreDense() throws Exception {
+        System.out.println("\n=== TEST: Symbol Dictionary Preload ===");
+        
+        File file = new File(Files.createTempDirectory("symbols").toFile(), "symbols.txt");
+        StringBuilder content = new StringBuilder("# reference symbols\n");
+        for (int i = 0; i < 100_000; i++) {
+            content.append("SYM").append(i).append('\n');
+        }
+        Files.write(file.toPath(), content.toString().getBytes(java.nio.charset.StandardCharsets.US_ASCII));
+        
+        SymbolDictionary dictionary = new SymbolDictionary(16);
+        long start = System.nanoTime();
+        assertEquals(100_000, dictionary.load(file));
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        
+        assertEquals(0, dictionary.find("SYM0"));
+        assertEquals(99_999, dictionary.find("SYM99999"));
+        assertEquals("SYM4242", dictionary.nameOf(4242));
+        assertEquals(-1, dictionary.find("UNKNOWN"));
+        assertEquals(100_000, dictionary.idOf("UNKNOWN"));
+        assertEquals(100_001, dictionary.size());
+        System.out.println("✓ 100k symbols loaded in " + elapsedMs + " ms with dense IDs");
+    }
+    
+    @Test
+    public void test02_ConcurrentInternAgrees() throws Exception {
+        System.out.println("\n=== TEST: Concurrent Symbol Interning ===");
+        
+        SymbolDictionary dictionary = new SymbolDictionary(8);
+        int threads = 4;
+        int[][] seen = new int[threads][5_000];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int worker = t;
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < 5_000; i++) {
+                    seen[worker][i] = dictionary.idOf("S" + i);
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        
+        assertEquals(5_000, dictionary.size());
+        for (int t = 1; t < threads; t++) {
+            assertArrayEquals(seen[0], seen[t]);
+        }
+        for (int i = 0; i < 5_000; i++) {
+            assertEquals("S" + i, dictionary.nameOf(seen[0][i]));
+        }
+        System.out.println("✓ Racing threads received one ID per symbol");
+    }
+    
+    @Test
+    public void test04_QueriesDoNotIntern() {
+        System.out.println("\n=== TEST: Lookups Leave the Dictionary Alone ===");
+        
+        SymbolDictionary dictionary = SymbolDictionary.DEFAULT;
+        MarketBook book = new MarketBook();
+        StopTriggerEngine stops = new StopTriggerEngine();
+        assertTrue(Double.isNaN(book.getBestBid("UNSEEN1")));
+        assertEquals(0, book.getDisplayedQty("UNSEEN1", Side.BUY, 10.0));
+        assertTrue(stops.onTrade("UNSEEN2", 10.0).isEmpty());
+        assertEquals(0, stops.getParkedCount("UNSEEN2"));
+        OrderData order = new OrderData("ORD1", "C1", "UNSEEN3", Side.BUY, 100, 10.0);
+        assertEquals(-1, dictionary.find("UNSEEN1"));
+        assertEquals(-1, dictionary.find("UNSEEN2"));
+        assertEquals(-1, dictionary.find("UNSEEN3"));
+        
+        // Booking an accepted order is what interns its symbol
+        book.update(order);
+        assertEquals(order.getSymbolId(), dictionary.find("UNSEEN3"));
+        assertEquals(10.0, book.getBestBid("UNSEEN3"), 0.0);
+        System.out.println("✓ Queries and unbooked orders added no symbols");
+    }
+}
+
+// ============================================================================
+// TEST 18: SECURITY MASTER
+// ============================================================================
+
+public class SecurityMasterTest {
+    
+    private static File compile(File dir, String name, String content) throws IOException {
+        File csv = new File(dir, name + ".csv");
+        File bin = new File(dir, name + ".bin");
+        Files.write(csv.toPath(), content.getBytes(java.nio.charset.StandardCharsets.US_ASCII));
+        SecurityMaster.compile(csv, bin);
+        return bin;
+    }
+    
+    @Test
+    public void test01_LargeTableOpensQuickly() throws Exception {
+        System.out.println("\n=== TEST: Security Master Open and Lookup ===");
+        
+        File dir = Files.createTempDirectory("secmaster").toFile();
+        StringBuilder content = new StringBuilder("symbol,tick,lot,low,high,status\n");
+        for (int i = 0; i < 500_000; i++) {
+            content.append("INS").append(i).append(i % 2 == 0 ? ",0.01,100,1,1000,T\n" : ",0.05,1,10,500,H\n");
+        }
+        File bin = compile(dir, "large", content.toString());
+        
+        long start = System.nanoTime();
+        SecurityMaster master = SecurityMaster.open(bin);
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        assertEquals(500_000, master.size());
+        assertTrue("open took " + elapsedMs + " ms", elapsedMs < 200);
+        
+        int record = master.find("INS123456");
+        assertTrue(record >= 0);
+        assertEquals(0.01, master.getTickSize(record), 0.0);
+        assertEquals(100, master.getLotSize(record));
+        assertEquals(SecurityMaster.STATUS_HALTED, master.getStatus(master.find("INS7")));
+        assertEquals(-1, master.find("INS500000"));
+        assertEquals(-1, master.find("INS12345678901234"));
+        
+        assertEquals(SecurityMaster.VALID, master.validate("INS2", 300, 150.25, 0));
+        assertEquals(SecurityMaster.VALID, master.validate("INS2", 100, 0, 0));
+        assertEquals(SecurityMaster.UNKNOWN_SYMBOL, master.validate("NOPE", 100, 150.0, 0));
+        assertEquals(SecurityMaster.NOT_TRADING, master.validate("INS3", 100, 150.0, 0));
+        assertEquals(SecurityMaster.BAD_LOT, master.validate("INS2", 150, 150.0, 0));
+        assertEquals(SecurityMaster.NOT_ON_TICK, master.validate("INS2", 100, 150.005, 0));
+        assertEquals(SecurityMaster.OUT_OF_BAND, master.validate("INS2", 100, 1000.01, 0));
+        assertEquals(SecurityMaster.OUT_OF_BAND, master.validate("INS2", 100, 150.0, 0.5));
+        System.out.println("✓ 500k instruments mapped in " + elapsedMs + " ms; lookups and checks correct");
+    }
+    
+    @Test
+    public void test02_ReloadSwapsTable() throws Exception {
+        System.out.println("\n=== TEST: Security Master Reload ===");
+        
+        File dir = Files.createTempDirectory("secmaster").toFile();
+        File bin = compile(dir, "master", "AAPL,0.01,1,1,1000,T\n");
+        SecurityMasterWatcher watcher = new SecurityMasterWatcher(bin);
+        SecurityMaster before = watcher.reload();
+        
+        compile(dir, "master", "AAPL,0.01,1,1,1000,H\nMSFT,0.01,1,1,1000,T\n");
+        SecurityMaster after = watcher.reload();
+        assertNotSame(before, after);
+        assertSame(after, watcher.get());
+        assertEquals(SecurityMaster.NOT_TRADING, after.validate("AAPL", 10, 150.0, 0));
+        assertEquals(SecurityMaster.VALID, after.validate("MSFT", 10, 150.0, 0));
+        
+        // A table already handed out keeps reading its own mapping
+        assertEquals(SecurityMaster.VALID, before.validate("AAPL", 10, 150.0, 0));
+        assertEquals(-1, before.find("MSFT"));
+        System.out.println("✓ Reload swapped the table; the previous mapping stayed readable");
+    }
+    
+    @Test
+    public void test03_ServerRejectsInvalidOrders() throws Exception {
+        System.out.println("\n=== TEST: Security Master Rejects Over Loopback ===");
+        
+        File dir = Files.createTempDirectory("secmaster").toFile();
+        File bin = compile(dir, "master", "IBM,0.01,100,100,300,T\n");
+        try (LoopbackFixture loop = new LoopbackFixture("SEC")) {
+            loop.getServerApp().enableSecurityMaster(new SecurityMasterWatcher(bin), 0);
+            FIXClientApplication clientApp = loop.start().getClientApp();
+            
+            OrderResponse unknown = clientApp.sendNewOrderSingle("XYZ", Side.BUY, 100, 
+                OrdType.LIMIT, 150.0, TimeInForce.DAY).get(5, TimeUnit.SECONDS);
+            assertTrue(unknown.isRejected());
+            assertEquals("Unknown symbol", unknown.getText());
+            
+            OrderResponse oddLot = clientApp.sendNewOrderSingle("IBM", Side.BUY, 150, 
+                OrdType.LIMIT, 150.0, TimeInForce.DAY).get(5, TimeUnit.SECONDS);
+            assertTrue(oddLot.isRejected());
+            assertEquals(ClientOrderState.REJECTED, clientApp.getOrder(oddLot.getClOrdID()).getState());
+            
+            OrderResponse valid = clientApp.sendNewOrderSingle("IBM", Side.BUY, 200, 
+                OrdType.LIMIT, 150.0, TimeInForce.DAY).get(5, TimeUnit.SECONDS);
+            assertEquals(ExecType.NEW, valid.getExecType());
+        }
+        System.out.println("✓ Unknown symbol and odd lot rejected; valid order accepted");
+    }
+    
+    @Test
+    public void test04_TickAndStopChecks() throws Exception {
+        System.out.println("\n=== TEST: Security Master Tick and Stop Checks ===");
+        
+        File dir = Files.createTempDirectory("secmaster").toFile();
+        File bin = compile(dir, "master", "FREE,0,1,1,1000,T\nNEG,-0.01,1,1,1000,T\nIBM,0.05,1,100,300,T\n");
+        SecurityMaster master = SecurityMaster.open(bin);
+        
+        // No tick size: any price inside the band passes, instead of comparing NaN
+        assertEquals(SecurityMaster.VALID, master.validate("FREE", 10, 150.123, 0));
+        assertEquals(SecurityMaster.VALID, master.validate("NEG", 10, 150.123, 149.001));
+        assertEquals(SecurityMaster.OUT_OF_BAND, master.validate("FREE", 10, 1000.5, 0));
+        
+        // The stop price is held to the same tick and band as the limit price
+        assertEquals(SecurityMaster.VALID, master.validate("IBM", 10, 150.05, 149.95));
+        assertEquals(SecurityMaster.NOT_ON_TICK, master.validate("IBM", 10, 150.05, 149.99));
+        assertEquals(SecurityMaster.NOT_ON_TICK, master.validate("IBM", 10, 150.01, 400.0));
+        assertEquals(SecurityMaster.OUT_OF_BAND, master.validate("IBM", 10, 0, 99.95));
+        System.out.println("✓ Zero or negative tick places no constraint; stop price checked after the limit");
+    }
+}
+
+// ============================================================================
+// TEST 19: DUPLICATE CLORDID DETECTION
+// ============================================================================
+
+public class DuplicateClOrdIdTest {
+    
+    @Test
+    public void test01_MillionsOfIdsInFixedMemory() {
+        System.out.println("\n=== TEST: Duplicate ClOrdID Filter ===");
+        
+        ClOrdIdFilter filter = new ClOrdIdFilter(2_000_000);
+        long memory = filter.getMemoryBytes();
+        for (int i = 0; i < 2_000_000; i++) {
+            assertFalse(filter.checkAndAdd("ORD" + i));
+        }
+        assertEquals(2_000_000, filter.size());
+        assertEquals(memory, filter.getMemoryBytes());
+        
+        for (int i = 0; i < 2_000_000; i += 997) {
+            assertTrue(filter.checkAndAdd("ORD" + i));
+        }
+        assertEquals(2_007, filter.getDuplicateCount());
+        
+        // Bloom false positives are settled by the exact set
+        for (int i = 0; i < 100_000; i++) {
+            assertFalse(filter.checkAndAdd("NEW" + i));
+        }
+        System.out.println("✓ 2M IDs tracked in " + memory / (1024 * 1024) + " MB with exact duplicate answers");
+    }
+    
+    @Test
+    public void test02_NewTradingDayClears() {
+        System.out.println("\n=== TEST: Duplicate Filter Day Rollover ===");
+        
+        ClOrdIdFilter filter = new ClOrdIdFilter(1_000);
+        filter.startDay(20_000);
+        assertFalse(filter.checkAndAdd("DUP001"));
+        filter.startDay(20_000);
+        assertTrue(filter.checkAndAdd("DUP001"));
+        
+        filter.startDay(20_001);
+        assertEquals(0, filter.size());
+        assertFalse(filter.checkAndAdd("DUP001"));
+        
+        // Past capacity the filter keeps accepting new IDs
+        for (int i = 0; i < 5_000; i++) {
+            assertFalse(filter.checkAndAdd("OVER" + i));
+        }
+        assertEquals(1_000, filter.size());
+        System.out.println("✓ Same-day logon kept IDs; next day started empty");
+    }
+    
+    @Test
+    public void test03_ServerRejectsReusedClOrdID() throws Exception {
+        System.out.println("\n=== TEST: Duplicate ClOrdID Rejected Over Loopback ===");
+        
+        try (LoopbackFixture loop = new LoopbackFixture("DUP").start()) {
+            FIXServerApplication serverApp = loop.getServerApp();
+            FIXClientApplication clientApp = loop.getClientApp();
+            SessionID serverId = loop.getServerId();
+            SessionID clientId = loop.getClientId();
+            
+            OrderFuture first = clientApp.sendNewOrderSingle("AAPL", Side.BUY, 100, 
+                OrdType.LIMIT, 150.0, TimeInForce.DAY);
+            assertEquals(ExecType.NEW, first.get(5, TimeUnit.SECONDS).getExecType());
+            
+            // Resend the same ClOrdID for a different instrument
+            NewOrderSingle reused = new NewOrderSingle(new ClOrdID(first.getClOrdID()), 
+                new Side(Side.SELL), new TransactTime(new Date()), new OrdType(OrdType.LIMIT));
+            reused.set(new Symbol("GOOGL"));
+            reused.set(new OrderQty(50));
+            reused.set(new Price(2800.0));
+            Session.sendToTarget(reused, clientId);
+            
+            ClOrdIdFilter filter = serverApp.getClOrdIdFilter(serverId);
+            await().atMost(5, TimeUnit.SECONDS).until(() -> filter.getDuplicateCount() == 1);
+            assertEquals(Integer.valueOf(1), serverApp.getOrderBookSizes().get("AAPL"));
+            assertNull(serverApp.getOrderBookSizes().get("GOOGL"));
+        }
+        System.out.println("✓ Reused ClOrdID rejected; original order left in the book");
+    }
+    
+    @Test
+    public void test04_SameClOrdIdInTwoSessions() throws Exception {
+        System.out.println("\n=== TEST: Same ClOrdID From Two Sessions ===");
+        
+        try (LoopbackFixture first = new LoopbackFixture("SESA").start();
+             LoopbackFixture second = new LoopbackFixture("SESB", first.getServerApp()).start()) {
+            FIXServerApplication serverApp = first.getServerApp();
+            
+            // Parked stops stay open for the whole test
+            sendStop(first.getClientId(), "SHARED1", "AAPL");
+            await().atMost(5, TimeUnit.SECONDS).until(() -> serverApp.getOrderBookSizes().containsKey("AAPL"));
+            sendStop(second.getClientId(), "SHARED1", "MSFT");
+            await().atMost(5, TimeUnit.SECONDS).until(() -> serverApp.getOrderBookSizes().containsKey("MSFT"));
+            assertEquals("First session's order still in the book", 
+                Integer.valueOf(1), serverApp.getOrderBookSizes().get("AAPL"));
+            
+            // A cancel only reaches the order of the session that sent it
+            OrderCancelRequest cancel = new OrderCancelRequest(new OrigClOrdID("SHARED1"), 
+                new ClOrdID("SHARED1C"), new Side(Side.BUY), new TransactTime(new Date()));
+            cancel.set(new Symbol("MSFT"));
+            cancel.set(new OrderQty(100));
+            Session.sendToTarget(cancel, second.getClientId());
+            await().atMost(5, TimeUnit.SECONDS).until(() -> !serverApp.getOrderBookSizes().containsKey("MSFT"));
+            assertEquals(Integer.valueOf(1), serverApp.getOrderBookSizes().get("AAPL"));
+        }
+        System.out.println("✓ Each session kept its own SHARED1; the cancel touched only the sender's");
+    }
+    
+    private static void sendStop(SessionID clientId, String clOrdID, String symbol) throws SessionNotFound {
+        NewOrderSingle order = new NewOrderSingle(new ClOrdID(clOrdID), new Side(Side.BUY), 
+            new TransactTime(new Date()), new OrdType(OrdType.STOP));
+        order.set(new Symbol(symbol));
+        order.set(new OrderQty(100));
+        order.set(new StopPx(10_000.0));
+        order.set(new TimeInForce(TimeInForce.DAY));
+        Session.sendToTarget(order, clientId);
+    }
+}
+
+// ============================================================================
+// TEST 20: POSITIONS AND P&L
+// ============================================================================
+
+public class PositionKeeperTest {
+    
+    @Test
+    public void test01_AverageCostAndRealizedPnl() {
+        System.out.println("\n=== TEST: Position Average Cost and P&L ===");
+        
+        PositionKeeper keeper = new PositionKeeper();
+        keeper.onFill("ACC1", "AAPL", Side.BUY, 100, 150.0);
+        keeper.onFill("ACC1", "AAPL", Side.BUY, 100, 152.0);
+        PositionKeeper.Position position = keeper.get("ACC1", "AAPL");
+        assertEquals(200, position.getNetQty());
+        assertEquals(151.0, position.getAvgCost(), 1e-9);
+        assertEquals(200.0, position.getUnrealizedPnl(), 1e-9);
+        
+        // Partial close realizes against the average cost
+        keeper.onFill("ACC1", "AAPL", Side.SELL, 50, 155.0);
+        position = keeper.get("ACC1", "AAPL");
+        assertEquals(150, position.getNetQty());
+        assertEquals(151.0, position.getAvgCost(), 1e-9);
+        assertEquals(200.0, position.getRealizedPnl(), 1e-9);
+        assertEquals(600.0, position.getUnrealizedPnl(), 1e-9);
+        
+        // Selling through flat opens a short at the fill price
+        keeper.onFill("ACC1", "AAPL", Side.SELL, 200, 150.0);
+        position = keeper.get("ACC1", "AAPL");
+        assertEquals(-50, position.getNetQty());
+        assertEquals(150.0, position.getAvgCost(), 1e-9);
+        assertEquals(50.0, position.getRealizedPnl(), 1e-9);
+        
+        // Accounts are kept apart
+        keeper.onFill("ACC2", "AAPL", Side.SELL, 10, 149.0);
+        assertEquals(-10, keeper.get("ACC2", "AAPL").getNetQty());
+        assertEquals(-50, keeper.get("ACC1", "AAPL").getNetQty());
+        assertNull(keeper.get("ACC2", "MSFT"));
+        assertEquals(2, keeper.size());
+        System.out.println("✓ Average cost, realized and unrealized P&L follow each fill");
+    }
+    
+    @Test
+    public void test02_SnapshotsDuringHighFillRate() throws Exception {
+        System.out.println("\n=== TEST: Position Snapshots Under Load ===");
+        
+        PositionKeeper keeper = new PositionKeeper();
+        String[] symbols = new String[200];
+        for (int i = 0; i < symbols.length; i++) {
+            symbols[i] = "POS" + i;
+        }
+        int fills = 5_000_000;
+        AtomicInteger torn = new AtomicInteger();
+        AtomicInteger snapshots = new AtomicInteger();
+        Thread reader = new Thread(() -> {
+            while (keeper.getFillCount() < fills) {
+                // Each symbol is only ever bought 10 at a time at 100.0
+                for (PositionKeeper.Position position : keeper.snapshot()) {
+                    if (position.getNetQty() % 10 != 0 
+                            || (position.getNetQty() > 0 && position.getAvgCost() != 100.0)) {
+                        torn.incrementAndGet();
+                    }
+                }
+                snapshots.incrementAndGet();
+            }
+        });
+        reader.start();
+        
+        long start = System.nanoTime();
+        for (int i = 0; i < fills; i++) {
+            keeper.onFill("ACC", symbols[i % symbols.length], Side.BUY, 10, 100.0);
+        }
+        double perSecond = fills / ((System.nanoTime() - start) / 1e9);
+        reader.join();
+        
+        assertEquals(0, torn.get());
+        assertEquals(fills / symbols.length * 10, keeper.get("ACC", "POS7").getNetQty());
+        assertTrue("only " + (long) perSecond + " fills/s", perSecond > 500_000);
+        System.out.printf("✓ %.0f fills/s with %d concurrent snapshots, none torn%n", perSecond, snapshots.get());
+    }
+}
+
+// ============================================================================
+// TEST 21: COLUMNAR FILL CAPTURE
+// ============================================================================
+
+public class FillCaptureTest {
+    
+    @Test
+    public void test01_WriteAndScanColumns() throws Exception {
+        System.out.println("\n=== TEST: Fill Capture Round Trip ===");
+        
+        File dir = Files.createTempDirectory("fills").toFile();
+        SymbolDictionary dictionary = new SymbolDictionary(16);
+        int aapl = dictionary.idOf("AAPL");
+        int msft = dictionary.idOf("MSFT");
+        FillCapture capture = new FillCapture(dir, dictionary);
+        
+        // More than one block's worth from two producer threads
+        int perThread = 100_000;
+        Thread[] producers = new Thread[2];
+        for (int t = 0; t < producers.length; t++) {
+            int symbolId = t == 0 ? aapl : msft;
+            char side = t == 0 ? Side.BUY : Side.SELL;
+            producers[t] = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    capture.record(symbolId, side, 10, 100.0, "ORD" + i);
+                }
+            });
+            producers[t].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        capture.close();
+        assertEquals(2 * perThread, capture.getWrittenCount());
+        
+        FillCapture.Fills fills = FillCapture.read(FillCapture.fileFor(dir, LocalDate.now()));
+        assertEquals(2 * perThread, fills.size());
+        assertEquals(2 * perThread * 10 * 100.0, fills.notional(), 1e-6);
+        assertEquals(perThread * 10L, fills.volume(fills.symbolId("AAPL"), Side.BUY));
+        assertEquals(0L, fills.volume(fills.symbolId("AAPL"), Side.SELL));
+        assertEquals(perThread * 10L, fills.volumeBySymbol()[fills.symbolId("MSFT")]);
+        assertEquals(-1, fills.symbolId("GOOGL"));
+        assertTrue(fills.orderId(fills.size() - 1).startsWith("ORD"));
+        System.out.println("✓ " + fills.size() + " fills written in blocks and scanned back by column");
+    }
+    
+    @Test
+    public void test02_AppendKeepsFileSymbolIds() throws Exception {
+        System.out.println("\n=== TEST: Fill Capture Reopen ===");
+        
+        File dir = Files.createTempDirectory("fills").toFile();
+        SymbolDictionary first = new SymbolDictionary(16);
+        FillCapture capture = new FillCapture(dir, first);
+        capture.record(first.idOf("AAPL"), Side.BUY, 100, 150.0, "ORD1");
+        capture.close();
+        
+        // A later run with a different dictionary appends to the same day
+        SymbolDictionary second = new SymbolDictionary(16);
+        second.idOf("TSLA");
+        capture = new FillCapture(dir, second);
+        capture.record(second.idOf("AAPL"), Side.SELL, 40, 151.0, "ORD2");
+        capture.record(second.idOf("TSLA"), Side.BUY, 5, 700.0, "ORD3");
+        capture.close();
+        
+        FillCapture.Fills fills = FillCapture.read(FillCapture.fileFor(dir, LocalDate.now()));
+        assertEquals(3, fills.size());
+        assertEquals("AAPL", fills.symbolName(fills.symbolIds[1]));
+        assertEquals("TSLA", fills.symbolName(fills.symbolIds[2]));
+        assertEquals(40, fills.volume(fills.symbolId("AAPL"), Side.SELL));
+        assertEquals("ORD2", fills.orderId(1));
+        System.out.println("✓ Second run appended with the file's own symbol IDs");
+    }
+    
+    @Test
+    public void test04_WriteFailureDropsFills() throws Exception {
+        System.out.println("\n=== TEST: Fill Capture Write Failure ===");
+        
+        File dir = Files.createTempDirectory("fills").toFile();
+        SymbolDictionary dictionary = new SymbolDictionary(16);
+        FillCapture capture = new FillCapture(dir, dictionary);
+        // A plain file where the day file's directory should be fails the first open
+        assertTrue(dir.delete());
+        assertTrue(dir.createNewFile());
+        
+        int aapl = dictionary.idOf("AAPL");
+        capture.record(aapl, Side.BUY, 10, 100.0, "ORD0");
+        await().atMost(10, TimeUnit.SECONDS).until(capture::isFailed);
+        
+        // More than a batch holds; would block forever if the writer's death went unnoticed
+        for (int i = 1; i <= 100_000; i++) {
+            capture.record(aapl, Side.BUY, 10, 100.0, "ORD" + i);
+        }
+        capture.close();
+        assertEquals(0, capture.getWrittenCount());
+        assertEquals(100_001, capture.getDroppedCount());
+        System.out.println("✓ Failed writer closed the capture; later fills dropped and counted");
+    }
+    
+    @Test
+    public void test05_ReopenCutsPartialBlock() throws Exception {
+        System.out.println("\n=== TEST: Fill Capture Partial Tail ===");
+        
+        File dir = Files.createTempDirectory("fills").toFile();
+        SymbolDictionary dictionary = new SymbolDictionary(16);
+        FillCapture capture = new FillCapture(dir, dictionary);
+        capture.record(dictionary.idOf("AAPL"), Side.BUY, 100, 150.0, "ORD1");
+        capture.close();
+        
+        // A crash midway through the next block leaves its first bytes behind
+        File file = FillCapture.fileFor(dir, LocalDate.now());
+        byte[] complete = Files.readAllBytes(file.toPath());
+        Files.write(file.toPath(), Arrays.copyOf(complete, 24), StandardOpenOption.APPEND);
+        assertEquals(1, FillCapture.read(file).size());
+        assertEquals(complete.length, FillCapture.completeLength(file));
+        
+        capture = new FillCapture(dir, dictionary);
+        capture.record(dictionary.idOf("MSFT"), Side.SELL, 50, 380.0, "ORD2");
+        capture.close();
+        
+        FillCapture.Fills fills = FillCapture.read(file);
+        assertEquals(2, fills.size());
+        assertEquals("ORD2", fills.orderId(1));
+        assertEquals(50, fills.volume(fills.symbolId("MSFT"), Side.SELL));
+        System.out.println("✓ Reopen cut the partial block and appended after the last complete one");
+    }
+    
+    @Test
+    public void test03_ServerCapturesFills() throws Exception {
+        System.out.println("\n=== TEST: Server Fill Capture Over Loopback ===");
+        
+        File dir = Files.createTempDirectory("fills").toFile();
+        try (LoopbackFixture loop = new LoopbackFixture("CAP")) {
+            FIXServerApplication serverApp = loop.getServerApp();
+            serverApp.enableFillCapture(new FillCapture(dir));
+            FIXClientApplication clientApp = loop.start().getClientApp();
+            // A resting offer for the market buy to fill against
+            OrderData offer = new OrderData("ORD0", "OFFER", "CAPX", Side.SELL, 500, 101.0);
+            offer.setOrdType(OrdType.LIMIT);
+            serverApp.getMarketBook().update(offer);
+            
+            OrderFuture order = clientApp.sendNewOrderSingle("CAPX", Side.BUY, 100, 
+                OrdType.MARKET, 0, TimeInForce.DAY);
+            order.get(5, TimeUnit.SECONDS);
+            ClientOrder tracked = clientApp.getOrder(order.getClOrdID());
+            await().atMost(10, TimeUnit.SECONDS).until(() -> tracked.getState() == ClientOrderState.FILLED);
+            PositionKeeper.Position position = clientApp.getPositions().get("CAP_CLIENT", "CAPX");
+            assertEquals(100, position.getNetQty());
+            assertEquals("Market order filled at the offer", 101.0, position.getAvgCost(), 1e-9);
+        }
+        
+        FillCapture.Fills fills = FillCapture.read(FillCapture.fileFor(dir, LocalDate.now()));
+        assertEquals(100, fills.volume(fills.symbolId("CAPX"), Side.BUY));
+        for (int i = 0; i < fills.size(); i++) {
+            assertEquals(101.0, fills.prices[i], 1e-9);
+        }
+        System.out.println("✓ Server fills captured; client position matches");
+    }
+    
+    @Test
+    public void test06_StatusRequestAddsNoFill() throws Exception {
+        System.out.println("\n=== TEST: Status Reply Is Not Captured ===");
+        
+        File dir = Files.createTempDirectory("fills").toFile();
+        try (LoopbackFixture loop = new LoopbackFixture("CAPS")) {
+            FIXServerApplication serverApp = loop.getServerApp();
+            serverApp.enableFillCapture(new FillCapture(dir));
+            FIXClientApplication clientApp = loop.start().getClientApp();
+            OrderData offer = new OrderData("ORD0", "OFFER", "CAPY", Side.SELL, 500, 101.0);
+            offer.setOrdType(OrdType.LIMIT);
+            serverApp.getMarketBook().update(offer);
+            
+            OrderFuture order = clientApp.sendNewOrderSingle("CAPY", Side.BUY, 100, 
+                OrdType.MARKET, 0, TimeInForce.DAY);
+            order.get(5, TimeUnit.SECONDS);
+            ClientOrder tracked = clientApp.getOrder(order.getClOrdID());
+            await().atMost(10, TimeUnit.SECONDS).until(() -> tracked.getState() == ClientOrderState.FILLED);
+            
+            // Each reply carries CumQty 100; none of them may be captured as a fill
+            for (int i = 0; i < 3; i++) {
+                OrderResponse status = clientApp.sendOrderStatusRequest(order.getClOrdID()).get(5, TimeUnit.SECONDS);
+                assertEquals(ExecType.ORDER_STATUS, status.getExecType());
+            }
+        }
+        
+        FillCapture.Fills fills = FillCapture.read(FillCapture.fileFor(dir, LocalDate.now()));
+        assertEquals("Only the partial and final fill are captured", 2, fills.size());
+        assertEquals(100, fills.volume(fills.symbolId("CAPY"), Side.BUY));
+        System.out.println("✓ Status requests after the fill left the captured fills unchanged");
+    }
+}
+
+// ============================================================================
+// TEST 22: END-OF-DAY REPORT
+// ============================================================================
+
+public class EodReportTest {
+    
+    static String fixLine(String timestamp, String... fields) {
+        StringBuilder line = new StringBuilder(timestamp).append(": 8=FIX.4.4\u00019=100\u0001");
+        for (String field : fields) {
+            line.append(field).append('\u0001');
+        }
+        return line.append("10=000\u0001\n").toString();
+    }
+    
+    // Per order: NOS, ack, then a fill (even) or a cancel request and cancel (odd)
+    static File writeSessionLog(File dir, String session, String symbol, int orders) throws IOException {
+        File log = new File(dir, session + ".messages.log");
+        try (Writer out = Files.newBufferedWriter(log.toPath())) {
+            for (int i = 0; i < orders; i++) {
+                String id = "11=" + session + i;
+                String ts = String.format("20240115-%02d:%02d:%02d.%03d", 9 + i / 360_000 % 8, i / 6000 % 60, i / 100 % 60, i % 1000);
+                out.write(fixLine(ts, "35=D", "49=CLIENT", id, "55=" + symbol, "54=1", "38=100"));
+                out.write(fixLine(ts, "35=8", id, "55=" + symbol, "150=0", "39=0"));
+                if (i % 2 == 0) {
+                    out.write(fixLine(ts, "35=8", id, "55=" + symbol, "150=2", "39=2", "32=100", "31=150"));
+                } else {
+                    out.write(fixLine(ts, "35=F", "11=C" + i, "41=" + session + i, "55=" + symbol));
+                    out.write(fixLine(ts, "35=8", id, "55=" + symbol, "150=4", "39=4"));
+                }
+            }
+        }
+        return log;
+    }
+    
+    @Test
+    public void test01_ParallelMatchesSequential() throws Exception {
+        System.out.println("\n=== TEST: End-of-Day Report ===");
+        
+        File dir = Files.createTempDirectory("eod").toFile();
+        List<File> logs = Arrays.asList(
+            writeSessionLog(dir, "FIX.4.4-SERVER-CLIENT_A", "AAPL", 40_000),
+            writeSessionLog(dir, "FIX.4.4-SERVER-CLIENT_B", "MSFT", 10_000));
+        
+        SymbolDictionary dictionary = new SymbolDictionary(16);
+        FillCapture capture = new FillCapture(dir, dictionary);
+        for (int i = 0; i < 200_000; i++) {
+            boolean aapl = i % 4 != 0;
+            capture.record(dictionary.idOf(aapl ? "AAPL" : "MSFT"), i % 2 == 0 ? Side.BUY : Side.SELL, 
+                100, aapl ? (i % 3 == 0 ? 150.0 : 151.5) : 300.0, "ORD" + i);
+        }
+        capture.close();
+        File fillFile = FillCapture.fileFor(dir, LocalDate.now());
+        
+        ForkJoinPool single = new ForkJoinPool(1);
+        ForkJoinPool parallel = new ForkJoinPool(4);
+        try {
+            EodReport sequential = EodReport.build(fillFile, logs, single, Long.MAX_VALUE);
+            EodReport chunked = EodReport.build(fillFile, logs, parallel, 256 * 1024);
+            
+            EodReport.SymbolSummary aapl = chunked.getSymbol("AAPL");
+            assertEquals(150_000, aapl.fills);
+            assertEquals(15_000_000, aapl.volume);
+            assertEquals(151.0, aapl.getVwap(), 1e-9);
+            assertEquals(40_000, aapl.orders);
+            assertEquals(0.5, aapl.getFillRatio(), 1e-9);
+            assertEquals(0.5, aapl.getCancelRate(), 1e-9);
+            assertEquals(300.0, chunked.getSymbol("MSFT").getVwap(), 1e-9);
+            
+            EodReport.SessionSummary sessionB = chunked.getSessions().get(1);
+            assertEquals("FIX.4.4-SERVER-CLIENT_B", sessionB.session);
+            assertEquals(10_000, sessionB.newOrders);
+            assertEquals(5_000, sessionB.cancelRequests);
+            assertEquals(5_000, sessionB.executions);
+            
+            for (int i = 0; i < 2; i++) {
+                EodReport.SessionSummary a = sequential.getSessions().get(i);
+                EodReport.SessionSummary b = chunked.getSessions().get(i);
+                assertEquals(a.newOrders, b.newOrders);
+                assertEquals(a.filledOrders, b.filledOrders);
+                assertEquals(a.canceledOrders, b.canceledOrders);
+            }
+            assertEquals(sequential.getSymbol("AAPL").notional, aapl.notional, 1e-3);
+            chunked.print(System.out);
+        } finally {
+            single.shutdown();
+            parallel.shutdown();
+        }
+        System.out.println("✓ Chunked parallel report matches the single-range run");
+    }
+}
+
+// ============================================================================
+// TEST 23: FIX LOG LATENCY ANALYZER
+// ============================================================================
+
+public class FixLogAnalyzerTest {
+    
+    // Each order is acked (i % 10 + 1) ms after it arrives; acks trail by 50 orders
+    static File writeLatencyLog(File dir, String session, int orders) throws IOException {
+        File log = new File(dir, session + ".messages.log");
+        long base = LocalDate.of(2024, 1, 15).atStartOfDay(java.time.ZoneOffset.UTC).toInstant().toEpochMilli() 
+            + 9 * 3_600_000L;
+        java.time.format.DateTimeFormatter format = java.time.format.DateTimeFormatter
+            .ofPattern("yyyyMMdd-HH:mm:ss.SSS").withZone(java.time.ZoneOffset.UTC);
+        try (Writer out = Files.newBufferedWriter(log.toPath())) {
+            for (int i = 0; i < orders + 50; i++) {
+                if (i < orders) {
+                    String ts = format.format(java.time.Instant.ofEpochMilli(base + i * 20L));
+                    out.write(EodReportTest.fixLine(ts, "35=D", "11=" + session + i, "55=" + (i % 2 == 0 ? "AAPL" : "MSFT")));
+                }
+                int acked = i - 50;
+                if (acked >= 0) {
+                    String ts = format.format(java.time.Instant.ofEpochMilli(base + acked * 20L + acked % 10 + 1));
+                    out.write(EodReportTest.fixLine(ts, "35=8", "11=" + session + acked, "150=0", "39=0"));
+                    out.write(EodReportTest.fixLine(ts, "35=8", "11=" + session + acked, "150=2", "39=2"));
+                }
+            }
+        }
+        return log;
+    }
+    
+    @Test
+    public void test01_JoinsAcrossRanges() throws Exception {
+        System.out.println("\n=== TEST: Log Latency Analyzer ===");
+        
+        File dir = Files.createTempDirectory("loglatency").toFile();
+        List<File> logs = Arrays.asList(
+            writeLatencyLog(dir, "FIX.4.4-SERVER-CLIENT_A", 100_000),
+            writeLatencyLog(dir, "FIX.4.4-SERVER-CLIENT_B", 20_000));
+        
+        ForkJoinPool single = new ForkJoinPool(1);
+        ForkJoinPool parallel = new ForkJoinPool(4);
+        try {
+            FixLogAnalyzer.Report whole = FixLogAnalyzer.analyze(logs, single, Long.MAX_VALUE);
+            FixLogAnalyzer.Report chunked = FixLogAnalyzer.analyze(logs, parallel, 64 * 1024);
+            
+            assertEquals(120_000, chunked.getMatchedCount());
+            assertEquals(0, chunked.getUnackedCount());
+            assertArrayEquals(whole.getAll().snapshot(), chunked.getAll().snapshot());
+            assertEquals(10_000, chunked.getAll().getMax());
+            // Bucket upper bounds are within 1/8 of the recorded value
+            assertEquals(1_000, chunked.getAll().getValueAtPercentile(10), 125);
+            assertEquals(20_000, chunked.getBySession().get("FIX.4.4-SERVER-CLIENT_B").getCount());
+            assertEquals(60_000, chunked.getBySymbol().get("AAPL").getCount());
+            assertEquals(120_000, chunked.getByHour().values().stream().mapToLong(LatencyHistogram::getCount).sum());
+            assertTrue(chunked.getByHour().containsKey(9));
+            chunked.print(System.out);
+        } finally {
+            single.shutdown();
+            parallel.shutdown();
+        }
+        System.out.println("✓ Acks joined across range boundaries; chunked result equals the whole-file run");
+    }
+    
+    @Test
+    public void test02_HistogramMerge() {
+        System.out.println("\n=== TEST: Latency Histogram Merge ===");
+        
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        for (int i = 1; i <= 1_000; i++) {
+            a.record(i);
+            b.record(i * 1_000L);
+        }
+        a.merge(b);
+        assertEquals(2_000, a.getCount());
+        assertEquals(1_000_000, a.getMax());
+        assertEquals(1_000, a.getValueAtPercentile(50), 125);
+        assertTrue(a.getValueAtPercentile(51) >= 1_000);
+        System.out.println("✓ Merged histogram holds both distributions");
+    }
+}
+
+// ============================================================================
+// TEST 24: LOG ROLLOVER AND ARCHIVING
+// ============================================================================
+
+public class LogArchiveTest {
+    
+    @Test
+    public void test01_BlockIndexRandomReads() throws Exception {
+        System.out.println("\n=== TEST: Block Index Random Reads ===");
+        
+        File dir = Files.createTempDirectory("blockgzip").toFile();
+        File source = new File(dir, "segment");
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 50_000; i++) {
+            text.append("8=FIX.4.4\u00019=42\u000135=D\u000111=ORD").append(i).append("\u000155=AAPL\u0001\n");
+        }
+        byte[] raw = text.toString().getBytes(java.nio.charset.StandardCharsets.ISO_8859_1);
+        Files.write(source.toPath(), raw);
+        File target = LogArchiver.archiveOf(source);
+        BlockGzipFile.compress(source, target, 64 * 1024, true, new LogArchiver.Throttle(0));
+        
+        BlockGzipFile archive = BlockGzipFile.open(target);
+        assertEquals(raw.length, archive.getUncompressedSize());
+        assertTrue(archive.getBlockCount() > 10);
+        for (int b = 1; b < archive.getBlockCount(); b++) {
+            assertEquals("Blocks start on a line", '\n', raw[(int) archive.getBlockOffset(b) - 1]);
+        }
+        java.util.Random random = new java.util.Random(7);
+        for (int i = 0; i < 200; i++) {
+            int offset = random.nextInt(raw.length - 1);
+            int length = Math.min(random.nextInt(200_000) + 1, raw.length - offset);
+            assertArrayEquals(Arrays.copyOfRange(raw, offset, offset + length), archive.read(offset, length));
+        }
+        // The member chain is still a plain gzip stream
+        try (java.util.zip.GZIPInputStream in = new java.util.zip.GZIPInputStream(Files.newInputStream(target.toPath()))) {
+            java.io.ByteArrayOutputStream all = new java.io.ByteArrayOutputStream();
+            in.transferTo(all);
+            assertArrayEquals(raw, all.toByteArray());
+        }
+        System.out.println("✓ " + archive.getBlockCount() + " blocks; random ranges match the source, zcat-compatible");
+    }
+    
+    @Test
+    public void test02_RolloverArchivesSegments() throws Exception {
+        System.out.println("\n=== TEST: Log Rollover ===");
+        
+        File dir = Files.createTempDirectory("rollinglog").toFile();
+        SessionID sessionId = new SessionID("FIX.4.4", "SERVER", "CLIENT");
+        SessionSettings settings = new SessionSettings();
+        settings.setString(sessionId, FileLogFactory.SETTING_FILE_LOG_PATH, dir.getPath());
+        settings.setString(sessionId, RollingFileLogFactory.SETTING_ROLL_BYTES, "16384");
+        LogArchiver archiver = new LogArchiver(0);
+        Log log = new RollingFileLogFactory(settings, archiver).create(sessionId);
+        
+        for (int i = 0; i < 2_000; i++) {
+            log.onIncoming("8=FIX.4.4\u000135=D\u000111=ORD" + i + "\u0001");
+        }
+        assertTrue(archiver.awaitIdle(30, TimeUnit.SECONDS));
+        
+        File[] archives = dir.listFiles((d, name) -> 
+            name.contains(".messages.log.") && name.endsWith(BlockGzipFile.SUFFIX));
+        assertTrue("Rolled segments archived", archives.length > 1);
+        assertEquals(archives.length, archiver.getArchivedCount());
+        List<String> lines = new ArrayList<>();
+        for (File segment : FixLogChunks.bySession(Arrays.asList(dir.listFiles((d, name) -> 
+                FixLogChunks.isMessageLog(name)))).get(FileUtil.sessionIdFileName(sessionId))) {
+            BlockGzipFile archive = BlockGzipFile.isArchive(segment) ? BlockGzipFile.open(segment) : null;
+            byte[] data = archive != null 
+                ? archive.read(0, (int) archive.getUncompressedSize()) : Files.readAllBytes(segment.toPath());
+            lines.addAll(Arrays.asList(new String(data, java.nio.charset.StandardCharsets.ISO_8859_1).split("\n")));
+        }
+        assertEquals(2_000, lines.size());
+        assertEquals("8=FIX.4.4\u000135=D\u000111=ORD1999\u0001", lines.get(1_999));
+        System.out.println("✓ " + archives.length + " rolled segments compressed; every line kept in order");
+    }
+    
+    @Test
+    public void test03_AnalyzerReadsArchivedSegments() throws Exception {
+        System.out.println("\n=== TEST: Analyzer Over Archived Segments ===");
+        
+        File dir = Files.createTempDirectory("archivedlogs").toFile();
+        String session = "FIX.4.4-SERVER-CLIENT_A";
+        File live = FixLogAnalyzerTest.writeLatencyLog(dir, session, 30_000);
+        List<File> whole = Arrays.asList(live);
+        FixLogAnalyzer.Report expected = FixLogAnalyzer.analyze(whole, ForkJoinPool.commonPool(), Long.MAX_VALUE);
+        
+        // Cut the log into two rolled segments and a live tail, as a rollover would
+        List<String> lines = Files.readAllLines(live.toPath(), java.nio.charset.StandardCharsets.ISO_8859_1);
+        File first = new File(dir, session + ".messages.log.20240115-090000");
+        File second = new File(dir, session + ".messages.log.20240115-090500");
+        Files.write(first.toPath(), lines.subList(0, 20_000));
+        Files.write(second.toPath(), lines.subList(20_000, 50_000));
+        Files.write(live.toPath(), lines.subList(50_000, lines.size()));
+        LogArchiver archiver = new LogArchiver(0);
+        archiver.submit(second, true);
+        archiver.submit(first, true);
+        assertTrue(archiver.awaitIdle(30, TimeUnit.SECONDS));
+        assertFalse(first.exists());
+        
+        List<File> segments = Arrays.asList(dir.listFiles((d, name) -> FixLogChunks.isMessageLog(name)));
+        assertEquals(3, segments.size());
+        FixLogAnalyzer.Report archived = FixLogAnalyzer.analyze(segments, new ForkJoinPool(2), 256 * 1024);
+        assertEquals(30_000, archived.getMatchedCount());
+        assertEquals(0, archived.getUnackedCount());
+        assertArrayEquals(expected.getAll().snapshot(), archived.getAll().snapshot());
+        assertEquals(expected.getBytes(), archived.getBytes());
+        
+        EodReport eod = EodReport.build(null, segments, ForkJoinPool.commonPool(), 256 * 1024);
+        assertEquals(1, eod.getSessions().size());
+        assertEquals(30_000, eod.getSessions().get(0).newOrders);
+        System.out.println("✓ Archived and live segments joined as one session");
+    }
+    
+    @Test
+    public void test04_StoreArchiveOnReset() throws Exception {
+        System.out.println("\n=== TEST: Message Store Archive On Reset ===");
+        
+        File dir = Files.createTempDirectory("storearchive").toFile();
+        SessionID sessionId = new SessionID("FIX.4.4", "SERVER", "CLIENT");
+        IndexedFileStore store = new IndexedFileStore(dir, sessionId, false);
+        LogArchiver archiver = new LogArchiver(0);
+        store.setArchiver(archiver);
+        for (int seq = 1; seq <= 500; seq++) {
+            store.set(seq, "8=FIX.4.4\u000134=" + seq + "\u000135=D\u0001");
+        }
+        store.reset();
+        assertEquals(1, store.getNextSenderMsgSeqNum());
+        List<String> current = new ArrayList<>();
+        store.get(1, 500, current);
+        assertTrue(current.isEmpty());
+        store.set(1, "8=FIX.4.4\u000134=1\u000135=A\u0001");
+        assertTrue(archiver.awaitIdle(30, TimeUnit.SECONDS));
+        store.close();
+        
+        File[] bodies = dir.listFiles((d, name) -> name.contains(".ibody.") && name.endsWith(BlockGzipFile.SUFFIX));
+        File[] indexes = dir.listFiles((d, name) -> name.contains(".iindex."));
+        assertEquals(1, bodies.length);
+        assertEquals(1, indexes.length);
+        File body = new File(bodies[0].getPath().substring(0, bodies[0].getPath().length() - 3));
+        List<String> replayed = new ArrayList<>();
+        IndexedFileStore.readArchived(body, indexes[0], 100, 110, replayed);
+        assertEquals(11, replayed.size());
+        assertEquals("8=FIX.4.4\u000134=100\u000135=D\u0001", replayed.get(0));
+        System.out.println("✓ Pre-reset messages replayed from the compressed store body");
+    }
+    
+    @Test
+    public void test05_ThrottleLimitsRate() {
+        System.out.println("\n=== TEST: Archive Throttle ===");
+        
+        LogArchiver.Throttle throttle = new LogArchiver.Throttle(10L << 20);
+        long start = System.nanoTime();
+        for (int i = 0; i < 20; i++) {
+            throttle.acquire(128 * 1024);
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // 2.5 MB at 10 MB/s
+        assertTrue("Took " + elapsedMillis + " ms", elapsedMillis >= 200);
+        System.out.println("✓ 2.5 MB paced to " + elapsedMillis + " ms at 10 MB/s");
+    }
+    
+    @Test
+    public void test06_NonLatinCharsWrittenAsQuestionMarks() throws Exception {
+        System.out.println("\n=== TEST: Log Line Encoding ===");
+        
+        File dir = Files.createTempDirectory("rollinglog").toFile();
+        SessionID sessionId = new SessionID("FIX.4.4", "SERVER", "CLIENT");
+        SessionSettings settings = new SessionSettings();
+        settings.setString(sessionId, FileLogFactory.SETTING_FILE_LOG_PATH, dir.getPath());
+        settings.setString(sessionId, FileLogFactory.SETTING_INCLUDE_TIMESTAMP_FOR_MESSAGES, "N");
+        Log log = new RollingFileLogFactory(settings, new LogArchiver(0)).create(sessionId);
+        
+        log.onIncoming("58=caf\u00e9 \u20ac5 \u0100\u0001");
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".messages.log"));
+        assertEquals(1, files.length);
+        // Latin-1 characters keep their byte; anything above 0xFF becomes '?', as ISO-8859-1 encodes it
+        byte[] expected = "58=caf\u00e9 \u20ac5 \u0100\u0001\n".getBytes(java.nio.charset.StandardCharsets.ISO_8859_1);
+        assertArrayEquals(expected, Files.readAllBytes(files[0].toPath()));
+        System.out.println("✓ Characters above 0xFF logged as '?'");
+    }
+    
+    @Test
+    public void test07_ArchivedReplaySpansReadWindows() throws Exception {
+        System.out.println("\n=== TEST: Archived Replay Over Many Read Windows ===");
+        
+        File dir = Files.createTempDirectory("storearchive").toFile();
+        SessionID sessionId = new SessionID("FIX.4.4", "SERVER", "CLIENT");
+        IndexedFileStore store = new IndexedFileStore(dir, sessionId, false);
+        LogArchiver archiver = new LogArchiver(0);
+        store.setArchiver(archiver);
+        char[] padding = new char[10_000];
+        Arrays.fill(padding, 'x');
+        String text = new String(padding);
+        // About 10 MB of bodies, more than two read windows
+        for (int seq = 1; seq <= 1_000; seq++) {
+            store.set(seq, "8=FIX.4.4\u000134=" + seq + "\u000158=" + text + "\u0001");
+        }
+        store.reset();
+        assertTrue(archiver.awaitIdle(30, TimeUnit.SECONDS));
+        store.close();
+        
+        File[] bodies = dir.listFiles((d, name) -> name.contains(".ibody.") && name.endsWith(BlockGzipFile.SUFFIX));
+        File[] indexes = dir.listFiles((d, name) -> name.contains(".iindex."));
+        File body = new File(bodies[0].getPath().substring(0, bodies[0].getPath().length() - 3));
+        List<String> replayed = new ArrayList<>();
+        IndexedFileStore.readArchived(body, indexes[0], 1, 1_000, replayed);
+        assertEquals(1_000, replayed.size());
+        for (int seq = 1; seq <= 1_000; seq++) {
+            assertEquals("8=FIX.4.4\u000134=" + seq + "\u000158=" + text + "\u0001", replayed.get(seq - 1));
+        }
+        System.out.println("✓ 1000 messages replayed in order across read windows");
+    }
+    
+    @Test
+    public void test08_LogCloseReleasesSegments() throws Exception {
+        System.out.println("\n=== TEST: Closing A Rolling Log ===");
+        
+        File dir = Files.createTempDirectory("rollinglog").toFile();
+        SessionID sessionId = new SessionID("FIX.4.4", "SERVER", "CLIENT");
+        SessionSettings settings = new SessionSettings();
+        settings.setString(sessionId, FileLogFactory.SETTING_FILE_LOG_PATH, dir.getPath());
+        // Wrapped as the server wraps it for stage tracing
+        Log log = new TracingLogFactory(new RollingFileLogFactory(settings, new LogArchiver(0))).create(sessionId);
+        assertTrue(log instanceof java.io.Closeable);
+        
+        log.onIncoming("8=FIX.4.4\u000135=D\u0001");
+        File messages = dir.listFiles((d, name) -> name.endsWith(".messages.log"))[0];
+        long size = messages.length();
+        assertTrue(size > 0);
+        ((java.io.Closeable) log).close();
+        log.onIncoming("8=FIX.4.4\u000135=F\u0001");
+        log.onEvent("after close");
+        assertEquals(size, messages.length());
+        System.out.println("✓ Close reaches the segments through the tracing wrapper; later writes dropped");
+    }
+}
+
+// ============================================================================
+// TEST 25: PRECOMPILED VALIDATOR
+// ============================================================================
+
+public class PrecompiledValidatorTest {
+    
+    static NewOrderSingle limitOrder() {
+        NewOrderSingle order = new NewOrderSingle(new ClOrdID("VAL001"), new Side(Side.BUY), 
+            new TransactTime(new Date()), new OrdType(OrdType.LIMIT));
+        order.set(new Symbol("AAPL"));
+        order.set(new OrderQty(100));
+        order.set(new Price(150.25));
+        order.set(new TimeInForce(TimeInForce.DAY));
+        return order;
+    }
+    
+    static void assertRejected(PrecompiledValidator validator, quickfix.Message message, int reason, int tag) {
+        try {
+            validator.validate(message, message.getHeader().getString(MsgType.FIELD));
+            fail("Expected reject for tag " + tag);
+        } catch (FieldException e) {
+            assertEquals(reason, e.getSessionRejectReason());
+            assertEquals(tag, e.getField());
+        } catch (FieldNotFound e) {
+            throw new AssertionError(e);
+        }
+    }
+    
+    @Test
+    public void test01_RejectReasons() throws Exception {
+        System.out.println("\n=== TEST: Precompiled Validator ===");
+        
+        PrecompiledValidator validator = PrecompiledValidator.forServer();
+        DataDictionary dictionary = new DataDictionary(PrecompiledValidator.DICTIONARY);
+        NewOrderSingle valid = limitOrder();
+        validator.validate(valid, MsgType.ORDER_SINGLE);
+        dictionary.validate(valid, true);
+        
+        NewOrderSingle noPrice = limitOrder();
+        noPrice.removeField(Price.FIELD);
+        assertRejected(validator, noPrice, SessionRejectReason.REQUIRED_TAG_MISSING, Price.FIELD);
+        
+        NewOrderSingle noSymbol = limitOrder();
+        noSymbol.removeField(Symbol.FIELD);
+        assertRejected(validator, noSymbol, SessionRejectReason.REQUIRED_TAG_MISSING, Symbol.FIELD);
+        
+        NewOrderSingle badSide = limitOrder();
+        badSide.setChar(Side.FIELD, 'Z');
+        assertRejected(validator, badSide, SessionRejectReason.VALUE_IS_INCORRECT, Side.FIELD);
+        
+        NewOrderSingle badQty = limitOrder();
+        badQty.setString(OrderQty.FIELD, "1O0");
+        assertRejected(validator, badQty, SessionRejectReason.INCORRECT_DATA_FORMAT_FOR_VALUE, OrderQty.FIELD);
+        
+        NewOrderSingle badTime = limitOrder();
+        badTime.setString(TransactTime.FIELD, "2024-01-15 09:30:00");
+        assertRejected(validator, badTime, SessionRejectReason.INCORRECT_DATA_FORMAT_FOR_VALUE, TransactTime.FIELD);
+        
+        NewOrderSingle undefined = limitOrder();
+        undefined.setString(LastPx.FIELD, "1.0");
+        assertRejected(validator, undefined, SessionRejectReason.TAG_NOT_DEFINED_FOR_THIS_MESSAGE_TYPE, LastPx.FIELD);
+        
+        OrderCancelRequest cancel = new OrderCancelRequest(new OrigClOrdID("VAL001"), new ClOrdID("VAL002"), 
+            new Side(Side.BUY), new TransactTime(new Date()));
+        cancel.set(new Symbol("AAPL"));
+        validator.validate(cancel, MsgType.ORDER_CANCEL_REQUEST);
+        cancel.removeField(OrigClOrdID.FIELD);
+        assertRejected(validator, cancel, SessionRejectReason.REQUIRED_TAG_MISSING, OrigClOrdID.FIELD);
+        assertEquals(7, validator.getRejectedCount());
+        System.out.println("✓ Missing, malformed, out-of-enum and undefined tags rejected with their reasons");
+    }
+    
+    @Test
+    public void test02_FasterThanDictionary() throws Exception {
+        System.out.println("\n=== TEST: Precompiled Validator Throughput ===");
+        
+        PrecompiledValidator validator = PrecompiledValidator.forServer();
+        DataDictionary dictionary = new DataDictionary(PrecompiledValidator.DICTIONARY);
+        NewOrderSingle order = limitOrder();
+        int n = 200_000;
+        long best = Long.MAX_VALUE;
+        long bestDictionary = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                validator.validate(order, MsgType.ORDER_SINGLE);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+            start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                dictionary.validate(order, true);
+            }
+            bestDictionary = Math.min(bestDictionary, System.nanoTime() - start);
+        }
+        System.out.printf("✓ Precompiled %.0f ns/msg, DataDictionary %.0f ns/msg%n", 
+            best / (double) n, bestDictionary / (double) n);
+    }
+    
+    @Test
+    public void test03_ServerRejectsOverLoopback() throws Exception {
+        System.out.println("\n=== TEST: Precompiled Validation Over Loopback ===");
+        
+        PrecompiledValidator validator = PrecompiledValidator.forServer();
+        try (LoopbackFixture loop = new LoopbackFixture("VAL")) {
+            FIXServerApplication serverApp = loop.getServerApp();
+            loop.getServerSettings().setString(loop.getServerId(), Session.SETTING_VALIDATE_INCOMING_MESSAGE, "N");
+            serverApp.enableValidator(validator, loop.getServerSettings());
+            FIXClientApplication clientApp = loop.start().getClientApp();
+            SessionID clientId = loop.getClientId();
+            
+            OrderFuture accepted = clientApp.sendNewOrderSingle("AAPL", Side.BUY, 100, 
+                OrdType.LIMIT, 150.0, TimeInForce.DAY);
+            assertEquals(ExecType.NEW, accepted.get(5, TimeUnit.SECONDS).getExecType());
+            
+            NewOrderSingle noPrice = limitOrder();
+            noPrice.removeField(Price.FIELD);
+            noPrice.set(new Symbol("MSFT"));
+            Session.sendToTarget(noPrice, clientId);
+            
+            await().atMost(5, TimeUnit.SECONDS).until(() -> validator.getRejectedCount() == 1);
+            assertNull(serverApp.getOrderBookSizes().get("MSFT"));
+            assertEquals(Integer.valueOf(1), serverApp.getOrderBookSizes().get("AAPL"));
+        }
+        System.out.println("✓ Limit order without a price rejected before reaching the book");
+    }
+    
+    @Test
+    public void test04_OnlySessionsWithValidationOff() throws Exception {
+        System.out.println("\n=== TEST: Precompiled Validation Per Session ===");
+        
+        PrecompiledValidator validator = PrecompiledValidator.forServer();
+        try (LoopbackFixture loop = new LoopbackFixture("VALY")) {
+            // Validation is off by default, but this session turns the data dictionary back on
+            SessionSettings settings = loop.getServerSettings();
+            settings.setString(Session.SETTING_VALIDATE_INCOMING_MESSAGE, "N");
+            settings.setString(loop.getServerId(), Session.SETTING_VALIDATE_INCOMING_MESSAGE, "Y");
+            assertFalse(PrecompiledValidator.replacesDictionary(settings));
+            SessionSettings defaultsOnly = new SessionSettings();
+            defaultsOnly.setString(Session.SETTING_VALIDATE_INCOMING_MESSAGE, "N");
+            assertTrue(PrecompiledValidator.replacesDictionary(defaultsOnly, loop.getServerId()));
+            
+            FIXServerApplication serverApp = loop.getServerApp();
+            serverApp.enableValidator(validator, settings);
+            loop.start();
+            
+            NewOrderSingle noPrice = limitOrder();
+            noPrice.removeField(Price.FIELD);
+            noPrice.set(new Symbol("MSFT"));
+            Session.sendToTarget(noPrice, loop.getClientId());
+            
+            await().atMost(5, TimeUnit.SECONDS).until(() -> serverApp.getOrderBookSizes().get("MSFT") != null);
+            assertEquals(0, validator.getRejectedCount());
+        }
+        System.out.println("✓ Session with ValidateIncomingMessage=Y skips the precompiled rules");
+    }
+}
+
+// ============================================================================
+// TEST 26: CLOCK AND TIMESTAMP FORMATTING
+// ============================================================================
+
+public class FixClockTest {
+    
+    @Test
+    public void test01_MatchesFormatter() {
+        System.out.println("\n=== TEST: Cached Timestamp Formatting ===");
+        
+        java.time.format.DateTimeFormatter[] formats = {
+            java.time.format.DateTimeFormatter.ofPattern("yyyyMMdd-HH:mm:ss"),
+            java.time.format.DateTimeFormatter.ofPattern("yyyyMMdd-HH:mm:ss.SSS"),
+            java.time.format.DateTimeFormatter.ofPattern("yyyyMMdd-HH:mm:ss.SSSSSS"),
+            java.time.format.DateTimeFormatter.ofPattern("yyyyMMdd-HH:mm:ss.SSSSSSSSS")
+        };
+        java.util.Random random = new java.util.Random(11);
+        byte[] buffer = new byte[32];
+        long base = 1_705_312_799_000_000_000L;     // 2024-01-15 09:59:59 UTC
+        for (int i = 0; i < 20_000; i++) {
+            // Walk across second boundaries in both directions
+            long nanos = base + (long) (random.nextGaussian() * 3e9);
+            java.time.Instant instant = java.time.Instant.ofEpochSecond(0, nanos);
+            for (int f = 0; f < formats.length; f++) {
+                String expected = formats[f].withZone(java.time.ZoneOffset.UTC).format(instant);
+                assertEquals(expected, FixClock.utcTimestamp(nanos, f * 3));
+                int end = FixClock.formatUtc(nanos, f * 3, buffer, 0);
+                assertEquals(expected, new String(buffer, 0, end, java.nio.charset.StandardCharsets.ISO_8859_1));
+            }
+        }
+        System.out.println("✓ 0/3/6/9-digit timestamps match DateTimeFormatter across second boundaries");
+    }
+    
+    @Test
+    public void test02_EpochTracksWallClock() throws Exception {
+        System.out.println("\n=== TEST: Clock Epoch ===");
+        
+        long before = System.currentTimeMillis();
+        long nanos = FixClock.epochNanos();
+        long after = System.currentTimeMillis();
+        assertTrue(nanos / 1_000_000 >= before - 1 && nanos / 1_000_000 <= after + 1);
+        
+        long previous = FixClock.epochNanos();
+        boolean advanced = false;
+        for (int i = 0; i < 100_000; i++) {
+            long now = FixClock.epochNanos();
+            advanced |= now > previous;
+            previous = now;
+        }
+        assertTrue(advanced);
+        assertEquals(FixClock.epochMillis(), System.currentTimeMillis(), 50);
+        System.out.println("✓ Nanosecond epoch stays within a millisecond of the wall clock");
+    }
+    
+    @Test
+    public void test03_FormattingDoesNotAllocate() {
+        System.out.println("\n=== TEST: Allocation-Free Formatting ===");
+        
+        java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        byte[] buffer = new byte[32];
+        long nanos = FixClock.epochNanos();
+        for (int i = 0; i < 100_000; i++) {
+            FixClock.formatUtc(nanos + i, 6, buffer, 0);
+        }
+        long thread = Thread.currentThread().getId();
+        long start = allocations.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 1_000_000; i++) {
+            FixClock.formatUtc(nanos + i * 1_000L, 6, buffer, 0);
+        }
+        long allocated = allocations.getThreadAllocatedBytes(thread) - start;
+        // Only the one prefix rebuilt for the next second
+        assertTrue("Allocated " + allocated + " bytes", allocated < 4_096);
+        System.out.println("✓ 1M timestamps formatted with " + allocated + " bytes allocated");
+    }
+    
+    @Test
+    public void test04_NeverRunsBackwards() throws Exception {
+        System.out.println("\n=== TEST: Monotonic Clock Across Re-Anchors ===");
+        
+        // Long enough for the anchor to be replaced twice, from several threads at once
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(2_200);
+        AtomicInteger backwards = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                long previous = FixClock.epochNanos();
+                while (System.nanoTime() < end) {
+                    long now = FixClock.epochNanos();
+                    if (now < previous) {
+                        backwards.incrementAndGet();
+                    }
+                    previous = now;
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, backwards.get());
+        System.out.println("✓ No thread saw the clock step back across anchor refreshes");
+    }
+}
+
+// ============================================================================
+// TEST 27: SMART ORDER ROUTING
+// ============================================================================
+
+public class OrderRouterTest {
+    
+    @Test
+    public void test01_Policies() {
+        System.out.println("\n=== TEST: Order Routing Policies ===");
+        
+        OrderRouter router = new OrderRouter();
+        SessionID a = new SessionID("FIX.4.4", "CLIENT", "VENUE_A");
+        SessionID b = new SessionID("FIX.4.4", "CLIENT", "VENUE_B");
+        SessionID c = new SessionID("FIX.4.4", "CLIENT", "VENUE_C");
+        OrderRouter.Venue venueA = router.addVenue(a);
+        OrderRouter.Venue venueB = router.addVenue(b);
+        router.addVenue(c);
+        assertNull("Nothing logged on", router.route(0));
+        router.onLogon(a);
+        router.onLogon(b);
+        int aapl = SymbolDictionary.DEFAULT.idOf("AAPL");
+        int msft = SymbolDictionary.DEFAULT.idOf("MSFT");
+        
+        Map<SessionID, Integer> counts = new ConcurrentHashMap<>();
+        for (int i = 0; i < 100; i++) {
+            counts.merge(router.route(aapl).getSessionID(), 1, Integer::sum);
+        }
+        assertEquals(Integer.valueOf(50), counts.get(a));
+        assertEquals(Integer.valueOf(50), counts.get(b));
+        assertNull("Logged-out venue skipped", counts.get(c));
+        
+        router.setPolicy(OrderRouter.Policy.LATENCY);
+        router.onAck(venueA, 800_000);
+        router.onAck(venueB, 200_000);
+        assertSame(venueB, router.route(aapl));
+        for (int i = 0; i < 40; i++) {
+            router.onAck(venueB, 2_000_000);
+        }
+        assertSame("Moving average follows a slowing venue", venueA, router.route(aapl));
+        router.onLogout(a);
+        assertSame(venueB, router.route(aapl));
+        router.onLogon(a);
+        
+        router.setPolicy(OrderRouter.Policy.LIQUIDITY);
+        router.setLiquidity(a, aapl, 500);
+        router.setLiquidity(b, aapl, 5_000);
+        router.onFill(a, msft, 900);
+        assertSame(venueB, router.route(aapl));
+        assertSame("Fill sizes stand in for unknown liquidity", venueA, router.route(msft));
+        
+        // Fills do not blend into a quote
+        router.onFill(a, aapl, 100_000);
+        assertEquals(500, router.getLiquidity(a, aapl));
+        assertSame(venueB, router.route(aapl));
+        System.out.println("✓ Round robin, lowest ack latency and deepest venue chosen as configured");
+    }
+    
+    @Test
+    public void test04_StatisticsAgeOut() throws Exception {
+        System.out.println("\n=== TEST: Routing Statistics Age Out ===");
+        
+        OrderRouter router = new OrderRouter();
+        router.setStaleAfter(100, TimeUnit.MILLISECONDS);
+        SessionID a = new SessionID("FIX.4.4", "CLIENT", "AGE_A");
+        SessionID b = new SessionID("FIX.4.4", "CLIENT", "AGE_B");
+        OrderRouter.Venue venueA = router.addVenue(a);
+        OrderRouter.Venue venueB = router.addVenue(b);
+        router.onLogon(a);
+        router.onLogon(b);
+        int symbol = SymbolDictionary.DEFAULT.idOf("AGEX");
+        
+        router.setPolicy(OrderRouter.Policy.LATENCY);
+        router.onAck(venueA, 5_000_000);
+        router.onAck(venueB, 200_000);
+        assertSame(venueB, router.route(symbol));
+        Thread.sleep(150);
+        router.onAck(venueB, 200_000);
+        assertSame("A venue unsampled for the interval is probed", venueA, router.route(symbol));
+        assertSame("One probe per interval", venueB, router.route(symbol));
+        router.onAck(venueA, 100_000);
+        assertEquals("A sample after a gap restarts the average", 100_000, venueA.getAckNanos());
+        assertSame(venueA, router.route(symbol));
+        
+        router.setPolicy(OrderRouter.Policy.LIQUIDITY);
+        router.setLiquidity(a, symbol, 1_000);
+        router.onFill(a, symbol, 800);
+        router.onFill(b, symbol, 600);
+        assertSame(venueA, router.route(symbol));
+        Thread.sleep(250);
+        long decayed = router.getLiquidity(a, symbol);
+        assertTrue("Stale quote gives way to the decayed fill average", decayed > 0 && decayed <= 200);
+        router.onFill(b, symbol, 600);
+        assertSame(venueB, router.route(symbol));
+        System.out.println("✓ Stale latency probed and restarted; stale liquidity decayed");
+    }
+    
+    @Test
+    public void test02_RoutingCostsNanoseconds() throws Exception {
+        System.out.println("\n=== TEST: Routing Decision Cost ===");
+        
+        OrderRouter router = new OrderRouter();
+        router.setPolicy(OrderRouter.Policy.LATENCY);
+        List<OrderRouter.Venue> venues = new ArrayList<>();
+        for (int v = 0; v < 4; v++) {
+            SessionID id = new SessionID("FIX.4.4", "CLIENT", "VENUE_" + v);
+            venues.add(router.addVenue(id));
+            router.onLogon(id);
+        }
+        int symbol = SymbolDictionary.DEFAULT.idOf("AAPL");
+        
+        // Report threads update the table while the sender routes
+        AtomicInteger running = new AtomicInteger(1);
+        Thread reports = new Thread(() -> {
+            java.util.Random random = new java.util.Random(3);
+            while (running.get() == 1) {
+                OrderRouter.Venue venue = venues.get(random.nextInt(venues.size()));
+                router.onAck(venue, 100_000 + random.nextInt(900_000));
+                router.onFill(venue.getSessionID(), symbol, 100);
+            }
+        });
+        reports.start();
+        int n = 2_000_000;
+        long best = Long.MAX_VALUE;
+        try {
+            for (int round = 0; round < 5; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < n; i++) {
+                    assertNotNull(router.route(symbol));
+                }
+                best = Math.min(best, System.nanoTime() - start);
+            }
+        } finally {
+            running.set(0);
+            reports.join();
+        }
+        long routed = 0;
+        for (OrderRouter.Venue venue : venues) {
+            routed += venue.getRoutedCount();
+            assertTrue(venue.getAckNanos() >= 100_000 && venue.getAckNanos() < 1_000_000);
+        }
+        assertEquals(5L * n, routed);
+        System.out.printf("✓ %.0f ns per routing decision across 4 venues under concurrent updates%n", 
+            best / (double) n);
+    }
+    
+    @Test
+    public void test03_RoutesAcrossVenueSessions() throws Exception {
+        System.out.println("\n=== TEST: Routing Over Two Loopback Venues ===");
+        
+        FIXClientApplication clientApp = new FIXClientApplication();
+        LogFactory noLog = new CompositeLogFactory(new LogFactory[0]);
+        FIXServerApplication[] venues = new FIXServerApplication[2];
+        InVmConnector[] connectors = new InVmConnector[2];
+        try {
+            for (int v = 0; v < 2; v++) {
+                SessionID serverId = new SessionID("FIX.4.4", "SOR_VENUE" + v, "SOR_CLIENT");
+                SessionID clientId = new SessionID("FIX.4.4", "SOR_CLIENT", "SOR_VENUE" + v);
+                venues[v] = new FIXServerApplication();
+                connectors[v] = new InVmConnector(
+                    new DefaultSessionFactory(venues[v], new MemoryStoreFactory(), noLog, new DefaultMessageFactory()),
+                    InVmTransportTest.inVmSettings(serverId, "acceptor"),
+                    new DefaultSessionFactory(clientApp, new MemoryStoreFactory(), noLog, new DefaultMessageFactory()),
+                    InVmTransportTest.inVmSettings(clientId, "initiator"));
+                connectors[v].start();
+            }
+            OrderRouter router = clientApp.getRouter();
+            await().atMost(10, TimeUnit.SECONDS).until(() -> router.getVenues().size() == 2 
+                && router.getVenues().stream().allMatch(OrderRouter.Venue::isLoggedOn));
+            
+            List<OrderFuture> futures = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                futures.add(clientApp.sendNewOrderSingle("AAPL", Side.BUY, 100, OrdType.LIMIT, 100.0, TimeInForce.DAY));
+            }
+            for (OrderFuture future : futures) {
+                assertEquals(ExecType.NEW, future.get(5, TimeUnit.SECONDS).getExecType());
+            }
+            assertEquals(Integer.valueOf(3), venues[0].getOrderBookSizes().get("AAPL"));
+            assertEquals(Integer.valueOf(3), venues[1].getOrderBookSizes().get("AAPL"));
+            for (OrderRouter.Venue venue : router.getVenues()) {
+                assertTrue("Ack latency measured", venue.getAckNanos() > 0);
+            }
+            
+            // A cancel follows the order to the venue that holds it
+            OrderFuture cancel = clientApp.sendOrderCancelRequest(futures.get(1).getClOrdID());
+            assertEquals(ExecType.CANCELED, cancel.get(5, TimeUnit.SECONDS).getExecType());
+            
+            // Both venues' report threads fill into the one client position
+            await().atMost(15, TimeUnit.SECONDS).until(() -> clientApp.getActiveOrders().isEmpty());
+            PositionKeeper.Position position = clientApp.getPositions().get("SOR_CLIENT", "AAPL");
+            assertEquals(500, position.getNetQty());
+            assertEquals(100.0, position.getAvgCost(), 1e-9);
+        } finally {
+            for (int v = 0; v < 2; v++) {
+                if (connectors[v] != null) {
+                    connectors[v].stop();
+                }
+                if (venues[v] != null) {
+                    venues[v].shutdown();
+                }
+            }
+            clientApp.shutdown();
+        }
+        System.out.println("✓ Orders spread over both venues; cancel reached the owning venue");
+    }
+}
+
+// ============================================================================
+// TEST 28: HEADLESS SCENARIO RUN
+// ============================================================================
+
+public class ScenarioRunnerTest {
+    
+    @Test
+    public void test01_InVmRunWritesResults() throws Exception {
+        System.out.println("\n=== TEST: Headless Scenario Over In-VM Transport ===");
+        
+        File dir = Files.createTempDirectory("scenario").toFile();
+        File results = new File(dir, "results/invm-smoke.json");
+        File scenario = new File(dir, "invm-smoke.properties");
+        // No mix keys: the run uses the documented 70/15/10/5 default mix
+        Files.write(scenario.toPath(), Arrays.asList(
+            "name=invm-smoke",
+            "mode=invm",
+            "durationSeconds=2",
+            "ratePerSecond=200",
+            "drainSeconds=15",
+            "logonTimeoutSeconds=15",
+            "results=" + results.getPath().replace('\\', '/')));
+        
+        ScenarioRunner.run(scenario);
+        
+        assertTrue("Results written", results.isFile());
+        String json = new String(Files.readAllBytes(results.toPath()), java.nio.charset.StandardCharsets.UTF_8);
+        assertTrue(json.contains("\"scenario\": \"invm-smoke\""));
+        assertTrue(json.contains("\"unacknowledged\": 0,"));
+        assertTrue(json.contains("\"timeouts\": 0,"));
+        long[] orders = requestCounts(json, "new");
+        assertTrue("New orders sent", orders[0] > 0);
+        assertEquals(orders[0], orders[1]);
+        long[] cancels = requestCounts(json, "cancel");
+        assertTrue("Default mix sends cancels", cancels[0] > 0);
+        assertEquals(cancels[0], cancels[1]);
+        System.out.println("✓ " + orders[0] + " orders and " + cancels[0] + " cancels sent, all acknowledged");
+    }
+    
+    private static long[] requestCounts(String json, String action) {
+        java.util.regex.Matcher m = java.util.regex.Pattern
+            .compile("\"" + action + "\": \\{\"sent\": (\\d+), \"acked\": (\\d+)")
+            .matcher(json);
+        assertTrue("Counts for " + action, m.find());
+        return new long[] {Long.parseLong(m.group(1)), Long.parseLong(m.group(2))};
+    }
+}
+
+// ============================================================================
+// TEST 29: PIPELINE STAGE TRACING
+// ============================================================================
+
+public class StageTracerTest {
+    
+    @Test
+    public void test01_RingWrapsAround() {
+        System.out.println("\n=== TEST: Trace Ring Wraparound ===");
+        
+        TraceRing ring = new TraceRing("wrap");
+        int total = StageTracer.RING_CAPACITY + 10;
+        for (int seq = 0; seq < total; seq++) {
+            // The handler stamp encodes the trace number: seq + 1 microseconds after fromApp
+            long start = seq * 1_000_000L;
+            ring.begin(start);
+            ring.stamp(StageTracer.HANDLER, start + (seq + 1) * 1_000L);
+            ring.end();
+        }
+        
+        List<String> lines = dumpLines(ring, StageTracer.RING_CAPACITY);
+        assertEquals("--- wrap (" + StageTracer.RING_CAPACITY + " of " + total + " traces, us from fromApp) ---", 
+            lines.get(0));
+        assertEquals(StageTracer.RING_CAPACITY + 1, lines.size());
+        // The ten oldest traces were overwritten; the dump runs oldest to newest
+        assertEquals(String.format("%.1f", 11.0), stageValue(lines.get(1), "handler"));
+        assertEquals(String.format("%.1f", (double) total), stageValue(lines.get(lines.size() - 1), "handler"));
+        
+        List<String> recent = dumpLines(ring, 3);
+        assertEquals(4, recent.size());
+        assertEquals(String.format("%.1f", total - 2.0), stageValue(recent.get(1), "handler"));
+        System.out.println("✓ Ring keeps the newest " + StageTracer.RING_CAPACITY + " of " + total + " traces");
+    }
+    
+    @Test
+    public void test02_StagesRecordedInOrder() {
+        System.out.println("\n=== TEST: Stage Timestamps ===");
+        
+        TraceRing ring = new TraceRing("stages");
+        ring.stamp(StageTracer.HANDLER, 5_000L);     // no trace open: ignored
+        assertEquals(0, ring.end());
+        
+        ring.begin(1_000_000L);
+        ring.stamp(StageTracer.HANDLER, 1_002_000L);
+        ring.stamp(StageTracer.BOOK_DONE, 1_005_000L);
+        ring.stamp(StageTracer.TO_APP, 1_007_500L);
+        ring.stamp(StageTracer.SOCKET_WRITE, 1_010_000L);
+        // A later reply in the same trace does not move the first stamps
+        ring.stamp(StageTracer.TO_APP, 1_020_000L);
+        ring.stamp(StageTracer.SOCKET_WRITE, 1_030_000L);
+        assertEquals(10_000L, ring.end());
+        
+        // A reject skips the book stage
+        ring.begin(2_000_000L);
+        ring.stamp(StageTracer.HANDLER, 2_001_000L);
+        ring.stamp(StageTracer.TO_APP, 2_003_000L);
+        assertEquals(3_000L, ring.end());
+        
+        List<String> lines = dumpLines(ring, 10);
+        assertEquals("--- stages (2 of 2 traces, us from fromApp) ---", lines.get(0));
+        assertEquals(String.format("handler=%.1f book=%.1f toApp=%.1f write=%.1f", 2.0, 5.0, 7.5, 10.0), lines.get(1));
+        assertEquals(String.format("handler=%.1f book=- toApp=%.1f write=-", 1.0, 3.0), lines.get(2));
+        System.out.println("✓ First stamp of each stage kept, in pipeline order, missing stages shown as -");
+    }
+    
+    private static List<String> dumpLines(TraceRing ring, int maxTraces) {
+        java.io.StringWriter text = new java.io.StringWriter();
+        java.io.PrintWriter out = new java.io.PrintWriter(text);
+        ring.dump(out, maxTraces);
+        out.flush();
+        return Arrays.asList(text.toString().split("\\R"));
+    }
+    
+    private static String stageValue(String line, String stage) {
+        for (String field : line.split(" ")) {
+            if (field.startsWith(stage + "=")) {
+                return field.substring(stage.length() + 1);
+            }
+        }
+        fail("No " + stage + " in " + line);
+        return null;
+    }
+}
+
+// ============================================================================
+// TEST 30: JVM WARM-UP
+// ============================================================================
+
+public class JitWarmupTest {
+    
+    @Test
+    public void test01_WarmupLeavesConsoleAlone() throws Exception {
+        System.out.println("\n=== TEST: Warm-Up Console Output ===");
+        
+        java.io.PrintStream original = System.out;
+        java.io.ByteArrayOutputStream captured = new java.io.ByteArrayOutputStream();
+        java.io.PrintStream capture = new java.io.PrintStream(captured, true, "UTF-8");
+        FIXServerApplication serverApp = new FIXServerApplication();
+        System.setOut(capture);
+        try {
+            // Another thread printing during warm-up must still reach the console
+            Thread other = new Thread(() -> System.out.println("other thread"));
+            other.start();
+            JitWarmup.warmServer(serverApp, 500);
+            other.join();
+            assertSame("System.out is never swapped", capture, System.out);
+        } finally {
+            System.setOut(original);
+            serverApp.shutdown();
+        }
+        
+        String output = captured.toString("UTF-8");
+        assertTrue(output.contains("other thread"));
+        assertTrue(output.contains("Server warm-up:"));
+        assertFalse("Warm-up orders are not printed", output.contains("NEW ORDER RECEIVED"));
+        assertFalse(output.contains("Server received"));
+        System.out.println("✓ Warm-up traffic printed nothing; other output still reached System.out");
+    }
+    
+    @Test
+    public void test02_SymbolFileLoadsBeforeWarmup() throws Exception {
+        System.out.println("\n=== TEST: Symbol File IDs With Warm-Up ===");
+        
+        // SymbolDictionary.DEFAULT is shared by every test in this JVM, so start the server in a fresh one
+        File symbols = Files.createTempFile("symbols", ".txt").toFile();
+        Files.write(symbols.toPath(), Arrays.asList("# first symbol gets ID 0", "IBM", "TSLA", "ORCL"));
+        Process probe = new ProcessBuilder(
+                new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"),
+                SymbolIdProbe.class.getName(), symbols.getPath())
+            .redirectErrorStream(true).start();
+        List<String> output = new ArrayList<>();
+        try (java.io.BufferedReader reader = new java.io.BufferedReader(
+                new java.io.InputStreamReader(probe.getInputStream(), "UTF-8"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                output.add(line);
+            }
+        }
+        assertTrue(probe.waitFor(60, TimeUnit.SECONDS));
+        assertEquals(output.toString(), 0, probe.exitValue());
+        
+        assertTrue(output.toString(), output.contains("IDS 0 1 2"));
+        System.out.println("✓ File symbols kept IDs 0-2; warm-up symbols were numbered after them");
+    }
+    
+    // Builds a warmed-up server from a symbol file and prints the IDs the file's symbols got
+    public static class SymbolIdProbe {
+        public static void main(String[] args) throws Exception {
+            SessionSettings settings = new SessionSettings();
+            settings.setString(JitWarmup.SETTING_ENABLED, "Y");
+            settings.setString(JitWarmup.SETTING_MAX_SECONDS, "1");
+            settings.setString(SymbolDictionary.SETTING_SYMBOL_FILE, args[0]);
+            FIXServerApplication serverApp = FIXProtocolApp.createServerApplication(settings);
+            SymbolDictionary symbols = SymbolDictionary.DEFAULT;
+            System.out.println("IDS " + symbols.find("IBM") + " " + symbols.find("TSLA") + " " + symbols.find("ORCL"));
+            serverApp.shutdown();
+            System.exit(0);
+        }
+    }
+}
+
 // ============================================================================
 // TEST HELPER CLASSES
 // ============================================================================
@@ -1207,6 +3967,85 @@ class TestClientApplication extends quickfix.MessageCracker implements quickfix.
     }
 }
 
+// Server and client applications joined in-VM over the PREFIX_SERVER / PREFIX_CLIENT
+// session pair. Configure the applications or settings, then start(); close() stops
+// the connector and shuts both applications down.
+class LoopbackFixture implements AutoCloseable {
+    private final SessionID serverId;
+    private final SessionID clientId;
+    private final SessionSettings serverSettings;
+    private final SessionSettings clientSettings;
+    private final FIXServerApplication serverApp;
+    private final boolean ownsServer;
+    private final FIXClientApplication clientApp = new FIXClientApplication();
+    private InVmConnector connector;
+    
+    LoopbackFixture(String prefix) {
+        this(prefix, new FIXServerApplication(), true);
+    }
+    
+    // Another session on a server that a different fixture owns and shuts down
+    LoopbackFixture(String prefix, FIXServerApplication serverApp) {
+        this(prefix, serverApp, false);
+    }
+    
+    private LoopbackFixture(String prefix, FIXServerApplication serverApp, boolean ownsServer) {
+        this.serverApp = serverApp;
+        this.ownsServer = ownsServer;
+        serverId = new SessionID("FIX.4.4", prefix + "_SERVER", prefix + "_CLIENT");
+        clientId = new SessionID("FIX.4.4", prefix + "_CLIENT", prefix + "_SERVER");
+        serverSettings = InVmTransportTest.inVmSettings(serverId, "acceptor");
+        clientSettings = InVmTransportTest.inVmSettings(clientId, "initiator");
+    }
+    
+    // Returns once the client has logged on; closes everything if it cannot
+    LoopbackFixture start() throws Exception {
+        LogFactory noLog = new CompositeLogFactory(new LogFactory[0]);
+        connector = new InVmConnector(
+            new DefaultSessionFactory(serverApp, new MemoryStoreFactory(), noLog, new DefaultMessageFactory()),
+            serverSettings,
+            new DefaultSessionFactory(clientApp, new MemoryStoreFactory(), noLog, new DefaultMessageFactory()),
+            clientSettings);
+        try {
+            connector.start();
+            assertTrue("Logon over rings", clientApp.waitForLogon(10, TimeUnit.SECONDS));
+        } catch (Exception | AssertionError e) {
+            close();
+            throw e;
+        }
+        return this;
+    }
+    
+    // Logs both sessions out, leaving the applications running
+    void stopConnector() throws IOException, InterruptedException {
+        if (connector != null) {
+            connector.stop();
+            connector = null;
+        }
+    }
+    
+    // Never throws InterruptedException, so try-with-resources blocks stay -Xlint:try clean
+    @Override
+    public void close() throws IOException {
+        try {
+            stopConnector();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (ownsServer) {
+                serverApp.shutdown();
+            }
+            clientApp.shutdown();
+        }
+    }
+    
+    public SessionID getServerId() { return serverId; }
+    public SessionID getClientId() { return clientId; }
+    public SessionSettings getServerSettings() { return serverSettings; }
+    public FIXServerApplication getServerApp() { return serverApp; }
+    public FIXClientApplication getClientApp() { return clientApp; }
+}
+
 // ============================================================================
 // TEST EXECUTION SUMMARY GENERATOR
 // ============================================================================